@@ -23,12 +23,23 @@
  */
 package com.moosemorals.stockfighter;
 
+import com.moosemorals.stockfighter.pipeline.EventHandler;
+import com.moosemorals.stockfighter.pipeline.Frame;
+import com.moosemorals.stockfighter.pipeline.Pipeline;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.websocket.ClientEndpoint;
 import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
@@ -38,11 +49,20 @@ import javax.websocket.EndpointConfig;
 import javax.websocket.MessageHandler;
 import javax.websocket.Session;
 import org.glassfish.tyrus.client.ClientManager;
-import org.glassfish.tyrus.client.ClientProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Common websocket handling for the tickers.
+ *
+ * <p>
+ * If the connection drops, the ticker reconnects by itself, waiting longer
+ * (with some jitter) after each failed attempt, see {@link Backoff}. Progress
+ * is reported to {@link ConnectionListener}s. If a {@link Trader} has been
+ * set with {@link #setBackfill(Trader)}, the ticker then catches up from the
+ * REST API before going live again: listeners get events made up from the
+ * current state, then any live messages that arrived meanwhile, then live
+ * messages as usual.</p>
  *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
@@ -53,98 +73,589 @@ public abstract class AbstractTicker {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractTicker.class);
 
+    // Reconnect timers for every ticker
+    private static final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Ticker-Reconnect");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Reconnects and backfills block, so they run here, where one slow
+    // server can't hold up the rest
+    private static final ExecutorService connector = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Ticker-Connect-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     private final String api_key;
-    private final AtomicBoolean connected = new AtomicBoolean(false);
     protected final URI endpoint;
+    private final TickerHub hub;
+    private final ListenerRegistry<ConnectionListener, ConnectionState> connectionListeners;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private ConnectionState state = ConnectionState.CLOSED;
     private Session websocket = null;
+    private ClientManager ownClient = null;
+    private String account;
+    private String venue;
+
+    // Live messages (Strings or ByteBuffers) that turn up while catching up,
+    // and the websocket they came from. Guarded by held
+    private volatile boolean holding = false;
+    private final Queue<Object> held = new ArrayDeque<>();
+    private Session heldFrom = null;
+
+    private volatile Pipeline<Frame> pipeline = null;
+    private volatile Trader backfill = null;
+    private volatile Backoff backoff = new Backoff();
+    private volatile boolean partialFrames = false;
 
     public AbstractTicker(String api_key, URI endpoint) {
+        this(api_key, endpoint, null);
+    }
+
+    /**
+     * @param api_key String api key
+     * @param endpoint websocket to connect to
+     * @param hub hub to share a websocket client with, or null to have one
+     * of our own
+     */
+    AbstractTicker(String api_key, URI endpoint, TickerHub hub) {
         this.api_key = api_key;
         this.endpoint = endpoint;
+        this.hub = hub;
+        this.connectionListeners = new ListenerRegistry<>((l, s) -> l.onConnectionState(this, s), null);
+    }
 
+    public URI getEndpoint() {
+        return endpoint;
     }
 
-    public void connect(String account, String venue) throws IOException {
+    /**
+     * @return true if there is an open websocket
+     */
+    public boolean isConnected() {
+        synchronized (lock) {
+            return websocket != null;
+        }
+    }
 
-        final ClientEndpointConfig.Builder configBuilder = ClientEndpointConfig.Builder.create();
-        configBuilder.configurator(new ClientEndpointConfig.Configurator() {
-            @Override
-            public void beforeRequest(Map<String, List<String>> headers) {
-                headers.put("X-Starfighter-Authorization", Arrays.asList(api_key));
-            }
+    public ConnectionState getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
 
-        });
+    public void addConnectionListener(ConnectionListener l) {
+        connectionListeners.add(l);
+    }
 
-        ClientManager.ReconnectHandler reconnectHandler = new ClientManager.ReconnectHandler() {
+    public void removeConnectionListener(ConnectionListener l) {
+        connectionListeners.remove(l);
+    }
 
-            private int counter = 0;
+    /**
+     * Catch up from the REST API after reconnecting. Off (null) by default.
+     *
+     * @param trader Trader to catch up through, or null not to
+     */
+    public void setBackfill(Trader trader) {
+        this.backfill = trader;
+    }
 
-            @Override
-            public boolean onDisconnect(CloseReason closeReason) {
-                counter++;
-                System.out.println("### Reconnecting... (reconnect count: " + counter + ")");
-                return true;
+    public Trader getBackfill() {
+        return backfill;
+    }
+
+    /**
+     * @param backoff delays between reconnection attempts
+     */
+    public void setBackoff(Backoff backoff) {
+        this.backoff = backoff;
+    }
+
+    public Backoff getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Take messages a piece at a time as they come off the wire, instead of
+     * waiting for Tyrus to put each one together as a String. Text pieces are
+     * gathered into a reused buffer, and binary messages are decoded without
+     * going through a String at all. Takes effect from the next connection.
+     * Off by default.
+     *
+     * @param partialFrames
+     */
+    public void setPartialFrames(boolean partialFrames) {
+        this.partialFrames = partialFrames;
+    }
+
+    public boolean isPartialFrames() {
+        return partialFrames;
+    }
+
+    /**
+     * Connect, and stay connected until {@link #disconnect()}. What's
+     * streamed is set by the endpoint; account and venue are only used for
+     * backfilling. See {@link SubscriptionManager} to have endpoints built
+     * for you.
+     *
+     * @param account String account
+     * @param venue String venue
+     * @throws IOException if the first connection fails
+     */
+    public void connect(String account, String venue) throws IOException {
+        synchronized (lock) {
+            if (state != ConnectionState.CLOSED) {
+                log.warn("Already connected");
+                return;
             }
+            this.account = account;
+            this.venue = venue;
+            setState(ConnectionState.CONNECTING);
+        }
+        holding = true;
+        Session session;
+        try {
+            session = open();
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+        catchUp(session, true);
+    }
 
-            @Override
-            public boolean onConnectFailure(Exception exception) {
-                counter++;
-                System.out.println("### Reconnecting... (reconnect count: " + counter + ") " + exception.getMessage());
-                return true;
+    public void disconnect() throws IOException {
+        Session session = close();
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Stop everything, without closing the websocket.
+     *
+     * @return the websocket, if there was one
+     */
+    private Session close() {
+        Session session;
+        ClientManager client;
+        synchronized (lock) {
+            if (state == ConnectionState.CLOSED) {
+                log.warn("Not connected");
+                return null;
             }
+            setState(ConnectionState.CLOSED);
+            session = websocket;
+            websocket = null;
+            client = ownClient;
+            ownClient = null;
+        }
+        synchronized (held) {
+            holding = false;
+            held.clear();
+            heldFrom = null;
+        }
+        if (client != null) {
+            client.shutdown();
+        }
+        return session;
+    }
 
+    /**
+     * Open the websocket.
+     */
+    private Session open() throws IOException {
+        final ClientEndpointConfig.Builder configBuilder = ClientEndpointConfig.Builder.create();
+        configBuilder.configurator(new ClientEndpointConfig.Configurator() {
             @Override
-            public long getDelay() {
-                return 1;
+            public void beforeRequest(Map<String, List<String>> headers) {
+                headers.put("X-Starfighter-Authorization", Arrays.asList(api_key));
             }
-        };
 
-        ClientManager client = ClientManager.createClient();
-        client.getProperties().put(ClientProperties.REDIRECT_ENABLED, true);
-        client.getProperties().put(ClientProperties.RECONNECT_HANDLER, reconnectHandler);
+        });
 
-        if (connected.compareAndSet(false, true)) {
-            try {
-                websocket = client.connectToServer(new Endpoint() {
-                    @Override
-                    public void onOpen(Session session, EndpointConfig ec) {
-                        log.debug("Websocket open: {}", session.getRequestURI());
+        ClientManager client;
+        synchronized (lock) {
+            if (hub != null) {
+                client = hub.getClient();
+            } else {
+                if (ownClient == null) {
+                    ownClient = TickerHub.createClient(false);
+                }
+                client = ownClient;
+            }
+        }
+
+        try {
+            return client.connectToServer(new Endpoint() {
+                @Override
+                public void onOpen(Session session, EndpointConfig ec) {
+                    log.debug("Websocket open: {}", session.getRequestURI());
+                    synchronized (lock) {
+                        if (state == ConnectionState.CLOSED) {
+                            // Disconnected while we were connecting
+                            try {
+                                session.close();
+                            } catch (IOException ex) {
+                                log.debug("Problem closing late websocket: {}", ex.getMessage());
+                            }
+                            return;
+                        }
+                        websocket = session;
+                    }
+                    synchronized (held) {
+                        // Anything held from an older websocket is stale now
+                        held.clear();
+                        heldFrom = session;
+                    }
+                    if (partialFrames) {
+                        session.addMessageHandler(new TextParts());
+                        session.addMessageHandler(new BinaryParts());
+                    } else {
                         session.addMessageHandler(new MessageHandler.Whole<String>() {
 
                             @Override
                             public void onMessage(String message) {
-                                AbstractTicker.this.onMessage(message);
+                                receive(message);
+                            }
+                        });
+                        session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+
+                            @Override
+                            public void onMessage(ByteBuffer message) {
+                                receive(message);
                             }
                         });
                     }
+                }
+
+                @Override
+                public void onError(Session session, Throwable thr) {
+                    log.debug("Websocket error: {}, {}", session.getRequestURI(), thr.getMessage(), thr);
+                }
 
+                @Override
+                public void onClose(Session session, CloseReason closeReason) {
+                    log.debug("Websocket close: {}, {}", session.getRequestURI(), closeReason.getReasonPhrase());
+                    closed(session);
+                }
+
+            }, configBuilder.build(), endpoint);
+        } catch (DeploymentException ex) {
+            log.error("Websocket problem: {}", ex.getMessage(), ex);
+            throw new IOException("Websocket problem: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void closed(Session session) {
+        synchronized (lock) {
+            if (session != websocket || state == ConnectionState.CLOSED) {
+                // Old news
+                return;
+            }
+            websocket = null;
+            setState(ConnectionState.DISCONNECTED);
+        }
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        long delay = backoff.nextDelayMillis();
+        log.info("Reconnecting to {} in {}ms", endpoint, delay);
+        reconnector.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connector.execute(new Runnable() {
                     @Override
-                    public void onError(Session session, Throwable thr) {
-                        log.debug("Websocket error: {}, {}", session.getRequestURI(), thr.getMessage(), thr);
+                    public void run() {
+                        reconnect();
                     }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
+    private void reconnect() {
+        synchronized (lock) {
+            if (state == ConnectionState.CLOSED) {
+                return;
+            }
+            setState(ConnectionState.RECONNECTING);
+        }
+        holding = true;
+        Session session;
+        try {
+            session = open();
+        } catch (IOException ex) {
+            log.info("Can't reconnect to {}: {}", endpoint, ex.getMessage());
+            scheduleReconnect();
+            return;
+        }
+        catchUp(session, false);
+    }
+
+    /**
+     * Backfill if we can, then let held messages through and go live. If the
+     * backfill fails, stay out of LIVE and try again after a backoff delay.
+     */
+    private void catchUp(Session session, boolean first) {
+        Trader trader = backfill;
+        if (trader != null) {
+            boolean retry;
+            synchronized (lock) {
+                if (websocket != session) {
+                    return;
+                }
+                retry = state == ConnectionState.BACKFILL_FAILED;
+                if (!first || retry) {
+                    setState(ConnectionState.BACKFILLING);
+                }
+            }
+            Pipeline<Frame> p = pipeline;
+            if (!first && !retry && p != null) {
+                // Let messages from before the drop go first
+                try {
+                    p.drain(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                backfill(trader, account, venue, first);
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Can't backfill {}: {}", endpoint, ex.getMessage(), ex);
+                synchronized (lock) {
+                    if (websocket != session) {
+                        return;
+                    }
+                    setState(ConnectionState.BACKFILL_FAILED);
+                }
+                scheduleCatchUp(session, first);
+                return;
+            }
+        }
+        synchronized (held) {
+            if (heldFrom != session) {
+                // A newer websocket has taken over, and will catch up itself
+                return;
+            }
+            Object message;
+            while ((message = held.poll()) != null) {
+                if (message instanceof ByteBuffer) {
+                    deliver((ByteBuffer) message);
+                } else {
+                    deliver((String) message);
+                }
+            }
+            holding = false;
+        }
+        synchronized (lock) {
+            if (websocket == session) {
+                backoff.reset();
+                setState(ConnectionState.LIVE);
+            }
+        }
+    }
+
+    private void scheduleCatchUp(final Session session, final boolean first) {
+        long delay = backoff.nextDelayMillis();
+        log.info("Backfilling {} again in {}ms", endpoint, delay);
+        reconnector.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connector.execute(new Runnable() {
                     @Override
-                    public void onClose(Session session, CloseReason closeReason) {
-                        log.debug("Websocket close: {}, {}", session.getRequestURI(), closeReason.getReasonPhrase());
+                    public void run() {
+                        catchUp(session, first);
                     }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void setState(ConnectionState next) {
+        // Called with lock held, so listeners see changes in order
+        if (state != next) {
+            state = next;
+            log.debug("Ticker {} is {}", endpoint, next);
+            connectionListeners.dispatch(next, false);
+        }
+    }
 
-                }, configBuilder.build(), endpoint);
-            } catch (DeploymentException ex) {
-                log.error("Websocket problem: {}", ex.getMessage(), ex);
-                connected.set(false);
-                throw new IOException("Websocket problem: " + ex.getMessage(), ex);
+    /**
+     * Catch up from the REST API. Called on connecting, before any live
+     * messages are let through, and again each time the ticker reconnects.
+     *
+     * @param trader Trader to ask
+     * @param account String account
+     * @param venue String venue
+     * @param first true for the first connection, when there is nothing to
+     * catch up on yet but a starting point can be taken
+     * @throws IOException on network problems
+     */
+    protected void backfill(Trader trader, String account, String venue, boolean first) throws IOException {
+        // Nothing by default
+    }
+
+    /**
+     * Decode a text message and pass it on. The message may be a reused
+     * buffer, so mustn't be kept after returning.
+     *
+     * @param message
+     */
+    protected abstract void onMessage(CharSequence message);
+
+    /**
+     * Decode a binary message and pass it on. The buffer may be reused, so
+     * mustn't be kept after returning, and its position should be left
+     * alone.
+     *
+     * @param message
+     */
+    protected abstract void onMessage(ByteBuffer message);
+
+    /**
+     * Hand received messages to a pipeline instead of decoding them on the
+     * websocket thread. The pipeline should have {@link #frameHandler()} as
+     * its first stage, and this ticker should be its only publisher.
+     *
+     * @param pipeline pipeline to publish to, or null to decode inline
+     */
+    public void setPipeline(Pipeline<Frame> pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public Pipeline<Frame> getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * A pipeline stage that decodes frames, attaches the result with
+     * {@link Frame#setEvent(Object)}, and passes it on to this ticker's
+     * listeners.
+     *
+     * @return
+     */
+    public abstract EventHandler<Frame> frameHandler();
+
+    void receive(CharSequence message) {
+        if (holding) {
+            synchronized (held) {
+                if (holding) {
+                    held.add(message.toString());
+                    return;
+                }
             }
         }
+        deliver(message);
     }
 
-    protected abstract void onMessage(String message);
+    void receive(ByteBuffer message) {
+        if (holding) {
+            synchronized (held) {
+                if (holding) {
+                    ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+                    copy.put(message.duplicate());
+                    copy.flip();
+                    held.add(copy);
+                    return;
+                }
+            }
+        }
+        deliver(message);
+    }
 
-    public void disconnect() throws IOException {
-        if (connected.compareAndSet(true, false)) {
-            websocket.close();
+    private void deliver(CharSequence message) {
+        Pipeline<Frame> p = pipeline;
+        if (p == null) {
+            onMessage(message);
+        } else {
+            p.publish(Frame.TEXT, message.toString());
+        }
+    }
+
+    private void deliver(ByteBuffer message) {
+        Pipeline<Frame> p = pipeline;
+        if (p == null) {
+            onMessage(message);
         } else {
-            log.warn("Not connectd");
+            p.publish(Frame.BYTES, message);
         }
     }
 
+    /**
+     * Gathers the pieces of a text message. Whole messages that come in one
+     * piece are passed straight on.
+     */
+    private final class TextParts implements MessageHandler.Partial<String> {
+
+        private final StringBuilder parts = new StringBuilder();
+
+        @Override
+        public void onMessage(String part, boolean last) {
+            if (last && parts.length() == 0) {
+                receive(part);
+                return;
+            }
+            parts.append(part);
+            if (last) {
+                receive(parts);
+                parts.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Gathers the pieces of a binary message into a reused buffer.
+     */
+    private final class BinaryParts implements MessageHandler.Partial<ByteBuffer> {
+
+        private ByteBuffer parts = ByteBuffer.allocate(4096);
+
+        @Override
+        public void onMessage(ByteBuffer part, boolean last) {
+            if (last && parts.position() == 0) {
+                receive(part);
+                return;
+            }
+            if (parts.remaining() < part.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(parts.capacity() * 2, parts.position() + part.remaining()));
+                parts.flip();
+                bigger.put(parts);
+                parts = bigger;
+            }
+            parts.put(part);
+            if (last) {
+                parts.flip();
+                receive(parts);
+                parts.clear();
+            }
+        }
+    }
+
+    /**
+     * Hears about changes to a ticker's connection.
+     */
+    public interface ConnectionListener {
+
+        /**
+         * Called, in order, each time the state changes. Don't block.
+         *
+         * @param ticker the ticker
+         * @param state its new state
+         */
+        void onConnectionState(AbstractTicker ticker, ConnectionState state);
+    }
 }
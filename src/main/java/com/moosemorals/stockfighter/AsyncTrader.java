@@ -23,14 +23,28 @@
  */
 package com.moosemorals.stockfighter;
 
+import com.moosemorals.stockfighter.transport.AsyncTransport;
 import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderEncoder;
 import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.Orderbook;
+import com.moosemorals.stockfighter.types.Quote;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,54 +54,175 @@ import org.slf4j.LoggerFactory;
  */
 public class AsyncTrader {
 
+    private static final JsonParserFactory parserFactory = Json.createParserFactory(null);
+
     private final Logger log = LoggerFactory.getLogger(AsyncTrader.class);
 
+    /**
+     * Default most posts and cancels waiting to be sent.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private final BlockingQueue<Message> outboundQueue = new LinkedBlockingQueue<>();
-    private final BlockingQueue<OrderStatus> inboundQueue = new LinkedBlockingQueue<>();
-    private final Set<Listener> listeners = new HashSet<>();
+    // Set by stop, so anything queued afterwards is failed straight away
+    private volatile boolean stopped = false;
+    // One queue per outbound worker
+    private final OutboundQueue[] outboundQueues;
+    private final AtomicInteger nextPost = new AtomicInteger();
+    private final BlockingQueue<Outcome> inboundQueue;
+    private final ListenerRegistry<Listener, Outcome> listeners = new ListenerRegistry<>(Outcome::deliver, null);
 
-    private Thread outbound;
+    private Thread[] outbound;
     private Thread inbound;
     private final String venue;
     private final String symbol;
 
     private final Trader trader;
+    private final AsyncTransport async;
 
+    /**
+     * Build an AsyncTrader. The *Async methods are only availible if the
+     * Trader's transport is an {@link AsyncTransport} (e.g. a NioTransport).
+     *
+     * @param trader Trader to send queued posts and cancels through
+     * @param venue String venue
+     * @param symbol String symbol
+     */
     public AsyncTrader(Trader trader, String venue, String symbol) {
+        this(trader, trader.getTransport() instanceof AsyncTransport ? (AsyncTransport) trader.getTransport() : null, venue, symbol);
+    }
+
+    public AsyncTrader(Trader trader, AsyncTransport async, String venue, String symbol) {
+        this(trader, async, venue, symbol, DEFAULT_CAPACITY, OutboundQueue.Overflow.BLOCK);
+    }
+
+    /**
+     * @param trader Trader to send queued posts and cancels through
+     * @param async transport for the *Async methods, or null
+     * @param venue String venue
+     * @param symbol String symbol
+     * @param capacity most posts and cancels waiting to be sent (and
+     * results waiting for listeners)
+     * @param overflow what {@link #post(Order)} and {@link #cancel(int)} do
+     * when the queue is full
+     */
+    public AsyncTrader(Trader trader, AsyncTransport async, String venue, String symbol, int capacity, OutboundQueue.Overflow overflow) {
+        this(trader, async, venue, symbol, capacity, overflow, 1);
+    }
+
+    /**
+     * Send posts and cancels on several threads at once. Posts are shared out
+     * between the workers in turn, and cancels go to a worker picked by order
+     * id, so cancels for the same order are sent in the order they were
+     * asked for. (A cancel needs an id, which an order only gets once its
+     * post has been answered, so a cancel never overtakes its post.) The
+     * Trader's transport needs at least as many connections as there are
+     * workers to get the full benefit.
+     *
+     * @param trader Trader to send queued posts and cancels through
+     * @param async transport for the *Async methods, or null
+     * @param venue String venue
+     * @param symbol String symbol
+     * @param capacity most posts and cancels waiting to be sent for each
+     * worker (and results waiting for listeners)
+     * @param overflow what {@link #post(Order)} and {@link #cancel(int)} do
+     * when a worker's queue is full
+     * @param workers number of threads sending requests
+     */
+    public AsyncTrader(Trader trader, AsyncTransport async, String venue, String symbol, int capacity, OutboundQueue.Overflow overflow, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
         this.trader = trader;
+        this.async = async;
         this.venue = venue;
         this.symbol = symbol;
+        this.outboundQueues = new OutboundQueue[workers];
+        for (int i = 0; i < workers; i += 1) {
+            outboundQueues[i] = new OutboundQueue(capacity, overflow);
+        }
+        this.inboundQueue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Post an order without blocking.
+     *
+     * @param order Order to post
+     * @return CompletableFuture that completes with the status of the new
+     * order
+     */
+    public CompletableFuture<OrderStatus> postOrderAsync(Order order) {
+        OrderEncoder.Encoded body = Trader.encoder.encode(order);
+        return async().postAsync(body.getPath(), body.getData(), 0, body.getLength())
+                .thenApply(AsyncTrader::parseOrderStatus);
+    }
+
+    public CompletableFuture<OrderStatus> cancelOrderAsync(int id) {
+        return async().deleteAsync(Trader.orderPath(venue, symbol, id))
+                .thenApply(AsyncTrader::parseOrderStatus);
+    }
+
+    public CompletableFuture<OrderStatus> getOrderStatusAsync(int id) {
+        return async().getAsync(Trader.orderPath(venue, symbol, id))
+                .thenApply(AsyncTrader::parseOrderStatus);
+    }
+
+    public CompletableFuture<Quote> getQuoteAsync() {
+        return async().getAsync(Trader.quotePath(venue, symbol))
+                .thenApply(raw -> {
+                    try (JsonParser parser = parserFactory.createParser(new ByteArrayInputStream(raw))) {
+                        return new Quote(parser);
+                    }
+                });
+    }
+
+    public CompletableFuture<Orderbook> getOrderbookAsync() {
+        return async().getAsync(Trader.orderbookPath(venue, symbol))
+                .thenApply(raw -> {
+                    try (JsonParser parser = parserFactory.createParser(new ByteArrayInputStream(raw))) {
+                        return new Orderbook(parser);
+                    }
+                });
+    }
+
+    private AsyncTransport async() {
+        if (async == null) {
+            throw new IllegalStateException("No AsyncTransport, build the Trader with a NioTransport");
+        }
+        return async;
+    }
+
+    private static OrderStatus parseOrderStatus(byte[] raw) {
+        try (JsonParser parser = parserFactory.createParser(new ByteArrayInputStream(raw))) {
+            return new OrderStatus(parser);
+        }
     }
 
     public void start() {
         if (running.compareAndSet(false, true)) {
-            outbound = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    while (running.get()) {
-                        try {
-                            Message next = outboundQueue.take();
-                            switch (next.type) {
-                                case POST:
-                                    trader.postOrder(next.order);
-                                    break;
-                                case CLOSE:
-                                    inboundQueue.put(trader.cancelOrder(venue, symbol, next.id));
-                                    break;
+            stopped = false;
+            outbound = new Thread[outboundQueues.length];
+            for (int i = 0; i < outbound.length; i += 1) {
+                final OutboundQueue queue = outboundQueues[i];
+                outbound[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        OutboundQueue.Entry next = new OutboundQueue.Entry();
+                        while (running.get()) {
+                            try {
+                                queue.take(next);
+                                send(next);
+                                next.order = null;
+                                next.result = null;
+                            } catch (InterruptedException ex) {
+                                stop();
+                                return;
                             }
-                        } catch (InterruptedException ex) {
-                            running.set(false);
-                            log.info("Closing down AsyncTrader");
-                            inbound.interrupt();
-                            return;
-                        } catch (IOException ex) {
-                            throw new RuntimeException("IO Error: " + ex.getMessage(), ex);
                         }
                     }
-                }
-            }, "AsyncTrader-Outbound");
-            outbound.start();
+                }, outbound.length == 1 ? "AsyncTrader-Outbound" : "AsyncTrader-Outbound-" + i);
+                outbound[i].start();
+            }
 
             inbound = new Thread(new Runnable() {
                 @Override
@@ -97,9 +232,7 @@ public class AsyncTrader {
                         try {
                             notifyListeners(inboundQueue.take());
                         } catch (InterruptedException ex) {
-                            running.set(false);
-                            log.info("Closing down AsyncTrader");
-                            outbound.interrupt();
+                            stop();
                         }
                     }
                 }
@@ -108,59 +241,301 @@ public class AsyncTrader {
         }
     }
 
+    /**
+     * Send one request, and pass on whatever happens. Errors are reported and
+     * the worker carries on with the next request.
+     */
+    private void send(OutboundQueue.Entry next) throws InterruptedException {
+        CompletableFuture<OrderStatus> result = next.result;
+        Outcome outcome;
+        try {
+            OrderStatus status = next.type == OutboundQueue.POST
+                    ? trader.postOrder(next.order)
+                    : trader.cancelOrder(venue, symbol, next.id);
+            if (!status.isOk()) {
+                outcome = new Outcome(Outcome.REJECTED, next.order, next.id, status, status.getErrorStr(), null);
+            } else if (next.type == OutboundQueue.POST) {
+                outcome = new Outcome(Outcome.POSTED, next.order, status.getId(), status, null, null);
+            } else {
+                outcome = new Outcome(Outcome.CANCELLED, null, next.id, status, null, null);
+            }
+            if (result != null) {
+                result.complete(status);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Can't {} order: {}", next.type == OutboundQueue.POST ? "post" : "cancel", ex.getMessage());
+            outcome = new Outcome(Outcome.ERROR, next.order, next.id, null, ex.getMessage(), ex);
+            if (result != null) {
+                result.completeExceptionally(ex);
+            }
+        }
+        inboundQueue.put(outcome);
+    }
+
+    /**
+     * Stop the workers. Posts and cancels that haven't been sent are
+     * abandoned: their futures are cancelled, and the listeners hear they
+     * were rejected. So is anything queued after stopping.
+     */
     public void stop() {
         if (running.compareAndSet(true, false)) {
-            outbound.interrupt();
+            log.info("Closing down AsyncTrader");
+            stopped = true;
+            for (Thread t : outbound) {
+                t.interrupt();
+            }
             inbound.interrupt();
+            for (OutboundQueue queue : outboundQueues) {
+                abandon(queue);
+            }
         }
     }
 
-    public void post(Order o) {
-        Message m = new Message();
-        m.type = Message.Type.POST;
-        m.order = o;
-        outboundQueue.add(m);
+    private void abandon(OutboundQueue queue) {
+        for (OutboundQueue.Entry e : queue.drain()) {
+            if (e.result != null) {
+                e.result.completeExceptionally(new CancellationException("AsyncTrader stopped"));
+            }
+            notifyListeners(new Outcome(Outcome.REJECTED, e.order, e.id, null, "Stopped before sending", null));
+        }
     }
 
-    public void cancel(int id) {
-        Message m = new Message();
-        m.id = id;
-        m.type = Message.Type.CLOSE;
-        outboundQueue.add(m);
+    /**
+     * Queue an order to be posted. The result also goes to the listeners.
+     *
+     * @param o Order to post
+     * @return CompletableFuture that completes with the status of the new
+     * order (which may not be ok, if the exchange turned it down), or
+     * exceptionally if it couldn't be sent. If the queue is full (or the post
+     * is later dropped to make room) it fails with a
+     * RejectedExecutionException, see {@link OutboundQueue.Overflow}, and if
+     * the trader is stopped first it's cancelled
+     */
+    public CompletableFuture<OrderStatus> post(Order o) {
+        return offer(queueFor(nextPost.getAndIncrement()), OutboundQueue.POST, o, 0);
     }
 
-    private static class Message {
+    /**
+     * Queue an order to be cancelled. The result also goes to the listeners.
+     * Cancels go ahead of any queued posts, and a cancel for an order that's
+     * already waiting to be cancelled is merged with the first one.
+     *
+     * @param id id of the order to cancel
+     * @return CompletableFuture that completes with the status of the
+     * cancelled order, as for {@link #post(Order)}
+     */
+    public CompletableFuture<OrderStatus> cancel(int id) {
+        return offer(queueFor(id), OutboundQueue.CANCEL, null, id);
+    }
 
-        public enum Type {
-            POST, CLOSE
-        };
-        public Order order;
-        public int id;
-        public Type type;
+    /**
+     * Cancel an order from {@link #post(Order)}, whether or not it's been
+     * sent yet. If the post is still queued it's taken back, and neither
+     * request goes to the exchange: the post's future is cancelled, the
+     * listeners hear it was rejected, and the returned future completes with
+     * null. Otherwise the order is cancelled as soon as its post has been
+     * answered, unless the exchange rejected the post, in which case nothing
+     * more is sent.
+     *
+     * @param posted CompletableFuture returned by {@link #post(Order)}
+     * @return CompletableFuture that completes with the status of the
+     * cancelled order, the rejected post's status, or null if it was never
+     * sent
+     */
+    public CompletableFuture<OrderStatus> cancel(CompletableFuture<OrderStatus> posted) {
+        for (OutboundQueue queue : outboundQueues) {
+            Order order = queue.withdraw(posted);
+            if (order != null) {
+                posted.cancel(false);
+                notifyListeners(new Outcome(Outcome.REJECTED, order, 0, null, "Cancelled before sending", null));
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        // A post the exchange turned down has no order to cancel
+        return posted.thenCompose(status -> status.isOk() ? cancel(status.getId()) : CompletableFuture.completedFuture(status));
     }
 
-    public void addListener(Listener l) {
-        synchronized (listeners) {
-            listeners.add(l);
+    private CompletableFuture<OrderStatus> offer(OutboundQueue queue, int type, Order order, int id) {
+        CompletableFuture<OrderStatus> result = new CompletableFuture<>();
+        switch (queue.offer(type, order, id, result)) {
+            case REJECTED:
+                turnedAway(type, order, id, result, "Queue full");
+                break;
+            case QUEUED_DROPPED_OLDEST:
+                OutboundQueue.Entry dropped;
+                while ((dropped = queue.pollDropped()) != null) {
+                    turnedAway(dropped.type, dropped.order, dropped.id, dropped.result, "Dropped to make room");
+                }
+                break;
+        }
+        if (stopped) {
+            // Raced with stop, or came after it
+            abandon(queue);
         }
+        return result;
     }
 
-    public void removeListers(Listener l) {
-        synchronized (listeners) {
-            listeners.remove(l);
+    // Told on the caller's thread, since the inbound queue may be full too
+    private void turnedAway(int type, Order order, int id, CompletableFuture<OrderStatus> result, String reason) {
+        if (result != null) {
+            result.completeExceptionally(new RejectedExecutionException(reason));
         }
+        notifyListeners(new Outcome(Outcome.REJECTED, order, id, null, reason, null));
     }
 
-    private void notifyListeners(OrderStatus status) {
-        synchronized (listeners) {
-            for (Listener l : listeners) {
-                l.onCancel(status);
-            }
+    private OutboundQueue queueFor(int key) {
+        return outboundQueues[(key & Integer.MAX_VALUE) % outboundQueues.length];
+    }
+
+    /**
+     * @return the queues of posts and cancels waiting to be sent, one per
+     * worker, for their depth and waiting times
+     */
+    public List<OutboundQueue> getOutboundQueues() {
+        return Collections.unmodifiableList(Arrays.asList(outboundQueues));
+    }
+
+    /**
+     * @return posts and cancels waiting to be sent, across all the workers
+     */
+    public int getOutboundDepth() {
+        int depth = 0;
+        for (OutboundQueue q : outboundQueues) {
+            depth += q.getDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return requests that never went to the exchange, because a cancel was
+     * merged with another or a post was cancelled before it was sent
+     */
+    public long getSavedCount() {
+        long saved = 0;
+        for (OutboundQueue q : outboundQueues) {
+            saved += q.getSavedCount();
         }
+        return saved;
+    }
+
+    public int getWorkerCount() {
+        return outboundQueues.length;
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Call the listener on its own executor instead of the inbound thread.
+     *
+     * @param l
+     * @param executor
+     */
+    public void addListener(Listener l, Executor executor) {
+        listeners.add(l, executor);
     }
 
+    public void removeListers(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * @return call counts and timings for each listener
+     */
+    public List<ListenerRegistry.Stats> getListenerStats() {
+        return listeners.getStats();
+    }
+
+    private void notifyListeners(Outcome outcome) {
+        listeners.dispatch(outcome, false);
+    }
+
+    /**
+     * Hears what happened to queued posts and cancels. Only {@link #onCancel}
+     * has to be written, so a lambda still does for just cancels.
+     */
     public interface Listener {
 
+        /**
+         * An order was cancelled.
+         *
+         * @param status OrderStatus of the cancelled order
+         */
         void onCancel(OrderStatus status);
+
+        /**
+         * An order was posted. Its id is {@code status.getId()}, so there's no
+         * need to go looking for it.
+         *
+         * @param order Order that was posted
+         * @param status OrderStatus of the new order
+         */
+        default void onPosted(Order order, OrderStatus status) {
+        }
+
+        /**
+         * A post or cancel was turned down, either by the exchange, or because
+         * there was no room in the queue.
+         *
+         * @param order Order that was turned down, or null for a cancel
+         * @param id id of the order being cancelled, or 0 for a post
+         * @param status what the exchange said, or null if it never got there
+         * @param reason why
+         */
+        default void onRejected(Order order, int id, OrderStatus status, String reason) {
+        }
+
+        /**
+         * A post or cancel couldn't be sent. The worker carries on with the
+         * next one.
+         *
+         * @param order Order that couldn't be posted, or null for a cancel
+         * @param id id of the order being cancelled, or 0 for a post
+         * @param error what went wrong
+         */
+        default void onError(Order order, int id, Exception error) {
+        }
+    }
+
+    private static final class Outcome {
+
+        static final int POSTED = 1;
+        static final int CANCELLED = 2;
+        static final int REJECTED = 3;
+        static final int ERROR = 4;
+
+        final int kind;
+        final Order order;
+        final int id;
+        final OrderStatus status;
+        final String reason;
+        final Exception error;
+
+        Outcome(int kind, Order order, int id, OrderStatus status, String reason, Exception error) {
+            this.kind = kind;
+            this.order = order;
+            this.id = id;
+            this.status = status;
+            this.reason = reason;
+            this.error = error;
+        }
+
+        static void deliver(Listener l, Outcome o) {
+            switch (o.kind) {
+                case POSTED:
+                    l.onPosted(o.order, o.status);
+                    break;
+                case CANCELLED:
+                    l.onCancel(o.status);
+                    break;
+                case REJECTED:
+                    l.onRejected(o.order, o.id, o.status, o.reason);
+                    break;
+                case ERROR:
+                    l.onError(o.order, o.id, o.error);
+                    break;
+            }
+        }
     }
 }
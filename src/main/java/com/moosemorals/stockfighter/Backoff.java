@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter, for reconnecting. Each delay is the
+ * previous one times the multiplier, up to a maximum, and then shortened by
+ * a random fraction so that lots of clients dropped at once don't all come
+ * back at once.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class Backoff {
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    // Guarded by this
+    private int attempts = 0;
+
+    /**
+     * Start at 250ms, double each time up to 30 seconds, with up to half of
+     * each delay taken off at random.
+     */
+    public Backoff() {
+        this(250, 30000, 2.0, 0.5);
+    }
+
+    /**
+     * @param initialMillis first delay
+     * @param maxMillis longest delay
+     * @param multiplier growth from one delay to the next
+     * @param jitter fraction of each delay (0 to 1) that may be taken off at
+     * random
+     */
+    public Backoff(long initialMillis, long maxMillis, double multiplier, double jitter) {
+        if (initialMillis < 0 || maxMillis < initialMillis || multiplier < 1 || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Bad backoff settings");
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return how long to wait before the next attempt
+     */
+    public synchronized long nextDelayMillis() {
+        double delay = initialMillis * Math.pow(multiplier, attempts);
+        if (delay < maxMillis) {
+            attempts += 1;
+        } else {
+            delay = maxMillis;
+        }
+        return (long) (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    /**
+     * @return number of delays handed out since the last reset, up to the
+     * point the maximum was reached
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Go back to the initial delay, after a successful connection.
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
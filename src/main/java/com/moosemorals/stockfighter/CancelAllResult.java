@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happened during {@link Trader#cancelAll}.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class CancelAllResult {
+
+    private int listed = 0;
+    private int cancelled = 0;
+    private final List<Integer> failed = new ArrayList<>();
+    private final List<Integer> unfinished = new ArrayList<>();
+    private long maxCancelNanos = 0;
+    private long elapsedNanos = 0;
+
+    CancelAllResult() {
+    }
+
+    synchronized void listed() {
+        listed += 1;
+    }
+
+    synchronized void cancelled(long nanos) {
+        cancelled += 1;
+        maxCancelNanos = Math.max(maxCancelNanos, nanos);
+    }
+
+    synchronized void failed(int id, long nanos) {
+        failed.add(id);
+        maxCancelNanos = Math.max(maxCancelNanos, nanos);
+    }
+
+    synchronized void unfinished(int id) {
+        unfinished.add(id);
+    }
+
+    synchronized void finished(long nanos) {
+        elapsedNanos = nanos;
+    }
+
+    /**
+     * @return number of open orders found
+     */
+    public synchronized int getListedCount() {
+        return listed;
+    }
+
+    /**
+     * @return number of orders the exchange says are no longer open
+     */
+    public synchronized int getCancelledCount() {
+        return cancelled;
+    }
+
+    public synchronized int getFailedCount() {
+        return failed.size();
+    }
+
+    /**
+     * @return ids of orders that couldn't be cancelled, worth trying again
+     */
+    public synchronized List<Integer> getFailedIds() {
+        return new ArrayList<>(failed);
+    }
+
+    public synchronized int getUnfinishedCount() {
+        return unfinished.size();
+    }
+
+    /**
+     * @return ids of orders whose cancel hadn't been answered when
+     * cancelAll stopped waiting. They may or may not have been cancelled
+     */
+    public synchronized List<Integer> getUnfinishedIds() {
+        return new ArrayList<>(unfinished);
+    }
+
+    /**
+     * @return true if every order found was cancelled
+     */
+    public synchronized boolean isComplete() {
+        return failed.isEmpty() && cancelled == listed;
+    }
+
+    /**
+     * @return longest single cancel, in nanoseconds
+     */
+    public synchronized long getMaxCancelNanos() {
+        return maxCancelNanos;
+    }
+
+    /**
+     * @return time from starting the listing to the last cancel finishing
+     * (or to giving up on the rest), in nanoseconds
+     */
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CancelAllResult{" + "listed=" + listed + ", cancelled=" + cancelled + ", failed=" + failed.size()
+                + ", unfinished=" + unfinished.size()
+                + ", elapsed=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms"
+                + ", maxCancel=" + TimeUnit.NANOSECONDS.toMillis(maxCancelNanos) + "ms}";
+    }
+}
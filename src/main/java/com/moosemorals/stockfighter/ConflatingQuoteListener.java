@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Dictionary;
+import com.moosemorals.stockfighter.types.Quote;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sits between a ticker and a slow listener, and makes sure the listener only
+ * ever sees the newest quote for each stock. Quotes for a stock that arrive
+ * while an earlier one is still waiting replace it, rather than queueing up
+ * behind it.
+ *
+ * <p>
+ * The listener is called on the given executor, one quote at a time, with a
+ * Quote it can keep. How many quotes were dropped, and how long delivered
+ * quotes waited, are counted so you can see how far behind the listener
+ * is.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class ConflatingQuoteListener implements QuoteTicker.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(ConflatingQuoteListener.class);
+
+    private final QuoteTicker.Listener delegate;
+    private final Executor executor;
+    private final ConcurrentMap<Long, Slot> slots = new ConcurrentHashMap<>();
+    private final Queue<Slot> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong totalAgeNanos = new AtomicLong();
+    private final AtomicLong maxAgeNanos = new AtomicLong();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param delegate listener to pass the newest quotes to
+     * @param executor executor to call the delegate on
+     */
+    public ConflatingQuoteListener(QuoteTicker.Listener delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onQuote(Quote q) {
+        received.incrementAndGet();
+        long key = ((long) q.getVenueId() << 32) | (q.getSymbolId() & 0xffffffffL);
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            slot = new Slot();
+            Slot existing = slots.putIfAbsent(key, slot);
+            if (existing != null) {
+                slot = existing;
+            }
+        }
+
+        // Copy, as the ticker may be reusing q
+        Pending previous = slot.latest.getAndSet(new Pending(q.copy(), System.nanoTime()));
+        if (previous == null) {
+            ready.add(slot);
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(drain);
+            }
+        } else {
+            slot.conflated.incrementAndGet();
+            conflated.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Slot slot;
+            while ((slot = ready.poll()) != null) {
+                Pending p = slot.latest.getAndSet(null);
+                if (p != null) {
+                    deliver(p);
+                }
+            }
+            draining.set(false);
+            // Something may have turned up after the last poll
+            if (ready.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(Pending p) {
+        long age = System.nanoTime() - p.receivedNanos;
+        delivered.incrementAndGet();
+        totalAgeNanos.addAndGet(age);
+        long max = maxAgeNanos.get();
+        while (age > max && !maxAgeNanos.compareAndSet(max, age)) {
+            max = maxAgeNanos.get();
+        }
+        try {
+            delegate.onQuote(p.quote);
+        } catch (RuntimeException ex) {
+            log.warn("Listener {} threw: {}", delegate, ex.getMessage(), ex);
+        }
+    }
+
+    public QuoteTicker.Listener getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return quotes passed in by the ticker
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return quotes passed on to the delegate
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * @return quotes dropped because a newer one for the same stock turned
+     * up first
+     */
+    public long getConflatedCount() {
+        return conflated.get();
+    }
+
+    /**
+     * @param venue
+     * @param symbol
+     * @return quotes dropped for one stock
+     */
+    public long getConflatedCount(String venue, String symbol) {
+        long key = ((long) Dictionary.VENUES.id(venue) << 32) | (Dictionary.SYMBOLS.id(symbol) & 0xffffffffL);
+        Slot slot = slots.get(key);
+        return slot == null ? 0 : slot.conflated.get();
+    }
+
+    /**
+     * @return average time from a quote arriving to it being delivered
+     */
+    public long getAverageAgeNanos() {
+        long count = delivered.get();
+        return count == 0 ? 0 : totalAgeNanos.get() / count;
+    }
+
+    /**
+     * @return longest time from a quote arriving to it being delivered
+     */
+    public long getMaxAgeNanos() {
+        return maxAgeNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConflatingQuoteListener{" + "delegate=" + delegate + ", received=" + received + ", delivered=" + delivered + ", conflated=" + conflated + ", maxAgeNanos=" + maxAgeNanos + '}';
+    }
+
+    private static final class Slot {
+
+        final AtomicReference<Pending> latest = new AtomicReference<>();
+        final AtomicLong conflated = new AtomicLong();
+    }
+
+    private static final class Pending {
+
+        final Quote quote;
+        final long receivedNanos;
+
+        Pending(Quote quote, long receivedNanos) {
+            this.quote = quote;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+/**
+ * Where a ticker's websocket connection is up to.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public enum ConnectionState {
+    /**
+     * Not connected, and not trying to be.
+     */
+    CLOSED,
+    /**
+     * Making the first connection.
+     */
+    CONNECTING,
+    /**
+     * Receiving messages as they happen.
+     */
+    LIVE,
+    /**
+     * The connection dropped. Messages may have been missed.
+     */
+    DISCONNECTED,
+    /**
+     * Trying to connect again, after a backoff delay.
+     */
+    RECONNECTING,
+    /**
+     * Connected again, and catching up from the REST API. Events delivered
+     * in this state are made up from what the API says now rather than sent
+     * live. Live messages are held until it's done.
+     */
+    BACKFILLING,
+    /**
+     * Connected, but catching up from the REST API failed, so messages may
+     * have been missed. Live messages are still held, and the backfill is
+     * tried again after a backoff delay.
+     */
+    BACKFILL_FAILED
+}
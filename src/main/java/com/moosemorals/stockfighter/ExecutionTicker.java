@@ -23,13 +23,19 @@
  */
 package com.moosemorals.stockfighter;
 
+import com.moosemorals.stockfighter.pipeline.EventHandler;
+import com.moosemorals.stockfighter.pipeline.Frame;
 import com.moosemorals.stockfighter.types.Execution;
-import java.io.StringReader;
+import com.moosemorals.stockfighter.types.MessageDecoder;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.TimestampCodec;
+import java.io.IOException;
 import java.net.URI;
-import java.util.HashSet;
-import java.util.Set;
-import javax.json.Json;
-import javax.json.stream.JsonParser;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  *
@@ -39,42 +45,232 @@ public class ExecutionTicker extends AbstractTicker {
 
     public ExecutionTicker(String api_key, URI endpoint) {
         super(api_key, endpoint);
-        listeners = new HashSet<>();
     }
 
-    private final Set<Listener> listeners;
+    ExecutionTicker(String api_key, URI endpoint, TickerHub hub) {
+        super(api_key, endpoint, hub);
+    }
+
+    private final ListenerRegistry<Listener, Execution> listeners = new ListenerRegistry<>(Listener::onExecute, Execution::copy);
+    private final MessageDecoder decoder = new MessageDecoder();
+    private final Execution flyweight = new Execution();
+    private volatile boolean reuseExecutions = false;
+    private volatile String backfillSymbol = null;
+    // Exchange times, for backfill. Executions come in the order they
+    // happen, so fills after heardUpTo were missed while disconnected, and
+    // live executions up to coveredUpTo repeat what the last backfill
+    // reported. Guarded by marks
+    private final Object marks = new Object();
+    private long heardUpTo = TimestampCodec.NONE;
+    private long coveredUpTo = TimestampCodec.NONE;
 
+    /**
+     * Call the listener on the websocket thread. It should return quickly.
+     *
+     * @param l
+     */
     public void addListener(Listener l) {
-        synchronized (listeners) {
-            listeners.add(l);
-        }
+        listeners.add(l);
+    }
+
+    /**
+     * Call the listener on its own executor, so it can't hold up the feed. If
+     * the ticker is reusing executions the listener gets a copy.
+     *
+     * @param l
+     * @param executor
+     */
+    public void addListener(Listener l, Executor executor) {
+        listeners.add(l, executor);
     }
 
     public void removeListener(Listener l) {
-        synchronized (listeners) {
-            listeners.remove(l);
-        }
+        listeners.remove(l);
+    }
+
+    /**
+     * @return call counts and timings for each listener
+     */
+    public List<ListenerRegistry.Stats> getListenerStats() {
+        return listeners.getStats();
+    }
+
+    /**
+     * Decode every message into the same Execution (and OrderStatus and
+     * Fills) instead of making new ones each time. The Execution passed to
+     * {@link Listener#onExecute(Execution)} is then only valid until onExecute
+     * returns, so listeners that want to keep it must
+     * {@link Execution#copy()} it. Off by default.
+     *
+     * @param reuseExecutions
+     */
+    public void setReuseExecutions(boolean reuseExecutions) {
+        this.reuseExecutions = reuseExecutions;
     }
 
-    private void notifyListeners(Execution message) {
-        synchronized (listeners) {
-            for (Listener l : listeners) {
-                l.onExecute(message);
+    public boolean isReuseExecutions() {
+        return reuseExecutions;
+    }
+
+    /**
+     * Only catch up on one stock's orders. Set this for tickers that stream
+     * one stock, or their backfill reports fills on every stock on the
+     * account.
+     *
+     * @param symbol String stock symbol, or null for every stock on the venue
+     */
+    public void setBackfillSymbol(String symbol) {
+        this.backfillSymbol = symbol;
+    }
+
+    public String getBackfillSymbol() {
+        return backfillSymbol;
+    }
+
+    /**
+     * Decode frames into Executions. If the ticker is reusing executions,
+     * each slot of the ring keeps its own Execution, which stays valid until
+     * the slot comes round again.
+     *
+     * @return
+     */
+    @Override
+    public EventHandler<Frame> frameHandler() {
+        return new EventHandler<Frame>() {
+            @Override
+            public void onEvent(Frame frame, long sequence, boolean endOfBatch) {
+                Execution ex;
+                if (reuseExecutions) {
+                    ex = frame.getSpare() instanceof Execution ? (Execution) frame.getSpare() : new Execution();
+                    frame.setSpare(ex);
+                    if (frame.getText() != null) {
+                        decoder.decodeExecution(frame.getText(), ex);
+                    } else {
+                        decoder.decodeExecution(frame.getData(), 0, frame.getLength(), ex);
+                    }
+                } else if (frame.getText() != null) {
+                    ex = decoder.decodeExecution(frame.getText());
+                } else {
+                    ex = decoder.decodeExecution(frame.getData(), 0, frame.getLength());
+                }
+                frame.setEvent(ex);
+                if (fresh(ex)) {
+                    listeners.dispatch(ex, reuseExecutions);
+                }
             }
-        }
+        };
     }
 
     public interface Listener {
 
+        /**
+         * Called for each execution. If the ticker is reusing executions and
+         * the listener was added without an executor, ex is only valid for
+         * the length of this call.
+         *
+         * @param ex
+         */
         void onExecute(Execution ex);
     }
 
     @Override
-    public void onMessage(String message) {
-        try (JsonParser parser = Json.createParser(new StringReader(message))) {
+    public void onMessage(CharSequence message) {
+        if (reuseExecutions) {
+            decoder.decodeExecution(message, flyweight);
+            if (fresh(flyweight)) {
+                listeners.dispatch(flyweight, true);
+            }
+        } else {
+            Execution ex = decoder.decodeExecution(message);
+            if (fresh(ex)) {
+                listeners.dispatch(ex, false);
+            }
+        }
+    }
 
-            notifyListeners(new Execution(parser));
+    @Override
+    public void onMessage(ByteBuffer message) {
+        if (reuseExecutions) {
+            decoder.decodeExecution(message, flyweight);
+            if (fresh(flyweight)) {
+                listeners.dispatch(flyweight, true);
+            }
+        } else {
+            Execution ex = decoder.decodeExecution(message);
+            if (fresh(ex)) {
+                listeners.dispatch(ex, false);
+            }
+        }
+    }
 
+    /**
+     * Keep track of fills while backfilling is on, and drop executions that
+     * a backfill has already covered. Goes by the time of the fill, not the
+     * order, since one order can match several others at once and each fill
+     * comes as its own execution.
+     */
+    private boolean fresh(Execution ex) {
+        if (getBackfill() == null) {
+            return true;
+        }
+        long at = ex.getFilledAtNanos();
+        if (at == TimestampCodec.NONE) {
+            return true;
+        }
+        synchronized (marks) {
+            if (at <= coveredUpTo) {
+                return false;
+            }
+            heardUpTo = Math.max(heardUpTo, at);
+            return true;
+        }
+    }
+
+    /**
+     * Fetch every order on the account (or just those on the backfill
+     * symbol, if there is one), and hand listeners a synthetic
+     * {@link Execution} (see {@link Execution#fromFill(OrderStatus, int)}) for
+     * each fill since the last one they heard about, oldest first. The first
+     * time round only notes where to start from. Fills at the very same time
+     * as the last one heard are taken to have been heard too.
+     */
+    @Override
+    protected void backfill(Trader trader, String account, String venue, final boolean first) throws IOException {
+        final long since;
+        synchronized (marks) {
+            since = heardUpTo;
+        }
+        final List<Execution> missed = new ArrayList<>();
+        final long[] latest = {TimestampCodec.NONE};
+        Trader.OrderHandler handler = new Trader.OrderHandler() {
+            @Override
+            public boolean onOrder(OrderStatus order) {
+                for (int i = 0; i < order.getFillCount(); i += 1) {
+                    long at = order.getFillTsNanos(i);
+                    latest[0] = Math.max(latest[0], at);
+                    if (!first && (since == TimestampCodec.NONE || at > since)) {
+                        missed.add(Execution.fromFill(order, i));
+                    }
+                }
+                return true;
+            }
+        };
+        String symbol = backfillSymbol;
+        if (symbol == null) {
+            trader.getOrderStatus(venue, account, false, handler);
+        } else {
+            trader.getOrderStatus(venue, account, symbol, false, handler);
+        }
+
+        // Only once the whole listing is in, so a failed backfill can be
+        // tried again from the same place
+        missed.sort(Comparator.comparingLong(Execution::getFilledAtNanos));
+        for (Execution ex : missed) {
+            listeners.dispatch(ex, false);
+        }
+        synchronized (marks) {
+            heardUpTo = Math.max(heardUpTo, latest[0]);
+            coveredUpTo = Math.max(coveredUpTo, latest[0]);
         }
     }
 
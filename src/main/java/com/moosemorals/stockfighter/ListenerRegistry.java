@@ -0,0 +1,322 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listeners held in a copy-on-write array, so dispatch never takes a lock and
+ * adding or removing a listener never waits for dispatch.
+ *
+ * <p>
+ * A listener is either called inline, on the dispatching thread, or handed
+ * each event on its own executor so a slow listener can't hold up the feed.
+ * Exceptions from one listener are logged and counted, and don't stop the
+ * others. Time spent in each listener is counted too, see
+ * {@link #getStats()}.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ * @param <L> listener type
+ * @param <E> event type
+ */
+public final class ListenerRegistry<L, E> {
+
+    private static final Logger log = LoggerFactory.getLogger(ListenerRegistry.class);
+
+    private static final Registration<?, ?>[] EMPTY = new Registration<?, ?>[0];
+
+    private final Deliverer<L, E> deliverer;
+    private final UnaryOperator<E> copier;
+
+    @SuppressWarnings("unchecked")
+    private final AtomicReference<Registration<L, E>[]> registrations = new AtomicReference<>((Registration<L, E>[]) EMPTY);
+
+    /**
+     * @param deliverer calls the listener with an event
+     * @param copier copies an event that is about to be reused, for
+     * listeners on an executor (may be null if events are never reused)
+     */
+    public ListenerRegistry(Deliverer<L, E> deliverer, UnaryOperator<E> copier) {
+        this.deliverer = deliverer;
+        this.copier = copier;
+    }
+
+    /**
+     * Call the listener inline, on the dispatching thread.
+     *
+     * @param listener
+     * @return false if the listener was already registered
+     */
+    public boolean add(L listener) {
+        return add(listener, null);
+    }
+
+    /**
+     * Call the listener on the given executor.
+     *
+     * @param listener
+     * @param executor executor to call the listener on, or null for inline
+     * @return false if the listener was already registered
+     */
+    public boolean add(L listener, Executor executor) {
+        if (listener == null) {
+            throw new NullPointerException("Listener can't be null");
+        }
+        Registration<L, E> r = new Registration<>(listener, executor);
+        while (true) {
+            Registration<L, E>[] current = registrations.get();
+            if (indexOf(current, listener) >= 0) {
+                return false;
+            }
+            Registration<L, E>[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = r;
+            if (registrations.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param listener
+     * @return false if the listener wasn't registered
+     */
+    @SuppressWarnings("unchecked")
+    public boolean remove(L listener) {
+        while (true) {
+            Registration<L, E>[] current = registrations.get();
+            int i = indexOf(current, listener);
+            if (i < 0) {
+                return false;
+            }
+            Registration<L, E>[] next = (Registration<L, E>[]) (current.length == 1 ? EMPTY : new Registration<?, ?>[current.length - 1]);
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            if (registrations.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return registrations.get().length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Hand an event to every listener.
+     *
+     * @param event
+     * @param reused true if the event will be overwritten once this returns,
+     * in which case listeners on executors get a copy
+     */
+    public void dispatch(E event, boolean reused) {
+        E shared = reused ? null : event;
+        for (Registration<L, E> r : registrations.get()) {
+            if (r.executor == null) {
+                r.deliver(deliverer, event);
+            } else {
+                if (shared == null) {
+                    shared = copier.apply(event);
+                }
+                r.submit(deliverer, shared);
+            }
+        }
+    }
+
+    /**
+     * @return call counts and timings for each listener, in the order they
+     * were added
+     */
+    public List<Stats> getStats() {
+        Registration<L, E>[] current = registrations.get();
+        List<Stats> result = new ArrayList<>(current.length);
+        for (Registration<L, E> r : current) {
+            result.add(r.stats());
+        }
+        return result;
+    }
+
+    private static int indexOf(Registration<?, ?>[] current, Object listener) {
+        for (int i = 0; i < current.length; i += 1) {
+            if (current[i].listener.equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Calls one listener with one event.
+     *
+     * @param <L> listener type
+     * @param <E> event type
+     */
+    public interface Deliverer<L, E> {
+
+        void deliver(L listener, E event);
+    }
+
+    private static final class Registration<L, E> {
+
+        final L listener;
+        final Executor executor;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong pending = new AtomicLong();
+
+        Registration(L listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void deliver(Deliverer<L, E> deliverer, E event) {
+            long start = System.nanoTime();
+            try {
+                deliverer.deliver(listener, event);
+            } catch (RuntimeException ex) {
+                errors.incrementAndGet();
+                log.warn("Listener {} threw: {}", listener, ex.getMessage(), ex);
+            }
+            long elapsed = System.nanoTime() - start;
+            calls.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+            long max = maxNanos.get();
+            while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+                max = maxNanos.get();
+            }
+        }
+
+        void submit(final Deliverer<L, E> deliverer, final E event) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            deliver(deliverer, event);
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                pending.decrementAndGet();
+                errors.incrementAndGet();
+                log.warn("Executor for listener {} rejected an event: {}", listener, ex.getMessage());
+            }
+        }
+
+        Stats stats() {
+            return new Stats(listener, executor != null, calls.get(), errors.get(), totalNanos.get(), maxNanos.get(), pending.get());
+        }
+    }
+
+    /**
+     * A snapshot of how one listener has been doing.
+     */
+    public static final class Stats {
+
+        private final Object listener;
+        private final boolean async;
+        private final long calls;
+        private final long errors;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long pending;
+
+        Stats(Object listener, boolean async, long calls, long errors, long totalNanos, long maxNanos, long pending) {
+            this.listener = listener;
+            this.async = async;
+            this.calls = calls;
+            this.errors = errors;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.pending = pending;
+        }
+
+        public Object getListener() {
+            return listener;
+        }
+
+        /**
+         * @return true if the listener is called on its own executor
+         */
+        public boolean isAsync() {
+            return async;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return number of calls that threw, plus events the executor
+         * rejected
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return total time spent in the listener
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getAverageNanos() {
+            return calls == 0 ? 0 : totalNanos / calls;
+        }
+
+        /**
+         * @return events waiting on the listener's executor
+         */
+        public long getPending() {
+            return pending;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" + "listener=" + listener + ", async=" + async + ", calls=" + calls + ", errors=" + errors + ", averageNanos=" + getAverageNanos() + ", maxNanos=" + maxNanos + ", pending=" + pending + '}';
+        }
+    }
+}
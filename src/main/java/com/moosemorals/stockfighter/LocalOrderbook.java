@@ -0,0 +1,479 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.Orderbook;
+import com.moosemorals.stockfighter.types.Quote;
+import com.moosemorals.stockfighter.types.TimestampCodec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local copy of the order book for one stock, kept up to date from the
+ * tickers so it can be queried without going to the API.
+ *
+ * <p>
+ * The book is seeded from a REST {@link Orderbook} snapshot. After that,
+ * quotes move the top of each side (dropping any levels the quote shows have
+ * gone) and executions take filled quantity off the level that was hit. The
+ * tickers don't say anything about the levels below the top, so the book is
+ * re-fetched every so often, and sooner if the depth a quote reports stops
+ * matching what's held here.</p>
+ *
+ * <p>
+ * Register the book as a listener on a {@link QuoteTicker} and (optionally)
+ * an {@link ExecutionTicker}, and as a connection listener on them to
+ * resync after a reconnect. Events for other stocks are ignored. Prices are
+ * kept in sorted primitive arrays, so best bid/ask and total depth are O(1)
+ * and looking up a price level is O(log n).</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class LocalOrderbook implements QuoteTicker.Listener, ExecutionTicker.Listener, AbstractTicker.ConnectionListener, Closeable {
+
+    /**
+     * Returned as the price of an empty side.
+     */
+    public static final int NO_PRICE = -1;
+
+    private static final Logger log = LoggerFactory.getLogger(LocalOrderbook.class);
+
+    private final Trader trader;
+    private final String venue;
+    private final String symbol;
+
+    private final Ladder bids = new Ladder(true);
+    private final Ladder asks = new Ladder(false);
+
+    private final AtomicBoolean resyncPending = new AtomicBoolean(false);
+    private ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private long bookNanos = TimestampCodec.NONE;
+    private long lastQuoteNanos = TimestampCodec.NONE;
+    private long resyncCount = 0;
+    private long driftCount = 0;
+
+    public LocalOrderbook(Trader trader, String venue, String symbol) {
+        this.trader = trader;
+        this.venue = venue;
+        this.symbol = symbol;
+    }
+
+    /**
+     * Fetch a fresh snapshot from the API and replace the book with it.
+     *
+     * @throws IOException on network problems
+     */
+    public void resync() throws IOException {
+        resyncPending.set(false);
+        apply(trader.getOrderbook(venue, symbol));
+    }
+
+    /**
+     * Replace the book with a snapshot.
+     *
+     * @param snapshot
+     */
+    public void apply(Orderbook snapshot) {
+        Ladder newBids = new Ladder(true);
+        Ladder newAsks = new Ladder(false);
+        load(newBids, snapshot, true);
+        load(newAsks, snapshot, false);
+        synchronized (this) {
+            bids.replace(newBids);
+            asks.replace(newAsks);
+            bookNanos = snapshot.getTsNanos();
+            resyncCount += 1;
+        }
+    }
+
+    /**
+     * Seed the book now, then re-fetch it every period.
+     *
+     * @param period time between snapshots
+     * @param unit unit of period
+     * @throws IOException if the first snapshot can't be fetched
+     */
+    public synchronized void start(long period, TimeUnit unit) throws IOException {
+        if (scheduler != null) {
+            throw new IllegalStateException("Already started");
+        }
+        resync();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LocalOrderbook-" + venue + "-" + symbol);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                resyncQuietly();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop re-fetching the book.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public void onQuote(Quote q) {
+        if (!venue.equals(q.getVenue()) || !symbol.equals(q.getSymbol())) {
+            return;
+        }
+        boolean drifted;
+        synchronized (this) {
+            long time = q.getQuoteTimeNanos();
+            if (time != TimestampCodec.NONE) {
+                if ((bookNanos != TimestampCodec.NONE && time < bookNanos)
+                        || (lastQuoteNanos != TimestampCodec.NONE && time < lastQuoteNanos)) {
+                    // Older than what we've already got
+                    return;
+                }
+                lastQuoteNanos = time;
+            }
+            top(bids, q.getBid(), q.getBidSize(), q.getBidDepth());
+            top(asks, q.getAsk(), q.getAskSize(), q.getAskDepth());
+            drifted = bids.total != q.getBidDepth() || asks.total != q.getAskDepth();
+            if (drifted) {
+                driftCount += 1;
+            }
+        }
+        if (drifted) {
+            resyncSoon();
+        }
+    }
+
+    /**
+     * Anything could have happened while a ticker was disconnected, so fetch
+     * the whole book again once it's back.
+     *
+     * @param ticker
+     * @param state
+     */
+    @Override
+    public void onConnectionState(AbstractTicker ticker, ConnectionState state) {
+        if (state == ConnectionState.BACKFILLING || state == ConnectionState.RECONNECTING) {
+            resyncSoon();
+        }
+    }
+
+    @Override
+    public void onExecute(Execution ex) {
+        OrderStatus order = ex.getOrder();
+        if (order == null || ex.isSynthetic() || !venue.equals(ex.getVenue()) || !symbol.equals(ex.getSymbol())) {
+            // Backfilled fills don't say which side stood, so leave them
+            // to the resync
+            return;
+        }
+        // The filled quantity came off the standing order's side
+        boolean standingBuy = order.getId() == ex.getStandingId() ? order.isBuy() : !order.isBuy();
+        synchronized (this) {
+            if (bookNanos != TimestampCodec.NONE && ex.getFilledAtNanos() != TimestampCodec.NONE
+                    && ex.getFilledAtNanos() < bookNanos) {
+                // Already in the snapshot
+                return;
+            }
+            (standingBuy ? bids : asks).add(ex.getPrice(), -ex.getFilled());
+        }
+    }
+
+    public synchronized int getBestBid() {
+        return bids.best();
+    }
+
+    public synchronized int getBestAsk() {
+        return asks.best();
+    }
+
+    public synchronized int getBestBidSize() {
+        return bids.bestQuantity();
+    }
+
+    public synchronized int getBestAskSize() {
+        return asks.bestQuantity();
+    }
+
+    /**
+     * @return best ask minus best bid, or NO_PRICE if either side is empty
+     */
+    public synchronized int getSpread() {
+        return bids.count == 0 || asks.count == 0 ? NO_PRICE : asks.best() - bids.best();
+    }
+
+    /**
+     * @param buy true for the bid side, false for the ask side
+     * @return total quantity on the side
+     */
+    public synchronized long getDepth(boolean buy) {
+        return (buy ? bids : asks).total;
+    }
+
+    /**
+     * @param buy true for the bid side, false for the ask side
+     * @param price price level
+     * @return quantity at exactly that price, or 0
+     */
+    public synchronized int getQuantityAt(boolean buy, int price) {
+        return (buy ? bids : asks).quantityAt(price);
+    }
+
+    /**
+     * @param buy true for the bid side, false for the ask side
+     * @return number of price levels on the side
+     */
+    public synchronized int getLevelCount(boolean buy) {
+        return (buy ? bids : asks).count;
+    }
+
+    /**
+     * Copy out price levels, best first.
+     *
+     * @param buy true for the bid side, false for the ask side
+     * @param prices filled with prices
+     * @param quantities filled with quantities
+     * @return number of levels copied, which is limited by the shorter array
+     */
+    public synchronized int getLevels(boolean buy, int[] prices, int[] quantities) {
+        return (buy ? bids : asks).copy(prices, quantities);
+    }
+
+    /**
+     * @return time of the snapshot the book was last seeded from
+     */
+    public synchronized long getBookNanos() {
+        return bookNanos;
+    }
+
+    public synchronized long getResyncCount() {
+        return resyncCount;
+    }
+
+    /**
+     * @return number of quotes whose depth didn't match the book
+     */
+    public synchronized long getDriftCount() {
+        return driftCount;
+    }
+
+    public String getVenue() {
+        return venue;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LocalOrderbook{" + "venue=" + venue + ", symbol=" + symbol + ", bids=" + bids + ", asks=" + asks + '}';
+    }
+
+    private void resyncSoon() {
+        ScheduledExecutorService s;
+        synchronized (this) {
+            s = scheduler;
+        }
+        if (s != null && resyncPending.compareAndSet(false, true)) {
+            s.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resyncQuietly();
+                }
+            });
+        }
+    }
+
+    private void resyncQuietly() {
+        try {
+            resync();
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Can't resync {} {}: {}", venue, symbol, ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Apply the top of a side from a quote.
+     */
+    private static void top(Ladder side, int price, int size, int depth) {
+        if (size <= 0 && depth <= 0) {
+            side.clear();
+        } else if (size > 0) {
+            side.removeBetterThan(price);
+            side.set(price, size);
+        }
+    }
+
+    private static void load(Ladder side, Orderbook snapshot, boolean buy) {
+        // Worst first, so each level goes on the end of the ladder
+        for (int i = snapshot.getLevelCount(buy) - 1; i >= 0; i -= 1) {
+            side.add(snapshot.getPrice(buy, i), snapshot.getQuantity(buy, i));
+        }
+    }
+
+    /**
+     * One side of the book. Levels are stored by key (the price for bids, minus
+     * the price for asks) in ascending order, so the best level is always the
+     * last one and the common top-of-book changes don't shift anything.
+     */
+    private static final class Ladder {
+
+        final boolean bids;
+        int[] keys = new int[16];
+        int[] quantities = new int[16];
+        int count = 0;
+        long total = 0;
+
+        Ladder(boolean bids) {
+            this.bids = bids;
+        }
+
+        int key(int price) {
+            return bids ? price : -price;
+        }
+
+        int best() {
+            return count == 0 ? NO_PRICE : key(keys[count - 1]);
+        }
+
+        int bestQuantity() {
+            return count == 0 ? 0 : quantities[count - 1];
+        }
+
+        int quantityAt(int price) {
+            int i = Arrays.binarySearch(keys, 0, count, key(price));
+            return i >= 0 ? quantities[i] : 0;
+        }
+
+        void set(int price, int quantity) {
+            int i = Arrays.binarySearch(keys, 0, count, key(price));
+            if (i >= 0) {
+                total += quantity - quantities[i];
+                if (quantity > 0) {
+                    quantities[i] = quantity;
+                } else {
+                    remove(i);
+                }
+            } else if (quantity > 0) {
+                insert(-i - 1, key(price), quantity);
+            }
+        }
+
+        void add(int price, int delta) {
+            int i = Arrays.binarySearch(keys, 0, count, key(price));
+            if (i >= 0) {
+                int quantity = Math.max(0, quantities[i] + delta);
+                total += quantity - quantities[i];
+                if (quantity > 0) {
+                    quantities[i] = quantity;
+                } else {
+                    remove(i);
+                }
+            } else if (delta > 0) {
+                insert(-i - 1, key(price), delta);
+            }
+        }
+
+        void removeBetterThan(int price) {
+            int key = key(price);
+            while (count > 0 && keys[count - 1] > key) {
+                count -= 1;
+                total -= quantities[count];
+            }
+        }
+
+        void clear() {
+            count = 0;
+            total = 0;
+        }
+
+        void replace(Ladder other) {
+            keys = other.keys;
+            quantities = other.quantities;
+            count = other.count;
+            total = other.total;
+        }
+
+        int copy(int[] prices, int[] qtys) {
+            int n = Math.min(count, Math.min(prices.length, qtys.length));
+            for (int i = 0; i < n; i += 1) {
+                prices[i] = key(keys[count - 1 - i]);
+                qtys[i] = quantities[count - 1 - i];
+            }
+            return n;
+        }
+
+        private void insert(int at, int key, int quantity) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                quantities = Arrays.copyOf(quantities, count * 2);
+            }
+            System.arraycopy(keys, at, keys, at + 1, count - at);
+            System.arraycopy(quantities, at, quantities, at + 1, count - at);
+            keys[at] = key;
+            quantities[at] = quantity;
+            count += 1;
+            total += quantity;
+        }
+
+        private void remove(int at) {
+            System.arraycopy(keys, at + 1, keys, at, count - at - 1);
+            System.arraycopy(quantities, at + 1, quantities, at, count - at - 1);
+            count -= 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder("[");
+            for (int i = count - 1; i >= 0; i -= 1) {
+                b.append(key(keys[i])).append('x').append(quantities[i]);
+                if (i > 0) {
+                    b.append(", ");
+                }
+            }
+            return b.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Dictionary;
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.io.IOException;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What we know about our own orders on one account and venue, kept up to date
+ * from the executions ticker and from post and cancel answers, so questions
+ * like "is 1234 still open?" or "how much is working at 5010?" don't need a
+ * trip to the API.
+ *
+ * <p>
+ * The cache is seeded from {@link Trader#getOrderStatus(String, String)}.
+ * Register it as a listener on an {@link ExecutionTicker} and an
+ * {@link AsyncTrader} (or hand it statuses with {@link #update}) to keep it
+ * current. Updates can arrive out of order, so an order's filled quantity
+ * only ever goes up, and a closed order stays closed.</p>
+ *
+ * <p>
+ * Orders are kept in primitive columns, found by id through an open
+ * addressing hash table. Working quantity and order counts are kept per price
+ * level and per side of each stock, so none of the queries (apart from
+ * {@link #getOpenIds}) look at more than a slot or two.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderCache implements ExecutionTicker.Listener, AsyncTrader.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderCache.class);
+
+    private final Trader trader;
+    private final String venue;
+    private final String account;
+    private final int venueId;
+    private final int accountId;
+
+    // Guarded by this
+    private final LongIntMap rows = new LongIntMap();
+    private int[] ids = new int[64];
+    private int[] symbols = new int[64];
+    private boolean[] buys = new boolean[64];
+    private int[] prices = new int[64];
+    private int[] remainings = new int[64];
+    private int[] filleds = new int[64];
+    private boolean[] opens = new boolean[64];
+    private int rowCount = 0;
+    private int[] freeRows = new int[16];
+    private int freeCount = 0;
+
+    private final Totals levels = new Totals();
+    private final Totals sides = new Totals();
+    private int openCount = 0;
+    private long updateCount = 0;
+    private long staleCount = 0;
+
+    public OrderCache(Trader trader, String venue, String account) {
+        this.trader = trader;
+        this.venue = venue;
+        this.account = account;
+        this.venueId = Dictionary.VENUES.id(venue);
+        this.accountId = Dictionary.ACCOUNTS.id(account);
+    }
+
+    /**
+     * Fetch every order on the account and merge them in. Orders the cache
+     * already knows more about are left alone.
+     *
+     * @throws IOException on network problems
+     */
+    public void resync() throws IOException {
+        for (OrderStatus s : trader.getOrderStatus(venue, account)) {
+            update(s);
+        }
+    }
+
+    /**
+     * Bring an order up to date. Statuses for other accounts or venues, that
+     * aren't ok, or that are older than what's held are ignored.
+     *
+     * @param s OrderStatus from anywhere (a post, a cancel, an execution...)
+     */
+    public synchronized void update(OrderStatus s) {
+        if (s == null || !s.isOk() || s.getId() <= 0
+                || (s.getVenueId() != Dictionary.NONE && s.getVenueId() != venueId)
+                || (s.getAccountId() != Dictionary.NONE && s.getAccountId() != accountId)) {
+            return;
+        }
+        int row = rows.get(s.getId());
+        if (row == LongIntMap.MISSING) {
+            row = newRow();
+            rows.put(s.getId(), row);
+            ids[row] = s.getId();
+            symbols[row] = s.getSymbolId();
+            buys[row] = s.isBuy();
+            prices[row] = s.getPrice();
+        } else if (!opens[row] || s.getTotalFilled() < filleds[row]) {
+            staleCount += 1;
+            return;
+        } else {
+            working(row, -1);
+        }
+        remainings[row] = s.getRemainingQuantity();
+        filleds[row] = s.getTotalFilled();
+        opens[row] = s.isOpen();
+        working(row, 1);
+        updateCount += 1;
+    }
+
+    @Override
+    public void onExecute(Execution ex) {
+        update(ex.getOrder());
+    }
+
+    @Override
+    public void onPosted(Order order, OrderStatus status) {
+        update(status);
+    }
+
+    @Override
+    public void onCancel(OrderStatus status) {
+        update(status);
+    }
+
+    /**
+     * @param id order id
+     * @return true if the order is known
+     */
+    public synchronized boolean contains(int id) {
+        return rows.get(id) != LongIntMap.MISSING;
+    }
+
+    /**
+     * @param id order id
+     * @return true if the order is known and still open
+     */
+    public synchronized boolean isOpen(int id) {
+        int row = rows.get(id);
+        return row != LongIntMap.MISSING && opens[row];
+    }
+
+    /**
+     * @param id order id
+     * @return quantity still working, or 0 if the order is closed or unknown
+     */
+    public synchronized int getRemainingQuantity(int id) {
+        int row = rows.get(id);
+        return row != LongIntMap.MISSING && opens[row] ? remainings[row] : 0;
+    }
+
+    /**
+     * @param id order id
+     * @return quantity filled so far, or 0 if the order is unknown
+     */
+    public synchronized int getFilledQuantity(int id) {
+        int row = rows.get(id);
+        return row != LongIntMap.MISSING ? filleds[row] : 0;
+    }
+
+    /**
+     * @param symbol stock symbol
+     * @param buy true for bids, false for asks
+     * @param price price level
+     * @return quantity of our open orders at exactly that price
+     */
+    public synchronized long getWorkingQuantity(String symbol, boolean buy, int price) {
+        return levels.quantity(levelKey(Dictionary.SYMBOLS.id(symbol), buy, price));
+    }
+
+    /**
+     * @param symbol stock symbol
+     * @param buy true for bids, false for asks
+     * @param price price level
+     * @return number of our open orders at exactly that price
+     */
+    public synchronized int getWorkingOrderCount(String symbol, boolean buy, int price) {
+        return levels.orders(levelKey(Dictionary.SYMBOLS.id(symbol), buy, price));
+    }
+
+    /**
+     * @param symbol stock symbol
+     * @param buy true for bids, false for asks
+     * @return quantity of our open orders on that side, at any price
+     */
+    public synchronized long getWorkingQuantity(String symbol, boolean buy) {
+        return sides.quantity(sideKey(Dictionary.SYMBOLS.id(symbol), buy));
+    }
+
+    /**
+     * @param symbol stock symbol
+     * @param buy true for bids, false for asks
+     * @return number of our open orders on that side, at any price
+     */
+    public synchronized int getWorkingOrderCount(String symbol, boolean buy) {
+        return sides.orders(sideKey(Dictionary.SYMBOLS.id(symbol), buy));
+    }
+
+    /**
+     * Copy out the ids of open orders in a stock. This one looks at every
+     * order held.
+     *
+     * @param symbol stock symbol, or null for every stock
+     * @param into filled with ids
+     * @return number of ids copied, which is limited by the length of into
+     */
+    public synchronized int getOpenIds(String symbol, int[] into) {
+        int symbolId = symbol == null ? Dictionary.NONE : Dictionary.SYMBOLS.id(symbol);
+        int count = 0;
+        for (int row = 0; row < rowCount && count < into.length; row += 1) {
+            if (opens[row] && ids[row] != 0 && (symbol == null || symbols[row] == symbolId)) {
+                into[count] = ids[row];
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of open orders held
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return number of orders held, open or closed
+     */
+    public synchronized int size() {
+        return rows.size();
+    }
+
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * @return number of statuses ignored for being older than what was held
+     */
+    public synchronized long getStaleCount() {
+        return staleCount;
+    }
+
+    /**
+     * Forget closed orders. Nothing else removes them, so call this now and
+     * then in a long game.
+     *
+     * @return number of orders forgotten
+     */
+    public synchronized int prune() {
+        int removed = 0;
+        for (int row = 0; row < rowCount; row += 1) {
+            if (ids[row] != 0 && !opens[row]) {
+                rows.remove(ids[row]);
+                ids[row] = 0;
+                freeRow(row);
+                removed += 1;
+            }
+        }
+        log.debug("Pruned {} closed orders", removed);
+        return removed;
+    }
+
+    public String getVenue() {
+        return venue;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OrderCache{" + "venue=" + venue + ", account=" + account + ", orders=" + rows.size() + ", open=" + openCount + '}';
+    }
+
+    private void working(int row, int sign) {
+        if (!opens[row]) {
+            return;
+        }
+        levels.add(levelKey(symbols[row], buys[row], prices[row]), sign * remainings[row], sign);
+        sides.add(sideKey(symbols[row], buys[row]), sign * remainings[row], sign);
+        openCount += sign;
+    }
+
+    private int newRow() {
+        if (freeCount > 0) {
+            freeCount -= 1;
+            return freeRows[freeCount];
+        }
+        if (rowCount == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            buys = Arrays.copyOf(buys, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            remainings = Arrays.copyOf(remainings, capacity);
+            filleds = Arrays.copyOf(filleds, capacity);
+            opens = Arrays.copyOf(opens, capacity);
+        }
+        rowCount += 1;
+        return rowCount - 1;
+    }
+
+    private void freeRow(int row) {
+        if (freeCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeRows.length * 2);
+        }
+        freeRows[freeCount] = row;
+        freeCount += 1;
+    }
+
+    // Symbol ids are small and never negative, so these never collide with
+    // LongIntMap.EMPTY
+    private static long levelKey(int symbolId, boolean buy, int price) {
+        return ((long) symbolId << 33) | (buy ? 1L << 32 : 0) | (price & 0xFFFFFFFFL);
+    }
+
+    private static long sideKey(int symbolId, boolean buy) {
+        return ((long) symbolId << 1) | (buy ? 1 : 0);
+    }
+
+    /**
+     * Working quantity and order count for each key, dropped when the count
+     * gets back to zero.
+     */
+    private static final class Totals {
+
+        final LongIntMap index = new LongIntMap();
+        long[] quantities = new long[16];
+        int[] orders = new int[16];
+        int[] free = new int[16];
+        int freeCount = 0;
+        int used = 0;
+
+        long quantity(long key) {
+            int row = index.get(key);
+            return row == LongIntMap.MISSING ? 0 : quantities[row];
+        }
+
+        int orders(long key) {
+            int row = index.get(key);
+            return row == LongIntMap.MISSING ? 0 : orders[row];
+        }
+
+        void add(long key, long quantity, int count) {
+            int row = index.get(key);
+            if (row == LongIntMap.MISSING) {
+                if (freeCount > 0) {
+                    freeCount -= 1;
+                    row = free[freeCount];
+                } else {
+                    if (used == quantities.length) {
+                        quantities = Arrays.copyOf(quantities, used * 2);
+                        orders = Arrays.copyOf(orders, used * 2);
+                        free = Arrays.copyOf(free, used * 2);
+                    }
+                    row = used;
+                    used += 1;
+                }
+                quantities[row] = 0;
+                orders[row] = 0;
+                index.put(key, row);
+            }
+            quantities[row] += quantity;
+            orders[row] += count;
+            if (orders[row] <= 0) {
+                index.remove(key);
+                free[freeCount] = row;
+                freeCount += 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue of posts and cancels waiting to go to the exchange. Entries
+ * are kept in preallocated arrays, so queueing doesn't allocate. What happens
+ * when it's full is set by an {@link Overflow} policy.
+ *
+ * <p>
+ * Posts and cancels wait in separate lanes, and cancels always go first, so a
+ * cancel never waits behind a queue of new orders. A cancel for an order that
+ * already has a cancel waiting is merged with it, and a post can be withdrawn
+ * while it's still queued. Neither of those reaches the exchange.</p>
+ *
+ * <p>
+ * Keeps count of how deep the queue is and how long entries wait in it, so a
+ * strategy can tell when it's getting ahead of the exchange and slow
+ * down.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class OutboundQueue {
+
+    /**
+     * What to do with a new entry when the queue is full.
+     */
+    public enum Overflow {
+        /**
+         * Wait for space.
+         */
+        BLOCK,
+        /**
+         * Turn the new entry away.
+         */
+        REJECT,
+        /**
+         * Throw away the oldest queued post to make room. Cancels are never
+         * dropped, and if the queue is all cancels the new entry is turned
+         * away.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * What happened to an entry.
+     */
+    public enum Result {
+        QUEUED,
+        /**
+         * Queued, and an older post was dropped to make room.
+         */
+        QUEUED_DROPPED_OLDEST,
+        /**
+         * A cancel for the same order was already waiting, so this one rides
+         * along with it.
+         */
+        COALESCED,
+        REJECTED
+    }
+
+    static final int POST = 1;
+    static final int CANCEL = 2;
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+
+    private final Overflow overflow;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // Guarded by lock
+    private final Lane cancels;
+    private final Lane posts;
+
+    private final Queue<Entry> droppedEntries = new ArrayDeque<>();
+
+    private long queued = 0;
+    private long rejected = 0;
+    private long dropped = 0;
+    private long coalesced = 0;
+    private long withdrawn = 0;
+    private long blocked = 0;
+    private long taken = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private int maxDepth = 0;
+
+    /**
+     * @param capacity most entries held at once, posts and cancels together
+     * @param overflow what to do when full
+     */
+    public OutboundQueue(int capacity, Overflow overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one");
+        }
+        this.overflow = overflow;
+        this.capacity = capacity;
+        cancels = new Lane(CANCEL, capacity);
+        posts = new Lane(POST, capacity);
+    }
+
+    Result offer(int type, Order order, int id) {
+        return offer(type, order, id, null);
+    }
+
+    /**
+     * Add an entry, following the overflow policy if there's no room. If the
+     * policy is to block and the thread is interrupted while waiting, the
+     * entry is rejected and the interrupt flag is left set. Entries dropped
+     * to make room can be collected with {@link #pollDropped()}. A cancel
+     * that's merged with one already waiting gets the same outcome as it,
+     * through result.
+     *
+     * @param result completed by whoever sends the entry, or null
+     */
+    Result offer(int type, Order order, int id, CompletableFuture<OrderStatus> result) {
+        Result outcome = Result.QUEUED;
+        lock.lock();
+        try {
+            if (type == CANCEL) {
+                int at = cancels.find(id);
+                if (at >= 0) {
+                    int i = cancels.index(at);
+                    if (cancels.results[i] == null) {
+                        // Nobody was waiting on the first one, so this
+                        // result can stand for both
+                        cancels.results[i] = result;
+                    } else {
+                        follow(cancels.results[i], result);
+                    }
+                    coalesced += 1;
+                    return Result.COALESCED;
+                }
+            }
+            if (depth() == capacity) {
+                switch (overflow) {
+                    case BLOCK:
+                        blocked += 1;
+                        try {
+                            while (depth() == capacity) {
+                                notFull.await();
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            rejected += 1;
+                            return Result.REJECTED;
+                        }
+                        break;
+                    case REJECT:
+                        rejected += 1;
+                        return Result.REJECTED;
+                    case DROP_OLDEST:
+                        if (posts.count == 0) {
+                            rejected += 1;
+                            return Result.REJECTED;
+                        }
+                        log.debug("Queue full, dropping order {}", posts.orders[posts.head]);
+                        Entry gone = new Entry();
+                        posts.remove(0, gone);
+                        droppedEntries.add(gone);
+                        dropped += 1;
+                        outcome = Result.QUEUED_DROPPED_OLDEST;
+                        break;
+                }
+            }
+            (type == CANCEL ? cancels : posts).add(order, id, result);
+            queued += 1;
+            if (depth() > maxDepth) {
+                maxDepth = depth();
+            }
+            notEmpty.signal();
+            return outcome;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next entry, cancels first, and copy it into an entry owned
+     * by the caller.
+     */
+    void take(Entry into) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (depth() == 0) {
+                notEmpty.await();
+            }
+            (cancels.count > 0 ? cancels : posts).remove(0, into);
+
+            taken += 1;
+            totalWaitNanos += into.waitNanos;
+            if (into.waitNanos > maxWaitNanos) {
+                maxWaitNanos = into.waitNanos;
+            }
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take back a post that hasn't been sent yet.
+     *
+     * @param result the result the post was queued with
+     * @return the Order, or null if the post isn't waiting (any more)
+     */
+    Order withdraw(CompletableFuture<OrderStatus> result) {
+        lock.lock();
+        try {
+            for (int i = 0; i < posts.count; i += 1) {
+                if (posts.results[posts.index(i)] == result) {
+                    Entry gone = new Entry();
+                    posts.remove(i, gone);
+                    withdrawn += 1;
+                    notFull.signal();
+                    return gone.order;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take everything that's waiting, cancels first, so it can be failed.
+     * Anyone blocked waiting for room is let go.
+     *
+     * @return the entries, oldest first within each type
+     */
+    List<Entry> drain() {
+        lock.lock();
+        try {
+            List<Entry> result = new ArrayList<>(depth());
+            while (depth() > 0) {
+                Entry gone = new Entry();
+                (cancels.count > 0 ? cancels : posts).remove(0, gone);
+                result.add(gone);
+            }
+            notFull.signalAll();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next entry that was dropped to make room, or null
+     */
+    Entry pollDropped() {
+        lock.lock();
+        try {
+            return droppedEntries.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int depth() {
+        return cancels.count + posts.count;
+    }
+
+    private static void follow(CompletableFuture<OrderStatus> leader, CompletableFuture<OrderStatus> follower) {
+        if (follower == null) {
+            return;
+        }
+        leader.whenComplete((status, ex) -> {
+            if (ex != null) {
+                follower.completeExceptionally(ex);
+            } else {
+                follower.complete(status);
+            }
+        });
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of entries waiting now
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return depth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of cancels waiting now
+     */
+    public int getCancelDepth() {
+        lock.lock();
+        try {
+            return cancels.count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return most entries that have been waiting at once
+     */
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of entries accepted
+     */
+    public long getQueuedCount() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of entries turned away
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of queued posts thrown away to make room
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of cancels merged with one already waiting
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of posts taken back before they were sent
+     */
+    public long getWithdrawnCount() {
+        lock.lock();
+        try {
+            return withdrawn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return requests that never had to be sent, merged cancels plus
+     * withdrawn posts (each of which also saves the cancel that would have
+     * followed it)
+     */
+    public long getSavedCount() {
+        lock.lock();
+        try {
+            return coalesced + withdrawn * 2;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of times a caller had to wait for room
+     */
+    public long getBlockedCount() {
+        lock.lock();
+        try {
+            return blocked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return longest time an entry has waited, in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        lock.lock();
+        try {
+            return maxWaitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return average time entries have waited, in nanoseconds
+     */
+    public long getAverageWaitNanos() {
+        lock.lock();
+        try {
+            return taken == 0 ? 0 : totalWaitNanos / taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how long the entry at the front has been waiting, in
+     * nanoseconds, or 0 if the queue is empty
+     */
+    public long getOldestWaitNanos() {
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            if (cancels.count > 0) {
+                oldest = cancels.queuedAt[cancels.head];
+            }
+            if (posts.count > 0) {
+                oldest = Math.min(oldest, posts.queuedAt[posts.head]);
+            }
+            return oldest == Long.MAX_VALUE ? 0 : System.nanoTime() - oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One entry, as handed out by {@link #take(Entry)}.
+     */
+    static final class Entry {
+
+        int type;
+        Order order;
+        int id;
+        CompletableFuture<OrderStatus> result;
+        long waitNanos;
+    }
+
+    /**
+     * Entries of one type, oldest first, in a ring of parallel arrays.
+     */
+    private static final class Lane {
+
+        final int type;
+        final Order[] orders;
+        final int[] ids;
+        final long[] queuedAt;
+        final CompletableFuture<OrderStatus>[] results;
+        int head = 0;
+        int count = 0;
+
+        Lane(int type, int capacity) {
+            this.type = type;
+            orders = new Order[capacity];
+            ids = new int[capacity];
+            queuedAt = new long[capacity];
+            results = newResults(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        private CompletableFuture<OrderStatus>[] newResults(int capacity) {
+            return (CompletableFuture<OrderStatus>[]) new CompletableFuture<?>[capacity];
+        }
+
+        void add(Order order, int id, CompletableFuture<OrderStatus> result) {
+            int tail = index(count);
+            orders[tail] = order;
+            ids[tail] = id;
+            results[tail] = result;
+            queuedAt[tail] = System.nanoTime();
+            count += 1;
+        }
+
+        /**
+         * Copy out the entry at offset, and close the gap it leaves.
+         */
+        void remove(int offset, Entry into) {
+            int at = index(offset);
+            into.type = type;
+            into.order = orders[at];
+            into.id = ids[at];
+            into.result = results[at];
+            into.waitNanos = System.nanoTime() - queuedAt[at];
+            if (offset == 0) {
+                head = index(1);
+            } else {
+                // Move everything after it up one
+                for (int j = offset; j < count - 1; j += 1) {
+                    int to = index(j);
+                    int from = index(j + 1);
+                    orders[to] = orders[from];
+                    ids[to] = ids[from];
+                    results[to] = results[from];
+                    queuedAt[to] = queuedAt[from];
+                }
+                at = index(count - 1);
+            }
+            orders[at] = null;
+            results[at] = null;
+            count -= 1;
+        }
+
+        /**
+         * @return offset of the first entry for id, or -1
+         */
+        int find(int id) {
+            for (int i = 0; i < count; i += 1) {
+                if (ids[index(i)] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int index(int offset) {
+            int i = head + offset;
+            return i >= ids.length ? i - ids.length : i;
+        }
+    }
+}
@@ -23,13 +23,17 @@
  */
 package com.moosemorals.stockfighter;
 
+import com.moosemorals.stockfighter.pipeline.EventHandler;
+import com.moosemorals.stockfighter.pipeline.Frame;
+import com.moosemorals.stockfighter.types.MessageDecoder;
 import com.moosemorals.stockfighter.types.Quote;
-import java.io.StringReader;
+import java.io.IOException;
 import java.net.URI;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Set;
-import javax.json.Json;
-import javax.json.stream.JsonParser;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import javax.websocket.ClientEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,71 +47,195 @@ import org.slf4j.LoggerFactory;
 public class QuoteTicker extends AbstractTicker {
 
     private static final Logger log = LoggerFactory.getLogger(QuoteTicker.class);
-    private final Set<Listener> listeners;
+    private final ListenerRegistry<Listener, Quote> listeners = new ListenerRegistry<>(Listener::onQuote, Quote::copy);
+    private final MessageDecoder decoder = new MessageDecoder();
+    private final Quote flyweight = new Quote();
+    private volatile boolean reuseQuotes = false;
+    // Stocks to fetch quotes for after reconnecting
+    private final Set<String> symbols = ConcurrentHashMap.newKeySet();
 
     public QuoteTicker(String api_key, URI endpoint) {
         super(api_key, endpoint);
-        listeners = new HashSet<>();
     }
 
+    QuoteTicker(String api_key, URI endpoint, TickerHub hub) {
+        super(api_key, endpoint, hub);
+    }
+
+    /**
+     * Call the listener on the websocket thread. It should return quickly.
+     *
+     * @param l
+     */
     public void addListener(Listener l) {
-        synchronized (listeners) {
-            listeners.add(l);
-        }
+        listeners.add(l);
+    }
+
+    /**
+     * Call the listener on its own executor, so it can't hold up the feed. If
+     * the ticker is reusing quotes the listener gets a copy.
+     *
+     * @param l
+     * @param executor
+     */
+    public void addListener(Listener l, Executor executor) {
+        listeners.add(l, executor);
+    }
+
+    /**
+     * Call the listener on its own executor, with only the newest quote for
+     * each stock. Quotes that arrive while the listener is busy replace any
+     * that are still waiting. Remove it by passing the returned wrapper to
+     * {@link #removeListener(Listener)}.
+     *
+     * @param l
+     * @param executor
+     * @return the wrapper, which also keeps count of dropped quotes
+     */
+    public ConflatingQuoteListener addConflatingListener(Listener l, Executor executor) {
+        ConflatingQuoteListener wrapper = new ConflatingQuoteListener(l, executor);
+        listeners.add(wrapper);
+        return wrapper;
     }
 
     public void removeListener(Listener l) {
-        synchronized (listeners) {
-            listeners.remove(l);
-        }
+        listeners.remove(l);
     }
 
-    private void notifyListeners(Quote message) {
-        synchronized (listeners) {
-            for (Listener l : listeners) {
-                l.onQuote(message);
+    /**
+     * @return call counts and timings for each listener
+     */
+    public List<ListenerRegistry.Stats> getListenerStats() {
+        return listeners.getStats();
+    }
+
+    /**
+     * Decode every message into the same Quote instead of making a new one
+     * each time. The Quote passed to {@link Listener#onQuote(Quote)} is then
+     * only valid until onQuote returns, so listeners that want to keep it must
+     * {@link Quote#copy()} it. Off by default.
+     *
+     * @param reuseQuotes
+     */
+    public void setReuseQuotes(boolean reuseQuotes) {
+        this.reuseQuotes = reuseQuotes;
+    }
+
+    public boolean isReuseQuotes() {
+        return reuseQuotes;
+    }
+
+    @Override
+    public void onMessage(CharSequence message) {
+        if (reuseQuotes) {
+            if (decoder.decodeQuote(message, flyweight)) {
+                seen(flyweight);
+                listeners.dispatch(flyweight, true);
             }
+            return;
+        }
+        Quote q = decoder.decodeQuote(message);
+        if (q != null) {
+            seen(q);
+            listeners.dispatch(q, false);
         }
     }
 
     @Override
-    public void onMessage(String message) {
-        Quote q = parseQuote(message);
+    public void onMessage(ByteBuffer message) {
+        if (reuseQuotes) {
+            if (decoder.decodeQuote(message, flyweight)) {
+                seen(flyweight);
+                listeners.dispatch(flyweight, true);
+            }
+            return;
+        }
+        Quote q = decoder.decodeQuote(message);
         if (q != null) {
-            notifyListeners(q);
+            seen(q);
+            listeners.dispatch(q, false);
         }
     }
 
-    private Quote parseQuote(String message) {
-        try (JsonParser parser = Json.createParser(new StringReader(message))) {
-
-            while (parser.hasNext()) {
-                switch (parser.next()) {
-                    case KEY_NAME:
-                        switch (parser.getString()) {
-                            case "ok":
-                                if (parser.next() != JsonParser.Event.VALUE_TRUE) {
-                                    log.warn("Not ok Quote: {}", message);
-                                    return null;
-                                }
-                                break;
-                            case "quote":
-                                if (parser.next() != JsonParser.Event.START_OBJECT) {
-                                    log.warn("Quote, but not an object: {}", message);
-                                    return null;
-                                }
-                                return new Quote(parser);
-                            default:
-                                log.debug("Ignoring unexpected content from quote: {}", message);
-                        }
-                }
+    /**
+     * Fetch a quote for this stock after reconnecting, even if none have
+     * come through the websocket yet. Stocks are added automatically as
+     * quotes arrive while backfilling is on.
+     *
+     * @param symbol String stock symbol
+     */
+    public void addBackfillSymbol(String symbol) {
+        symbols.add(symbol);
+    }
+
+    private void seen(Quote q) {
+        if (getBackfill() != null && q.getSymbol() != null) {
+            symbols.add(q.getSymbol());
+        }
+    }
+
+    /**
+     * Hand listeners a fresh quote from the REST API for each stock seen so
+     * far, so they don't have to wait for the next trade to catch up.
+     */
+    @Override
+    protected void backfill(Trader trader, String account, String venue, boolean first) throws IOException {
+        if (first) {
+            return;
+        }
+        for (String symbol : symbols) {
+            Quote q = trader.getQuote(venue, symbol);
+            if (q.getSymbol() != null) {
+                listeners.dispatch(q, false);
             }
         }
-        return null;
+    }
+
+    /**
+     * Decode frames into Quotes. If the ticker is reusing quotes, each slot of
+     * the ring keeps its own Quote, which stays valid until the slot comes
+     * round again.
+     *
+     * @return
+     */
+    @Override
+    public EventHandler<Frame> frameHandler() {
+        return new EventHandler<Frame>() {
+            @Override
+            public void onEvent(Frame frame, long sequence, boolean endOfBatch) {
+                Quote q;
+                if (reuseQuotes) {
+                    q = frame.getSpare() instanceof Quote ? (Quote) frame.getSpare() : new Quote();
+                    frame.setSpare(q);
+                    boolean ok = frame.getText() != null
+                            ? decoder.decodeQuote(frame.getText(), q)
+                            : decoder.decodeQuote(frame.getData(), 0, frame.getLength(), q);
+                    if (!ok) {
+                        q = null;
+                    }
+                } else if (frame.getText() != null) {
+                    q = decoder.decodeQuote(frame.getText());
+                } else {
+                    q = decoder.decodeQuote(frame.getData(), 0, frame.getLength());
+                }
+                frame.setEvent(q);
+                if (q != null) {
+                    seen(q);
+                    listeners.dispatch(q, reuseQuotes);
+                }
+            }
+        };
     }
 
     public interface Listener {
 
+        /**
+         * Called for each quote. If the ticker is reusing quotes and the
+         * listener was added without an executor, q is only valid for the
+         * length of this call.
+         *
+         * @param q
+         */
         void onQuote(Quote q);
     }
 }
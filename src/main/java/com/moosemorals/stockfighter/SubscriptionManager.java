@@ -0,0 +1,415 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.Quote;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens just the websockets needed for the stocks that are being watched,
+ * and closes them again when nobody is interested.
+ *
+ * <p>
+ * The API streams either everything on a venue for an account, or one stock.
+ * Subscribe with a symbol to get one stock, or with a null symbol to get the
+ * whole venue. Subscriptions that overlap share sessions: any number of
+ * listeners on one stock use one websocket, and while someone is watching
+ * the whole venue the per-stock websockets are closed and their listeners
+ * are fed from the venue's instead. Every listener sees each event once,
+ * including while sessions are being swapped over.</p>
+ *
+ * <p>
+ * Sessions run on the hub's websocket client, and pick up its backfill
+ * setting.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class SubscriptionManager implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SubscriptionManager.class);
+
+    private final TickerHub hub;
+    // Keyed by account/venue. Guarded by this
+    private final Map<String, Feed<QuoteTicker.Listener, Quote>> quotes = new HashMap<>();
+    private final Map<String, Feed<ExecutionTicker.Listener, Execution>> executions = new HashMap<>();
+
+    public SubscriptionManager(TickerHub hub) {
+        this.hub = hub;
+    }
+
+    /**
+     * Start getting quotes.
+     *
+     * @param account String account
+     * @param venue String venue
+     * @param symbol String stock symbol, or null for every stock on the venue
+     * @param l listener
+     * @return handle to unsubscribe with
+     * @throws IOException if a websocket can't be opened
+     */
+    public synchronized Subscription subscribeQuotes(String account, String venue, String symbol, QuoteTicker.Listener l) throws IOException {
+        String key = account + "/" + venue;
+        Feed<QuoteTicker.Listener, Quote> feed = quotes.get(key);
+        if (feed == null) {
+            feed = new Feed<QuoteTicker.Listener, Quote>(account, venue) {
+                @Override
+                ListenerRegistry<QuoteTicker.Listener, Quote> registry() {
+                    return new ListenerRegistry<>(QuoteTicker.Listener::onQuote, Quote::copy);
+                }
+
+                @Override
+                AbstractTicker open(final String symbol) throws IOException {
+                    URI uri = symbol == null ? hub.quotesUri(account, venue) : hub.quotesUri(account, venue, symbol);
+                    final QuoteTicker ticker = new QuoteTicker(hub.getApiKey(), uri, hub);
+                    ticker.addListener(new QuoteTicker.Listener() {
+                        @Override
+                        public void onQuote(Quote q) {
+                            if (symbol == null || symbol.equals(q.getSymbol())) {
+                                deliver(ticker, symbol == null, q.getSymbol(), q);
+                            }
+                        }
+                    });
+                    return connect(ticker, account, venue);
+                }
+            };
+            quotes.put(key, feed);
+        }
+        return feed.subscribe(symbol, l);
+    }
+
+    /**
+     * Start getting executions.
+     *
+     * @param account String account
+     * @param venue String venue
+     * @param symbol String stock symbol, or null for every stock on the venue
+     * @param l listener
+     * @return handle to unsubscribe with
+     * @throws IOException if a websocket can't be opened
+     */
+    public synchronized Subscription subscribeExecutions(String account, String venue, String symbol, ExecutionTicker.Listener l) throws IOException {
+        String key = account + "/" + venue;
+        Feed<ExecutionTicker.Listener, Execution> feed = executions.get(key);
+        if (feed == null) {
+            feed = new Feed<ExecutionTicker.Listener, Execution>(account, venue) {
+                @Override
+                ListenerRegistry<ExecutionTicker.Listener, Execution> registry() {
+                    return new ListenerRegistry<>(ExecutionTicker.Listener::onExecute, Execution::copy);
+                }
+
+                @Override
+                AbstractTicker open(final String symbol) throws IOException {
+                    URI uri = symbol == null ? hub.executionsUri(account, venue) : hub.executionsUri(account, venue, symbol);
+                    final ExecutionTicker ticker = new ExecutionTicker(hub.getApiKey(), uri, hub);
+                    ticker.setBackfillSymbol(symbol);
+                    ticker.addListener(new ExecutionTicker.Listener() {
+                        @Override
+                        public void onExecute(Execution ex) {
+                            // A stock's websocket only carries that stock
+                            if (symbol == null || symbol.equals(ex.getSymbol())) {
+                                deliver(ticker, symbol == null, ex.getSymbol(), ex);
+                            }
+                        }
+                    });
+                    return connect(ticker, account, venue);
+                }
+            };
+            executions.put(key, feed);
+        }
+        return feed.subscribe(symbol, l);
+    }
+
+    /**
+     * @return number of websockets open
+     */
+    public synchronized int getSessionCount() {
+        int count = 0;
+        for (Feed<?, ?> f : quotes.values()) {
+            count += f.getSessionCount();
+        }
+        for (Feed<?, ?> f : executions.values()) {
+            count += f.getSessionCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return endpoints of the websockets open
+     */
+    public synchronized List<URI> getEndpoints() {
+        List<URI> result = new ArrayList<>();
+        for (Feed<?, ?> f : quotes.values()) {
+            f.addEndpoints(result);
+        }
+        for (Feed<?, ?> f : executions.values()) {
+            f.addEndpoints(result);
+        }
+        return result;
+    }
+
+    /**
+     * Drop every subscription and close every websocket.
+     */
+    @Override
+    public synchronized void close() {
+        for (Feed<?, ?> f : quotes.values()) {
+            f.closeAll();
+        }
+        for (Feed<?, ?> f : executions.values()) {
+            f.closeAll();
+        }
+        quotes.clear();
+        executions.clear();
+    }
+
+    private AbstractTicker connect(AbstractTicker ticker, String account, String venue) throws IOException {
+        ticker.setBackfill(hub.getBackfill());
+        ticker.connect(account, venue);
+        return ticker;
+    }
+
+    private static void disconnect(AbstractTicker ticker) {
+        try {
+            ticker.disconnect();
+        } catch (IOException ex) {
+            log.warn("Problem disconnecting {}: {}", ticker.getEndpoint(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Subscriptions and sessions for one kind of event on one (account,
+     * venue). Changed only with the manager's lock held; read by the
+     * websocket threads.
+     */
+    private abstract class Feed<L, E> {
+
+        final String account;
+        final String venue;
+        // Listeners for the whole venue
+        final ListenerRegistry<L, E> wide;
+        // Listeners for one stock. Read without the lock by deliver
+        final Map<String, ListenerRegistry<L, E>> bySymbol = new ConcurrentHashMap<>();
+
+        volatile AbstractTicker wideTicker = null;
+        final Map<String, AbstractTicker> symbolTickers = new HashMap<>();
+
+        Feed(String account, String venue) {
+            this.account = account;
+            this.venue = venue;
+            this.wide = registry();
+        }
+
+        abstract ListenerRegistry<L, E> registry();
+
+        abstract AbstractTicker open(String symbol) throws IOException;
+
+        Subscription subscribe(String symbol, L l) throws IOException {
+            ListenerRegistry<L, E> target;
+            if (symbol == null) {
+                target = wide;
+            } else {
+                target = bySymbol.get(symbol);
+                if (target == null) {
+                    target = registry();
+                    bySymbol.put(symbol, target);
+                }
+            }
+            target.add(l);
+            try {
+                update();
+            } catch (IOException ex) {
+                target.remove(l);
+                tidy();
+                throw ex;
+            }
+            return new Subscription(this, symbol, l);
+        }
+
+        void unsubscribe(String symbol, L l) {
+            ListenerRegistry<L, E> target = symbol == null ? wide : bySymbol.get(symbol);
+            if (target == null) {
+                return;
+            }
+            target.remove(l);
+            tidy();
+            try {
+                update();
+            } catch (IOException ex) {
+                // Only closing venue-wide can need opening per-stock
+                log.warn("Can't reopen stock websockets for {}/{}: {}", account, venue, ex.getMessage());
+            }
+        }
+
+        private void tidy() {
+            Iterator<ListenerRegistry<L, E>> it = bySymbol.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Open what's wanted, then close what isn't, so nothing is missed
+         * while swapping over.
+         */
+        private void update() throws IOException {
+            if (!wide.isEmpty()) {
+                if (wideTicker == null) {
+                    wideTicker = open(null);
+                }
+                for (AbstractTicker t : symbolTickers.values()) {
+                    SubscriptionManager.disconnect(t);
+                }
+                symbolTickers.clear();
+                return;
+            }
+            for (String symbol : bySymbol.keySet()) {
+                if (!symbolTickers.containsKey(symbol)) {
+                    symbolTickers.put(symbol, open(symbol));
+                }
+            }
+            Iterator<Map.Entry<String, AbstractTicker>> it = symbolTickers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, AbstractTicker> e = it.next();
+                if (!bySymbol.containsKey(e.getKey())) {
+                    SubscriptionManager.disconnect(e.getValue());
+                    it.remove();
+                }
+            }
+            if (wideTicker != null) {
+                AbstractTicker t = wideTicker;
+                wideTicker = null;
+                SubscriptionManager.disconnect(t);
+            }
+        }
+
+        /**
+         * Pass an event on to the listeners that want it. While the venue is
+         * open, per-stock listeners take their events from it and ignore the
+         * stock websockets, and once it's been replaced it's ignored in turn.
+         * Called on websocket threads, so mustn't wait for the manager, which
+         * may itself be waiting for a websocket to open.
+         */
+        void deliver(AbstractTicker from, boolean fromWide, String symbol, E event) {
+            AbstractTicker w = wideTicker;
+            if (fromWide) {
+                if (w != from) {
+                    return;
+                }
+                wide.dispatch(event, false);
+            } else if (w != null) {
+                return;
+            }
+            ListenerRegistry<L, E> r = symbol == null ? null : bySymbol.get(symbol);
+            if (r != null) {
+                r.dispatch(event, false);
+            }
+        }
+
+        int getSessionCount() {
+            return symbolTickers.size() + (wideTicker == null ? 0 : 1);
+        }
+
+        void addEndpoints(List<URI> result) {
+            if (wideTicker != null) {
+                result.add(wideTicker.getEndpoint());
+            }
+            for (AbstractTicker t : symbolTickers.values()) {
+                result.add(t.getEndpoint());
+            }
+        }
+
+        void closeAll() {
+            if (wideTicker != null) {
+                SubscriptionManager.disconnect(wideTicker);
+                wideTicker = null;
+            }
+            for (AbstractTicker t : symbolTickers.values()) {
+                SubscriptionManager.disconnect(t);
+            }
+            symbolTickers.clear();
+            bySymbol.clear();
+        }
+    }
+
+    /**
+     * One listener's interest in a stock (or venue). Close it to
+     * unsubscribe.
+     */
+    public final class Subscription implements Closeable {
+
+        private final Feed<?, ?> feed;
+        private final String symbol;
+        private final Object listener;
+        private boolean closed = false;
+
+        private Subscription(Feed<?, ?> feed, String symbol, Object listener) {
+            this.feed = feed;
+            this.symbol = symbol;
+            this.listener = listener;
+        }
+
+        public String getAccount() {
+            return feed.account;
+        }
+
+        public String getVenue() {
+            return feed.venue;
+        }
+
+        /**
+         * @return the stock, or null for the whole venue
+         */
+        public String getSymbol() {
+            return symbol;
+        }
+
+        @Override
+        public void close() {
+            synchronized (SubscriptionManager.this) {
+                if (!closed) {
+                    closed = true;
+                    unsubscribe(feed);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <L, E> void unsubscribe(Feed<L, E> f) {
+            f.unsubscribe(symbol, (L) listener);
+        }
+    }
+}
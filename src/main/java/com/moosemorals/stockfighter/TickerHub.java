@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.glassfish.tyrus.client.ClientManager;
+import org.glassfish.tyrus.client.ClientProperties;
+import org.glassfish.tyrus.client.ThreadPoolConfig;
+import org.glassfish.tyrus.container.grizzly.client.GrizzlyClientProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many tickers over one websocket client. Left to themselves, each
+ * ticker starts its own Tyrus client, with its own selector and worker
+ * threads. Tickers from a hub share one client and a fixed set of threads,
+ * so adding another (account, venue) costs a socket and some buffers rather
+ * than more threads.
+ *
+ * <p>
+ * There is one QuoteTicker and one ExecutionTicker per (account, venue),
+ * however many times they are asked for. Add listeners to them as
+ * usual.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TickerHub implements Closeable {
+
+    /**
+     * Worker threads, which decode messages and call listeners, shared by
+     * every ticker on the hub. Tyrus won't go below three.
+     */
+    public static final int DEFAULT_WORKERS = 3;
+
+    /**
+     * How long to wait for a websocket handshake.
+     */
+    public static final long HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    private static final Logger log = LoggerFactory.getLogger(TickerHub.class);
+
+    private final String api_key;
+    private final String base_url;
+    private final ClientManager client;
+    private final Map<String, QuoteTicker> quotes = new HashMap<>();
+    private final Map<String, ExecutionTicker> executions = new HashMap<>();
+    private Trader backfill = null;
+
+    public TickerHub(String api_key) {
+        this(api_key, AbstractTicker.BASE_URL, DEFAULT_WORKERS);
+    }
+
+    /**
+     * @param api_key String api key
+     * @param base_url String base url of the websockets, without a trailing
+     * slash
+     * @param workers number of worker threads, at least three
+     */
+    public TickerHub(String api_key, String base_url, int workers) {
+        this.api_key = api_key;
+        this.base_url = base_url;
+        this.client = createClient(true);
+        workers = Math.max(DEFAULT_WORKERS, workers);
+        client.getProperties().put(ClientProperties.WORKER_THREAD_POOL_CONFIG,
+                ThreadPoolConfig.defaultConfig().setCorePoolSize(workers).setMaxPoolSize(workers));
+        client.getProperties().put(GrizzlyClientProperties.SELECTOR_THREAD_POOL_CONFIG,
+                org.glassfish.grizzly.threadpool.ThreadPoolConfig.defaultConfig().setCorePoolSize(1).setMaxPoolSize(1));
+    }
+
+    /**
+     * Have tickers made from now on catch up through this Trader after
+     * reconnecting, see {@link AbstractTicker#setBackfill(Trader)}.
+     *
+     * @param trader Trader to catch up through, or null not to
+     */
+    public synchronized void setBackfill(Trader trader) {
+        this.backfill = trader;
+    }
+
+    /**
+     * Get the quote ticker for an account on a venue, connecting it the
+     * first time it's asked for. Callers asking while it's still connecting
+     * get it straight away, in state CONNECTING.
+     *
+     * @param account String account
+     * @param venue String venue
+     * @return the shared ticker
+     * @throws IOException if it can't connect
+     */
+    public QuoteTicker quotes(String account, String venue) throws IOException {
+        String key = account + "/" + venue;
+        QuoteTicker ticker;
+        synchronized (this) {
+            ticker = quotes.get(key);
+            if (ticker != null) {
+                return ticker;
+            }
+            ticker = new QuoteTicker(api_key, quotesUri(account, venue), this);
+            ticker.setBackfill(backfill);
+            quotes.put(key, ticker);
+        }
+        connect(quotes, key, ticker, account, venue);
+        return ticker;
+    }
+
+    /**
+     * Get the execution ticker for an account on a venue, connecting it the
+     * first time it's asked for. Callers asking while it's still connecting
+     * get it straight away, in state CONNECTING.
+     *
+     * @param account String account
+     * @param venue String venue
+     * @return the shared ticker
+     * @throws IOException if it can't connect
+     */
+    public ExecutionTicker executions(String account, String venue) throws IOException {
+        String key = account + "/" + venue;
+        ExecutionTicker ticker;
+        synchronized (this) {
+            ticker = executions.get(key);
+            if (ticker != null) {
+                return ticker;
+            }
+            ticker = new ExecutionTicker(api_key, executionsUri(account, venue), this);
+            ticker.setBackfill(backfill);
+            executions.put(key, ticker);
+        }
+        connect(executions, key, ticker, account, venue);
+        return ticker;
+    }
+
+    /**
+     * Connect outside the hub lock, so handshakes for different tickers can
+     * run at the same time. Tickers that can't connect are forgotten.
+     */
+    private <T extends AbstractTicker> void connect(Map<String, T> tickers, String key, T ticker, String account, String venue) throws IOException {
+        try {
+            ticker.connect(account, venue);
+        } catch (IOException | RuntimeException ex) {
+            synchronized (this) {
+                tickers.remove(key, ticker);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @return number of tickers on the hub
+     */
+    public synchronized int getTickerCount() {
+        return quotes.size() + executions.size();
+    }
+
+    URI quotesUri(String account, String venue) {
+        return URI.create(base_url + "/" + account + "/venues/" + venue + "/tickertape");
+    }
+
+    URI executionsUri(String account, String venue) {
+        return URI.create(base_url + "/" + account + "/venues/" + venue + "/executions");
+    }
+
+    URI quotesUri(String account, String venue, String symbol) {
+        return URI.create(base_url + "/" + account + "/venues/" + venue + "/tickertape/stocks/" + symbol);
+    }
+
+    URI executionsUri(String account, String venue, String symbol) {
+        return URI.create(base_url + "/" + account + "/venues/" + venue + "/executions/stocks/" + symbol);
+    }
+
+    String getApiKey() {
+        return api_key;
+    }
+
+    synchronized Trader getBackfill() {
+        return backfill;
+    }
+
+    ClientManager getClient() {
+        return client;
+    }
+
+    /**
+     * Disconnect every ticker and shut down the client.
+     */
+    @Override
+    public void close() {
+        List<AbstractTicker> tickers;
+        synchronized (this) {
+            tickers = new ArrayList<>();
+            tickers.addAll(quotes.values());
+            tickers.addAll(executions.values());
+            quotes.clear();
+            executions.clear();
+        }
+        for (AbstractTicker t : tickers) {
+            try {
+                t.disconnect();
+            } catch (IOException ex) {
+                log.warn("Problem disconnecting {}: {}", t.getEndpoint(), ex.getMessage());
+            }
+        }
+        client.shutdown();
+    }
+
+    /**
+     * @param shared true to use Tyrus' shared container, so every connection
+     * runs on the same transport and threads
+     * @return a new client
+     */
+    static ClientManager createClient(boolean shared) {
+        ClientManager client = ClientManager.createClient();
+        client.getProperties().put(ClientProperties.REDIRECT_ENABLED, true);
+        // Tyrus waits 30 seconds by default for a handshake that's never
+        // coming if the server hangs up early
+        client.getProperties().put(ClientProperties.HANDSHAKE_TIMEOUT, HANDSHAKE_TIMEOUT_MILLIS);
+        if (shared) {
+            client.getProperties().put(ClientProperties.SHARED_CONTAINER, true);
+        }
+        return client;
+    }
+}
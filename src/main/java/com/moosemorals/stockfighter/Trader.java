@@ -23,21 +23,30 @@
  */
 package com.moosemorals.stockfighter;
 
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.transport.Transport;
 import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderEncoder;
 import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.OrderStatusReader;
 import com.moosemorals.stockfighter.types.Orderbook;
 import com.moosemorals.stockfighter.types.Quote;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.json.Json;
-import javax.json.stream.JsonGenerator;
 import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,16 +54,76 @@ import org.slf4j.LoggerFactory;
  *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
-public class Trader {
+public class Trader implements Closeable {
+
+    public static final String BASE_URL = "https://api.stockfighter.io/ob/api";
+
+    // Looking up the json provider is slow, so only do it once
+    private static final JsonParserFactory parserFactory = Json.createParserFactory(null);
+
+    static final OrderEncoder encoder = new OrderEncoder();
+
+    /**
+     * Default most cancels in flight at once for {@link #cancelAll}. Kept
+     * small, so that the listing still gets a connection from a small pool.
+     */
+    public static final int DEFAULT_CANCEL_CONCURRENCY = 3;
+
+    /**
+     * Default longest {@link #cancelAll} waits for its cancels to be
+     * answered, once the listing is done.
+     */
+    public static final long DEFAULT_CANCEL_ALL_TIMEOUT = 30000;
 
     private final Logger log = LoggerFactory.getLogger(Trader.class);
 
-    private static final String base_url = "https://api.stockfighter.io/ob/api";
+    private final Transport transport;
 
-    private final String api_key;
+    private volatile long cancelAllTimeout = DEFAULT_CANCEL_ALL_TIMEOUT;
 
     public Trader(String api_key) {
-        this.api_key = api_key;
+        this(api_key, BASE_URL);
+    }
+
+    /**
+     * Talk to an API at a different url, for example a local stand-in
+     * exchange.
+     *
+     * @param api_key String api key
+     * @param base_url String base url of the API, without a trailing slash
+     */
+    public Trader(String api_key, String base_url) {
+        this(new PooledTransport(base_url, api_key));
+    }
+
+    public Trader(Transport transport) {
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param cancelAllTimeout longest {@link #cancelAll} waits for its
+     * cancels once the listing is done, in milliseconds
+     */
+    public void setCancelAllTimeout(long cancelAllTimeout) {
+        this.cancelAllTimeout = cancelAllTimeout;
+    }
+
+    public long getCancelAllTimeout() {
+        return cancelAllTimeout;
+    }
+
+    /**
+     * Release the connections held by the underlying transport.
+     *
+     * @throws IOException on network problems
+     */
+    @Override
+    public void close() throws IOException {
+        transport.close();
     }
 
     /**
@@ -64,18 +133,7 @@ public class Trader {
      * @throws IOException on network problems, or if the API is down.
      */
     public boolean heartBeat() throws IOException {
-        URL target;
-        try {
-            target = new URL(base_url + "/heartbeat");
-        } catch (MalformedURLException ex) {
-            throw new IOException("Cany build URL: " + ex.getMessage(), ex);
-        }
-
-        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
-
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
+        try (JsonParser parser = parserFactory.createParser(transport.get("/heartbeat"))) {
             outerwhile:
             while (parser.hasNext()) {
                 switch (parser.next()) {
@@ -111,18 +169,7 @@ public class Trader {
      * @throws IOException on network problems, or if the venue is down.
      */
     public boolean heartBeat(String venue) throws IOException {
-        URL target;
-        try {
-            target = new URL(base_url + "/venues/" + venue + "/heartbeat");
-        } catch (MalformedURLException ex) {
-            throw new IOException("Cany build URL: " + ex.getMessage(), ex);
-        }
-
-        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
-
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
+        try (JsonParser parser = parserFactory.createParser(transport.get("/venues/" + venue + "/heartbeat"))) {
             outerwhile:
             while (parser.hasNext()) {
                 switch (parser.next()) {
@@ -152,18 +199,7 @@ public class Trader {
     }
 
     public Map<String, String> listSymbols(String venue) throws IOException {
-        URL target;
-        try {
-            target = new URL(base_url + "/venues/" + venue + "/stocks");
-        } catch (MalformedURLException ex) {
-            throw new IOException("Cany build URL: " + ex.getMessage(), ex);
-        }
-
-        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
-
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
+        try (JsonParser parser = parserFactory.createParser(transport.get("/venues/" + venue + "/stocks"))) {
             outerwhile:
             while (parser.hasNext()) {
                 switch (parser.next()) {
@@ -225,223 +261,290 @@ public class Trader {
     }
 
     public Orderbook getOrderbook(String venue, String symbol) throws IOException {
-        URL target;
-        try {
-            target = new URL(base_url + "/venues/" + venue + "/stocks/" + symbol);
-        } catch (MalformedURLException ex) {
-            throw new IOException("Cany build URL: " + ex.getMessage(), ex);
-        }
-
-        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
-
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
+        try (JsonParser parser = parserFactory.createParser(transport.get(orderbookPath(venue, symbol)))) {
             return new Orderbook(parser);
         }
     }
 
     public OrderStatus postOrder(Order order) throws IOException {
-        StringBuilder target = new StringBuilder();
-        target.append(base_url)
-                .append("/venues/").append(order.getVenue())
-                .append("/stocks/").append(order.getSymbol())
-                .append("/orders");
-
-        URL url;
-        try {
-            url = new URL(target.toString());
-        } catch (MalformedURLException ex) {
-            throw new IOException("Can't build URL:" + ex.getMessage(), ex);
-        }
-
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.setDoOutput(true);
-
-        try (JsonGenerator gen = Json.createGenerator(conn.getOutputStream())) {
-            order.toJson(gen);
-        }
-
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
+        OrderEncoder.Encoded body = encoder.encode(order);
+        try (JsonParser parser = parserFactory.createParser(transport.post(body.getPath(), body.getData(), 0, body.getLength()))) {
             return new OrderStatus(parser);
         }
     }
 
     public OrderStatus getOrderStatus(String venue, String symbol, int id) throws IOException {
-        StringBuilder target = new StringBuilder();
-        target.append(base_url)
-                .append("/venues/").append(venue)
-                .append("/stocks/").append(symbol)
-                .append("/orders/").append(id);
-
-        URL url;
-        try {
-            url = new URL(target.toString());
-        } catch (MalformedURLException ex) {
-            throw new IOException("Can't build URL:" + ex.getMessage(), ex);
-        }
-
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
-
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
+        try (JsonParser parser = parserFactory.createParser(transport.get(orderPath(venue, symbol, id)))) {
             return new OrderStatus(parser);
         }
     }
 
     public List<OrderStatus> getOrderStatus(String venue, String account) throws IOException {
-        StringBuilder target = new StringBuilder();
-        target.append(base_url)
-                .append("/venues/").append(venue)
-                .append("/accounts/").append(account)
-                .append("/orders/");
-
-        URL url;
-        try {
-            url = new URL(target.toString());
-        } catch (MalformedURLException ex) {
-            throw new IOException("Can't build URL:" + ex.getMessage(), ex);
-        }
+        return collect(openOrderStatus(venue, account, null, false));
+    }
+
+    public List<OrderStatus> getOrderStatus(String venue, String account, String symbol) throws IOException {
+        return collect(openOrderStatus(venue, account, symbol, false));
+    }
+
+    /**
+     * Stream all the orders for an account, handing each one over as soon as
+     * it has been read.
+     *
+     * @param venue String venue
+     * @param account String account
+     * @param openOnly if true, closed orders are skipped
+     * @param handler called for each order, and returns false to stop early
+     * @throws IOException on network problems, or if the API returned an
+     * error
+     */
+    public void getOrderStatus(String venue, String account, boolean openOnly, OrderHandler handler) throws IOException {
+        stream(openOrderStatus(venue, account, null, openOnly), handler);
+    }
 
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
+    /**
+     * Stream the orders for an account in one stock, handing each one over as
+     * soon as it has been read.
+     *
+     * @param venue String venue
+     * @param account String account
+     * @param symbol String stock symbol
+     * @param openOnly if true, closed orders are skipped
+     * @param handler called for each order, and returns false to stop early
+     * @throws IOException on network problems, or if the API returned an
+     * error
+     */
+    public void getOrderStatus(String venue, String account, String symbol, boolean openOnly, OrderHandler handler) throws IOException {
+        stream(openOrderStatus(venue, account, symbol, openOnly), handler);
+    }
 
+    /**
+     * Start reading the orders for an account. The reader must be closed,
+     * which releases the connection.
+     *
+     * @param venue String venue
+     * @param account String account
+     * @param symbol String stock symbol, or null for all stocks
+     * @param openOnly if true, closed orders are skipped
+     * @return reader for the orders
+     * @throws IOException on network problems
+     */
+    public OrderStatusReader openOrderStatus(String venue, String account, String symbol, boolean openOnly) throws IOException {
+        String path = symbol == null ? accountOrdersPath(venue, account) : accountOrdersPath(venue, account, symbol);
+        return new OrderStatusReader(transport.get(path), openOnly);
+    }
+
+    private static List<OrderStatus> collect(OrderStatusReader reader) throws IOException {
         List<OrderStatus> result = new ArrayList<>();
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
-            outerwhile:
-            while (parser.hasNext()) {
-                switch (parser.next()) {
-                    case KEY_NAME:
-                        String key = parser.getString();
-                        switch (key) {
-                            case "ok":
-                                // ignored;
-                                break;
-                            case "error":
-                                throw new IOException("Can't get list of orders: " + parser.getString());
-                            case "orders":
-                                innerwhile:
-                                while (parser.hasNext()) {
-                                    switch (parser.next()) {
-                                        case START_OBJECT:
-                                            result.add(new OrderStatus(parser));
-                                            break;
-                                        case END_ARRAY:
-                                            break innerwhile;
-                                    }
-                                }
-                                break;
-                        }
-                        break;
+        try (OrderStatusReader r = reader) {
+            OrderStatus order;
+            while ((order = r.read()) != null) {
+                result.add(order);
+            }
+        }
+        return result;
+    }
 
-                    case END_OBJECT:
-                        break outerwhile;
+    private static void stream(OrderStatusReader reader, OrderHandler handler) throws IOException {
+        try (OrderStatusReader r = reader) {
+            OrderStatus order;
+            while ((order = r.read()) != null) {
+                if (!handler.onOrder(order)) {
+                    return;
                 }
             }
         }
-        return result;
     }
 
-    public List<OrderStatus> getOrderStatus(String venue, String account, String symbol) throws IOException {
-        StringBuilder target = new StringBuilder();
-        target.append(base_url)
-                .append("/venues/").append(venue)
-                .append("/accounts/").append(account)
-                .append("/stocks/").append(symbol)
-                .append("/orders");
-
-        URL url;
-        try {
-            url = new URL(target.toString());
-        } catch (MalformedURLException ex) {
-            throw new IOException("Can't build URL:" + ex.getMessage(), ex);
+    public OrderStatus cancelOrder(String venue, String symbol, int id) throws IOException {
+        try (JsonParser parser = parserFactory.createParser(transport.delete(orderPath(venue, symbol, id)))) {
+            return new OrderStatus(parser);
         }
+    }
 
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
+    /**
+     * Cancel every open order on an account, a few at a time.
+     *
+     * @param venue String venue
+     * @param account String account
+     * @return counts and timings
+     * @throws IOException if the orders can't be listed
+     * @see #cancelAll(String, String, String, int, CancelProgress)
+     */
+    public CancelAllResult cancelAll(String venue, String account) throws IOException {
+        return cancelAll(venue, account, null, DEFAULT_CANCEL_CONCURRENCY, null);
+    }
 
-        List<OrderStatus> result = new ArrayList<>();
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
-            outerwhile:
-            while (parser.hasNext()) {
-                switch (parser.next()) {
-                    case KEY_NAME:
-                        String key = parser.getString();
-                        switch (key) {
-                            case "ok":
-                                // ignored;
-                                break;
-                            case "error":
-                                throw new IOException("Can't get list of orders: " + parser.getString());
-                            case "orders":
-                                innerwhile:
-                                while (parser.hasNext()) {
-                                    switch (parser.next()) {
-                                        case START_OBJECT:
-                                            result.add(new OrderStatus(parser));
-                                            break;
-                                        case END_ARRAY:
-                                            break innerwhile;
-                                    }
-                                }
-                                break;
-                        }
-                        break;
+    /**
+     * Cancel every open order on an account in one stock, a few at a time.
+     *
+     * @param venue String venue
+     * @param account String account
+     * @param symbol String stock symbol
+     * @return counts and timings
+     * @throws IOException if the orders can't be listed
+     * @see #cancelAll(String, String, String, int, CancelProgress)
+     */
+    public CancelAllResult cancelAll(String venue, String account, String symbol) throws IOException {
+        return cancelAll(venue, account, symbol, DEFAULT_CANCEL_CONCURRENCY, null);
+    }
 
-                    case END_OBJECT:
-                        break outerwhile;
+    /**
+     * Cancel every open order on an account. Orders are cancelled as they're
+     * read from the listing, by up to concurrency threads at once, and this
+     * waits until they've all been answered, or the cancel-all timeout is
+     * up, or the thread is interrupted (which leaves the interrupt flag set).
+     * A cancel that fails doesn't stop the rest; its id is in the result, to
+     * try again, as are the ids of cancels that hadn't been answered when
+     * the wait ended. Those aren't passed to progress.
+     *
+     * <p>
+     * Each cancel (and the listing) needs a connection of its own, so give
+     * the transport more connections than concurrency.</p>
+     *
+     * @param venue String venue
+     * @param account String account
+     * @param symbol String stock symbol, or null for all stocks
+     * @param concurrency most cancels in flight at once
+     * @param progress told about each cancel as it finishes (on the thread
+     * that sent it), or null
+     * @return counts and timings
+     * @throws IOException if the orders can't be listed (cancels already
+     * started are still waited for, as above)
+     */
+    public CancelAllResult cancelAll(final String venue, String account, String symbol, int concurrency, final CancelProgress progress) throws IOException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Need at least one cancel at a time");
+        }
+        final CancelAllResult result = new CancelAllResult();
+        // Ids sent but not yet answered. Whoever takes an id out reports it
+        final Set<Integer> outstanding = ConcurrentHashMap.newKeySet();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Trader-CancelAll-" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long start = System.nanoTime();
+        try (OrderStatusReader reader = openOrderStatus(venue, account, symbol, true)) {
+            OrderStatus order;
+            while ((order = reader.read()) != null) {
+                final int id = order.getId();
+                final String stock = order.getSymbol();
+                result.listed();
+                outstanding.add(id);
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long sent = System.nanoTime();
+                        OrderStatus status = null;
+                        Exception error = null;
+                        try {
+                            status = cancelOrder(venue, stock, id);
+                            if (!status.isOk()) {
+                                error = new IOException("Can't cancel order " + id + ": " + status.getErrorStr());
+                            }
+                        } catch (IOException | RuntimeException ex) {
+                            error = ex;
+                        }
+                        long took = System.nanoTime() - sent;
+                        if (!outstanding.remove(id)) {
+                            // Too late, already reported as unfinished
+                            return;
+                        }
+                        if (error == null) {
+                            result.cancelled(took);
+                        } else {
+                            log.warn("Can't cancel order {}: {}", id, error.getMessage());
+                            result.failed(id, took);
+                        }
+                        if (progress != null) {
+                            progress.onCancel(id, status, error);
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            boolean done;
+            try {
+                done = pool.awaitTermination(cancelAllTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                done = false;
+            }
+            if (!done) {
+                // Claim what's left before interrupting, so that an
+                // interrupted cancel isn't also counted as failed
+                for (Integer id : outstanding) {
+                    if (outstanding.remove(id)) {
+                        result.unfinished(id);
+                    }
                 }
+                pool.shutdownNow();
+                log.warn("Stopped waiting for cancels, {} unanswered", result.getUnfinishedCount());
             }
+            result.finished(System.nanoTime() - start);
         }
         return result;
     }
 
-    public OrderStatus cancelOrder(String venue, String symbol, int id) throws IOException {
-        StringBuilder target = new StringBuilder();
-        target.append(base_url)
-                .append("/venues/").append(venue)
-                .append("/stocks/").append(symbol)
-                .append("/orders/").append(id);
-
-        URL url;
-        try {
-            url = new URL(target.toString());
-        } catch (MalformedURLException ex) {
-            throw new IOException("Can't build URL:" + ex.getMessage(), ex);
+    public Quote getQuote(String venue, String symbol) throws IOException {
+        try (JsonParser parser = parserFactory.createParser(transport.get(quotePath(venue, symbol)))) {
+            return new Quote(parser);
         }
+    }
 
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("DELETE");
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
+    static String orderbookPath(String venue, String symbol) {
+        return "/venues/" + venue + "/stocks/" + symbol;
+    }
 
-        conn.connect();
+    static String quotePath(String venue, String symbol) {
+        return orderbookPath(venue, symbol) + "/quote";
+    }
 
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
-            return new OrderStatus(parser);
-        }
+    static String ordersPath(String venue, String symbol) {
+        return orderbookPath(venue, symbol) + "/orders";
     }
 
-    public Quote getQuote(String venue, String symbol) throws IOException {
-        URL target;
-        try {
-            target = new URL(base_url + "/venues/" + venue + "/stocks/" + symbol + "/quote");
-        } catch (MalformedURLException ex) {
-            throw new IOException("Cany build URL: " + ex.getMessage(), ex);
-        }
+    static String orderPath(String venue, String symbol, int id) {
+        return ordersPath(venue, symbol) + "/" + id;
+    }
 
-        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
-        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
-        conn.connect();
+    static String accountOrdersPath(String venue, String account) {
+        return "/venues/" + venue + "/accounts/" + account + "/orders/";
+    }
 
-        try (JsonParser parser = Json.createParser(conn.getInputStream())) {
-            return new Quote(parser);
-        }
+    static String accountOrdersPath(String venue, String account, String symbol) {
+        return "/venues/" + venue + "/accounts/" + account + "/stocks/" + symbol + "/orders";
+    }
+
+    /**
+     * Hears about each cancel from {@link #cancelAll}.
+     */
+    public interface CancelProgress {
+
+        /**
+         * @param id id of the order
+         * @param status what the exchange said, or null if it couldn't be
+         * asked
+         * @param error why the order wasn't cancelled, or null if it was
+         */
+        void onCancel(int id, OrderStatus status, Exception error);
     }
 
+    /**
+     * Receives orders from a streaming listing.
+     */
+    public interface OrderHandler {
+
+        /**
+         * @param order the next order
+         * @return true to carry on, false to stop reading
+         */
+        boolean onOrder(OrderStatus order);
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs one {@link EventHandler} over the ring, on whatever thread runs it.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ * @param <E> event type
+ */
+public final class EventProcessor<E> implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(EventProcessor.class);
+
+    private final RingBuffer<E> ring;
+    private final SequenceBarrier barrier;
+    private final EventHandler<? super E> handler;
+    private final Sequence sequence = new Sequence();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong errors = new AtomicLong();
+
+    public EventProcessor(RingBuffer<E> ring, SequenceBarrier barrier, EventHandler<? super E> handler) {
+        this.ring = ring;
+        this.barrier = barrier;
+        this.handler = handler;
+    }
+
+    /**
+     * @return how far this processor has got, for later stages to wait on
+     */
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return number of events the handler threw on
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Stop after the current batch.
+     */
+    public void halt() {
+        running.set(false);
+        barrier.alert();
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Already running");
+        }
+        long next = sequence.get() + 1;
+        try {
+            while (running.get()) {
+                long available;
+                try {
+                    available = barrier.waitFor(next);
+                } catch (AlertException ex) {
+                    continue;
+                }
+                while (next <= available) {
+                    try {
+                        handler.onEvent(ring.get(next), next, next == available);
+                    } catch (Exception ex) {
+                        errors.incrementAndGet();
+                        log.warn("Handler {} threw on event {}: {}", handler, next, ex.getMessage(), ex);
+                    }
+                    next += 1;
+                }
+                sequence.set(available);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.set(false);
+        }
+    }
+}
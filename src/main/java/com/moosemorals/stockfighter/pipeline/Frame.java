@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One websocket message on its way through a pipeline. The receive thread
+ * only fills in the text, or for binary frames the bytes; a decode stage (see
+ * {@link com.moosemorals.stockfighter.AbstractTicker#frameHandler()}) then
+ * attaches the decoded event for later stages.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class Frame {
+
+    /**
+     * Fills in a frame from a received message.
+     */
+    public static final EventTranslator<Frame, String> TEXT = new EventTranslator<Frame, String>() {
+        @Override
+        public void translate(Frame frame, long sequence, String text) {
+            frame.text = text;
+            frame.length = 0;
+            frame.receivedNanos = System.nanoTime();
+            frame.event = null;
+        }
+    };
+
+    /**
+     * Fills in a frame from a received binary message, copying the bytes into
+     * an array that belongs to the slot, so the sender can reuse its buffer
+     * straight away. The buffer's position isn't changed.
+     */
+    public static final EventTranslator<Frame, ByteBuffer> BYTES = new EventTranslator<Frame, ByteBuffer>() {
+        @Override
+        public void translate(Frame frame, long sequence, ByteBuffer message) {
+            int length = message.remaining();
+            if (frame.data == null || frame.data.length < length) {
+                frame.data = new byte[Math.max(length, 1024)];
+            }
+            int start = message.position();
+            message.get(frame.data, 0, length);
+            message.position(start);
+            frame.text = null;
+            frame.length = length;
+            frame.receivedNanos = System.nanoTime();
+            frame.event = null;
+        }
+    };
+
+    private String text;
+    private byte[] data;
+    private int length;
+    private long receivedNanos;
+    private Object event;
+    private Object spare;
+
+    /**
+     * @return the message, or null if it came as bytes
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the message bytes, from 0 to {@link #getLength()}, if
+     * {@link #getText()} is null
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return System.nanoTime() when the message was received
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @return the decoded event, or null if the message didn't decode (or
+     * hasn't been yet)
+     */
+    public Object getEvent() {
+        return event;
+    }
+
+    public void setEvent(Object event) {
+        this.event = event;
+    }
+
+    /**
+     * An object that belongs to this slot, kept from one use of the slot to
+     * the next, for a stage to decode into rather than allocating.
+     *
+     * @return
+     */
+    public Object getSpare() {
+        return spare;
+    }
+
+    public void setSpare(Object spare) {
+        this.spare = spare;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A ring buffer and the chain of stages that consume it. Each stage runs on
+ * its own thread(s) and only sees an event once every handler in the stage
+ * before has finished with it, so a decode stage can fill in a field that an
+ * analytics stage then reads, and so on.
+ *
+ * <pre>
+ * Pipeline&lt;Frame&gt; p = Pipeline.builder(Frame::new, 1024)
+ *         .waitStrategy(new YieldingWaitStrategy())
+ *         .then(ticker.frameHandler())
+ *         .then(analytics)
+ *         .then(strategy)
+ *         .build();
+ * p.start();
+ * </pre>
+ *
+ * <p>
+ * Only one thread may publish at a time.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ * @param <E> event type
+ */
+public final class Pipeline<E> implements Closeable {
+
+    private final String name;
+    private final RingBuffer<E> ring;
+    private final List<List<EventProcessor<E>>> stages;
+    private final List<Thread> threads = new ArrayList<>();
+
+    private Pipeline(String name, RingBuffer<E> ring, List<List<EventProcessor<E>>> stages) {
+        this.name = name;
+        this.ring = ring;
+        this.stages = stages;
+    }
+
+    public static <E> Builder<E> builder(Supplier<E> factory, int size) {
+        return new Builder<>(factory, size);
+    }
+
+    /**
+     * Start a daemon thread for each handler.
+     */
+    public synchronized void start() {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("Already started");
+        }
+        for (int s = 0; s < stages.size(); s += 1) {
+            List<EventProcessor<E>> stage = stages.get(s);
+            for (int h = 0; h < stage.size(); h += 1) {
+                Thread t = new Thread(stage.get(h), name + "-" + s + "-" + h);
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+        }
+    }
+
+    /**
+     * Claim a slot, fill it in, and publish it. Waits if the ring is full.
+     *
+     * @param <A> argument type
+     * @param translator fills in the event
+     * @param arg passed to the translator
+     */
+    public <A> void publish(EventTranslator<E, A> translator, A arg) {
+        long sequence = ring.next();
+        try {
+            translator.translate(ring.get(sequence), sequence, arg);
+        } finally {
+            ring.publish(sequence);
+        }
+    }
+
+    public RingBuffer<E> getRingBuffer() {
+        return ring;
+    }
+
+    /**
+     * @return sequence of the last event every stage has finished with
+     */
+    public long getProcessed() {
+        List<EventProcessor<E>> last = stages.get(stages.size() - 1);
+        long min = Long.MAX_VALUE;
+        for (EventProcessor<E> p : last) {
+            min = Math.min(min, p.getSequence().get());
+        }
+        return min;
+    }
+
+    /**
+     * @return number of events handlers have thrown on, across all stages
+     */
+    public long getErrorCount() {
+        long total = 0;
+        for (List<EventProcessor<E>> stage : stages) {
+            for (EventProcessor<E> p : stage) {
+                total += p.getErrorCount();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Wait for everything published so far to get through every stage.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if it did, false if the time ran out
+     * @throws InterruptedException
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = ring.getCursor().get();
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (getProcessed() < target) {
+            if (System.nanoTime() > end) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Stop every stage straight away, without draining.
+     */
+    public synchronized void halt() {
+        for (List<EventProcessor<E>> stage : stages) {
+            for (EventProcessor<E> p : stage) {
+                p.halt();
+            }
+        }
+        for (Thread t : threads) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        threads.clear();
+    }
+
+    /**
+     * Give the stages a second to catch up, then stop them.
+     */
+    @Override
+    public void close() {
+        try {
+            drain(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        halt();
+    }
+
+    public static final class Builder<E> {
+
+        private final Supplier<E> factory;
+        private final int size;
+        private final List<List<EventHandler<? super E>>> stages = new ArrayList<>();
+        private WaitStrategy waitStrategy = new BlockingWaitStrategy();
+        private String name = "Pipeline";
+
+        private Builder(Supplier<E> factory, int size) {
+            this.factory = factory;
+            this.size = size;
+        }
+
+        /**
+         * @param waitStrategy how consumers wait, blocking by default
+         * @return this
+         */
+        public Builder<E> waitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * @param name prefix for thread names
+         * @return this
+         */
+        public Builder<E> name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Add a stage. Handlers in the same stage run in parallel, and all of
+         * them see every event once the previous stage is done with it.
+         *
+         * @param handlers
+         * @return this
+         */
+        @SafeVarargs
+        public final Builder<E> then(EventHandler<? super E>... handlers) {
+            if (handlers.length == 0) {
+                throw new IllegalArgumentException("A stage needs at least one handler");
+            }
+            List<EventHandler<? super E>> stage = new ArrayList<>();
+            for (EventHandler<? super E> h : handlers) {
+                stage.add(h);
+            }
+            stages.add(stage);
+            return this;
+        }
+
+        public Pipeline<E> build() {
+            if (stages.isEmpty()) {
+                throw new IllegalStateException("No stages");
+            }
+            RingBuffer<E> ring = new RingBuffer<>(factory, size, waitStrategy);
+            List<List<EventProcessor<E>>> processors = new ArrayList<>();
+            Sequence[] previous = new Sequence[0];
+            for (List<EventHandler<? super E>> stage : stages) {
+                List<EventProcessor<E>> built = new ArrayList<>();
+                Sequence[] sequences = new Sequence[stage.size()];
+                SequenceBarrier[] barriers = new SequenceBarrier[stage.size()];
+                for (int i = 0; i < stage.size(); i += 1) {
+                    // A barrier each, so halting one doesn't alert the others early
+                    barriers[i] = ring.newBarrier(previous);
+                    EventProcessor<E> p = new EventProcessor<>(ring, barriers[i], stage.get(i));
+                    built.add(p);
+                    sequences[i] = p.getSequence();
+                }
+                processors.add(built);
+                previous = sequences;
+            }
+            ring.setGatingSequences(previous);
+            return new Pipeline<>(name, ring, processors);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * A fixed ring of preallocated events for one producer and any number of
+ * consumers. The producer claims a slot with {@link #next()}, fills in the
+ * event from {@link #get(long)} and hands it over with
+ * {@link #publish(long)}. Slots are reused once every consumer at the end of
+ * the chain (the gating sequences) has got past them.
+ *
+ * <p>
+ * Only one thread may publish at a time.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ * @param <E> event type
+ */
+public final class RingBuffer<E> {
+
+    private static final Sequence[] NONE = new Sequence[0];
+
+    private final Object[] entries;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final Sequence cursor = new Sequence();
+    private volatile Sequence[] gating = NONE;
+
+    // Only touched by the producer
+    private long nextValue = Sequence.INITIAL;
+    private long cachedGate = Sequence.INITIAL;
+
+    /**
+     * @param factory makes the events, once per slot
+     * @param size number of slots, a power of two
+     * @param waitStrategy how consumers wait
+     */
+    public RingBuffer(Supplier<E> factory, int size, WaitStrategy waitStrategy) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of two: " + size);
+        }
+        this.entries = new Object[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        for (int i = 0; i < size; i += 1) {
+            entries[i] = factory.get();
+        }
+    }
+
+    /**
+     * Claim the next slot, waiting for the slowest consumer if the ring is
+     * full.
+     *
+     * @return sequence of the claimed slot
+     */
+    public long next() {
+        long next = nextValue + 1;
+        long wrap = next - entries.length;
+        if (wrap > cachedGate) {
+            long min;
+            while (wrap > (min = Sequence.minimum(gating, nextValue))) {
+                LockSupport.parkNanos(1);
+            }
+            cachedGate = min;
+        }
+        nextValue = next;
+        return next;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * Make a claimed slot visible to consumers.
+     *
+     * @param sequence
+     */
+    public void publish(long sequence) {
+        cursor.set(sequence);
+        waitStrategy.signalAll();
+    }
+
+    /**
+     * @return sequence of the last published event
+     */
+    public Sequence getCursor() {
+        return cursor;
+    }
+
+    public int getBufferSize() {
+        return entries.length;
+    }
+
+    /**
+     * @return number of slots free before publishing would have to wait
+     */
+    public long remainingCapacity() {
+        long consumed = Sequence.minimum(gating, cursor.get());
+        return entries.length - (cursor.get() - consumed);
+    }
+
+    /**
+     * Set the consumers the producer has to stay behind, normally the last
+     * stage of the pipeline.
+     *
+     * @param sequences
+     */
+    public void setGatingSequences(Sequence... sequences) {
+        gating = sequences.clone();
+    }
+
+    /**
+     * @param dependents sequences of earlier stages, or none to wait on the
+     * producer
+     * @return a new barrier
+     */
+    public SequenceBarrier newBarrier(Sequence... dependents) {
+        return new SequenceBarrier(cursor, dependents.clone(), waitStrategy);
+    }
+
+    WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A position in the ring, padded so two sequences written by different
+ * threads don't share a cache line.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class Sequence {
+
+    /**
+     * Where every sequence starts, one before the first slot.
+     */
+    public static final long INITIAL = -1;
+
+    private static final AtomicLongFieldUpdater<Sequence> VALUE = AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+    // Padding, never read
+    long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long value = INITIAL;
+    long p9, p10, p11, p12, p13, p14, p15;
+
+    public long get() {
+        return value;
+    }
+
+    /**
+     * Publish a new value. Other threads see it soon, and see everything
+     * written before it.
+     *
+     * @param v
+     */
+    public void set(long v) {
+        VALUE.lazySet(this, v);
+    }
+
+    /**
+     * Smallest value in sequences, or fallback if there aren't any.
+     *
+     * @param sequences
+     * @param fallback
+     * @return
+     */
+    static long minimum(Sequence[] sequences, long fallback) {
+        long min = fallback;
+        for (Sequence s : sequences) {
+            min = Math.min(min, s.get());
+        }
+        return min;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+/**
+ * What a consumer waits on: the producer's cursor, and the sequences of any
+ * earlier stages it has to stay behind.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class SequenceBarrier {
+
+    private final Sequence cursor;
+    private final Sequence[] dependents;
+    private final WaitStrategy waitStrategy;
+    private volatile boolean alerted = false;
+
+    SequenceBarrier(Sequence cursor, Sequence[] dependents, WaitStrategy waitStrategy) {
+        this.cursor = cursor;
+        this.dependents = dependents;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Wait until sequence can be read.
+     *
+     * @param sequence
+     * @return highest sequence that can be read, at least sequence
+     * @throws AlertException if the barrier has been alerted
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public long waitFor(long sequence) throws AlertException, InterruptedException {
+        checkAlert();
+        return waitStrategy.waitFor(sequence, this);
+    }
+
+    /**
+     * @return highest sequence that every dependency has got past
+     */
+    public long getAvailable() {
+        return dependents.length == 0 ? cursor.get() : Sequence.minimum(dependents, Long.MAX_VALUE);
+    }
+
+    public Sequence getCursor() {
+        return cursor;
+    }
+
+    public void checkAlert() throws AlertException {
+        if (alerted) {
+            throw AlertException.INSTANCE;
+        }
+    }
+
+    /**
+     * Wake anything waiting on this barrier and make it throw
+     * {@link AlertException}.
+     */
+    public void alert() {
+        alerted = true;
+        waitStrategy.signalAll();
+    }
+
+    public boolean isAlerted() {
+        return alerted;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+/**
+ * How a consumer waits for the next event. Busy-spin is quickest but burns a
+ * core per consumer, yielding is nearly as quick and plays nicer with other
+ * threads, and blocking is slowest but idles properly.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public interface WaitStrategy {
+
+    /**
+     * Wait until sequence is availible from the barrier.
+     *
+     * @param sequence sequence wanted
+     * @param barrier barrier to wait on
+     * @return highest availible sequence, which may be more than asked for
+     * @throws AlertException if the barrier was alerted while waiting
+     * @throws InterruptedException if the thread was interrupted
+     */
+    long waitFor(long sequence, SequenceBarrier barrier) throws AlertException, InterruptedException;
+
+    /**
+     * Called by the producer after each publish, and on alert.
+     */
+    void signalAll();
+}
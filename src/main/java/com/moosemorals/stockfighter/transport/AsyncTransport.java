@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking version of {@link Transport}.
+ *
+ * Each call returns straight away, and the future completes with the
+ * response body once the whole response has arrived, or exceptionally with
+ * an IOException on network problems or if the server returns an error code.
+ *
+ * Futures are completed on the transport's own I/O threads, so dependent
+ * actions that do real work should use the *Async variants with an
+ * executor.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public interface AsyncTransport extends Closeable {
+
+    CompletableFuture<byte[]> getAsync(String path);
+
+    /**
+     * The body is copied before this returns, so the array can be reused
+     * straight away.
+     */
+    CompletableFuture<byte[]> postAsync(String path, byte[] body, int offset, int length);
+
+    CompletableFuture<byte[]> deleteAsync(String path);
+}
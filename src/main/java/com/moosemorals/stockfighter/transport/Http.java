@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bits of HTTP/1.1 shared by the transports.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+final class Http {
+
+    private Http() {
+        // static only
+    }
+
+    /**
+     * Parse and check a base url.
+     *
+     * @param base_url String url, must be http or https
+     * @return URL parsed url
+     * @throws IllegalArgumentException if the url can't be used
+     */
+    static URL parseBaseUrl(String base_url) {
+        URL url;
+        try {
+            url = new URL(base_url);
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException("Can't parse base url [" + base_url + "]: " + ex.getMessage(), ex);
+        }
+
+        switch (url.getProtocol()) {
+            case "https":
+            case "http":
+                return url;
+            default:
+                throw new IllegalArgumentException("Unsupported protocol [" + url.getProtocol() + "]");
+        }
+    }
+
+    static boolean isSecure(URL url) {
+        return url.getProtocol().equals("https");
+    }
+
+    static int port(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    /**
+     * @return the path part of the url, without any trailing slashes
+     */
+    static String basePath(URL url) {
+        String path = url.getPath();
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Build the headers that go out with every request.
+     *
+     * @return ASCII bytes of the header lines, each ending with CRLF
+     */
+    static byte[] headers(URL url, String api_key) {
+        StringBuilder h = new StringBuilder();
+        h.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            h.append(':').append(url.getPort());
+        }
+        h.append("\r\n")
+                .append("X-Starfighter-Authorization: ").append(api_key).append("\r\n")
+                .append("Accept: application/json\r\n")
+                .append("Connection: keep-alive\r\n");
+        return h.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Build a complete request (head and body) as one array.
+     */
+    static byte[] request(String method, String path, byte[] headers, byte[] body, int offset, int length) {
+        StringBuilder head = new StringBuilder(128);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        int headLength = head.length();
+        StringBuilder tail = new StringBuilder(64);
+        if (body != null) {
+            tail.append("Content-Type: application/json\r\nContent-Length: ").append(length).append("\r\n");
+        }
+        tail.append("\r\n");
+
+        byte[] result = new byte[headLength + headers.length + tail.length() + (body != null ? length : 0)];
+        int pos = 0;
+        for (int i = 0; i < headLength; i += 1) {
+            result[pos++] = (byte) head.charAt(i);
+        }
+        System.arraycopy(headers, 0, result, pos, headers.length);
+        pos += headers.length;
+        for (int i = 0; i < tail.length(); i += 1) {
+            result[pos++] = (byte) tail.charAt(i);
+        }
+        if (body != null) {
+            System.arraycopy(body, offset, result, pos, length);
+        }
+        return result;
+    }
+
+    static IOException errorStatus(int status, String url, String body) {
+        return new HttpStatusException(status, "Server returned HTTP response code: " + status + " for URL: " + url + (body.isEmpty() ? "" : " " + body));
+    }
+
+    /**
+     * Parse a number from part of a line, stopping at the first non-digit
+     * (so chunk extensions are ignored).
+     */
+    static long parseLong(byte[] line, int start, int end, int radix) throws IOException {
+        long result = 0;
+        for (int i = start; i < end; i += 1) {
+            int digit = Character.digit((char) line[i], radix);
+            if (digit < 0) {
+                if (i == start) {
+                    throw new IOException("Bad number in HTTP response: " + new String(line, start, end - start, StandardCharsets.ISO_8859_1));
+                }
+                break;
+            }
+            result = result * radix + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Status line and the headers we care about from an HTTP response.
+     */
+    static final class ResponseHead {
+
+        int status;
+        long contentLength;
+        boolean chunked;
+        boolean keepAlive;
+
+        /**
+         * Start a new response from its status line.
+         */
+        void statusLine(byte[] line, int n) throws IOException {
+            if (n < 12 || line[0] != 'H' || line[1] != 'T' || line[2] != 'T' || line[3] != 'P' || line[4] != '/') {
+                throw new IOException("Bad HTTP status line: " + new String(line, 0, n, StandardCharsets.ISO_8859_1));
+            }
+            keepAlive = !(line[5] == '1' && line[7] == '0');
+            status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+            contentLength = -1;
+            chunked = false;
+        }
+
+        void header(byte[] line, int n) throws IOException {
+            int colon = -1;
+            for (int i = 0; i < n; i += 1) {
+                if (line[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            if (colon < 0) {
+                return;
+            }
+            int start = colon + 1;
+            while (start < n && (line[start] == ' ' || line[start] == '\t')) {
+                start += 1;
+            }
+            int end = n;
+            while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+                end -= 1;
+            }
+
+            if (nameIs(line, colon, "content-length")) {
+                contentLength = parseLong(line, start, end, 10);
+            } else if (nameIs(line, colon, "transfer-encoding")) {
+                chunked = valueContains(line, start, end, "chunked");
+            } else if (nameIs(line, colon, "connection")) {
+                if (valueContains(line, start, end, "close")) {
+                    keepAlive = false;
+                } else if (valueContains(line, start, end, "keep-alive")) {
+                    keepAlive = true;
+                }
+            }
+        }
+
+        boolean isInterim() {
+            return status >= 100 && status < 200;
+        }
+
+        boolean hasNoBody() {
+            return status == 204 || status == 304;
+        }
+
+        private static boolean nameIs(byte[] line, int length, String name) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i += 1) {
+                if (Character.toLowerCase((char) line[i]) != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean valueContains(byte[] line, int start, int end, String target) {
+            int last = end - target.length();
+            outer:
+            for (int i = start; i <= last; i += 1) {
+                for (int j = 0; j < target.length(); j += 1) {
+                    if (Character.toLowerCase((char) line[i + j]) != target.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,993 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking HTTP/1.1 transport built on NIO.
+ *
+ * A small, fixed pool of selector threads drives every connection, so
+ * hundreds of requests can be outstanding without a thread each. Up to
+ * {@code maxConnections} requests are on the wire at once (one per keep-alive
+ * connection), any more wait in a queue for the next free connection.
+ *
+ * Also implements the blocking {@link Transport}, so one NioTransport can be
+ * shared by a {@link com.moosemorals.stockfighter.Trader} and an
+ * {@link com.moosemorals.stockfighter.AsyncTrader}.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class NioTransport implements Transport, AsyncTransport {
+
+    public static final int DEFAULT_SELECTOR_THREADS = 2;
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static final Logger log = LoggerFactory.getLogger(NioTransport.class);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final byte[] NO_BODY = new byte[0];
+    // How often (ms) each selector checks for timeouts
+    private static final long TICK = 250;
+
+    // Results are handed over here, so that callers' continuations (and
+    // anything else they chain on) don't run on a selector thread
+    private static final ExecutorService callbacks = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NioTransport-Callback-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String base_url;
+    private final String host;
+    private final int port;
+    // Looked up once, rather than on a selector thread for every connection,
+    // and looked up again (off the selectors) if that failed
+    private volatile InetSocketAddress address;
+    private final String base_path;
+    private final byte[] headers;
+    private final SSLContext ssl;
+    private final int maxConnections;
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Object lock = new Object();
+    // guarded by lock
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final Deque<Request> pending = new ArrayDeque<>();
+    private int connections;
+    private volatile boolean closed;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    public NioTransport(String base_url, String api_key) throws IOException {
+        this(base_url, api_key, DEFAULT_SELECTOR_THREADS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Build a transport for the given base url.
+     *
+     * @param base_url String url that request paths are relative to
+     * @param api_key String api key, sent with every request
+     * @param selectorThreads number of I/O threads
+     * @param maxConnections maximum number of connections to hold open, and
+     * so the maximum number of requests on the wire at once
+     * @throws IOException if the selectors can't be opened
+     */
+    public NioTransport(String base_url, String api_key, int selectorThreads, int maxConnections) throws IOException {
+        if (selectorThreads < 1 || maxConnections < 1) {
+            throw new IllegalArgumentException("Need at least one thread and one connection");
+        }
+
+        URL url = Http.parseBaseUrl(base_url);
+        this.base_url = base_url;
+        this.host = url.getHost();
+        this.port = Http.port(url);
+        this.address = new InetSocketAddress(host, port);
+        this.base_path = Http.basePath(url);
+        this.headers = Http.headers(url, api_key);
+        this.maxConnections = maxConnections;
+
+        if (Http.isSecure(url)) {
+            try {
+                ssl = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException("Can't get TLS context: " + ex.getMessage(), ex);
+            }
+        } else {
+            ssl = null;
+        }
+
+        loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i += 1) {
+                loops[i] = new SelectorLoop(i);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String path) {
+        return submit(new Request("GET", path, null, 0, 0));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postAsync(String path, byte[] body, int offset, int length) {
+        return submit(new Request("POST", path, body, offset, length));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> deleteAsync(String path) {
+        return submit(new Request("DELETE", path, null, 0, 0));
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        return new ByteArrayInputStream(await(getAsync(path)));
+    }
+
+    @Override
+    public InputStream post(String path, byte[] body, int offset, int length) throws IOException {
+        return new ByteArrayInputStream(await(postAsync(path, body, offset, length)));
+    }
+
+    @Override
+    public InputStream delete(String path) throws IOException {
+        return new ByteArrayInputStream(await(deleteAsync(path)));
+    }
+
+    /**
+     * Stop the selector threads, close all connections and fail any
+     * outstanding requests.
+     */
+    @Override
+    public void close() {
+        List<Request> failed;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed = new ArrayList<>(pending);
+            pending.clear();
+            idle.clear();
+        }
+
+        for (Request r : failed) {
+            failed(r, new IOException("Transport closed"));
+        }
+
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        for (SelectorLoop loop : loops) {
+            if (loop != null && loop.thread != Thread.currentThread()) {
+                try {
+                    loop.thread.join(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public String getBaseUrl() {
+        return base_url;
+    }
+
+    /**
+     * @return number of sockets opened over the life of the transport
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return number of requests sent over the life of the transport
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of requests waiting for a free connection
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return number of connections currently open (or opening)
+     */
+    public int getOpenConnections() {
+        synchronized (lock) {
+            return connections;
+        }
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private CompletableFuture<byte[]> submit(Request r) {
+        requests.incrementAndGet();
+        dispatch(r);
+        return r.future;
+    }
+
+    /**
+     * Hand a request to an idle connection, a new connection, or the queue.
+     */
+    private void dispatch(final Request r) {
+        final Connection conn;
+        synchronized (lock) {
+            if (closed) {
+                conn = null;
+            } else {
+                conn = idle.pollFirst();
+                if (conn == null) {
+                    if (connections < maxConnections) {
+                        connections += 1;
+                    } else {
+                        pending.addLast(r);
+                        return;
+                    }
+                }
+            }
+        }
+
+        if (closed) {
+            failed(r, new IOException("Transport closed"));
+        } else if (conn != null) {
+            conn.loop.execute(() -> conn.start(r));
+        } else {
+            final SelectorLoop loop = loops[Math.abs(nextLoop.getAndIncrement() % loops.length)];
+            loop.execute(() -> loop.open(r));
+        }
+    }
+
+    private static void succeeded(Request r, byte[] result) {
+        callbacks.execute(() -> r.future.complete(result));
+    }
+
+    private static void failed(Request r, Throwable ex) {
+        callbacks.execute(() -> r.future.completeExceptionally(ex));
+    }
+
+    /**
+     * Try the host name again, for the next connection.
+     */
+    private void resolve() {
+        callbacks.execute(() -> {
+            InetSocketAddress to = new InetSocketAddress(host, port);
+            if (!to.isUnresolved()) {
+                address = to;
+            }
+        });
+    }
+
+    private final class Request {
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final String path;
+        final byte[] data;
+        // Only GET and DELETE can safely be sent twice
+        final boolean retryable;
+        long deadline;
+        boolean retried;
+
+        Request(String method, String path, byte[] body, int offset, int length) {
+            this.path = path;
+            this.retryable = !method.equals("POST");
+            this.data = Http.request(method, base_path + path, headers, body, offset, length);
+        }
+    }
+
+    private final class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean finished;
+
+        SelectorLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "NioTransport-Selector-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (finished) {
+                // Loop has gone, run it here (it'll just fail the request)
+                runTasks();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        void open(Request first) {
+            new Connection(this).connect(first);
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    log.error("Unexpected problem in transport task: {}", ex.getMessage(), ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastCheck = System.currentTimeMillis();
+            while (!closed) {
+                try {
+                    selector.select(TICK);
+                    runTasks();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid()) {
+                            ((Connection) key.attachment()).ready(key.readyOps());
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheck >= TICK) {
+                        lastCheck = now;
+                        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                            ((Connection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    log.error("Unexpected problem in selector loop: {}", ex.getMessage(), ex);
+                }
+            }
+
+            finished = true;
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).abort();
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                log.debug("Problem closing selector: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One keep-alive connection. Apart from construction, everything here
+     * runs on the connection's selector thread.
+     */
+    private final class Connection {
+
+        private static final int STATUS = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;
+        private static final int TRAILERS = 6;
+        private static final int UNTIL_CLOSE = 7;
+        private static final int DONE = 8;
+
+        private final SelectorLoop loop;
+        private final Http.ResponseHead head = new Http.ResponseHead();
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        // netIn and appIn are in "write" mode, netOut in "read" mode. Without
+        // TLS appIn is netIn and netOut is unused.
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private ByteBuffer outbound;
+        private Request current;
+        private boolean connected;
+        private boolean discarded;
+        private boolean responseStarted;
+        private int served;
+        private long lastUsed;
+
+        // Response parser
+        private int state;
+        private byte[] line = new byte[256];
+        private int lineFill;
+        private int lineLength;
+        private byte[] body;
+        private int bodyLength;
+        private long remaining;
+
+        Connection(SelectorLoop loop) {
+            this.loop = loop;
+        }
+
+        void connect(Request first) {
+            prepare(first);
+            first.deadline = System.currentTimeMillis() + connectTimeout;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                key = channel.register(loop.selector, 0, this);
+                connectionsOpened.incrementAndGet();
+                InetSocketAddress to = address;
+                if (to.isUnresolved()) {
+                    resolve();
+                    throw new UnresolvedAddressException();
+                }
+                if (channel.connect(to)) {
+                    onConnected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (UnresolvedAddressException ex) {
+                fail(new UnknownHostException(host));
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void start(Request r) {
+            if (closed) {
+                failed(r, new IOException("Transport closed"));
+                closeChannel();
+                discard();
+                return;
+            }
+            if (discarded || !channel.isOpen()) {
+                // Went away while the request was on its way over
+                dispatch(r);
+                return;
+            }
+            prepare(r);
+            try {
+                pump();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void ready(int ops) {
+            try {
+                if ((ops & SelectionKey.OP_CONNECT) != 0) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    onConnected();
+                    return;
+                }
+                boolean eof = false;
+                if ((ops & SelectionKey.OP_READ) != 0) {
+                    eof = read();
+                }
+                pump();
+                if (eof) {
+                    if (current != null && state == UNTIL_CLOSE) {
+                        finish(false);
+                    } else {
+                        throw new EOFException("Connection closed by server");
+                    }
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void checkTimeout(long now) {
+            if (current != null) {
+                if (now > current.deadline) {
+                    fail(new SocketTimeoutException(connected ? "Read timed out" : "Connect timed out"));
+                }
+            } else if (now - lastUsed > idleTimeout) {
+                boolean isIdle;
+                synchronized (lock) {
+                    isIdle = idle.contains(this);
+                }
+                if (isIdle) {
+                    log.debug("Closing idle connection to {}", host);
+                    closeChannel();
+                    discard();
+                }
+            }
+        }
+
+        /**
+         * Transport is shutting down.
+         */
+        void abort() {
+            closeChannel();
+            if (current != null) {
+                failed(current, new IOException("Transport closed"));
+                current = null;
+            }
+        }
+
+        private void prepare(Request r) {
+            current = r;
+            r.deadline = System.currentTimeMillis() + readTimeout;
+            outbound = ByteBuffer.wrap(r.data);
+            responseStarted = false;
+            state = STATUS;
+            lineFill = 0;
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            current.deadline = System.currentTimeMillis() + readTimeout;
+            if (ssl != null) {
+                engine = ssl.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                SSLParameters params = engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(params);
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut.flip();
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                engine.beginHandshake();
+            } else {
+                netIn = ByteBuffer.allocate(16 * 1024);
+                appIn = netIn;
+            }
+            pump();
+        }
+
+        /**
+         * @return true if the server has closed the connection
+         */
+        private boolean read() throws IOException {
+            int n = channel.read(netIn);
+            if (n > 0 && current != null) {
+                responseStarted = true;
+            }
+            return n < 0;
+        }
+
+        /**
+         * Move as much data as possible in both directions.
+         */
+        private void pump() throws IOException {
+            if (!connected) {
+                return;
+            }
+
+            if (engine == null) {
+                if (outbound != null && outbound.hasRemaining()) {
+                    channel.write(outbound);
+                }
+            } else {
+                boolean progress;
+                do {
+                    switch (engine.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            Runnable task;
+                            while ((task = engine.getDelegatedTask()) != null) {
+                                task.run();
+                            }
+                            progress = true;
+                            break;
+                        case NEED_WRAP:
+                            progress = wrap(EMPTY);
+                            break;
+                        case NEED_UNWRAP:
+                            progress = unwrap();
+                            break;
+                        default:
+                            progress = false;
+                            if (outbound != null && outbound.hasRemaining()) {
+                                progress = wrap(outbound);
+                            }
+                            if (netIn.position() > 0) {
+                                progress |= unwrap();
+                            }
+                            break;
+                    }
+                } while (progress);
+
+                if (netOut.hasRemaining()) {
+                    channel.write(netOut);
+                }
+            }
+
+            consume();
+
+            if (key.isValid()) {
+                boolean writing = engine == null
+                        ? outbound != null && outbound.hasRemaining()
+                        : netOut.hasRemaining() || (outbound != null && outbound.hasRemaining());
+                key.interestOps(writing ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        private boolean wrap(ByteBuffer src) throws IOException {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    int before = netOut.remaining();
+                    channel.write(netOut);
+                    return netOut.remaining() < before;
+                case CLOSED:
+                    throw new EOFException("TLS session closed");
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        private boolean unwrap() throws IOException {
+            if (netIn.position() == 0) {
+                return false;
+            }
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case BUFFER_OVERFLOW:
+                    int before = appIn.position();
+                    consume();
+                    if (appIn.position() == before) {
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    }
+                    return true;
+                case CLOSED:
+                    throw new EOFException("TLS session closed by server");
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        private ByteBuffer grow(ByteBuffer buffer, int min) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, min));
+            buffer.flip();
+            bigger.put(buffer);
+            return bigger;
+        }
+
+        /**
+         * Feed decrypted bytes to the response parser.
+         */
+        private void consume() throws IOException {
+            if (appIn == null || appIn.position() == 0) {
+                return;
+            }
+            if (current == null) {
+                throw new IOException("Unexpected data from server");
+            }
+            appIn.flip();
+            boolean done;
+            try {
+                done = parse(appIn);
+            } finally {
+                appIn.compact();
+            }
+            if (done) {
+                finish(head.keepAlive && appIn.position() == 0);
+            }
+        }
+
+        private boolean parse(ByteBuffer in) throws IOException {
+            while (state != DONE && in.hasRemaining()) {
+                switch (state) {
+                    case STATUS:
+                        if (!readLine(in)) {
+                            return false;
+                        }
+                        head.statusLine(line, lineLength);
+                        state = HEADERS;
+                        break;
+                    case HEADERS:
+                        if (!readLine(in)) {
+                            return false;
+                        }
+                        if (lineLength > 0) {
+                            head.header(line, lineLength);
+                        } else {
+                            endOfHead();
+                        }
+                        break;
+                    case BODY:
+                    case CHUNK_DATA:
+                        copy(in, (int) Math.min(in.remaining(), remaining));
+                        if (remaining == 0) {
+                            state = state == BODY ? DONE : CHUNK_END;
+                        }
+                        break;
+                    case CHUNK_SIZE:
+                        if (!readLine(in)) {
+                            return false;
+                        }
+                        remaining = Http.parseLong(line, 0, lineLength, 16);
+                        state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                        break;
+                    case CHUNK_END:
+                        if (!readLine(in)) {
+                            return false;
+                        }
+                        state = CHUNK_SIZE;
+                        break;
+                    case TRAILERS:
+                        if (!readLine(in)) {
+                            return false;
+                        }
+                        if (lineLength == 0) {
+                            state = DONE;
+                        }
+                        break;
+                    case UNTIL_CLOSE:
+                        copy(in, in.remaining());
+                        break;
+                }
+            }
+            return state == DONE;
+        }
+
+        private void endOfHead() {
+            if (head.isInterim()) {
+                state = STATUS;
+            } else if (head.chunked) {
+                body = new byte[1024];
+                bodyLength = 0;
+                state = CHUNK_SIZE;
+            } else if (head.hasNoBody() || head.contentLength == 0) {
+                body = NO_BODY;
+                bodyLength = 0;
+                state = DONE;
+            } else if (head.contentLength > 0) {
+                body = new byte[(int) head.contentLength];
+                bodyLength = 0;
+                remaining = head.contentLength;
+                state = BODY;
+            } else {
+                // No length, body runs until the server closes the socket
+                head.keepAlive = false;
+                body = new byte[1024];
+                bodyLength = 0;
+                state = UNTIL_CLOSE;
+            }
+        }
+
+        private boolean readLine(ByteBuffer in) {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    lineLength = (lineFill > 0 && line[lineFill - 1] == '\r') ? lineFill - 1 : lineFill;
+                    lineFill = 0;
+                    return true;
+                }
+                if (lineFill == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineFill++] = b;
+            }
+            return false;
+        }
+
+        private void copy(ByteBuffer in, int n) {
+            if (bodyLength + n > body.length) {
+                body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + n));
+            }
+            in.get(body, bodyLength, n);
+            bodyLength += n;
+            remaining -= n;
+        }
+
+        /**
+         * Response complete, hand it over and look for more work.
+         */
+        private void finish(boolean reusable) {
+            Request r = current;
+            current = null;
+            outbound = null;
+            state = STATUS;
+            served += 1;
+            lastUsed = System.currentTimeMillis();
+            byte[] result = bodyLength == body.length ? body : Arrays.copyOf(body, bodyLength);
+            body = null;
+            int status = head.status;
+
+            if (reusable) {
+                final Request next;
+                synchronized (lock) {
+                    next = closed ? null : pending.pollFirst();
+                    if (next == null && !closed) {
+                        idle.addFirst(this);
+                    }
+                }
+                if (closed) {
+                    closeChannel();
+                    discard();
+                } else if (next != null) {
+                    loop.execute(() -> start(next));
+                }
+            } else {
+                closeChannel();
+                discard();
+            }
+
+            if (status >= 400) {
+                failed(r, Http.errorStatus(status, base_url + r.path, new String(result, StandardCharsets.UTF_8).trim()));
+            } else {
+                succeeded(r, result);
+            }
+        }
+
+        private void fail(IOException ex) {
+            closeChannel();
+            Request r = current;
+            current = null;
+            discard();
+
+            if (r != null) {
+                if (served > 0 && !responseStarted && r.retryable && !r.retried && !closed) {
+                    // Reused connection that the server had already given up
+                    // on, so try again (once). Not for a POST, which the
+                    // server may have taken before the socket died
+                    log.debug("Stale connection to {}, retrying: {}", host, ex.getMessage());
+                    r.retried = true;
+                    dispatch(r);
+                } else {
+                    failed(r, ex);
+                }
+            }
+        }
+
+        private void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    log.debug("Problem closing connection: {}", ex.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Forget about this connection, and open a new one if there's work
+         * waiting.
+         */
+        private void discard() {
+            if (discarded) {
+                return;
+            }
+            discarded = true;
+            Request next = null;
+            synchronized (lock) {
+                idle.remove(this);
+                connections -= 1;
+                if (!closed && !pending.isEmpty()) {
+                    next = pending.pollFirst();
+                    connections += 1;
+                }
+            }
+            if (next != null) {
+                loop.open(next);
+            }
+        }
+    }
+}
@@ -0,0 +1,638 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP/1.1 transport that keeps a bounded pool of persistent connections to
+ * the API host.
+ *
+ * Each connection owns its request and response buffers, so once the pool is
+ * warm a call costs one write and (usually) one read on an already open
+ * socket, with no TLS handshake and no per-call buffer allocation.
+ *
+ * At most {@code maxConnections} requests are in flight at once, callers
+ * beyond that block until a connection is released (by closing the response
+ * stream).
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class PooledTransport implements Transport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static final Logger log = LoggerFactory.getLogger(PooledTransport.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private final String base_url;
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final String base_path;
+    private final byte[] headers;
+    private final Semaphore permits;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    public PooledTransport(String base_url, String api_key) {
+        this(base_url, api_key, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Build a transport for the given base url.
+     *
+     * @param base_url String url that request paths are relative to, e.g.
+     * "https://api.stockfighter.io/ob/api" or "http://localhost:8080/ob/api"
+     * @param api_key String api key, sent with every request
+     * @param maxConnections maximum number of connections to hold open
+     */
+    public PooledTransport(String base_url, String api_key, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Need at least one connection");
+        }
+
+        URL url = Http.parseBaseUrl(base_url);
+        this.base_url = base_url;
+        this.secure = Http.isSecure(url);
+        this.host = url.getHost();
+        this.port = Http.port(url);
+        this.base_path = Http.basePath(url);
+        this.headers = Http.headers(url, api_key);
+
+        permits = new Semaphore(maxConnections, true);
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        return execute("GET", path, null, 0, 0);
+    }
+
+    @Override
+    public InputStream post(String path, byte[] body, int offset, int length) throws IOException {
+        return execute("POST", path, body, offset, length);
+    }
+
+    @Override
+    public InputStream delete(String path) throws IOException {
+        return execute("DELETE", path, null, 0, 0);
+    }
+
+    /**
+     * Close all idle connections, and stop accepting new requests.
+     * Connections that are currently in use are closed as they are released.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            Connection c;
+            while ((c = pollIdle()) != null) {
+                c.destroy();
+            }
+        }
+    }
+
+    public String getBaseUrl() {
+        return base_url;
+    }
+
+    /**
+     * @return number of sockets opened over the life of the transport
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return number of requests sent over the life of the transport
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of open connections waiting to be reused
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Set how long a connection can sit in the pool before it is assumed the
+     * server has given up on it.
+     *
+     * @param idleTimeout long timeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    private InputStream execute(String method, String path, byte[] body, int offset, int length) throws IOException {
+        if (closed.get()) {
+            throw new IOException("Transport closed");
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+        }
+
+        // From here on the permit belongs to the connection, and is given back
+        // when the response stream is closed (or straight away if anything
+        // goes wrong).
+        try {
+            requests.incrementAndGet();
+            Connection conn = checkout();
+            try {
+                conn.exchange(method, path, body, offset, length);
+            } catch (IOException ex) {
+                conn.destroy();
+                if (conn.requests > 1 && !conn.responseStarted && !method.equals("POST")) {
+                    // Reused connection that the server had already given up
+                    // on, so try again once on a fresh connection. Only for
+                    // GET and DELETE: the server may have taken a POST
+                    // before the socket died, and posting an order twice is
+                    // worse than failing.
+                    log.debug("Stale connection to {}, retrying: {}", host, ex.getMessage());
+                    conn = open();
+                    try {
+                        conn.exchange(method, path, body, offset, length);
+                    } catch (IOException ex2) {
+                        conn.destroy();
+                        throw ex2;
+                    }
+                } else {
+                    throw ex;
+                }
+            }
+
+            if (conn.head.status >= 400) {
+                String error = conn.body.readError();
+                conn.body.recycle();
+                throw Http.errorStatus(conn.head.status, base_url + path, error);
+            }
+
+            return conn.body;
+        } catch (IOException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    private Connection pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    private Connection checkout() throws IOException {
+        Connection c;
+        while ((c = pollIdle()) != null) {
+            if (System.currentTimeMillis() - c.lastUsed < idleTimeout && !c.socket.isClosed()) {
+                return c;
+            }
+            c.destroy();
+        }
+        return open();
+    }
+
+    private void checkin(Connection c, boolean reusable) {
+        try {
+            if (reusable && !closed.get()) {
+                c.lastUsed = System.currentTimeMillis();
+                synchronized (idle) {
+                    // Most recently used first, so the warmest sockets get
+                    // picked up again and the cold ones age out
+                    idle.addFirst(c);
+                }
+            } else {
+                c.destroy();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+
+            if (secure) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                SSLParameters params = ssl.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(params);
+                ssl.startHandshake();
+                socket = ssl;
+            }
+            socket.setSoTimeout(readTimeout);
+        } catch (IOException ex) {
+            try {
+                socket.close();
+            } catch (IOException ex2) {
+                // ignored, already failing
+            }
+            throw ex;
+        }
+
+        connectionsOpened.incrementAndGet();
+        log.debug("Opened connection to {}:{}", host, port);
+        return new Connection(socket);
+    }
+
+    /**
+     * One persistent socket, plus the buffers used to talk over it.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] rbuf = new byte[READ_BUFFER_SIZE];
+        private final Body body = new Body();
+        private byte[] wbuf = new byte[1024];
+        private byte[] line = new byte[256];
+        private int wpos;
+        private int rpos;
+        private int rlim;
+        private long lastUsed;
+        private int requests;
+        private final Http.ResponseHead head = new Http.ResponseHead();
+        private boolean responseStarted;
+        private boolean untilClose;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        void exchange(String method, String path, byte[] data, int offset, int length) throws IOException {
+            requests += 1;
+            responseStarted = false;
+            rpos = 0;
+            rlim = 0;
+
+            wpos = 0;
+            append(method);
+            append(' ');
+            append(base_path);
+            append(path);
+            append(" HTTP/1.1\r\n");
+            append(headers, 0, headers.length);
+            if (data != null) {
+                append("Content-Type: application/json\r\nContent-Length: ");
+                append(Integer.toString(length));
+                append("\r\n");
+            }
+            append("\r\n");
+            if (data != null) {
+                append(data, offset, length);
+            }
+            out.write(wbuf, 0, wpos);
+            out.flush();
+
+            do {
+                readHead();
+            } while (head.isInterim());
+
+            untilClose = false;
+            if (head.chunked) {
+                body.reset(-1);
+            } else if (head.hasNoBody()) {
+                body.reset(0);
+            } else if (head.contentLength >= 0) {
+                body.reset(head.contentLength);
+            } else {
+                // No length, body runs until the server closes the socket
+                head.keepAlive = false;
+                untilClose = true;
+                body.reset(Long.MAX_VALUE);
+            }
+        }
+
+        private void readHead() throws IOException {
+            int n = readLine();
+            if (n < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            head.statusLine(line, n);
+
+            while ((n = readLine()) > 0) {
+                head.header(line, n);
+            }
+            if (n < 0) {
+                throw new EOFException("Connection closed in response headers");
+            }
+        }
+
+        /**
+         * Read a line into the line buffer, dropping the line ending.
+         *
+         * @return length of the line, or -1 at end of stream
+         */
+        private int readLine() throws IOException {
+            int n = 0;
+            while (true) {
+                if (rpos == rlim && fill() < 0) {
+                    return n == 0 ? -1 : n;
+                }
+                byte b = rbuf[rpos++];
+                if (b == '\n') {
+                    return (n > 0 && line[n - 1] == '\r') ? n - 1 : n;
+                }
+                if (n == line.length) {
+                    byte[] bigger = new byte[line.length * 2];
+                    System.arraycopy(line, 0, bigger, 0, n);
+                    line = bigger;
+                }
+                line[n++] = b;
+            }
+        }
+
+        private int fill() throws IOException {
+            int n = in.read(rbuf, 0, rbuf.length);
+            if (n > 0) {
+                responseStarted = true;
+                rpos = 0;
+                rlim = n;
+            }
+            return n;
+        }
+
+        private void append(String s) {
+            ensureCapacity(s.length());
+            for (int i = 0; i < s.length(); i += 1) {
+                wbuf[wpos++] = (byte) s.charAt(i);
+            }
+        }
+
+        private void append(char c) {
+            ensureCapacity(1);
+            wbuf[wpos++] = (byte) c;
+        }
+
+        private void append(byte[] src, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(src, offset, wbuf, wpos, length);
+            wpos += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (wpos + extra > wbuf.length) {
+                byte[] bigger = new byte[Math.max(wbuf.length * 2, wpos + extra)];
+                System.arraycopy(wbuf, 0, bigger, 0, wpos);
+                wbuf = bigger;
+            }
+        }
+
+        void destroy() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                log.debug("Problem closing connection: {}", ex.getMessage());
+            }
+        }
+
+        /**
+         * Response body. There is one of these per connection, reset for each
+         * response. Closing it hands the connection back to the pool.
+         */
+        private class Body extends InputStream {
+
+            // Bytes left in the body (or current chunk when chunked)
+            private long remaining;
+            private boolean inChunk;
+            private boolean done;
+            private boolean released;
+
+            void reset(long length) {
+                released = false;
+                if (length < 0) {
+                    remaining = 0;
+                    inChunk = false;
+                    done = false;
+                } else {
+                    remaining = length;
+                    done = length == 0;
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!ready()) {
+                    return -1;
+                }
+                remaining -= 1;
+                return rbuf[rpos++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!ready()) {
+                    return -1;
+                }
+                int n = (int) Math.min(Math.min(len, rlim - rpos), remaining);
+                System.arraycopy(rbuf, rpos, b, off, n);
+                rpos += n;
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return done || released ? 0 : (int) Math.min(rlim - rpos, remaining);
+            }
+
+            /**
+             * Make sure there is at least one body byte in the read buffer.
+             *
+             * @return false at the end of the body
+             */
+            private boolean ready() throws IOException {
+                if (released) {
+                    throw new IOException("Stream closed");
+                }
+                while (!done) {
+                    if (remaining == 0) {
+                        if (head.chunked) {
+                            nextChunk();
+                            continue;
+                        }
+                        done = true;
+                        return false;
+                    }
+                    if (rpos < rlim) {
+                        return true;
+                    }
+                    if (fill() < 0) {
+                        if (untilClose) {
+                            done = true;
+                            return false;
+                        }
+                        throw new EOFException("Connection closed in response body");
+                    }
+                }
+                return false;
+            }
+
+            private void nextChunk() throws IOException {
+                if (inChunk) {
+                    // CRLF after the previous chunk's data
+                    readLine();
+                }
+                int n = readLine();
+                if (n < 0) {
+                    throw new EOFException("Connection closed in chunked body");
+                }
+                remaining = Http.parseLong(line, 0, n, 16);
+                inChunk = true;
+                if (remaining == 0) {
+                    // Skip any trailers
+                    while ((n = readLine()) > 0) {
+                        // nothing
+                    }
+                    done = true;
+                }
+            }
+
+            /**
+             * Read an error response body into a String. Error bodies are
+             * small JSON objects, so this is just for the exception message.
+             */
+            String readError() throws IOException {
+                StringBuilder result = new StringBuilder();
+                int b;
+                while (result.length() < 1024 && (b = read()) != -1) {
+                    result.append((char) b);
+                }
+                return result.toString().trim();
+            }
+
+            /**
+             * Give the connection back to the pool without releasing the
+             * permit, used when the caller never sees the stream.
+             */
+            void recycle() {
+                released = true;
+                boolean reusable = drain();
+                if (reusable && !closed.get()) {
+                    lastUsed = System.currentTimeMillis();
+                    synchronized (idle) {
+                        idle.addFirst(Connection.this);
+                    }
+                } else {
+                    destroy();
+                }
+            }
+
+            @Override
+            public void close() {
+                if (released) {
+                    return;
+                }
+                released = true;
+                checkin(Connection.this, drain());
+            }
+
+            /**
+             * Skip whatever is left of the body so the next response starts
+             * in the right place.
+             *
+             * @return true if the connection can be reused
+             */
+            private boolean drain() {
+                if (!head.keepAlive || untilClose) {
+                    return false;
+                }
+                boolean wasReleased = released;
+                released = false;
+                try {
+                    long skipped = 0;
+                    while (ready()) {
+                        int n = (int) Math.min(rlim - rpos, remaining);
+                        rpos += n;
+                        remaining -= n;
+                        skipped += n;
+                        if (skipped > DRAIN_LIMIT) {
+                            return false;
+                        }
+                    }
+                    return rpos == rlim;
+                } catch (IOException ex) {
+                    log.debug("Problem draining response: {}", ex.getMessage());
+                    return false;
+                } finally {
+                    released = wasReleased;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Passes requests to another transport once a {@link RateLimiter} allows
+ * them. Use {@link #wrap} to keep an {@link AsyncTransport} asynchronous.
+ *
+ * <p>
+ * A request counts as finished once the wrapped transport hands back the
+ * response (for a pooled connection, that's once the headers are in).</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class RateLimitedTransport implements Transport {
+
+    private final Transport transport;
+    private final RateLimiter limiter;
+
+    public RateLimitedTransport(Transport transport, RateLimiter limiter) {
+        this.transport = transport;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Wrap a transport, keeping the *Async methods if it has them. The async
+     * calls never block: requests queue in the limiter (see
+     * {@link RateLimiter#acquireAsync}) and are sent when their turn comes.
+     *
+     * @param transport Transport to send requests through
+     * @param limiter RateLimiter, shared with anything else on the same key
+     * @return a RateLimitedTransport, which is also an AsyncTransport if
+     * transport is
+     */
+    public static RateLimitedTransport wrap(Transport transport, RateLimiter limiter) {
+        if (transport instanceof AsyncTransport) {
+            return new Async(transport, limiter);
+        }
+        return new RateLimitedTransport(transport, limiter);
+    }
+
+    public RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        RateLimiter.Endpoint endpoint = RateLimiter.Endpoint.of(path);
+        long start = acquire(endpoint);
+        try {
+            InputStream in = transport.get(path);
+            limiter.release(endpoint, start, null);
+            return in;
+        } catch (IOException | RuntimeException ex) {
+            limiter.release(endpoint, start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public InputStream post(String path, byte[] body, int offset, int length) throws IOException {
+        RateLimiter.Endpoint endpoint = RateLimiter.Endpoint.of(path);
+        long start = acquire(endpoint);
+        try {
+            InputStream in = transport.post(path, body, offset, length);
+            limiter.release(endpoint, start, null);
+            return in;
+        } catch (IOException | RuntimeException ex) {
+            limiter.release(endpoint, start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public InputStream delete(String path) throws IOException {
+        RateLimiter.Endpoint endpoint = RateLimiter.Endpoint.of(path);
+        long start = acquire(endpoint);
+        try {
+            InputStream in = transport.delete(path);
+            limiter.release(endpoint, start, null);
+            return in;
+        } catch (IOException | RuntimeException ex) {
+            limiter.release(endpoint, start, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    private long acquire(RateLimiter.Endpoint endpoint) throws InterruptedIOException {
+        try {
+            return limiter.acquire(endpoint);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the rate limiter");
+        }
+    }
+
+    private static final class Async extends RateLimitedTransport implements AsyncTransport {
+
+        private final AsyncTransport async;
+
+        Async(Transport transport, RateLimiter limiter) {
+            super(transport, limiter);
+            this.async = (AsyncTransport) transport;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getAsync(String path) {
+            RateLimiter.Endpoint endpoint = RateLimiter.Endpoint.of(path);
+            return send(endpoint, getLimiter().acquireAsync(endpoint), () -> async.getAsync(path));
+        }
+
+        @Override
+        public CompletableFuture<byte[]> postAsync(String path, byte[] body, int offset, int length) {
+            RateLimiter.Endpoint endpoint = RateLimiter.Endpoint.of(path);
+            CompletableFuture<Long> turn = getLimiter().acquireAsync(endpoint);
+            if (turn.isDone()) {
+                return send(endpoint, turn, () -> async.postAsync(path, body, offset, length));
+            }
+            // The caller can reuse body as soon as we return
+            byte[] copy = Arrays.copyOfRange(body, offset, offset + length);
+            return send(endpoint, turn, () -> async.postAsync(path, copy, 0, length));
+        }
+
+        @Override
+        public CompletableFuture<byte[]> deleteAsync(String path) {
+            RateLimiter.Endpoint endpoint = RateLimiter.Endpoint.of(path);
+            return send(endpoint, getLimiter().acquireAsync(endpoint), () -> async.deleteAsync(path));
+        }
+
+        /**
+         * Send once it's our turn, and tell the limiter the request has
+         * finished before anyone waiting on the result hears about it.
+         */
+        private CompletableFuture<byte[]> send(final RateLimiter.Endpoint endpoint, final CompletableFuture<Long> turn,
+                final Supplier<CompletableFuture<byte[]>> request) {
+            final CompletableFuture<byte[]> result = new CompletableFuture<>();
+            // Cancelling the result while it's still waiting gives up the turn
+            result.whenComplete((raw, ex) -> turn.cancel(false));
+            turn.thenAccept(start -> {
+                CompletableFuture<byte[]> sent;
+                try {
+                    sent = request.get();
+                } catch (RuntimeException ex) {
+                    getLimiter().release(endpoint, start, ex);
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                sent.whenComplete((raw, ex) -> {
+                    Throwable cause = ex == null ? null : unwrap(ex);
+                    getLimiter().release(endpoint, start, cause);
+                    if (cause == null) {
+                        result.complete(raw);
+                    } else {
+                        result.completeExceptionally(cause);
+                    }
+                });
+            });
+            return result;
+        }
+
+        private static Throwable unwrap(Throwable ex) {
+            return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        }
+    }
+}
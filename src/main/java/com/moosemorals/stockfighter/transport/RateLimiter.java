@@ -0,0 +1,676 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps requests to the API within a budget, so we slow ourselves down before
+ * the exchange does it for us.
+ *
+ * <p>
+ * Requests are sorted into {@link Endpoint} classes, and each class has its
+ * own {@link Lane} with two limits. A token bucket caps the request rate
+ * (with a burst allowance). An adaptive limit caps how many requests are in
+ * flight at once: it creeps up by one for each round of quick, successful
+ * answers while it's full, and halves when an answer is slower than the latency target, or
+ * the server says it's overloaded, or the request fails outright (additive
+ * increase, multiplicative decrease).</p>
+ *
+ * <p>
+ * Requests can wait on the calling thread ({@link #acquire}) or without
+ * blocking ({@link #acquireAsync}). Either way they queue in the lane, first
+ * come first served, and are let go as requests finish and tokens come
+ * due.</p>
+ *
+ * <p>
+ * Share one limiter between everything using an API key, by wrapping each
+ * transport in a {@link RateLimitedTransport}. Every decision is counted, see
+ * the getters on {@link Lane}.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class RateLimiter {
+
+    /**
+     * Kinds of request, limited separately.
+     */
+    public enum Endpoint {
+        /**
+         * Posting, cancelling and asking about orders (including account
+         * order listings).
+         */
+        ORDERS,
+        QUOTES,
+        /**
+         * Fetching an order book.
+         */
+        BOOK,
+        /**
+         * Everything else (heartbeats, stock lists).
+         */
+        OTHER;
+
+        /**
+         * Work out which kind of request a path is, without allocating.
+         *
+         * @param path String path, relative to the base url
+         * @return Endpoint
+         */
+        public static Endpoint of(String path) {
+            if (path.contains("/orders")) {
+                return ORDERS;
+            } else if (path.endsWith("/quote")) {
+                return QUOTES;
+            } else if (path.startsWith("/venues/") && path.indexOf("/stocks/") > 0) {
+                // /venues/X/stocks/Y
+                return BOOK;
+            } else {
+                return OTHER;
+            }
+        }
+    }
+
+    /**
+     * Default most requests in flight at once for each endpoint, to start
+     * with.
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_MAX_CONCURRENCY = 64;
+    public static final long DEFAULT_LATENCY_TARGET_MILLIS = 500;
+
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+
+    // Wakes waiters when the next token is due, for every limiter
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RateLimiter-Timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Map<Endpoint, Lane> lanes;
+
+    private RateLimiter(Map<Endpoint, Lane> lanes) {
+        this.lanes = lanes;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Wait until a request to the endpoint is allowed.
+     *
+     * @param endpoint Endpoint the request is for
+     * @return start time to hand back to {@link #release}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long acquire(Endpoint endpoint) throws InterruptedException {
+        return lanes.get(endpoint).acquire();
+    }
+
+    /**
+     * Wait until a request to the endpoint is allowed, without blocking.
+     * The future completes on whichever thread makes room (a request
+     * finishing, or the limiter's timer), so what's chained on it shouldn't
+     * block either. Cancel it to stop waiting.
+     *
+     * @param endpoint Endpoint the request is for
+     * @return CompletableFuture of the start time to hand back to
+     * {@link #release}
+     */
+    public CompletableFuture<Long> acquireAsync(Endpoint endpoint) {
+        return lanes.get(endpoint).acquireAsync();
+    }
+
+    /**
+     * Say a request has finished.
+     *
+     * @param endpoint Endpoint the request was for
+     * @param startNanos value returned by {@link #acquire}
+     * @param error why the request failed, or null if it worked
+     */
+    public void release(Endpoint endpoint, long startNanos, Throwable error) {
+        lanes.get(endpoint).release(startNanos, error);
+    }
+
+    /**
+     * @param endpoint Endpoint
+     * @return the limits and counts for the endpoint
+     */
+    public Lane getLane(Endpoint endpoint) {
+        return lanes.get(endpoint);
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{" + lanes.values() + '}';
+    }
+
+    /**
+     * Limits for one endpoint, and counts of what they've done.
+     */
+    public static final class Lane {
+
+        private final Endpoint endpoint;
+        private final double rate;
+        private final int burst;
+        private final int minLimit;
+        private final int maxLimit;
+        private final long latencyTargetNanos;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // Guarded by lock
+        private double tokens;
+        private long refilledAt;
+        private double limit;
+        private int inFlight = 0;
+        private boolean decreased = false;
+        private long lastDecreaseNanos;
+        // Requests waiting for a turn, oldest first
+        private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+        private boolean wakeScheduled = false;
+
+        private long acquired = 0;
+        private long rateWaits = 0;
+        private long rateWaitNanos = 0;
+        private long concurrencyWaits = 0;
+        private long concurrencyWaitNanos = 0;
+        private long completed = 0;
+        private long errors = 0;
+        private long slow = 0;
+        private long decreases = 0;
+        private long totalLatencyNanos = 0;
+        private long maxLatencyNanos = 0;
+
+        Lane(Endpoint endpoint, double rate, int burst, int initialLimit, int minLimit, int maxLimit, long latencyTargetNanos) {
+            this.endpoint = endpoint;
+            this.rate = rate;
+            this.burst = burst;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.latencyTargetNanos = latencyTargetNanos;
+            this.tokens = burst;
+            this.limit = initialLimit;
+            this.refilledAt = System.nanoTime();
+        }
+
+        long acquire() throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            // Queue with the async waiters, so neither kind can starve the
+            // other
+            CompletableFuture<Long> turn = acquireAsync();
+            try {
+                return turn.get();
+            } catch (InterruptedException ex) {
+                if (!turn.cancel(false)) {
+                    // Got a turn just as we gave up
+                    giveBack();
+                }
+                throw ex;
+            } catch (ExecutionException ex) {
+                // Only ever completed with a start time
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+
+        void release(long startNanos, Throwable error) {
+            long now = System.nanoTime();
+            long latency = now - startNanos;
+            boolean overloaded = error != null
+                    && (!(error instanceof HttpStatusException) || ((HttpStatusException) error).isOverloaded());
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                // Only a limit that's holding requests back is worth raising
+                boolean full = inFlight >= (int) limit;
+                inFlight -= 1;
+                completed += 1;
+                totalLatencyNanos += latency;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                if (overloaded) {
+                    errors += 1;
+                }
+                boolean tooSlow = latency > latencyTargetNanos;
+                if (tooSlow) {
+                    slow += 1;
+                }
+                if (overloaded || tooSlow) {
+                    // Only once for all the requests that were already in
+                    // flight when things went bad
+                    if (!decreased || startNanos - lastDecreaseNanos > 0) {
+                        double was = limit;
+                        limit = Math.max(minLimit, limit / 2);
+                        decreased = true;
+                        lastDecreaseNanos = now;
+                        decreases += 1;
+                        log.debug("{}: {} requests in flight allowed (was {})", endpoint, (int) limit, (int) was);
+                    }
+                } else if (full) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                ready = dispatch();
+            } finally {
+                lock.unlock();
+            }
+            go(ready);
+        }
+
+        CompletableFuture<Long> acquireAsync() {
+            Waiter w = new Waiter();
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                waiting.add(w);
+                ready = dispatch();
+            } finally {
+                lock.unlock();
+            }
+            go(ready);
+            return w.result;
+        }
+
+        /**
+         * Let waiters through, oldest first, for as long as both
+         * limits allow. If it's the rate holding them up, set the timer for
+         * when the next token is due. Called with lock held; the waiters
+         * are told once it's been let go.
+         *
+         * @return waiters whose turn it is, or null
+         */
+        private List<Waiter> dispatch() {
+            List<Waiter> ready = null;
+            long now = System.nanoTime();
+            if (rate > 0) {
+                refill(now);
+            }
+            Waiter w;
+            while ((w = waiting.peek()) != null) {
+                if (w.result.isDone()) {
+                    // Given up waiting
+                    waiting.poll();
+                    continue;
+                }
+                boolean noToken = rate > 0 && tokens < 1;
+                boolean full = inFlight >= (int) limit;
+                if (noToken || full) {
+                    if (w.blockedBy == Waiter.NOT_BLOCKED) {
+                        w.blockedBy = full ? Waiter.CONCURRENCY : Waiter.RATE;
+                        if (full) {
+                            concurrencyWaits += 1;
+                        } else {
+                            rateWaits += 1;
+                        }
+                    }
+                    if (!full && !wakeScheduled) {
+                        wakeScheduled = true;
+                        long needed = (long) Math.ceil((1 - tokens) / rate * 1e9);
+                        timer.schedule(this::wake, needed, TimeUnit.NANOSECONDS);
+                    }
+                    break;
+                }
+                waiting.poll();
+                if (rate > 0) {
+                    tokens -= 1;
+                }
+                if (w.blockedBy == Waiter.RATE) {
+                    rateWaitNanos += now - w.since;
+                } else if (w.blockedBy == Waiter.CONCURRENCY) {
+                    concurrencyWaitNanos += now - w.since;
+                }
+                inFlight += 1;
+                acquired += 1;
+                w.start = now;
+                if (ready == null) {
+                    ready = new ArrayList<>();
+                }
+                ready.add(w);
+            }
+            return ready;
+        }
+
+        private void wake() {
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                wakeScheduled = false;
+                ready = dispatch();
+            } finally {
+                lock.unlock();
+            }
+            go(ready);
+        }
+
+        /**
+         * Tell waiters it's their turn. One that gave up at the last moment
+         * hands its turn back.
+         */
+        private void go(List<Waiter> ready) {
+            if (ready == null) {
+                return;
+            }
+            for (Waiter w : ready) {
+                if (!w.result.complete(w.start)) {
+                    giveBack();
+                }
+            }
+        }
+
+        /**
+         * Hand back a turn that won't be used after all, token and all, and
+         * let the next waiter have it.
+         */
+        private void giveBack() {
+            List<Waiter> next;
+            lock.lock();
+            try {
+                inFlight -= 1;
+                acquired -= 1;
+                if (rate > 0) {
+                    tokens = Math.min(burst, tokens + 1);
+                }
+                next = dispatch();
+            } finally {
+                lock.unlock();
+            }
+            go(next);
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+        }
+
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return requests allowed per second, or 0 for no limit
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        /**
+         * @return most requests allowed in flight right now
+         */
+        public int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return async requests waiting for a turn
+         */
+        public int getWaitingCount() {
+            lock.lock();
+            try {
+                return waiting.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getAcquiredCount() {
+            lock.lock();
+            try {
+                return acquired;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of requests that had to wait for the rate limit
+         */
+        public long getRateWaitCount() {
+            lock.lock();
+            try {
+                return rateWaits;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getRateWaitNanos() {
+            lock.lock();
+            try {
+                return rateWaitNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of requests that had to wait for the concurrency
+         * limit
+         */
+        public long getConcurrencyWaitCount() {
+            lock.lock();
+            try {
+                return concurrencyWaits;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getConcurrencyWaitNanos() {
+            lock.lock();
+            try {
+                return concurrencyWaitNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of requests that failed, or that the server said it
+         * was too busy for
+         */
+        public long getErrorCount() {
+            lock.lock();
+            try {
+                return errors;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of answers slower than the latency target
+         */
+        public long getSlowCount() {
+            lock.lock();
+            try {
+                return slow;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of times the concurrency limit was cut
+         */
+        public long getDecreaseCount() {
+            lock.lock();
+            try {
+                return decreases;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getAverageLatencyNanos() {
+            lock.lock();
+            try {
+                return completed == 0 ? 0 : totalLatencyNanos / completed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getMaxLatencyNanos() {
+            lock.lock();
+            try {
+                return maxLatencyNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            lock.lock();
+            try {
+                return "Lane{" + "endpoint=" + endpoint + ", limit=" + (int) limit + ", inFlight=" + inFlight
+                        + ", acquired=" + acquired + ", rateWaits=" + rateWaits + ", concurrencyWaits=" + concurrencyWaits
+                        + ", errors=" + errors + ", slow=" + slow + ", decreases=" + decreases + '}';
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * An async request waiting for its turn.
+     */
+    private static final class Waiter {
+
+        static final int NOT_BLOCKED = 0;
+        static final int RATE = 1;
+        static final int CONCURRENCY = 2;
+
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        final long since = System.nanoTime();
+        int blockedBy = NOT_BLOCKED;
+        long start;
+    }
+
+    /**
+     * Sets up the limits for each endpoint. Anything not set uses the
+     * defaults: no rate limit, {@link #DEFAULT_CONCURRENCY} in flight
+     * (between 1 and {@link #DEFAULT_MAX_CONCURRENCY}), and a latency target
+     * of {@link #DEFAULT_LATENCY_TARGET_MILLIS}ms.
+     */
+    public static final class Builder {
+
+        private final Map<Endpoint, double[]> rates = new EnumMap<>(Endpoint.class);
+        private final Map<Endpoint, int[]> concurrency = new EnumMap<>(Endpoint.class);
+        private final Map<Endpoint, Long> targets = new EnumMap<>(Endpoint.class);
+
+        private Builder() {
+        }
+
+        /**
+         * @param endpoint Endpoint to limit
+         * @param perSecond requests allowed per second, on average
+         * @param burst requests allowed at once after a quiet spell
+         * @return this
+         */
+        public Builder rate(Endpoint endpoint, double perSecond, int burst) {
+            if (perSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Rate must be positive, and burst at least one");
+            }
+            rates.put(endpoint, new double[]{perSecond, burst});
+            return this;
+        }
+
+        /**
+         * @param endpoint Endpoint to limit
+         * @param initial requests allowed in flight to start with
+         * @param min fewest the limit backs off to
+         * @param max most the limit grows to
+         * @return this
+         */
+        public Builder concurrency(Endpoint endpoint, int initial, int min, int max) {
+            if (min < 1 || initial < min || max < initial) {
+                throw new IllegalArgumentException("Need 1 <= min <= initial <= max");
+            }
+            concurrency.put(endpoint, new int[]{initial, min, max});
+            return this;
+        }
+
+        /**
+         * @param endpoint Endpoint to limit
+         * @param time answers slower than this cut the concurrency limit
+         * @param unit unit of time
+         * @return this
+         */
+        public Builder latencyTarget(Endpoint endpoint, long time, TimeUnit unit) {
+            if (time <= 0) {
+                throw new IllegalArgumentException("Latency target must be positive");
+            }
+            targets.put(endpoint, unit.toNanos(time));
+            return this;
+        }
+
+        public RateLimiter build() {
+            Map<Endpoint, Lane> lanes = new EnumMap<>(Endpoint.class);
+            for (Endpoint e : Endpoint.values()) {
+                double[] r = rates.getOrDefault(e, new double[]{0, 1});
+                int[] c = concurrency.getOrDefault(e, new int[]{DEFAULT_CONCURRENCY, 1, DEFAULT_MAX_CONCURRENCY});
+                long target = targets.getOrDefault(e, TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_TARGET_MILLIS));
+                lanes.put(e, new Lane(e, r[0], (int) r[1], c[0], c[1], c[2], target));
+            }
+            return new RateLimiter(lanes);
+        }
+    }
+}
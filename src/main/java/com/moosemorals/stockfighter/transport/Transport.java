@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Moves requests to the REST API and hands back the response body.
+ *
+ * Paths are relative to the base url the transport was built with (e.g.
+ * "/venues/TESTEX/heartbeat"). The returned stream must be closed once it's
+ * been read, which lets pooling implementations recycle the connection.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Send a GET request.
+     *
+     * @param path String path, relative to the base url
+     * @return InputStream of the response body
+     * @throws IOException on network problems, or if the server returns an
+     * error code
+     */
+    InputStream get(String path) throws IOException;
+
+    /**
+     * Send a POST request with the given body. The body has been sent (or
+     * copied) by the time this returns, so the array can be reused.
+     *
+     * @param path String path, relative to the base url
+     * @param body byte array holding the (JSON) request body
+     * @param offset start of the body in the array
+     * @param length number of bytes to send
+     * @return InputStream of the response body
+     * @throws IOException on network problems, or if the server returns an
+     * error code
+     */
+    InputStream post(String path, byte[] body, int offset, int length) throws IOException;
+
+    /**
+     * Send a DELETE request.
+     *
+     * @param path String path, relative to the base url
+     * @return InputStream of the response body
+     * @throws IOException on network problems, or if the server returns an
+     * error code
+     */
+    InputStream delete(String path) throws IOException;
+
+    /**
+     * Release any resources (sockets, threads) held by the transport.
+     *
+     * @throws IOException on network problems
+     */
+    @Override
+    void close() throws IOException;
+}
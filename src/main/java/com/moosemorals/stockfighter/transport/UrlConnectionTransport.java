@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Transport that opens a fresh {@link HttpURLConnection} for every call.
+ *
+ * This is how Trader used to talk to the API, and is kept around as a
+ * fallback and as a baseline for benchmarking {@link PooledTransport}.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class UrlConnectionTransport implements Transport {
+
+    private final String base_url;
+    private final String api_key;
+
+    public UrlConnectionTransport(String base_url, String api_key) {
+        this.base_url = base_url;
+        this.api_key = api_key;
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        HttpURLConnection conn = open(path);
+        conn.connect();
+        return conn.getInputStream();
+    }
+
+    @Override
+    public InputStream post(String path, byte[] body, int offset, int length) throws IOException {
+        HttpURLConnection conn = open(path);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body, offset, length);
+        }
+
+        return conn.getInputStream();
+    }
+
+    @Override
+    public InputStream delete(String path) throws IOException {
+        HttpURLConnection conn = open(path);
+        conn.setRequestMethod("DELETE");
+        conn.connect();
+        return conn.getInputStream();
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do, connections are handled by the JDK.
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        URL url;
+        try {
+            url = new URL(base_url + path);
+        } catch (MalformedURLException ex) {
+            throw new IOException("Can't build URL:" + ex.getMessage(), ex);
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("X-Starfighter-Authorization", api_key);
+        return conn;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Gives venue, symbol and account names small, dense int ids, so callers can
+ * keep per-name state in arrays instead of maps.
+ *
+ * <p>
+ * There's one dictionary for each kind of name, shared by everything in the
+ * process. Ids start at zero and are never reused or forgotten, which is fine
+ * for the handful of names a game uses. Lookups don't lock or allocate once a
+ * name has been seen; adding a new name takes a lock.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class Dictionary {
+
+    /**
+     * Id of a name that wasn't set.
+     */
+    public static final int NONE = -1;
+
+    public static final Dictionary SYMBOLS = new Dictionary();
+    public static final Dictionary VENUES = new Dictionary();
+    public static final Dictionary ACCOUNTS = new Dictionary();
+
+    private final Object lock = new Object();
+
+    // Open addressing, always at most half full
+    private volatile Entry[] slots = new Entry[64];
+    private volatile Entry[] byId = new Entry[32];
+    private int size = 0;
+
+    Dictionary() {
+    }
+
+    /**
+     * Look up (or assign) the id for a name.
+     *
+     * @param name
+     * @return id, or {@link #NONE} if name is null
+     */
+    public int id(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        int hash = 0;
+        for (int i = 0; i < name.length(); i += 1) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+                return id(utf8, 0, utf8.length);
+            }
+            hash = 31 * hash + c;
+        }
+        Entry[] table = slots;
+        int mask = table.length - 1;
+        for (int i = mix(hash) & mask;; i = (i + 1) & mask) {
+            Entry e = table[i];
+            if (e == null) {
+                break;
+            } else if (e.hash == hash && e.name.equals(name)) {
+                return e.id;
+            }
+        }
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return add(utf8, 0, utf8.length, hash);
+    }
+
+    /**
+     * Look up (or assign) the id for a UTF-8 encoded name.
+     *
+     * @param buf
+     * @param offset
+     * @param length
+     * @return id
+     */
+    public int id(byte[] buf, int offset, int length) {
+        int hash = hash(buf, offset, length);
+        Entry[] table = slots;
+        int mask = table.length - 1;
+        for (int i = mix(hash) & mask;; i = (i + 1) & mask) {
+            Entry e = table[i];
+            if (e == null) {
+                break;
+            } else if (e.hash == hash && e.matches(buf, offset, length)) {
+                return e.id;
+            }
+        }
+        return add(buf, offset, length, hash);
+    }
+
+    /**
+     * Get the name for an id. Every call for the same id returns the same
+     * String.
+     *
+     * @param id
+     * @return name, or null for {@link #NONE}
+     */
+    public String name(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        Entry[] entries = byId;
+        if (id < 0 || id >= entries.length || entries[id] == null) {
+            throw new IllegalArgumentException("Unknown id " + id);
+        }
+        return entries[id].name;
+    }
+
+    /**
+     * @return number of names seen so far, and so one more than the largest id
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    private int add(byte[] buf, int offset, int length, int hash) {
+        synchronized (lock) {
+            Entry[] table = slots;
+            int mask = table.length - 1;
+            int i = mix(hash) & mask;
+            for (;; i = (i + 1) & mask) {
+                Entry e = table[i];
+                if (e == null) {
+                    break;
+                } else if (e.hash == hash && e.matches(buf, offset, length)) {
+                    // Someone else got there first
+                    return e.id;
+                }
+            }
+
+            Entry added = new Entry(size, hash, Arrays.copyOfRange(buf, offset, offset + length));
+            size += 1;
+
+            Entry[] entries = byId;
+            if (added.id >= entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[added.id] = added;
+            byId = entries;
+
+            if (size * 2 > table.length) {
+                table = rehash(table, table.length * 2);
+                mask = table.length - 1;
+                i = mix(hash) & mask;
+                while (table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+            }
+            table[i] = added;
+            slots = table;
+            return added.id;
+        }
+    }
+
+    private static Entry[] rehash(Entry[] old, int capacity) {
+        Entry[] table = new Entry[capacity];
+        int mask = capacity - 1;
+        for (Entry e : old) {
+            if (e != null) {
+                int i = mix(e.hash) & mask;
+                while (table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = e;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Same as String.hashCode for ascii names.
+     */
+    private static int hash(byte[] buf, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i += 1) {
+            hash = 31 * hash + buf[i];
+        }
+        return hash;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Entry {
+
+        final int id;
+        final int hash;
+        final byte[] utf8;
+        final String name;
+
+        Entry(int id, int hash, byte[] utf8) {
+            this.id = id;
+            this.hash = hash;
+            this.utf8 = utf8;
+            this.name = new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        boolean matches(byte[] buf, int offset, int length) {
+            if (utf8.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i += 1) {
+                if (utf8[i] != buf[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
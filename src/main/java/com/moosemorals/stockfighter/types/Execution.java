@@ -25,8 +25,6 @@ package com.moosemorals.stockfighter.types;
 
 import javax.json.stream.JsonParser;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,22 +34,31 @@ import org.slf4j.LoggerFactory;
  */
 public class Execution {
 
-    private static final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
     private final Logger log = LoggerFactory.getLogger(Execution.class);
 
-    private boolean ok;
-    private String errorStr;
-    private String account;
-    private String venue;
-    private String symbol;
-    private OrderStatus order;
-    private int standingId;
-    private int incomingId;
-    private int price;
-    private int filled;
-    private DateTime filledAt;
-    private boolean standingComplete;
-    private boolean incommingComplete;
+    boolean ok;
+    String errorStr;
+    String account;
+    int accountId = Dictionary.NONE;
+    String venue;
+    int venueId = Dictionary.NONE;
+    String symbol;
+    int symbolId = Dictionary.NONE;
+    OrderStatus order;
+    int standingId;
+    int incomingId;
+    int price;
+    int filled;
+    long filledAt = TimestampCodec.NONE;
+    boolean standingComplete;
+    boolean incommingComplete;
+    boolean synthetic;
+
+    /**
+     * An empty execution, for a {@link MessageDecoder} to fill in.
+     */
+    public Execution() {
+    }
 
     public Execution(JsonParser parser) {
         while (parser.hasNext()) {
@@ -68,13 +75,16 @@ public class Execution {
                             errorStr = parser.getString();
                             break;
                         case "symbol":
-                            symbol = parser.getString();
+                            symbolId = Dictionary.SYMBOLS.id(parser.getString());
+                            symbol = Dictionary.SYMBOLS.name(symbolId);
                             break;
                         case "venue":
-                            venue = parser.getString();
+                            venueId = Dictionary.VENUES.id(parser.getString());
+                            venue = Dictionary.VENUES.name(venueId);
                             break;
                         case "account":
-                            account = parser.getString();
+                            accountId = Dictionary.ACCOUNTS.id(parser.getString());
+                            account = Dictionary.ACCOUNTS.name(accountId);
                             break;
                         case "order":
                             order = new OrderStatus(parser);
@@ -92,7 +102,7 @@ public class Execution {
                             filled = parser.getInt();
                             break;
                         case "filledAt":
-                            filledAt = dateParser.parseDateTime(parser.getString());
+                            filledAt = TimestampCodec.parse(parser.getString());
                             break;
                         case "standingComplete":
                             standingComplete = next == JsonParser.Event.VALUE_TRUE;
@@ -111,9 +121,94 @@ public class Execution {
         }
     }
 
+    /**
+     * Clear everything except the order, which is kept for the decoder to
+     * reuse.
+     */
+    void reset() {
+        ok = false;
+        errorStr = null;
+        account = null;
+        accountId = Dictionary.NONE;
+        venue = null;
+        venueId = Dictionary.NONE;
+        symbol = null;
+        symbolId = Dictionary.NONE;
+        standingId = 0;
+        incomingId = 0;
+        price = 0;
+        filled = 0;
+        filledAt = TimestampCodec.NONE;
+        standingComplete = false;
+        incommingComplete = false;
+        synthetic = false;
+    }
+
+    /**
+     * Copy this execution (and its order), for listeners that need to keep a
+     * reused one.
+     *
+     * @return a new Execution with the same values
+     */
+    public Execution copy() {
+        Execution e = new Execution();
+        e.ok = ok;
+        e.errorStr = errorStr;
+        e.account = account;
+        e.accountId = accountId;
+        e.venue = venue;
+        e.venueId = venueId;
+        e.symbol = symbol;
+        e.symbolId = symbolId;
+        e.order = order == null ? null : order.copy();
+        e.standingId = standingId;
+        e.incomingId = incomingId;
+        e.price = price;
+        e.filled = filled;
+        e.filledAt = filledAt;
+        e.standingComplete = standingComplete;
+        e.incommingComplete = incommingComplete;
+        e.synthetic = synthetic;
+        return e;
+    }
+
+    /**
+     * Make up an execution for one fill of an order, for catching up on fills
+     * missed while a ticker was disconnected. The API doesn't say who the
+     * other side was, so the standing and incoming ids are 0.
+     *
+     * @param order order that was filled
+     * @param index which of its fills
+     * @return a synthetic execution
+     */
+    public static Execution fromFill(OrderStatus order, int index) {
+        Execution e = new Execution();
+        e.ok = true;
+        e.account = order.account;
+        e.accountId = order.accountId;
+        e.venue = order.venue;
+        e.venueId = order.venueId;
+        e.symbol = order.symbol;
+        e.symbolId = order.symbolId;
+        e.order = order;
+        e.price = order.getFillPrice(index);
+        e.filled = order.getFillQuantity(index);
+        e.filledAt = order.getFillTsNanos(index);
+        e.synthetic = true;
+        return e;
+    }
+
     @Override
     public String toString() {
-        return "Execution{" + "ok=" + ok + ", errorStr=" + errorStr + ", account=" + account + ", venue=" + venue + ", symbol=" + symbol + ", order=" + order + ", standingId=" + standingId + ", incomingId=" + incomingId + ", price=" + price + ", filled=" + filled + ", filledAt=" + filledAt + ", standingComplete=" + standingComplete + ", incommingComplete=" + incommingComplete + '}';
+        return "Execution{" + "ok=" + ok + ", errorStr=" + errorStr + ", account=" + account + ", venue=" + venue + ", symbol=" + symbol + ", order=" + order + ", standingId=" + standingId + ", incomingId=" + incomingId + ", price=" + price + ", filled=" + filled + ", filledAt=" + getFilledAt() + ", standingComplete=" + standingComplete + ", incommingComplete=" + incommingComplete + '}';
+    }
+
+    /**
+     * @return true if this was made up from an order's fills (see
+     * {@link #fromFill(OrderStatus, int)}) rather than sent by the API
+     */
+    public boolean isSynthetic() {
+        return synthetic;
     }
 
     public boolean isOk() {
@@ -128,14 +223,35 @@ public class Execution {
         return account;
     }
 
+    /**
+     * @return id of the account in {@link Dictionary#ACCOUNTS}
+     */
+    public int getAccountId() {
+        return accountId;
+    }
+
     public String getVenue() {
         return venue;
     }
 
+    /**
+     * @return id of the venue in {@link Dictionary#VENUES}
+     */
+    public int getVenueId() {
+        return venueId;
+    }
+
     public String getSymbol() {
         return symbol;
     }
 
+    /**
+     * @return id of the symbol in {@link Dictionary#SYMBOLS}
+     */
+    public int getSymbolId() {
+        return symbolId;
+    }
+
     public OrderStatus getOrder() {
         return order;
     }
@@ -157,6 +273,14 @@ public class Execution {
     }
 
     public DateTime getFilledAt() {
+        return TimestampCodec.toDateTime(filledAt);
+    }
+
+    /**
+     * @return filledAt as nanoseconds since the epoch, or
+     * {@link TimestampCodec#NONE} if it wasn't sent
+     */
+    public long getFilledAtNanos() {
         return filledAt;
     }
 
@@ -25,8 +25,6 @@ package com.moosemorals.stockfighter.types;
 
 import javax.json.stream.JsonParser;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,13 +34,17 @@ import org.slf4j.LoggerFactory;
  */
 public class Fill {
 
-    private static final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
-
     private final Logger log = LoggerFactory.getLogger(Fill.class);
 
-    private int price;
-    private int quantity;
-    private DateTime ts;
+    int price;
+    int quantity;
+    long ts = TimestampCodec.NONE;
+
+    Fill(int price, int quantity, long ts) {
+        this.price = price;
+        this.quantity = quantity;
+        this.ts = ts;
+    }
 
     public Fill(JsonParser parser) {
         while (parser.hasNext()) {
@@ -59,7 +61,7 @@ public class Fill {
                             quantity = parser.getInt();
                             break;
                         case "ts":
-                            ts = dateParser.parseDateTime(parser.getString());
+                            ts = TimestampCodec.parse(parser.getString());
                             break;
                         default:
                             log.warn("Ignoring unexpected entry in fill [{}]", key);
@@ -72,9 +74,13 @@ public class Fill {
         }
     }
 
+    public Fill copy() {
+        return new Fill(price, quantity, ts);
+    }
+
     @Override
     public String toString() {
-        return "Fill{" + "price=" + price + ", quantity=" + quantity + ", ts=" + ts + '}';
+        return "Fill{" + "price=" + price + ", quantity=" + quantity + ", ts=" + getTs() + '}';
     }
 
     public int getPrice() {
@@ -86,6 +92,14 @@ public class Fill {
     }
 
     public DateTime getTs() {
+        return TimestampCodec.toDateTime(ts);
+    }
+
+    /**
+     * @return ts as nanoseconds since the epoch, or
+     * {@link TimestampCodec#NONE} if it wasn't sent
+     */
+    public long getTsNanos() {
         return ts;
     }
 
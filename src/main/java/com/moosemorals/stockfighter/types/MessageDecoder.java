@@ -0,0 +1,875 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.json.JsonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes websocket messages straight from UTF-8 bytes into {@link Quote} and
+ * {@link Execution} objects.
+ *
+ * <p>
+ * Produces the same objects as the {@link Quote#Quote(javax.json.stream.JsonParser)}
+ * and {@link Execution#Execution(javax.json.stream.JsonParser)} constructors
+ * without going through a JsonParser. Keys are matched against the raw bytes,
+ * numbers are parsed in place, and venue, symbol and account names are looked
+ * up in the shared {@link Dictionary}, so repeated names don't make new
+ * Strings.</p>
+ *
+ * <p>
+ * Holds scratch state between calls, so an instance must only be used by one
+ * thread at a time. Each ticker has its own.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class MessageDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageDecoder.class);
+
+    private static final byte[][] ENVELOPE_KEYS = keys("ok", "quote");
+    private static final int ENVELOPE_OK = 0;
+    private static final int ENVELOPE_QUOTE = 1;
+
+    private static final byte[][] QUOTE_KEYS = keys("symbol", "venue", "bid", "ask", "bidSize", "askSize",
+            "bidDepth", "askDepth", "last", "lastSize", "lastTrade", "quoteTime");
+    private static final int QUOTE_SYMBOL = 0;
+    private static final int QUOTE_VENUE = 1;
+    private static final int QUOTE_BID = 2;
+    private static final int QUOTE_ASK = 3;
+    private static final int QUOTE_BID_SIZE = 4;
+    private static final int QUOTE_ASK_SIZE = 5;
+    private static final int QUOTE_BID_DEPTH = 6;
+    private static final int QUOTE_ASK_DEPTH = 7;
+    private static final int QUOTE_LAST = 8;
+    private static final int QUOTE_LAST_SIZE = 9;
+    private static final int QUOTE_LAST_TRADE = 10;
+    private static final int QUOTE_QUOTE_TIME = 11;
+
+    private static final byte[][] EXECUTION_KEYS = keys("ok", "error", "symbol", "venue", "account", "order",
+            "standingId", "incomingId", "price", "filled", "filledAt", "standingComplete", "incomingComplete");
+    private static final int EXECUTION_OK = 0;
+    private static final int EXECUTION_ERROR = 1;
+    private static final int EXECUTION_SYMBOL = 2;
+    private static final int EXECUTION_VENUE = 3;
+    private static final int EXECUTION_ACCOUNT = 4;
+    private static final int EXECUTION_ORDER = 5;
+    private static final int EXECUTION_STANDING_ID = 6;
+    private static final int EXECUTION_INCOMING_ID = 7;
+    private static final int EXECUTION_PRICE = 8;
+    private static final int EXECUTION_FILLED = 9;
+    private static final int EXECUTION_FILLED_AT = 10;
+    private static final int EXECUTION_STANDING_COMPLETE = 11;
+    private static final int EXECUTION_INCOMING_COMPLETE = 12;
+
+    private static final byte[][] ORDER_KEYS = keys("ok", "error", "symbol", "venue", "account", "direction",
+            "originalQty", "qty", "price", "type", "id", "ts", "fills", "totalFilled", "open");
+    private static final int ORDER_OK = 0;
+    private static final int ORDER_ERROR = 1;
+    private static final int ORDER_SYMBOL = 2;
+    private static final int ORDER_VENUE = 3;
+    private static final int ORDER_ACCOUNT = 4;
+    private static final int ORDER_DIRECTION = 5;
+    private static final int ORDER_ORIGINAL_QTY = 6;
+    private static final int ORDER_QTY = 7;
+    private static final int ORDER_PRICE = 8;
+    private static final int ORDER_TYPE = 9;
+    private static final int ORDER_ID = 10;
+    private static final int ORDER_TS = 11;
+    private static final int ORDER_FILLS = 12;
+    private static final int ORDER_TOTAL_FILLED = 13;
+    private static final int ORDER_OPEN = 14;
+
+    private static final byte[][] FILL_KEYS = keys("price", "qty", "ts");
+    private static final int FILL_PRICE = 0;
+    private static final int FILL_QTY = 1;
+    private static final int FILL_TS = 2;
+
+    private static final Order.OrderType[] ORDER_TYPES = Order.OrderType.values();
+    private static final byte[][] ORDER_TYPE_NAMES;
+
+    static {
+        ORDER_TYPE_NAMES = new byte[ORDER_TYPES.length][];
+        for (int i = 0; i < ORDER_TYPES.length; i += 1) {
+            ORDER_TYPE_NAMES[i] = ORDER_TYPES[i].toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] BUY = "buy".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPEN = "open".getBytes(StandardCharsets.US_ASCII);
+
+
+    private byte[] scratch = new byte[4096];
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    // Bounds of the last string token read, quotes excluded
+    private int tokenStart;
+    private int tokenEnd;
+    private boolean tokenEscaped;
+
+    /**
+     * Decode a quote ticker message, which wraps the quote in an envelope
+     * <code>{"ok":true,"quote":{...}}</code>. Returns null if the message isn't
+     * ok, or doesn't have a quote.
+     *
+     * @param message
+     * @return
+     */
+    public Quote decodeQuote(CharSequence message) {
+        return decodeQuote(scratch, 0, encode(message));
+    }
+
+    public Quote decodeQuote(byte[] buf, int offset, int length) {
+        reset(buf, offset, length);
+        return readQuoteMessage(offset, length, null);
+    }
+
+    /**
+     * Decode a quote ticker message straight from a buffer, such as a binary
+     * websocket frame, without making a String. Buffers backed by an array
+     * are read in place, others are copied into scratch space. The buffer's
+     * position isn't changed.
+     *
+     * @param message
+     * @return
+     */
+    public Quote decodeQuote(ByteBuffer message) {
+        if (message.hasArray()) {
+            return decodeQuote(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+        return decodeQuote(scratch, 0, copy(message));
+    }
+
+    /**
+     * Decode a quote ticker message into an existing quote, clearing anything
+     * left over from the last message. Doesn't allocate once the venue and
+     * symbol names have been seen.
+     *
+     * @param message
+     * @param into quote to fill in
+     * @return true if into now holds a quote, false if the message wasn't ok
+     */
+    public boolean decodeQuote(CharSequence message, Quote into) {
+        return decodeQuote(scratch, 0, encode(message), into);
+    }
+
+    public boolean decodeQuote(byte[] buf, int offset, int length, Quote into) {
+        reset(buf, offset, length);
+        return readQuoteMessage(offset, length, into) != null;
+    }
+
+    public boolean decodeQuote(ByteBuffer message, Quote into) {
+        if (message.hasArray()) {
+            return decodeQuote(message.array(), message.arrayOffset() + message.position(), message.remaining(), into);
+        }
+        return decodeQuote(scratch, 0, copy(message), into);
+    }
+
+    /**
+     * Decode an execution ticker message.
+     *
+     * @param message
+     * @return
+     */
+    public Execution decodeExecution(CharSequence message) {
+        return decodeExecution(scratch, 0, encode(message));
+    }
+
+    public Execution decodeExecution(byte[] buf, int offset, int length) {
+        reset(buf, offset, length);
+        return readExecution(new Execution(), false);
+    }
+
+    /**
+     * Decode an execution ticker message straight from a buffer, see
+     * {@link #decodeQuote(ByteBuffer)}.
+     *
+     * @param message
+     * @return
+     */
+    public Execution decodeExecution(ByteBuffer message) {
+        if (message.hasArray()) {
+            return decodeExecution(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+        return decodeExecution(scratch, 0, copy(message));
+    }
+
+    /**
+     * Decode an execution ticker message into an existing execution, reusing
+     * its order and fills. Doesn't allocate once the names and the number of
+     * fills have been seen.
+     *
+     * @param message
+     * @param into execution to fill in
+     */
+    public void decodeExecution(CharSequence message, Execution into) {
+        decodeExecution(scratch, 0, encode(message), into);
+    }
+
+    public void decodeExecution(byte[] buf, int offset, int length, Execution into) {
+        reset(buf, offset, length);
+        into.reset();
+        readExecution(into, true);
+    }
+
+    public void decodeExecution(ByteBuffer message, Execution into) {
+        if (message.hasArray()) {
+            decodeExecution(message.array(), message.arrayOffset() + message.position(), message.remaining(), into);
+        } else {
+            decodeExecution(scratch, 0, copy(message), into);
+        }
+    }
+
+    /**
+     * Decode a single order, as found in the REST responses.
+     *
+     * @param buf
+     * @param offset
+     * @param length
+     * @return
+     */
+    public OrderStatus decodeOrderStatus(byte[] buf, int offset, int length) {
+        reset(buf, offset, length);
+        return readOrderStatus(new OrderStatus());
+    }
+
+    /**
+     * Find out if an order is open without decoding the rest of it.
+     *
+     * @param buf
+     * @param offset
+     * @param length
+     * @return true if the order has <code>"open":true</code>
+     */
+    public boolean isOpen(byte[] buf, int offset, int length) {
+        reset(buf, offset, length);
+        expect('{');
+        while (nextKey()) {
+            if (tokenEquals(OPEN)) {
+                return readBoolean();
+            }
+            skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Decode a JSON string value, quotes included.
+     */
+    String decodeString(byte[] buf, int offset, int length) {
+        reset(buf, offset, length);
+        ws();
+        return readString();
+    }
+
+    private Quote readQuoteMessage(int offset, int length, Quote into) {
+        expect('{');
+        while (nextKey()) {
+            switch (match(ENVELOPE_KEYS)) {
+                case ENVELOPE_OK:
+                    if (!readBoolean()) {
+                        log.warn("Not ok Quote: {}", new String(buf, offset, length, StandardCharsets.UTF_8));
+                        return null;
+                    }
+                    break;
+                case ENVELOPE_QUOTE:
+                    if (peek() != '{') {
+                        log.warn("Quote, but not an object: {}", new String(buf, offset, length, StandardCharsets.UTF_8));
+                        return null;
+                    }
+                    if (into == null) {
+                        return readQuote(new Quote());
+                    }
+                    into.reset();
+                    return readQuote(into);
+                default:
+                    if (log.isDebugEnabled()) {
+                        log.debug("Ignoring unexpected content from quote: {}", new String(buf, offset, length, StandardCharsets.UTF_8));
+                    }
+                    skipValue();
+            }
+        }
+        return null;
+    }
+
+    private Quote readQuote(Quote q) {
+        expect('{');
+        while (nextKey()) {
+            switch (match(QUOTE_KEYS)) {
+                case QUOTE_SYMBOL:
+                    q.symbolId = readName(Dictionary.SYMBOLS);
+                    q.symbol = Dictionary.SYMBOLS.name(q.symbolId);
+                    break;
+                case QUOTE_VENUE:
+                    q.venueId = readName(Dictionary.VENUES);
+                    q.venue = Dictionary.VENUES.name(q.venueId);
+                    break;
+                case QUOTE_BID:
+                    q.bid = readInt();
+                    break;
+                case QUOTE_ASK:
+                    q.ask = readInt();
+                    break;
+                case QUOTE_BID_SIZE:
+                    q.bidSize = readInt();
+                    break;
+                case QUOTE_ASK_SIZE:
+                    q.askSize = readInt();
+                    break;
+                case QUOTE_BID_DEPTH:
+                    q.bidDepth = readInt();
+                    break;
+                case QUOTE_ASK_DEPTH:
+                    q.askDepth = readInt();
+                    break;
+                case QUOTE_LAST:
+                    q.last = readInt();
+                    break;
+                case QUOTE_LAST_SIZE:
+                    q.lastSize = readInt();
+                    break;
+                case QUOTE_LAST_TRADE:
+                    q.lastTrade = readTimestamp();
+                    break;
+                case QUOTE_QUOTE_TIME:
+                    q.quoteTime = readTimestamp();
+                    break;
+                default:
+                    if (log.isDebugEnabled()) {
+                        log.debug("Unexpected json key {}", tokenText());
+                    }
+                    skipValue();
+            }
+        }
+        return q;
+    }
+
+    private Execution readExecution(Execution e, boolean reuse) {
+        OrderStatus spare = e.order;
+        e.order = null;
+        expect('{');
+        while (nextKey()) {
+            switch (match(EXECUTION_KEYS)) {
+                case EXECUTION_OK:
+                    e.ok = readBoolean();
+                    break;
+                case EXECUTION_ERROR:
+                    e.errorStr = readString();
+                    break;
+                case EXECUTION_SYMBOL:
+                    e.symbolId = readName(Dictionary.SYMBOLS);
+                    e.symbol = Dictionary.SYMBOLS.name(e.symbolId);
+                    break;
+                case EXECUTION_VENUE:
+                    e.venueId = readName(Dictionary.VENUES);
+                    e.venue = Dictionary.VENUES.name(e.venueId);
+                    break;
+                case EXECUTION_ACCOUNT:
+                    e.accountId = readName(Dictionary.ACCOUNTS);
+                    e.account = Dictionary.ACCOUNTS.name(e.accountId);
+                    break;
+                case EXECUTION_ORDER:
+                    if (reuse && spare != null) {
+                        spare.reset();
+                        e.order = readOrderStatus(spare);
+                    } else {
+                        e.order = readOrderStatus(new OrderStatus());
+                    }
+                    break;
+                case EXECUTION_STANDING_ID:
+                    e.standingId = readInt();
+                    break;
+                case EXECUTION_INCOMING_ID:
+                    e.incomingId = readInt();
+                    break;
+                case EXECUTION_PRICE:
+                    e.price = readInt();
+                    break;
+                case EXECUTION_FILLED:
+                    e.filled = readInt();
+                    break;
+                case EXECUTION_FILLED_AT:
+                    e.filledAt = readTimestamp();
+                    break;
+                case EXECUTION_STANDING_COMPLETE:
+                    e.standingComplete = readBoolean();
+                    break;
+                case EXECUTION_INCOMING_COMPLETE:
+                    e.incommingComplete = readBoolean();
+                    break;
+                default:
+                    log.warn("Unexpeted key in execution tick: [{}]", tokenText());
+                    skipValue();
+                    break;
+            }
+        }
+        return e;
+    }
+
+    private OrderStatus readOrderStatus(OrderStatus o) {
+        expect('{');
+        while (nextKey()) {
+            switch (match(ORDER_KEYS)) {
+                case ORDER_OK:
+                    o.ok = readBoolean();
+                    break;
+                case ORDER_ERROR:
+                    o.errorStr = readString();
+                    break;
+                case ORDER_SYMBOL:
+                    o.symbolId = readName(Dictionary.SYMBOLS);
+                    o.symbol = Dictionary.SYMBOLS.name(o.symbolId);
+                    break;
+                case ORDER_VENUE:
+                    o.venueId = readName(Dictionary.VENUES);
+                    o.venue = Dictionary.VENUES.name(o.venueId);
+                    break;
+                case ORDER_ACCOUNT:
+                    o.accountId = readName(Dictionary.ACCOUNTS);
+                    o.account = Dictionary.ACCOUNTS.name(o.accountId);
+                    break;
+                case ORDER_DIRECTION:
+                    readToken();
+                    o.buy = tokenEquals(BUY);
+                    break;
+                case ORDER_ORIGINAL_QTY:
+                    o.originalQuantity = readInt();
+                    break;
+                case ORDER_QTY:
+                    o.remainingQuantity = readInt();
+                    break;
+                case ORDER_PRICE:
+                    o.price = readInt();
+                    break;
+                case ORDER_TYPE:
+                    o.type = readOrderType();
+                    break;
+                case ORDER_ID:
+                    o.id = readInt();
+                    break;
+                case ORDER_TS:
+                    o.ts = readTimestamp();
+                    break;
+                case ORDER_FILLS:
+                    readFills(o);
+                    break;
+                case ORDER_TOTAL_FILLED:
+                    o.totalFilled = readInt();
+                    break;
+                case ORDER_OPEN:
+                    o.open = readBoolean();
+                    break;
+                default:
+                    skipValue();
+                    break;
+            }
+        }
+        return o;
+    }
+
+    private void readFills(OrderStatus o) {
+        expect('[');
+        while (true) {
+            ws();
+            byte b = peek();
+            if (b == ',') {
+                pos += 1;
+                continue;
+            } else if (b == ']') {
+                pos += 1;
+                return;
+            } else if (b != '{') {
+                skipValue();
+                continue;
+            }
+            readFill(o);
+        }
+    }
+
+    private void readFill(OrderStatus o) {
+        int price = 0;
+        int quantity = 0;
+        long ts = TimestampCodec.NONE;
+        expect('{');
+        while (nextKey()) {
+            switch (match(FILL_KEYS)) {
+                case FILL_PRICE:
+                    price = readInt();
+                    break;
+                case FILL_QTY:
+                    quantity = readInt();
+                    break;
+                case FILL_TS:
+                    ts = readTimestamp();
+                    break;
+                default:
+                    log.warn("Ignoring unexpected entry in fill [{}]", tokenText());
+                    skipValue();
+                    break;
+            }
+        }
+        o.addFill(price, quantity, ts);
+    }
+
+    private Order.OrderType readOrderType() {
+        readToken();
+        for (int i = 0; i < ORDER_TYPES.length; i += 1) {
+            if (tokenEquals(ORDER_TYPE_NAMES[i])) {
+                return ORDER_TYPES[i];
+            }
+        }
+        // Let OrderType complain in its own words
+        return Order.OrderType.fromString(tokenText());
+    }
+
+    private void reset(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Step to the next key of the current object, leaving the key in the token
+     * and the position at the start of its value. Returns false (having
+     * consumed the closing brace) at the end of the object.
+     */
+    private boolean nextKey() {
+        ws();
+        byte b = peek();
+        if (b == ',') {
+            pos += 1;
+            ws();
+            b = peek();
+        }
+        if (b == '}') {
+            pos += 1;
+            return false;
+        }
+        readToken();
+        expect(':');
+        ws();
+        return true;
+    }
+
+    private int match(byte[][] keys) {
+        if (tokenEscaped) {
+            return -1;
+        }
+        int length = tokenEnd - tokenStart;
+        for (int i = 0; i < keys.length; i += 1) {
+            byte[] key = keys[i];
+            if (key.length == length && key[0] == buf[tokenStart] && tokenEquals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean tokenEquals(byte[] value) {
+        if (tokenEscaped || value.length != tokenEnd - tokenStart) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i += 1) {
+            if (buf[tokenStart + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ws() {
+        while (pos < limit) {
+            byte b = buf[pos];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                pos += 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private byte peek() {
+        if (pos >= limit) {
+            throw error("Unexpected end of message");
+        }
+        return buf[pos];
+    }
+
+    private void expect(char c) {
+        ws();
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos += 1;
+    }
+
+    /**
+     * Read a string, leaving its bounds (without quotes) in the token.
+     */
+    private void readToken() {
+        expect('"');
+        tokenStart = pos;
+        tokenEscaped = false;
+        while (true) {
+            byte b = peek();
+            if (b == '"') {
+                tokenEnd = pos;
+                pos += 1;
+                return;
+            } else if (b == '\\') {
+                tokenEscaped = true;
+                pos += 1;
+            }
+            pos += 1;
+        }
+    }
+
+    private boolean readBoolean() {
+        byte b = peek();
+        skipValue();
+        return b == 't';
+    }
+
+    private int readInt() {
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos += 1;
+        }
+        int value = 0;
+        while (pos < limit) {
+            byte b = buf[pos];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                pos += 1;
+            } else {
+                break;
+            }
+        }
+        if (pos == start || (negative && pos == start + 1)) {
+            throw error("Expected a number");
+        }
+        if (pos < limit && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E')) {
+            // Not an int on the wire, so do what JsonParser.getInt does
+            skipValue();
+            return new BigDecimal(new String(buf, start, pos - start, StandardCharsets.US_ASCII)).intValue();
+        }
+        return negative ? -value : value;
+    }
+
+    private String readString() {
+        if (peek() != '"') {
+            throw error("Expected a string");
+        }
+        readToken();
+        return tokenText();
+    }
+
+    private long readTimestamp() {
+        if (peek() != '"') {
+            throw error("Expected a string");
+        }
+        readToken();
+        if (tokenEscaped) {
+            return TimestampCodec.parse(tokenText());
+        }
+        return TimestampCodec.parse(buf, tokenStart, tokenEnd - tokenStart);
+    }
+
+    /**
+     * Read a venue, symbol or account name and look it up in the dictionary.
+     */
+    private int readName(Dictionary dictionary) {
+        if (peek() != '"') {
+            throw error("Expected a string");
+        }
+        readToken();
+        if (tokenEscaped) {
+            return dictionary.id(tokenText());
+        }
+        return dictionary.id(buf, tokenStart, tokenEnd - tokenStart);
+    }
+
+    private String tokenText() {
+        if (!tokenEscaped) {
+            return new String(buf, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8);
+        }
+        return unescape();
+    }
+
+    private String unescape() {
+        // Escapes are ascii, so decode the runs between them as utf-8
+        StringBuilder result = new StringBuilder(tokenEnd - tokenStart);
+        int run = tokenStart;
+        int i = tokenStart;
+        while (i < tokenEnd) {
+            if (buf[i] != '\\') {
+                i += 1;
+                continue;
+            }
+            result.append(new String(buf, run, i - run, StandardCharsets.UTF_8));
+            byte e = buf[i + 1];
+            i += 2;
+            switch (e) {
+                case 'b':
+                    result.append('\b');
+                    break;
+                case 'f':
+                    result.append('\f');
+                    break;
+                case 'n':
+                    result.append('\n');
+                    break;
+                case 'r':
+                    result.append('\r');
+                    break;
+                case 't':
+                    result.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > tokenEnd) {
+                        throw error("Bad unicode escape");
+                    }
+                    result.append((char) Integer.parseInt(new String(buf, i, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default:
+                    result.append((char) e);
+                    break;
+            }
+            run = i;
+        }
+        result.append(new String(buf, run, tokenEnd - run, StandardCharsets.UTF_8));
+        return result.toString();
+    }
+
+    private void skipValue() {
+        ws();
+        byte b = peek();
+        switch (b) {
+            case '"':
+                readToken();
+                break;
+            case '{':
+                pos += 1;
+                while (nextKey()) {
+                    skipValue();
+                }
+                break;
+            case '[':
+                pos += 1;
+                while (true) {
+                    ws();
+                    b = peek();
+                    if (b == ']') {
+                        pos += 1;
+                        break;
+                    } else if (b == ',') {
+                        pos += 1;
+                    } else {
+                        skipValue();
+                    }
+                }
+                break;
+            default:
+                // number, true, false or null
+                while (pos < limit) {
+                    b = buf[pos];
+                    if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                        break;
+                    }
+                    pos += 1;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Copy a message into the scratch buffer as UTF-8, returning the number of
+     * bytes written.
+     */
+    private int encode(CharSequence message) {
+        int length = message.length();
+        if (scratch.length < length * 3) {
+            scratch = new byte[length * 3];
+        }
+        byte[] out = scratch;
+        int n = 0;
+        for (int i = 0; i < length; i += 1) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(message.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, message.charAt(++i));
+                out[n++] = (byte) (0xF0 | (cp >> 18));
+                out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Copy what's left of a buffer into the scratch buffer, leaving its
+     * position where it was, returning the number of bytes copied.
+     */
+    private int copy(ByteBuffer message) {
+        int length = message.remaining();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        int start = message.position();
+        message.get(scratch, 0, length);
+        message.position(start);
+        return length;
+    }
+
+    private JsonException error(String message) {
+        return new JsonException(message + " at offset " + pos);
+    }
+
+    private static byte[][] keys(String... names) {
+        byte[][] result = new byte[names.length][];
+        for (int i = 0; i < names.length; i += 1) {
+            result[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
+}
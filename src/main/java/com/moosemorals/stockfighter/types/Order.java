@@ -36,8 +36,11 @@ public class Order {
     private static final Logger log = LoggerFactory.getLogger(Order.class);
 
     private String account;
+    private int accountId = Dictionary.NONE;
     private String venue;
+    private int venueId = Dictionary.NONE;
     private String symbol;
+    private int symbolId = Dictionary.NONE;
     private int price;
     private int quantity;
     private boolean buy;
@@ -92,6 +95,14 @@ public class Order {
 
     public void setAccount(String account) {
         this.account = account;
+        this.accountId = Dictionary.ACCOUNTS.id(account);
+    }
+
+    /**
+     * @return id of the account in {@link Dictionary#ACCOUNTS}
+     */
+    public int getAccountId() {
+        return accountId;
     }
 
     public String getVenue() {
@@ -100,6 +111,14 @@ public class Order {
 
     public void setVenue(String venue) {
         this.venue = venue;
+        this.venueId = Dictionary.VENUES.id(venue);
+    }
+
+    /**
+     * @return id of the venue in {@link Dictionary#VENUES}
+     */
+    public int getVenueId() {
+        return venueId;
     }
 
     public String getSymbol() {
@@ -108,6 +127,14 @@ public class Order {
 
     public void setSymbol(String symbol) {
         this.symbol = symbol;
+        this.symbolId = Dictionary.SYMBOLS.id(symbol);
+    }
+
+    /**
+     * @return id of the symbol in {@link Dictionary#SYMBOLS}
+     */
+    public int getSymbolId() {
+        return symbolId;
     }
 
     public int getPrice() {
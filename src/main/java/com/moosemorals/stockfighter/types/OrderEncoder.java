@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encodes orders to the same JSON as {@link Order#toJson}, but from
+ * pre-encoded templates.
+ *
+ * <p>
+ * Everything up to the quantity depends only on the account, venue and
+ * symbol, so that's encoded once per combination and kept. The direction and
+ * order type endings are encoded once for the whole class. Encoding an order
+ * is then a copy, two ints and another copy, into a buffer that belongs to
+ * the calling thread.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderEncoder {
+
+    private static final byte[] PRICE = ascii(",\"price\":");
+
+    // Indexed by [buy ? 1 : 0][OrderType.ordinal()]
+    private static final byte[][][] SUFFIXES;
+
+    static {
+        Order.OrderType[] types = Order.OrderType.values();
+        SUFFIXES = new byte[2][types.length][];
+        for (int i = 0; i < types.length; i += 1) {
+            SUFFIXES[0][i] = ascii(",\"direction\":\"sell\",\"orderType\":\"" + types[i] + "\"}");
+            SUFFIXES[1][i] = ascii(",\"direction\":\"buy\",\"orderType\":\"" + types[i] + "\"}");
+        }
+    }
+
+    private final ConcurrentMap<Long, Template> templates = new ConcurrentHashMap<>();
+    private final ThreadLocal<Encoded> buffers = new ThreadLocal<Encoded>() {
+        @Override
+        protected Encoded initialValue() {
+            return new Encoded();
+        }
+    };
+
+    /**
+     * Encode an order into the calling thread's buffer. The result is only
+     * good until the same thread encodes another order.
+     *
+     * @param order Order to encode. Account, venue, symbol and type must be
+     * set.
+     * @return the encoded order, and the path to post it to
+     */
+    public Encoded encode(Order order) {
+        if (order.getAccount() == null || order.getVenue() == null || order.getSymbol() == null || order.getType() == null) {
+            throw new NullPointerException("Order needs an account, venue, symbol and type: " + order);
+        }
+
+        Encoded out = buffers.get();
+        Template template = out.template;
+        if (template == null || template.accountId != order.getAccountId()
+                || template.venueId != order.getVenueId() || template.symbolId != order.getSymbolId()) {
+            template = template(order);
+            out.template = template;
+        }
+
+        byte[] suffix = SUFFIXES[order.isBuy() ? 1 : 0][order.getType().ordinal()];
+        int max = template.prefix.length + 11 + PRICE.length + 11 + suffix.length;
+        if (out.data.length < max) {
+            out.data = new byte[Math.max(max, out.data.length * 2)];
+        }
+
+        byte[] data = out.data;
+        int n = template.prefix.length;
+        System.arraycopy(template.prefix, 0, data, 0, n);
+        n = writeInt(order.getQuantity(), data, n);
+        System.arraycopy(PRICE, 0, data, n, PRICE.length);
+        n += PRICE.length;
+        n = writeInt(order.getPrice(), data, n);
+        System.arraycopy(suffix, 0, data, n, suffix.length);
+        out.length = n + suffix.length;
+        return out;
+    }
+
+    /**
+     * @return number of account/venue/symbol templates built so far
+     */
+    public int getTemplateCount() {
+        return templates.size();
+    }
+
+    private Template template(Order order) {
+        // Dictionary ids are small, so three fit in a long
+        Long key = ((long) order.getAccountId() << 42) | ((long) order.getVenueId() << 21) | order.getSymbolId();
+        Template template = templates.get(key);
+        if (template == null) {
+            template = new Template(order);
+            Template existing = templates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    private static int writeInt(int value, byte[] out, int offset) {
+        if (value == Integer.MIN_VALUE) {
+            byte[] min = ascii(Integer.toString(value));
+            System.arraycopy(min, 0, out, offset, min.length);
+            return offset + min.length;
+        }
+        if (value < 0) {
+            out[offset++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits += 1;
+        }
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; i -= 1) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Quote and escape a string the same way the JsonGenerator does.
+     */
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i += 1) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * An encoded order, and where to post it.
+     */
+    public static final class Encoded {
+
+        private byte[] data = new byte[256];
+        private int length;
+        private Template template;
+
+        private Encoded() {
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return API path for posting the order, relative to the base url
+         */
+        public String getPath() {
+            return template.path;
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Template {
+
+        final int accountId;
+        final int venueId;
+        final int symbolId;
+        final byte[] prefix;
+        final String path;
+
+        Template(Order order) {
+            accountId = order.getAccountId();
+            venueId = order.getVenueId();
+            symbolId = order.getSymbolId();
+
+            StringBuilder b = new StringBuilder("{\"account\":");
+            appendString(b, order.getAccount());
+            b.append(",\"venue\":");
+            appendString(b, order.getVenue());
+            b.append(",\"stock\":");
+            appendString(b, order.getSymbol());
+            b.append(",\"qty\":");
+            prefix = b.toString().getBytes(StandardCharsets.UTF_8);
+            path = "/venues/" + order.getVenue() + "/stocks/" + order.getSymbol() + "/orders";
+        }
+    }
+}
@@ -23,13 +23,9 @@
  */
 package com.moosemorals.stockfighter.types;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import javax.json.stream.JsonParser;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,32 +37,40 @@ import org.slf4j.LoggerFactory;
 public class OrderStatus {
 
     private final Logger log = LoggerFactory.getLogger(OrderStatus.class);
-    private static final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
-
-    private boolean ok;
-    private String errorStr;
-    private String symbol;
-    private String venue;
-    private String account;
-    private boolean buy;
-    private int originalQuantity;
-    private int remainingQuantity;
-    private int price;
-    private Order.OrderType type;
-    private int id;
-    private DateTime ts;
-    private int totalFilled;
-    private boolean open;
-    private final Fill[] fills;
 
-    public OrderStatus(JsonParser parser) {
-        List<Fill> f = doParse(parser);
-        fills = new Fill[f.size()];
-        f.toArray(fills);
+    private static final int[] NO_INTS = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+
+    boolean ok;
+    String errorStr;
+    String symbol;
+    int symbolId = Dictionary.NONE;
+    String venue;
+    int venueId = Dictionary.NONE;
+    String account;
+    int accountId = Dictionary.NONE;
+    boolean buy;
+    int originalQuantity;
+    int remainingQuantity;
+    int price;
+    Order.OrderType type;
+    int id;
+    long ts = TimestampCodec.NONE;
+    int totalFilled;
+    boolean open;
+
+    // Fills are kept as columns, and only turned into objects if asked
+    int fillCount;
+    int[] fillPrices = NO_INTS;
+    int[] fillQuantities = NO_INTS;
+    long[] fillTimes = NO_LONGS;
+    private volatile Fill[] fills;
+
+    OrderStatus() {
+        // For MessageDecoder
     }
 
-    private List<Fill> doParse(JsonParser parser) {
-        List<Fill> f = new ArrayList();
+    public OrderStatus(JsonParser parser) {
         while (parser.hasNext()) {
             switch (parser.next()) {
                 case KEY_NAME:
@@ -81,13 +85,16 @@ public class OrderStatus {
                             errorStr = parser.getString();
                             break;
                         case "symbol":
-                            symbol = parser.getString();
+                            symbolId = Dictionary.SYMBOLS.id(parser.getString());
+                            symbol = Dictionary.SYMBOLS.name(symbolId);
                             break;
                         case "venue":
-                            venue = parser.getString();
+                            venueId = Dictionary.VENUES.id(parser.getString());
+                            venue = Dictionary.VENUES.name(venueId);
                             break;
                         case "account":
-                            account = parser.getString();
+                            accountId = Dictionary.ACCOUNTS.id(parser.getString());
+                            account = Dictionary.ACCOUNTS.name(accountId);
                             break;
                         case "direction":
                             buy = parser.getString().equals("buy");
@@ -108,12 +115,12 @@ public class OrderStatus {
                             id = parser.getInt();
                             break;
                         case "ts":
-                            ts = dateParser.parseDateTime(parser.getString());
+                            ts = TimestampCodec.parse(parser.getString());
                             break;
                         case "fills":
                             next = parser.next();
                             while (next != JsonParser.Event.END_ARRAY) {
-                                f.add(new Fill(parser));
+                                parseFill(parser);
                                 next = parser.next();
                             }
                             break;
@@ -126,11 +133,10 @@ public class OrderStatus {
                     }
                     break;
                 case END_OBJECT:
-                    return f;
+                    return;
 
             }
         }
-        return f;
     }
 
     public boolean isOk() {
@@ -145,14 +151,35 @@ public class OrderStatus {
         return symbol;
     }
 
+    /**
+     * @return id of the symbol in {@link Dictionary#SYMBOLS}
+     */
+    public int getSymbolId() {
+        return symbolId;
+    }
+
     public String getVenue() {
         return venue;
     }
 
+    /**
+     * @return id of the venue in {@link Dictionary#VENUES}
+     */
+    public int getVenueId() {
+        return venueId;
+    }
+
     public String getAccount() {
         return account;
     }
 
+    /**
+     * @return id of the account in {@link Dictionary#ACCOUNTS}
+     */
+    public int getAccountId() {
+        return accountId;
+    }
+
     public boolean isBuy() {
         return buy;
     }
@@ -178,6 +205,14 @@ public class OrderStatus {
     }
 
     public DateTime getTs() {
+        return TimestampCodec.toDateTime(ts);
+    }
+
+    /**
+     * @return ts as nanoseconds since the epoch, or
+     * {@link TimestampCodec#NONE} if it wasn't sent
+     */
+    public long getTsNanos() {
         return ts;
     }
 
@@ -189,13 +224,159 @@ public class OrderStatus {
         return open;
     }
 
+    /**
+     * Get the fills as objects. These are built (once) on the first call, so
+     * code that only needs the numbers should use {@link #getFillCount()} and
+     * friends instead.
+     *
+     * @return
+     */
     public Fill[] getFills() {
-        return fills;
+        Fill[] result = fills;
+        if (result == null) {
+            result = new Fill[fillCount];
+            for (int i = 0; i < fillCount; i += 1) {
+                result[i] = new Fill(fillPrices[i], fillQuantities[i], fillTimes[i]);
+            }
+            fills = result;
+        }
+        return result;
+    }
+
+    public int getFillCount() {
+        return fillCount;
+    }
+
+    public int getFillPrice(int index) {
+        checkFill(index);
+        return fillPrices[index];
+    }
+
+    public int getFillQuantity(int index) {
+        checkFill(index);
+        return fillQuantities[index];
+    }
+
+    /**
+     * @param index
+     * @return time of the index'th fill as nanoseconds since the epoch
+     */
+    public long getFillTsNanos(int index) {
+        checkFill(index);
+        return fillTimes[index];
+    }
+
+    private void checkFill(int index) {
+        if (index < 0 || index >= fillCount) {
+            throw new IndexOutOfBoundsException("Fill " + index + " of " + fillCount);
+        }
+    }
+
+    void addFill(int price, int quantity, long ts) {
+        if (fillCount == fillPrices.length) {
+            int capacity = Math.max(4, fillCount * 2);
+            fillPrices = Arrays.copyOf(fillPrices, capacity);
+            fillQuantities = Arrays.copyOf(fillQuantities, capacity);
+            fillTimes = Arrays.copyOf(fillTimes, capacity);
+        }
+        fillPrices[fillCount] = price;
+        fillQuantities[fillCount] = quantity;
+        fillTimes[fillCount] = ts;
+        fillCount += 1;
+        fills = null;
+    }
+
+    /**
+     * Same as {@link Fill#Fill(JsonParser)}, but straight into the columns.
+     */
+    private void parseFill(JsonParser parser) {
+        int fillPrice = 0;
+        int fillQuantity = 0;
+        long fillTs = TimestampCodec.NONE;
+        while (parser.hasNext()) {
+            switch (parser.next()) {
+                case KEY_NAME:
+                    String key = parser.getString();
+                    parser.next();
+                    switch (key) {
+                        case "price":
+                            fillPrice = parser.getInt();
+                            break;
+                        case "qty":
+                            fillQuantity = parser.getInt();
+                            break;
+                        case "ts":
+                            fillTs = TimestampCodec.parse(parser.getString());
+                            break;
+                        default:
+                            log.warn("Ignoring unexpected entry in fill [{}]", key);
+                            break;
+                    }
+                    break;
+                case END_OBJECT:
+                    addFill(fillPrice, fillQuantity, fillTs);
+                    return;
+            }
+        }
+    }
+
+    void reset() {
+        ok = false;
+        errorStr = null;
+        symbol = null;
+        symbolId = Dictionary.NONE;
+        venue = null;
+        venueId = Dictionary.NONE;
+        account = null;
+        accountId = Dictionary.NONE;
+        buy = false;
+        originalQuantity = 0;
+        remainingQuantity = 0;
+        price = 0;
+        type = null;
+        id = 0;
+        ts = TimestampCodec.NONE;
+        totalFilled = 0;
+        open = false;
+        fillCount = 0;
+        fills = null;
+    }
+
+    /**
+     * Copy this order status and its fills, for listeners that need to keep a
+     * reused one.
+     *
+     * @return a new OrderStatus with the same values
+     */
+    public OrderStatus copy() {
+        OrderStatus o = new OrderStatus();
+        o.ok = ok;
+        o.errorStr = errorStr;
+        o.symbol = symbol;
+        o.symbolId = symbolId;
+        o.venue = venue;
+        o.venueId = venueId;
+        o.account = account;
+        o.accountId = accountId;
+        o.buy = buy;
+        o.originalQuantity = originalQuantity;
+        o.remainingQuantity = remainingQuantity;
+        o.price = price;
+        o.type = type;
+        o.id = id;
+        o.ts = ts;
+        o.totalFilled = totalFilled;
+        o.open = open;
+        o.fillCount = fillCount;
+        o.fillPrices = Arrays.copyOf(fillPrices, fillCount);
+        o.fillQuantities = Arrays.copyOf(fillQuantities, fillCount);
+        o.fillTimes = Arrays.copyOf(fillTimes, fillCount);
+        return o;
     }
 
     @Override
     public String toString() {
-        return "OrderStatus{" + ", ok=" + ok + ", errorStr=" + errorStr + ", symbol=" + symbol + ", venue=" + venue + ", account=" + account + ", buy=" + buy + ", originalQuantity=" + originalQuantity + ", remainingQuantity=" + remainingQuantity + ", price=" + price + ", type=" + type + ", id=" + id + ", ts=" + ts + ", totalFilled=" + totalFilled + ", open=" + open + ", fills=" + Arrays.toString(fills) + '}';
+        return "OrderStatus{" + ", ok=" + ok + ", errorStr=" + errorStr + ", symbol=" + symbol + ", venue=" + venue + ", account=" + account + ", buy=" + buy + ", originalQuantity=" + originalQuantity + ", remainingQuantity=" + remainingQuantity + ", price=" + price + ", type=" + type + ", id=" + id + ", ts=" + getTs() + ", totalFilled=" + totalFilled + ", open=" + open + ", fills=" + Arrays.toString(getFills()) + '}';
     }
 
 }
@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads an account order listing (<code>{"ok":true,"venue":...,"orders":[...]}</code>)
+ * one order at a time, straight off the stream.
+ *
+ * <p>
+ * Only the order currently being decoded is held in memory, so the first
+ * order is available as soon as it arrives and a long listing doesn't have to
+ * fit in the heap. When only open orders are wanted, closed orders are
+ * skipped by looking at their <code>open</code> field, without decoding the
+ * rest of them.</p>
+ *
+ * <p>
+ * Closing the reader closes the stream, which (depending on the transport)
+ * may drop the connection if the listing wasn't read to the end.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderStatusReader implements Closeable, Iterator<OrderStatus> {
+
+    private static final byte[] ORDERS = "orders".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = "error".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final boolean openOnly;
+    private final MessageDecoder decoder = new MessageDecoder();
+
+    private byte[] buf = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
+
+    private boolean started = false;
+    private boolean inOrders = false;
+    private boolean finished = false;
+    private OrderStatus peeked = null;
+
+    /**
+     * @param in stream holding the listing
+     * @param openOnly if true, skip orders that aren't open
+     */
+    public OrderStatusReader(InputStream in, boolean openOnly) {
+        this.in = in;
+        this.openOnly = openOnly;
+    }
+
+    /**
+     * Read the next order.
+     *
+     * @return the next order, or null at the end of the listing
+     * @throws IOException on network problems, or if the API returned an
+     * error
+     */
+    public OrderStatus read() throws IOException {
+        if (peeked != null) {
+            OrderStatus result = peeked;
+            peeked = null;
+            return result;
+        }
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            expect('{');
+            started = true;
+        }
+        while (true) {
+            if (inOrders) {
+                OrderStatus order = nextOrder();
+                if (order != null) {
+                    return order;
+                }
+                continue;
+            }
+            skipWhitespace();
+            byte b = at(0);
+            if (b == ',') {
+                consume(1);
+                continue;
+            } else if (b == '}') {
+                consume(1);
+                finished = true;
+                return null;
+            }
+
+            int keyLength = valueLength();
+            boolean orders = keyEquals(keyLength, ORDERS);
+            boolean error = keyEquals(keyLength, ERROR);
+            consume(keyLength);
+            expect(':');
+            skipWhitespace();
+            if (orders) {
+                expect('[');
+                inOrders = true;
+            } else if (error) {
+                int length = valueLength();
+                String message = decoder.decodeString(buf, pos, length);
+                consume(length);
+                throw new IOException("Can't get list of orders: " + message);
+            } else {
+                consume(valueLength());
+            }
+        }
+    }
+
+    /**
+     * Step through the orders array. Returns null when it's skipped something
+     * or reached the end of the array, so the caller should look again.
+     */
+    private OrderStatus nextOrder() throws IOException {
+        skipWhitespace();
+        byte b = at(0);
+        if (b == ',') {
+            consume(1);
+            return null;
+        } else if (b == ']') {
+            consume(1);
+            inOrders = false;
+            return null;
+        }
+        int length = valueLength();
+        OrderStatus order = null;
+        if (b == '{' && (!openOnly || decoder.isOpen(buf, pos, length))) {
+            order = decoder.decodeOrderStatus(buf, pos, length);
+        }
+        consume(length);
+        return order;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (peeked == null) {
+            try {
+                peeked = read();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return peeked != null;
+    }
+
+    @Override
+    public OrderStatus next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        OrderStatus result = peeked;
+        peeked = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        in.close();
+    }
+
+    private boolean keyEquals(int length, byte[] key) {
+        if (length != key.length + 2) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i += 1) {
+            if (buf[pos + 1 + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expect(char c) throws IOException {
+        skipWhitespace();
+        if (at(0) != c) {
+            throw new IOException("Bad order listing: expected '" + c + "'");
+        }
+        consume(1);
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (true) {
+            byte b = at(0);
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                consume(1);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void consume(int count) {
+        pos += count;
+    }
+
+    /**
+     * Length of the JSON value starting at pos, reading more of the stream if
+     * needed.
+     */
+    private int valueLength() throws IOException {
+        byte first = at(0);
+        int i = 1;
+        if (first == '"') {
+            while (true) {
+                byte b = at(i);
+                if (b == '\\') {
+                    i += 2;
+                } else if (b == '"') {
+                    return i + 1;
+                } else {
+                    i += 1;
+                }
+            }
+        } else if (first == '{' || first == '[') {
+            int depth = 1;
+            boolean inString = false;
+            while (true) {
+                byte b = at(i);
+                i += 1;
+                if (inString) {
+                    if (b == '\\') {
+                        i += 1;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '{' || b == '[') {
+                    depth += 1;
+                } else if (b == '}' || b == ']') {
+                    depth -= 1;
+                    if (depth == 0) {
+                        return i;
+                    }
+                }
+            }
+        } else {
+            // number, true, false or null
+            while (true) {
+                byte b = at(i);
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    return i;
+                }
+                i += 1;
+            }
+        }
+    }
+
+    /**
+     * Get the byte at pos + offset, reading more of the stream if needed.
+     * Reading may move the buffer contents, but pos always points at the same
+     * byte of the listing.
+     */
+    private byte at(int offset) throws IOException {
+        while (pos + offset >= limit) {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            } else if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                throw new EOFException("Order listing ended early");
+            }
+            limit += read;
+        }
+        return buf[pos + offset];
+    }
+}
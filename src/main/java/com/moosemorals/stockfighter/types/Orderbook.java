@@ -23,41 +23,53 @@
  */
 package com.moosemorals.stockfighter.types;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import javax.json.stream.JsonParser;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A list of current bid/asks for a stock on a venue.
  *
+ * <p>
+ * Each side is kept as price and quantity columns, best price first, along
+ * with running totals of quantity and cost. That lets the depth and sweep
+ * queries binary search rather than walk the book. {@link Entry} objects are
+ * only built if {@link #getBids()} or {@link #getAsks()} are called.</p>
+ *
+ * <p>
+ * Queries take a <code>buy</code> flag to pick the side of the book: true for
+ * the bids, false for the asks. To see what buying would cost, ask about the
+ * asks.</p>
+ *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
 public class Orderbook {
 
+    /**
+     * Returned as a price when the book can't supply one.
+     */
+    public static final int NO_PRICE = -1;
+
     private static final Logger log = LoggerFactory.getLogger(Orderbook.class);
 
-    private static final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
     private boolean isOk;
     private String errorStr;
     private String venue;
+    private int venueId = Dictionary.NONE;
     private String symbol;
-    private Entry[] bids;
-    private Entry[] asks;
-    private DateTime ts;
+    private int symbolId = Dictionary.NONE;
+    private final Side bids = new Side(true);
+    private final Side asks = new Side(false);
+    private long ts = TimestampCodec.NONE;
 
     public Orderbook(JsonParser parser) {
         while (parser.hasNext()) {
-            JsonParser.Event next = parser.next();
-            switch (next) {
+            switch (parser.next()) {
                 case KEY_NAME:
                     String key = parser.getString();
-                    parser.next();
+                    JsonParser.Event next = parser.next();
                     switch (key) {
                         case "ok":
                             isOk = next == JsonParser.Event.VALUE_TRUE;
@@ -66,46 +78,35 @@ public class Orderbook {
                             errorStr = parser.getString();
                             break;
                         case "venue":
-                            venue = parser.getString();
+                            venueId = Dictionary.VENUES.id(parser.getString());
+                            venue = Dictionary.VENUES.name(venueId);
                             break;
                         case "symbol":
-                            symbol = parser.getString();
+                            symbolId = Dictionary.SYMBOLS.id(parser.getString());
+                            symbol = Dictionary.SYMBOLS.name(symbolId);
                             break;
                         case "bids":
-                            List<Entry> bidList = new ArrayList<>();
-                            while (next != JsonParser.Event.END_ARRAY) {
-                                bidList.add(new Entry(parser));
-                                next = parser.next();
-                            }
-                            bids = new Entry[bidList.size()];
-                            bidList.toArray(bids);
+                            bids.parse(parser, next);
                             break;
                         case "asks":
-                            List<Entry> askList = new ArrayList<>();
-                            while (next != JsonParser.Event.END_ARRAY) {
-                                askList.add(new Entry(parser));
-                                if (parser.hasNext()) {
-                                    next = parser.next();
-                                } else {
-                                    return;
-                                }
-                            }
-                            asks = new Entry[askList.size()];
-                            askList.toArray(asks);
+                            asks.parse(parser, next);
                             break;
-
                         case "ts":
-                            ts = dateParser.parseDateTime(parser.getString());
+                            ts = TimestampCodec.parse(parser.getString());
                             break;
                         default:
-                            log.warn("Ignoring unexpected entry in fill [{}]", key);
+                            log.warn("Ignoring unexpected entry in orderbook [{}]", key);
                             break;
                     }
                     break;
                 case END_OBJECT:
+                    bids.finish();
+                    asks.finish();
                     return;
             }
         }
+        bids.finish();
+        asks.finish();
     }
 
     public boolean isIsOk() {
@@ -120,40 +121,209 @@ public class Orderbook {
         return venue;
     }
 
+    /**
+     * @return id of the venue in {@link Dictionary#VENUES}
+     */
+    public int getVenueId() {
+        return venueId;
+    }
+
     public String getSymbol() {
         return symbol;
     }
 
+    /**
+     * @return id of the symbol in {@link Dictionary#SYMBOLS}
+     */
+    public int getSymbolId() {
+        return symbolId;
+    }
+
+    /**
+     * Get the bids as objects, best first. These are built (once) on the first
+     * call, so code that only needs the numbers should use
+     * {@link #getLevelCount(boolean)} and friends instead.
+     *
+     * @return
+     */
     public Entry[] getBids() {
-        return bids;
+        return bids.entries();
     }
 
+    /**
+     * Get the asks as objects, best first. See {@link #getBids()}.
+     *
+     * @return
+     */
     public Entry[] getAsks() {
-        return asks;
+        return asks.entries();
     }
 
     public DateTime getTs() {
+        return TimestampCodec.toDateTime(ts);
+    }
+
+    /**
+     * @return ts as nanoseconds since the epoch, or
+     * {@link TimestampCodec#NONE} if it wasn't sent
+     */
+    public long getTsNanos() {
         return ts;
     }
 
+    /**
+     * @param buy true for the bids, false for the asks
+     * @return number of entries on the side
+     */
+    public int getLevelCount(boolean buy) {
+        return side(buy).count;
+    }
+
+    /**
+     * @param buy true for the bids, false for the asks
+     * @param index entry, counting from the best price
+     * @return price of the entry
+     */
+    public int getPrice(boolean buy, int index) {
+        Side s = side(buy);
+        s.check(index);
+        return s.prices[index];
+    }
+
+    /**
+     * @param buy true for the bids, false for the asks
+     * @param index entry, counting from the best price
+     * @return quantity of the entry
+     */
+    public int getQuantity(boolean buy, int index) {
+        Side s = side(buy);
+        s.check(index);
+        return s.quantities[index];
+    }
+
+    /**
+     * @param buy true for the bids, false for the asks
+     * @return total quantity on the side
+     */
+    public long getTotalQuantity(boolean buy) {
+        Side s = side(buy);
+        return s.count == 0 ? 0 : s.cumulative[s.count - 1];
+    }
+
+    /**
+     * How much is on offer at the given price or better. For the bids that
+     * means at or above the price, for the asks at or below it.
+     *
+     * @param buy true for the bids, false for the asks
+     * @param price limit price
+     * @return total quantity at or better than price
+     */
+    public long getQuantityAtOrBetter(boolean buy, int price) {
+        Side s = side(buy);
+        int n = s.countAtOrBetter(price);
+        return n == 0 ? 0 : s.cumulative[n - 1];
+    }
+
+    /**
+     * The worst price that has to be accepted to trade quantity shares against
+     * this side, i.e. the limit price that would fill the whole lot right now.
+     *
+     * @param buy true for the bids, false for the asks
+     * @param quantity number of shares
+     * @return limit price, or {@link #NO_PRICE} if the side isn't deep enough
+     */
+    public int getPriceToFill(boolean buy, int quantity) {
+        Side s = side(buy);
+        int i = s.indexToFill(quantity);
+        return i < 0 ? NO_PRICE : s.prices[i];
+    }
+
+    /**
+     * Total cost (price times quantity) of trading quantity shares against
+     * this side, best prices first.
+     *
+     * @param buy true for the bids, false for the asks
+     * @param quantity number of shares
+     * @return total cost, or -1 if the side isn't deep enough
+     */
+    public long getSweepCost(boolean buy, int quantity) {
+        Side s = side(buy);
+        int i = s.indexToFill(quantity);
+        if (i < 0) {
+            return -1;
+        }
+        long before = i == 0 ? 0 : s.cumulative[i - 1];
+        long cost = i == 0 ? 0 : s.costs[i - 1];
+        return cost + (quantity - before) * s.prices[i];
+    }
+
+    /**
+     * Average price of trading quantity shares against this side, best prices
+     * first.
+     *
+     * @param buy true for the bids, false for the asks
+     * @param quantity number of shares
+     * @return average price, or NaN if the side isn't deep enough
+     */
+    public double getAveragePrice(boolean buy, int quantity) {
+        long cost = getSweepCost(buy, quantity);
+        return cost < 0 || quantity <= 0 ? Double.NaN : (double) cost / quantity;
+    }
+
+    private Side side(boolean buy) {
+        return buy ? bids : asks;
+    }
+
     @Override
     public String toString() {
-        return "Orderbook{" + "isOk=" + isOk + ", errorStr=" + errorStr + ", venue=" + venue + ", symbol=" + symbol + ", bids=" + Arrays.toString(bids) + ", asks=" + Arrays.toString(asks) + ", ts=" + ts + '}';
+        return "Orderbook{" + "isOk=" + isOk + ", errorStr=" + errorStr + ", venue=" + venue + ", symbol=" + symbol + ", bids=" + bids + ", asks=" + asks + ", ts=" + getTs() + '}';
     }
 
-    public static class Entry {
+    /**
+     * One side of the book, as columns. Once parsed, entries are in best
+     * first order, cumulative[i] is the quantity of entries 0 to i, and
+     * costs[i] is their total price times quantity.
+     */
+    private static final class Side {
+
+        private static final int[] NO_INTS = new int[0];
+        private static final long[] NO_LONGS = new long[0];
 
-        private int price;
-        private int quantity;
-        private boolean isBuy;
+        final boolean buy;
+        int count;
+        int[] prices = NO_INTS;
+        int[] quantities = NO_INTS;
+        long[] cumulative = NO_LONGS;
+        long[] costs = NO_LONGS;
+        private volatile Entry[] entries;
+
+        Side(boolean buy) {
+            this.buy = buy;
+        }
 
-        private Entry(JsonParser parser) {
+        /**
+         * @return true if price a is strictly better than b on this side
+         */
+        boolean better(int a, int b) {
+            return buy ? a > b : a < b;
+        }
+
+        void parse(JsonParser parser, JsonParser.Event start) {
+            if (start != JsonParser.Event.START_ARRAY) {
+                // The API sends null for an empty side
+                return;
+            }
+            int price = 0;
+            int quantity = 0;
             while (parser.hasNext()) {
-                JsonParser.Event next = parser.next();
-                switch (next) {
+                switch (parser.next()) {
+                    case START_OBJECT:
+                        price = 0;
+                        quantity = 0;
+                        break;
                     case KEY_NAME:
                         String key = parser.getString();
-                        next = parser.next();
+                        parser.next();
                         switch (key) {
                             case "price":
                                 price = parser.getInt();
@@ -162,19 +332,143 @@ public class Orderbook {
                                 quantity = parser.getInt();
                                 break;
                             case "isBuy":
-                                isBuy = next == JsonParser.Event.VALUE_TRUE;
+                                // Same for the whole side
                                 break;
                             default:
-                                log.warn("Ignoring unexpected entry in fill [{}]", key);
+                                log.warn("Ignoring unexpected entry in orderbook entry [{}]", key);
                                 break;
                         }
                         break;
                     case END_OBJECT:
+                        add(price, quantity);
+                        break;
+                    case END_ARRAY:
                         return;
                 }
             }
         }
 
+        private void add(int price, int quantity) {
+            if (count == prices.length) {
+                int capacity = Math.max(8, count * 2);
+                prices = Arrays.copyOf(prices, capacity);
+                quantities = Arrays.copyOf(quantities, capacity);
+            }
+            prices[count] = price;
+            quantities[count] = quantity;
+            count += 1;
+        }
+
+        /**
+         * Make sure entries are best first (the API already sends them that
+         * way), then build the running totals.
+         */
+        void finish() {
+            for (int i = 1; i < count; i += 1) {
+                int price = prices[i];
+                int quantity = quantities[i];
+                int j = i - 1;
+                while (j >= 0 && better(price, prices[j])) {
+                    prices[j + 1] = prices[j];
+                    quantities[j + 1] = quantities[j];
+                    j -= 1;
+                }
+                prices[j + 1] = price;
+                quantities[j + 1] = quantity;
+            }
+            cumulative = new long[count];
+            costs = new long[count];
+            long quantity = 0;
+            long cost = 0;
+            for (int i = 0; i < count; i += 1) {
+                quantity += quantities[i];
+                cost += (long) prices[i] * quantities[i];
+                cumulative[i] = quantity;
+                costs[i] = cost;
+            }
+        }
+
+        /**
+         * @return number of entries at price or better
+         */
+        int countAtOrBetter(int price) {
+            // First entry that is strictly worse than price
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (better(price, prices[mid])) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return index of the entry that completes quantity, or -1 if there
+         * isn't enough
+         */
+        int indexToFill(int quantity) {
+            if (quantity <= 0) {
+                return count == 0 ? -1 : 0;
+            }
+            int i = Arrays.binarySearch(cumulative, 0, count, quantity);
+            if (i < 0) {
+                i = -i - 1;
+            } else {
+                // Zero quantity entries share a total, so take the first
+                while (i > 0 && cumulative[i - 1] == quantity) {
+                    i -= 1;
+                }
+            }
+            return i < count ? i : -1;
+        }
+
+        void check(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Entry " + index + " of " + count);
+            }
+        }
+
+        Entry[] entries() {
+            Entry[] result = entries;
+            if (result == null) {
+                result = new Entry[count];
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = new Entry(prices[i], quantities[i], buy);
+                }
+                entries = result;
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder("[");
+            for (int i = 0; i < count; i += 1) {
+                if (i > 0) {
+                    b.append(", ");
+                }
+                b.append(prices[i]).append('x').append(quantities[i]);
+            }
+            return b.append(']').toString();
+        }
+    }
+
+    public static class Entry {
+
+        private final int price;
+        private final int quantity;
+        private final boolean isBuy;
+
+        Entry(int price, int quantity, boolean isBuy) {
+            this.price = price;
+            this.quantity = quantity;
+            this.isBuy = isBuy;
+        }
+
         public int getPrice() {
             return price;
         }
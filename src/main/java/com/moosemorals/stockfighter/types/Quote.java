@@ -25,8 +25,6 @@ package com.moosemorals.stockfighter.types;
 
 import javax.json.stream.JsonParser;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,22 +34,28 @@ import org.slf4j.LoggerFactory;
  */
 public class Quote {
 
-    private static final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
-
     private static final Logger log = LoggerFactory.getLogger(Quote.class);
 
-    private String symbol;
-    private String venue;
-    private int bid;
-    private int ask;
-    private int bidSize;
-    private int askSize;
-    private int bidDepth;
-    private int askDepth;
-    private int last;
-    private int lastSize;
-    private DateTime lastTrade;
-    private DateTime quoteTime;
+    String symbol;
+    int symbolId = Dictionary.NONE;
+    String venue;
+    int venueId = Dictionary.NONE;
+    int bid;
+    int ask;
+    int bidSize;
+    int askSize;
+    int bidDepth;
+    int askDepth;
+    int last;
+    int lastSize;
+    long lastTrade = TimestampCodec.NONE;
+    long quoteTime = TimestampCodec.NONE;
+
+    /**
+     * An empty quote, for a {@link MessageDecoder} to fill in.
+     */
+    public Quote() {
+    }
 
     public Quote(JsonParser parser) {
         while (parser.hasNext()) {
@@ -62,10 +66,12 @@ public class Quote {
 
                     switch (key) {
                         case "symbol":
-                            symbol = parser.getString();
+                            symbolId = Dictionary.SYMBOLS.id(parser.getString());
+                            symbol = Dictionary.SYMBOLS.name(symbolId);
                             break;
                         case "venue":
-                            venue = parser.getString();
+                            venueId = Dictionary.VENUES.id(parser.getString());
+                            venue = Dictionary.VENUES.name(venueId);
                             break;
                         case "bid":
                             bid = parser.getInt();
@@ -92,10 +98,10 @@ public class Quote {
                             lastSize = parser.getInt();
                             break;
                         case "lastTrade":
-                            lastTrade = dateParser.parseDateTime(parser.getString());
+                            lastTrade = TimestampCodec.parse(parser.getString());
                             break;
                         case "quoteTime":
-                            quoteTime = dateParser.parseDateTime(parser.getString());
+                            quoteTime = TimestampCodec.parse(parser.getString());
                             break;
                         default:
                             log.debug("Unexpected json key {}", key);
@@ -108,10 +114,24 @@ public class Quote {
         return symbol;
     }
 
+    /**
+     * @return id of the symbol in {@link Dictionary#SYMBOLS}
+     */
+    public int getSymbolId() {
+        return symbolId;
+    }
+
     public String getVenue() {
         return venue;
     }
 
+    /**
+     * @return id of the venue in {@link Dictionary#VENUES}
+     */
+    public int getVenueId() {
+        return venueId;
+    }
+
     public int getBid() {
         return bid;
     }
@@ -145,16 +165,73 @@ public class Quote {
     }
 
     public DateTime getLastTrade() {
+        return TimestampCodec.toDateTime(lastTrade);
+    }
+
+    /**
+     * @return lastTrade as nanoseconds since the epoch, or
+     * {@link TimestampCodec#NONE} if it wasn't sent
+     */
+    public long getLastTradeNanos() {
         return lastTrade;
     }
 
     public DateTime getQuoteTime() {
+        return TimestampCodec.toDateTime(quoteTime);
+    }
+
+    /**
+     * @return quoteTime as nanoseconds since the epoch, or
+     * {@link TimestampCodec#NONE} if it wasn't sent
+     */
+    public long getQuoteTimeNanos() {
         return quoteTime;
     }
 
+    void reset() {
+        symbol = null;
+        symbolId = Dictionary.NONE;
+        venue = null;
+        venueId = Dictionary.NONE;
+        bid = 0;
+        ask = 0;
+        bidSize = 0;
+        askSize = 0;
+        bidDepth = 0;
+        askDepth = 0;
+        last = 0;
+        lastSize = 0;
+        lastTrade = TimestampCodec.NONE;
+        quoteTime = TimestampCodec.NONE;
+    }
+
+    /**
+     * Copy this quote, for listeners that need to keep a reused one.
+     *
+     * @return a new Quote with the same values
+     */
+    public Quote copy() {
+        Quote q = new Quote();
+        q.symbol = symbol;
+        q.symbolId = symbolId;
+        q.venue = venue;
+        q.venueId = venueId;
+        q.bid = bid;
+        q.ask = ask;
+        q.bidSize = bidSize;
+        q.askSize = askSize;
+        q.bidDepth = bidDepth;
+        q.askDepth = askDepth;
+        q.last = last;
+        q.lastSize = lastSize;
+        q.lastTrade = lastTrade;
+        q.quoteTime = quoteTime;
+        return q;
+    }
+
     @Override
     public String toString() {
-        return "Quote{" + "symbol=" + symbol + ", venue=" + venue + ", ask=" + ask + ", bidSize=" + bidSize + ", askSize=" + askSize + ", bidDepth=" + bidDepth + ", askDepth=" + askDepth + ", last=" + last + ", lastSize=" + lastSize + ", lastTrade=" + lastTrade + ", quoteTime=" + quoteTime + '}';
+        return "Quote{" + "symbol=" + symbol + ", venue=" + venue + ", ask=" + ask + ", bidSize=" + bidSize + ", askSize=" + askSize + ", bidDepth=" + bidDepth + ", askDepth=" + askDepth + ", last=" + last + ", lastSize=" + lastSize + ", lastTrade=" + getLastTrade() + ", quoteTime=" + getQuoteTime() + '}';
     }
 
 }
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Parses API timestamps into nanoseconds since the epoch.
+ *
+ * <p>
+ * The API always sends <code>yyyy-MM-ddTHH:mm:ss[.fffffffff](Z|+HH:MM)</code>,
+ * with anything up to nine fractional digits. That format is parsed directly,
+ * keeping the full precision, and the epoch day for the most recent date is
+ * cached since it hardly ever changes. Anything else is handed to Joda (and
+ * so only has millisecond precision).</p>
+ *
+ * <p>
+ * Nanosecond longs cover 1677 to 2262, which should be enough.</p>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class TimestampCodec {
+
+    /**
+     * Stored in place of a timestamp that wasn't in the message.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private static final DateTimeFormatter fallbackParser = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final int[] SCALE = {
+        1000000000, 100000000, 10000000, 1000000, 100000, 10000, 1000, 100, 10, 1
+    };
+
+    private static volatile Day lastDay = new Day(19700101, 0);
+
+    private TimestampCodec() {
+        // Static only
+    }
+
+    public static long parse(String raw) {
+        byte[] ascii = raw.getBytes(StandardCharsets.ISO_8859_1);
+        long nanos = parseFast(ascii, 0, ascii.length);
+        return nanos != NONE ? nanos : fallbackParser.parseMillis(raw) * NANOS_PER_MILLI;
+    }
+
+    public static long parse(byte[] buf, int offset, int length) {
+        long nanos = parseFast(buf, offset, length);
+        return nanos != NONE ? nanos : fallbackParser.parseMillis(new String(buf, offset, length, StandardCharsets.UTF_8)) * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Convert to a Joda DateTime in UTC. Loses everything below a millisecond.
+     *
+     * @param nanos
+     * @return DateTime, or null if nanos is {@link #NONE}
+     */
+    public static DateTime toDateTime(long nanos) {
+        return nanos == NONE ? null : new DateTime(Math.floorDiv(nanos, NANOS_PER_MILLI), DateTimeZone.UTC);
+    }
+
+    /**
+     * Convert to an Instant, keeping full precision.
+     *
+     * @param nanos
+     * @return Instant, or null if nanos is {@link #NONE}
+     */
+    public static Instant toInstant(long nanos) {
+        return nanos == NONE ? null : Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND));
+    }
+
+    /**
+     * Parse the fixed API format, or return NONE if it's something else.
+     */
+    private static long parseFast(byte[] b, int offset, int length) {
+        int end = offset + length;
+        if (length < 20
+                || b[offset + 4] != '-' || b[offset + 7] != '-' || b[offset + 10] != 'T'
+                || b[offset + 13] != ':' || b[offset + 16] != ':') {
+            return NONE;
+        }
+
+        int year = digits(b, offset, 4);
+        int month = digits(b, offset + 5, 2);
+        int day = digits(b, offset + 8, 2);
+        int hour = digits(b, offset + 11, 2);
+        int minute = digits(b, offset + 14, 2);
+        int second = digits(b, offset + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return NONE;
+        }
+
+        int i = offset + 19;
+        long fraction = 0;
+        if (b[i] == '.') {
+            i += 1;
+            int start = i;
+            while (i < end && b[i] >= '0' && b[i] <= '9') {
+                fraction = fraction * 10 + (b[i] - '0');
+                i += 1;
+            }
+            int count = i - start;
+            if (count == 0 || count > 9) {
+                return NONE;
+            } else if (count < 9) {
+                fraction *= SCALE[count];
+            }
+        }
+
+        if (i >= end) {
+            return NONE;
+        }
+        int zoneSeconds;
+        byte sign = b[i];
+        if (sign == 'Z') {
+            zoneSeconds = 0;
+            i += 1;
+        } else if (sign == '+' || sign == '-') {
+            if (i + 3 > end) {
+                return NONE;
+            }
+            int zoneHours = digits(b, i + 1, 2);
+            int zoneMinutes = 0;
+            i += 3;
+            if (i < end) {
+                if (b[i] == ':') {
+                    i += 1;
+                }
+                if (i + 2 != end) {
+                    return NONE;
+                }
+                zoneMinutes = digits(b, i, 2);
+                i += 2;
+            }
+            if (zoneHours < 0 || zoneHours > 23 || zoneMinutes < 0 || zoneMinutes > 59) {
+                return NONE;
+            }
+            zoneSeconds = (zoneHours * 3600 + zoneMinutes * 60) * (sign == '-' ? -1 : 1);
+        } else {
+            return NONE;
+        }
+        if (i != end) {
+            return NONE;
+        }
+
+        int key = year * 10000 + month * 100 + day;
+        Day cached = lastDay;
+        if (cached.key != key) {
+            cached = new Day(key, epochDay(year, month, day));
+            lastDay = cached;
+        }
+
+        long seconds = cached.epochDay * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second - zoneSeconds;
+        return seconds * NANOS_PER_SECOND + fraction;
+    }
+
+    /**
+     * Read count ascii digits, or return -1 if any of them aren't.
+     */
+    private static int digits(byte[] b, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i += 1) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static final class Day {
+
+        final int key;
+        final long epochDay;
+
+        Day(int key, long epochDay) {
+            this.key = key;
+            this.epochDay = epochDay;
+        }
+    }
+}
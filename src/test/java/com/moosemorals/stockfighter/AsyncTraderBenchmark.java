@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Order throughput of {@link AsyncTrader} with different numbers of outbound
+ * workers, against a local stand-in exchange that takes a few milliseconds
+ * to answer, like a real one.
+ *
+ * Run with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:java -Dbenchmark.main=com.moosemorals.stockfighter.AsyncTraderBenchmark
+ * </pre>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class AsyncTraderBenchmark {
+
+    private static final int ORDERS = 400;
+    private static final long ROUND_TRIP = 5;
+
+    public static void main(String[] args) throws Exception {
+        try (StubExchange exchange = new StubExchange(32)) {
+            exchange.setDelay(ROUND_TRIP);
+
+            System.out.printf("%8s %10s %12s %14s%n", "workers", "time(ms)", "orders/sec", "max wait(ms)");
+            for (int workers : new int[]{1, 2, 4, 8, 16}) {
+                run(exchange, workers);
+            }
+        }
+    }
+
+    private static void run(StubExchange exchange, int workers) throws Exception {
+        final AtomicReference<CountDownLatch> done = new AtomicReference<>(new CountDownLatch(ORDERS / 10));
+        Trader trader = new Trader(new PooledTransport(exchange.getBaseUrl(), "key", workers)) {
+            @Override
+            public OrderStatus postOrder(Order order) throws IOException {
+                OrderStatus status = super.postOrder(order);
+                done.get().countDown();
+                return status;
+            }
+        };
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", ORDERS, OutboundQueue.Overflow.BLOCK, workers);
+        at.start();
+
+        // Warm up
+        for (int i = 0; i < ORDERS / 10; i += 1) {
+            at.post(AsyncTraderNGTest.order());
+        }
+        done.get().await();
+
+        done.set(new CountDownLatch(ORDERS));
+        long start = System.nanoTime();
+        for (int i = 0; i < ORDERS; i += 1) {
+            at.post(AsyncTraderNGTest.order());
+        }
+        done.get().await();
+        long elapsed = System.nanoTime() - start;
+
+        long maxWait = 0;
+        for (OutboundQueue q : at.getOutboundQueues()) {
+            maxWait = Math.max(maxWait, q.getMaxWaitNanos());
+        }
+        at.stop();
+        trader.close();
+
+        System.out.printf("%8d %10.1f %12.0f %14.1f%n", workers,
+                elapsed / 1e6,
+                ORDERS / (elapsed / 1e9),
+                maxWait / 1e6);
+    }
+}
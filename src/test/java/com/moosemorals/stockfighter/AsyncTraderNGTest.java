@@ -0,0 +1,373 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Queued posts and cancels against a local stand-in exchange.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class AsyncTraderNGTest {
+
+    private StubExchange exchange;
+    private Trader trader;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        exchange = new StubExchange();
+        trader = new Trader(new PooledTransport(exchange.getBaseUrl(), "key", 8));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        trader.close();
+        exchange.close();
+    }
+
+    @Test
+    public void test_workersRunTogether() throws Exception {
+        exchange.setDelay(50);
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 8);
+        at.start();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < 16; i += 1) {
+                at.post(order());
+            }
+            awaitRequests(16);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // One at a time would take 800ms
+            assertTrue(millis < 400, "Took " + millis + "ms");
+            // Let the last answers come back before the exchange goes away
+            Thread.sleep(200);
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_routing() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 4);
+        assertEquals(at.getWorkerCount(), 4);
+        // Not started, so everything stays queued
+        for (int id = 6; id < 18; id += 4) {
+            at.cancel(id);
+        }
+        assertEquals(at.getOutboundQueues().get(2).getDepth(), 3);
+        for (int i = 0; i < 8; i += 1) {
+            at.post(order());
+        }
+        for (OutboundQueue q : at.getOutboundQueues()) {
+            assertEquals(q.getQueuedCount(), q == at.getOutboundQueues().get(2) ? 5 : 2);
+        }
+        assertEquals(at.getOutboundDepth(), 11);
+    }
+
+    @Test
+    public void test_cancelsReachListeners() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 3);
+        BlockingQueue<OrderStatus> cancelled = new LinkedBlockingQueue<>();
+        at.addListener(cancelled::add);
+        at.start();
+        try {
+            for (int id = 1; id <= 6; id += 1) {
+                at.cancel(id);
+            }
+            int total = 0;
+            for (int i = 0; i < 6; i += 1) {
+                OrderStatus s = cancelled.poll(5, TimeUnit.SECONDS);
+                total += s.getId();
+                assertEquals(s.isOpen(), false);
+            }
+            assertEquals(total, 21);
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_postsComplete() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 2);
+        BlockingQueue<Integer> posted = new LinkedBlockingQueue<>();
+        at.addListener(new AsyncTrader.Listener() {
+            @Override
+            public void onCancel(OrderStatus status) {
+            }
+
+            @Override
+            public void onPosted(Order order, OrderStatus status) {
+                posted.add(status.getId());
+            }
+        });
+        at.start();
+        try {
+            CompletableFuture<OrderStatus> first = at.post(order());
+            CompletableFuture<OrderStatus> second = at.post(order());
+            int a = first.get(5, TimeUnit.SECONDS).getId();
+            int b = second.get(5, TimeUnit.SECONDS).getId();
+            assertTrue(a != b);
+            assertEquals(posted.poll(5, TimeUnit.SECONDS) + posted.poll(5, TimeUnit.SECONDS), a + b);
+
+            OrderStatus cancelled = at.cancel(a).get(5, TimeUnit.SECONDS);
+            assertEquals(cancelled.getId(), a);
+            assertFalse(cancelled.isOpen());
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_errorsDontStopWorker() throws Exception {
+        AtomicInteger failures = new AtomicInteger(1);
+        Trader flaky = new Trader(trader.getTransport()) {
+            @Override
+            public OrderStatus postOrder(Order order) throws IOException {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("Connection reset");
+                }
+                return super.postOrder(order);
+            }
+        };
+        AsyncTrader at = new AsyncTrader(flaky, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 1);
+        BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+        at.addListener(new AsyncTrader.Listener() {
+            @Override
+            public void onCancel(OrderStatus status) {
+            }
+
+            @Override
+            public void onError(Order order, int id, Exception error) {
+                errors.add(error);
+            }
+        });
+        at.start();
+        try {
+            CompletableFuture<OrderStatus> failed = at.post(order());
+            CompletableFuture<OrderStatus> worked = at.post(order());
+            try {
+                failed.get(5, TimeUnit.SECONDS);
+                fail("Should have failed");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+            assertTrue(worked.get(5, TimeUnit.SECONDS).isOk());
+            assertEquals(errors.poll(5, TimeUnit.SECONDS).getMessage(), "Connection reset");
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_rejected() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 1, OutboundQueue.Overflow.REJECT, 1);
+        BlockingQueue<String> reasons = new LinkedBlockingQueue<>();
+        at.addListener(new AsyncTrader.Listener() {
+            @Override
+            public void onCancel(OrderStatus status) {
+            }
+
+            @Override
+            public void onRejected(Order order, int id, OrderStatus status, String reason) {
+                reasons.add(reason);
+            }
+        });
+
+        // Not started, so the second post has nowhere to go
+        Order broke = order();
+        broke.setAccount(StubExchange.BROKE);
+        CompletableFuture<OrderStatus> queued = at.post(broke);
+        CompletableFuture<OrderStatus> full = at.post(order());
+        assertTrue(full.isCompletedExceptionally());
+        assertEquals(reasons.poll(), "Queue full");
+
+        at.start();
+        try {
+            OrderStatus status = queued.get(5, TimeUnit.SECONDS);
+            assertFalse(status.isOk());
+            assertEquals(reasons.poll(5, TimeUnit.SECONDS), "Not enough cash");
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_droppedFails() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 2, OutboundQueue.Overflow.DROP_OLDEST, 1);
+        CompletableFuture<OrderStatus> oldest = at.post(order());
+        at.post(order());
+        at.post(order());
+        assertTrue(oldest.isCompletedExceptionally());
+        try {
+            oldest.get();
+            fail("Should have been dropped");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(at.getOutboundDepth(), 2);
+    }
+
+    @Test
+    public void test_cancelQueuedPost() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 1);
+        // Not started, so the post is still queued
+        CompletableFuture<OrderStatus> posted = at.post(order());
+        CompletableFuture<OrderStatus> cancelled = at.cancel(posted);
+        assertTrue(posted.isCancelled());
+        assertEquals(cancelled.get(), null);
+        assertEquals(at.getOutboundDepth(), 0);
+        assertEquals(at.getSavedCount(), 2);
+
+        at.start();
+        try {
+            // Sent already, so it's cancelled once the post comes back
+            posted = at.post(order());
+            int id = posted.get(5, TimeUnit.SECONDS).getId();
+            assertEquals(at.cancel(posted).get(5, TimeUnit.SECONDS).getId(), id);
+
+            // Merged cancels both hear the answer
+            exchange.setDelay(100);
+            at.post(order());
+            CompletableFuture<OrderStatus> first = at.cancel(id);
+            CompletableFuture<OrderStatus> second = at.cancel(id);
+            assertEquals(second.get(5, TimeUnit.SECONDS).getId(), id);
+            assertEquals(first.get(5, TimeUnit.SECONDS).getId(), id);
+            assertEquals(at.getSavedCount(), 3);
+            awaitRequests(4);
+
+            // Nothing to cancel if the exchange turned the post down
+            exchange.setDelay(0);
+            Order broke = order();
+            broke.setAccount(StubExchange.BROKE);
+            posted = at.post(broke);
+            assertFalse(posted.get(5, TimeUnit.SECONDS).isOk());
+            assertEquals(at.cancel(posted).get(5, TimeUnit.SECONDS), posted.get());
+            Thread.sleep(100);
+            assertEquals(exchange.getRequestCount(), 5);
+            Thread.sleep(200);
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_cancelsJumpPosts() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 1);
+        for (int i = 0; i < 50; i += 1) {
+            at.post(order());
+        }
+        CompletableFuture<OrderStatus> cancelled = at.cancel(7);
+        exchange.setDelay(20);
+        at.start();
+        try {
+            cancelled.get(5, TimeUnit.SECONDS);
+            // Only the cancel has gone, not the fifty posts ahead of it
+            assertTrue(exchange.getRequestCount() <= 2, "Sent " + exchange.getRequestCount());
+            Thread.sleep(200);
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_stopFailsQueued() throws Exception {
+        AsyncTrader at = new AsyncTrader(trader, null, "TESTEX", "FOOBAR", 64, OutboundQueue.Overflow.BLOCK, 1);
+        BlockingQueue<String> reasons = new LinkedBlockingQueue<>();
+        at.addListener(new AsyncTrader.Listener() {
+            @Override
+            public void onCancel(OrderStatus status) {
+            }
+
+            @Override
+            public void onRejected(Order order, int id, OrderStatus status, String reason) {
+                reasons.add(reason);
+            }
+        });
+        exchange.setDelay(200);
+        at.start();
+        List<CompletableFuture<OrderStatus>> queued = new ArrayList<>();
+        try {
+            at.post(order());
+            awaitRequests(1);
+            for (int i = 0; i < 4; i += 1) {
+                queued.add(at.post(order()));
+            }
+            queued.add(at.cancel(7));
+        } finally {
+            at.stop();
+        }
+        for (CompletableFuture<OrderStatus> f : queued) {
+            assertTrue(f.isCancelled());
+        }
+        for (int i = 0; i < queued.size(); i += 1) {
+            assertEquals(reasons.poll(5, TimeUnit.SECONDS), "Stopped before sending");
+        }
+        assertEquals(at.getOutboundDepth(), 0);
+
+        // Nothing's left waiting after stopping either
+        assertTrue(at.post(order()).isCancelled());
+        assertEquals(at.getOutboundDepth(), 0);
+        Thread.sleep(300);
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (exchange.getRequestCount() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(exchange.getRequestCount(), count);
+    }
+
+    static Order order() {
+        Order o = new Order();
+        o.setAccount("EXB123456");
+        o.setVenue("TESTEX");
+        o.setSymbol("FOOBAR");
+        o.setPrice(5100);
+        o.setQuantity(10);
+        o.setBuy(true);
+        o.setType(Order.OrderType.Limit);
+        return o;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class BackoffNGTest {
+
+    @Test
+    public void test_growsAndCaps() {
+        Backoff b = new Backoff(100, 1000, 2.0, 0.0);
+        assertEquals(b.nextDelayMillis(), 100);
+        assertEquals(b.nextDelayMillis(), 200);
+        assertEquals(b.nextDelayMillis(), 400);
+        assertEquals(b.nextDelayMillis(), 800);
+        assertEquals(b.nextDelayMillis(), 1000);
+        assertEquals(b.nextDelayMillis(), 1000);
+        assertEquals(b.getAttempts(), 4);
+
+        b.reset();
+        assertEquals(b.getAttempts(), 0);
+        assertEquals(b.nextDelayMillis(), 100);
+    }
+
+    @Test
+    public void test_jitter() {
+        Backoff b = new Backoff(1000, 1000, 2.0, 0.5);
+        for (int i = 0; i < 1000; i += 1) {
+            long delay = b.nextDelayMillis();
+            assertTrue(delay >= 500 && delay <= 1000, "Delay " + delay);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_badSettings() {
+        new Backoff(100, 10, 2.0, 0.5);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Quote;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class ConflatingQuoteListenerNGTest {
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"%s\",\"venue\":\"TESTEX\",\"bid\":%d,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    /**
+     * Runs tasks when told to, standing in for a busy thread.
+     */
+    private static final class ManualExecutor implements Executor {
+
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while ((r = tasks.poll()) != null) {
+                r.run();
+            }
+        }
+    }
+
+    @Test
+    public void test_newestOnly() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(AbstractTicker.BASE_URL));
+        ticker.setReuseQuotes(true);
+        ManualExecutor executor = new ManualExecutor();
+        final List<Quote> seen = new ArrayList<>();
+        ConflatingQuoteListener slow = ticker.addConflatingListener(new QuoteTicker.Listener() {
+            @Override
+            public void onQuote(Quote q) {
+                seen.add(q);
+            }
+        }, executor);
+
+        for (int i = 1; i <= 5; i += 1) {
+            ticker.onMessage(String.format(QUOTE, "FOOBAR", i));
+        }
+        ticker.onMessage(String.format(QUOTE, "BARFOO", 100));
+        ticker.onMessage(String.format(QUOTE, "BARFOO", 200));
+
+        // Only one drain queued, however many quotes arrived
+        assertEquals(executor.tasks.size(), 1);
+        executor.runAll();
+
+        assertEquals(seen.size(), 2);
+        assertEquals(seen.get(0).getSymbol(), "FOOBAR");
+        assertEquals(seen.get(0).getBid(), 5);
+        assertEquals(seen.get(1).getBid(), 200);
+
+        assertEquals(slow.getReceivedCount(), 7);
+        assertEquals(slow.getDeliveredCount(), 2);
+        assertEquals(slow.getConflatedCount(), 5);
+        assertEquals(slow.getConflatedCount("TESTEX", "FOOBAR"), 4);
+        assertEquals(slow.getConflatedCount("TESTEX", "BARFOO"), 1);
+        assertTrue(slow.getMaxAgeNanos() > 0);
+
+        // Caught up, so the next quote goes straight through
+        ticker.onMessage(String.format(QUOTE, "FOOBAR", 6));
+        executor.runAll();
+        assertEquals(seen.get(2).getBid(), 6);
+        assertEquals(slow.getConflatedCount(), 5);
+
+        ticker.removeListener(slow);
+        ticker.onMessage(String.format(QUOTE, "FOOBAR", 7));
+        assertTrue(executor.tasks.isEmpty());
+    }
+}
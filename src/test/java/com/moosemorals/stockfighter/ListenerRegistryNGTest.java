@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class ListenerRegistryNGTest {
+
+    private interface Sink {
+
+        void take(StringBuilder event);
+    }
+
+    private static ListenerRegistry<Sink, StringBuilder> registry() {
+        return new ListenerRegistry<>(Sink::take, sb -> new StringBuilder(sb));
+    }
+
+    @Test
+    public void test_addRemove() {
+        ListenerRegistry<Sink, StringBuilder> r = registry();
+        final List<String> seen = new ArrayList<>();
+        Sink a = e -> seen.add("a" + e);
+        Sink b = e -> seen.add("b" + e);
+
+        assertTrue(r.add(a));
+        assertTrue(r.add(b));
+        assertFalse(r.add(a));
+        assertEquals(r.size(), 2);
+
+        r.dispatch(new StringBuilder("1"), false);
+        assertTrue(r.remove(a));
+        assertFalse(r.remove(a));
+        r.dispatch(new StringBuilder("2"), false);
+
+        assertEquals(seen.toString(), "[a1, b1, b2]");
+        assertTrue(r.remove(b));
+        assertTrue(r.isEmpty());
+    }
+
+    @Test
+    public void test_exceptionsAreIsolated() {
+        ListenerRegistry<Sink, StringBuilder> r = registry();
+        final List<String> seen = new ArrayList<>();
+        r.add(e -> {
+            throw new IllegalStateException("Broken listener");
+        });
+        r.add(e -> seen.add(e.toString()));
+
+        r.dispatch(new StringBuilder("1"), false);
+        r.dispatch(new StringBuilder("2"), false);
+
+        assertEquals(seen.size(), 2);
+        List<ListenerRegistry.Stats> stats = r.getStats();
+        assertEquals(stats.get(0).getErrors(), 2);
+        assertEquals(stats.get(0).getCalls(), 2);
+        assertEquals(stats.get(1).getErrors(), 0);
+    }
+
+    @Test
+    public void test_latency() {
+        ListenerRegistry<Sink, StringBuilder> r = registry();
+        r.add(e -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        r.add(e -> {
+        });
+
+        r.dispatch(new StringBuilder(), false);
+
+        List<ListenerRegistry.Stats> stats = r.getStats();
+        assertTrue(stats.get(0).getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(15), stats.get(0).toString());
+        assertTrue(stats.get(1).getMaxNanos() < stats.get(0).getMaxNanos());
+    }
+
+    @Test
+    public void test_executorGetsCopies() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ListenerRegistry<Sink, StringBuilder> r = registry();
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(2);
+            final List<StringBuilder> seen = new ArrayList<>();
+            final List<StringBuilder> inline = new ArrayList<>();
+            r.add(e -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                seen.add(e);
+                done.countDown();
+            }, executor);
+            r.add(inline::add);
+
+            StringBuilder flyweight = new StringBuilder("1");
+            r.dispatch(flyweight, true);
+            flyweight.setLength(0);
+            flyweight.append("2");
+            r.dispatch(flyweight, true);
+
+            // Dispatch didn't wait for the slow listener
+            assertEquals(r.getStats().get(0).getPending(), 2);
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertEquals(seen.get(0).toString(), "1");
+            assertEquals(seen.get(1).toString(), "2");
+            assertNotSame(seen.get(0), flyweight);
+            assertSame(inline.get(0), flyweight);
+            assertTrue(r.getStats().get(0).isAsync());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.MessageDecoder;
+import com.moosemorals.stockfighter.types.Quote;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Seeds a local book from the stand-in exchange and feeds it ticker events.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class LocalOrderbookNGTest {
+
+    private static final String VENUE = "TESTEX";
+    private static final String SYMBOL = "FOOBAR";
+
+    // A second after the stand-in exchange's orderbook timestamp
+    private static final String LATER = "2015-12-04T09:02:17.000000000Z";
+    private static final String EARLIER = "2015-12-04T09:02:15.000000000Z";
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"%s\",\"venue\":\"TESTEX\","
+            + "\"bid\":%d,\"bidSize\":%d,\"bidDepth\":%d,\"ask\":%d,\"askSize\":%d,\"askDepth\":%d,"
+            + "\"last\":5125,\"lastSize\":52,\"lastTrade\":\"%5$s\",\"quoteTime\":\"%s\"}}";
+
+    private static final String EXECUTION = "{\"ok\":true,\"account\":\"EXB123456\",\"venue\":\"TESTEX\",\"symbol\":\"FOOBAR\","
+            + "\"order\":{\"ok\":true,\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"direction\":\"buy\",\"originalQty\":500,"
+            + "\"qty\":0,\"price\":5400,\"orderType\":\"limit\",\"id\":%d,\"account\":\"EXB123456\","
+            + "\"ts\":\"" + LATER + "\",\"fills\":[],\"totalFilled\":0,\"open\":true},"
+            + "\"standingId\":%d,\"incomingId\":%d,\"price\":%d,\"filled\":%d,\"filledAt\":\"" + LATER + "\","
+            + "\"standingComplete\":false,\"incomingComplete\":false}";
+
+    private final MessageDecoder decoder = new MessageDecoder();
+
+    private StubExchange exchange;
+    private Trader trader;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        exchange = new StubExchange();
+        trader = new Trader(new PooledTransport(exchange.getBaseUrl(), "key", 1));
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        trader.close();
+        exchange.close();
+    }
+
+    private LocalOrderbook seeded() throws Exception {
+        LocalOrderbook book = new LocalOrderbook(trader, VENUE, SYMBOL);
+        book.resync();
+        return book;
+    }
+
+    private Quote quote(String symbol, int bid, int bidSize, int bidDepth, int ask, int askSize, int askDepth, String time) {
+        return decoder.decodeQuote(String.format(QUOTE, symbol, bid, bidSize, bidDepth, ask, askSize, askDepth, time));
+    }
+
+    private Execution execution(int orderId, int standingId, int incomingId, int price, int filled) {
+        return decoder.decodeExecution(String.format(EXECUTION, orderId, standingId, incomingId, price, filled));
+    }
+
+    @Test
+    public void test_seed() throws Exception {
+        LocalOrderbook book = seeded();
+
+        assertEquals(book.getBestBid(), 5200);
+        assertEquals(book.getBestBidSize(), 1);
+        assertEquals(book.getBestAsk(), 5300);
+        assertEquals(book.getBestAskSize(), 100);
+        assertEquals(book.getSpread(), 100);
+        assertEquals(book.getDepth(true), 501);
+        assertEquals(book.getDepth(false), 150);
+        assertEquals(book.getLevelCount(true), 3);
+        assertEquals(book.getQuantityAt(true, 5100), 200);
+        assertEquals(book.getQuantityAt(true, 5150), 0);
+        assertEquals(book.getResyncCount(), 1);
+
+        int[] prices = new int[5];
+        int[] quantities = new int[5];
+        assertEquals(book.getLevels(false, prices, quantities), 2);
+        assertEquals(prices[0], 5300);
+        assertEquals(prices[1], 5400);
+        assertEquals(quantities[1], 50);
+    }
+
+    @Test
+    public void test_quote() throws Exception {
+        LocalOrderbook book = seeded();
+
+        // The 5200 bid has gone and an ask has arrived inside the spread
+        book.onQuote(quote(SYMBOL, 5100, 150, 450, 5250, 10, 160, LATER));
+
+        assertEquals(book.getBestBid(), 5100);
+        assertEquals(book.getBestBidSize(), 150);
+        assertEquals(book.getDepth(true), 450);
+        assertEquals(book.getBestAsk(), 5250);
+        assertEquals(book.getLevelCount(false), 3);
+        assertEquals(book.getDepth(false), 160);
+        assertEquals(book.getDriftCount(), 0);
+
+        // Stale, and other stocks, are ignored
+        book.onQuote(quote(SYMBOL, 4000, 1, 1, 6000, 1, 1, EARLIER));
+        book.onQuote(quote("OTHER", 4000, 1, 1, 6000, 1, 1, LATER));
+        assertEquals(book.getBestBid(), 5100);
+        assertEquals(book.getBestAsk(), 5250);
+    }
+
+    @Test
+    public void test_emptySide() throws Exception {
+        LocalOrderbook book = seeded();
+
+        book.onQuote(quote(SYMBOL, 0, 0, 0, 5300, 100, 150, LATER));
+
+        assertEquals(book.getBestBid(), LocalOrderbook.NO_PRICE);
+        assertEquals(book.getSpread(), LocalOrderbook.NO_PRICE);
+        assertEquals(book.getDepth(true), 0);
+        assertEquals(book.getBestAsk(), 5300);
+    }
+
+    @Test
+    public void test_execution() throws Exception {
+        LocalOrderbook book = seeded();
+
+        // Our incoming buy took 40 off the 5300 ask
+        book.onExecute(execution(27, 20, 27, 5300, 40));
+        assertEquals(book.getBestAskSize(), 60);
+        assertEquals(book.getDepth(false), 110);
+
+        // Our standing buy at 5100 was hit for all of it
+        book.onExecute(execution(20, 20, 27, 5100, 200));
+        assertEquals(book.getQuantityAt(true, 5100), 0);
+        assertEquals(book.getLevelCount(true), 2);
+        assertEquals(book.getDepth(true), 301);
+    }
+
+    @Test
+    public void test_driftResyncs() throws Exception {
+        try (LocalOrderbook book = new LocalOrderbook(trader, VENUE, SYMBOL)) {
+            book.start(1, TimeUnit.HOURS);
+            assertEquals(book.getResyncCount(), 1);
+
+            // Depth that doesn't add up to what we hold
+            book.onQuote(quote(SYMBOL, 5200, 1, 9999, 5300, 100, 150, LATER));
+            assertEquals(book.getDriftCount(), 1);
+
+            long end = System.currentTimeMillis() + 5000;
+            while (book.getResyncCount() < 2 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(book.getResyncCount(), 2);
+            assertEquals(book.getDepth(true), 501);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.MessageDecoder;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Seeds an order cache from the stand-in exchange and feeds it updates.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderCacheNGTest {
+
+    private static final String VENUE = "TESTEX";
+    private static final String ACCOUNT = "EXB123456";
+    private static final String SYMBOL = "FOOBAR";
+
+    private static final String EXECUTION = "{\"ok\":true,\"account\":\"EXB123456\",\"venue\":\"TESTEX\",\"symbol\":\"FOOBAR\","
+            + "\"order\":{\"ok\":true,\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"direction\":\"buy\",\"originalQty\":100,"
+            + "\"qty\":%d,\"price\":5100,\"orderType\":\"limit\",\"id\":%d,\"account\":\"EXB123456\","
+            + "\"ts\":\"" + StubExchange.TS + "\",\"fills\":[],\"totalFilled\":%d,\"open\":%b},"
+            + "\"standingId\":%2$d,\"incomingId\":99,\"price\":5100,\"filled\":10,\"filledAt\":\"" + StubExchange.TS + "\","
+            + "\"standingComplete\":false,\"incomingComplete\":false}";
+
+    private final MessageDecoder decoder = new MessageDecoder();
+
+    private StubExchange exchange;
+    private Trader trader;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        exchange = new StubExchange();
+        trader = new Trader(new PooledTransport(exchange.getBaseUrl(), "key", 2));
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        trader.close();
+        exchange.close();
+    }
+
+    private OrderCache seeded() throws Exception {
+        OrderCache cache = new OrderCache(trader, VENUE, ACCOUNT);
+        cache.resync();
+        return cache;
+    }
+
+    private Execution execution(int id, int remaining, int filled, boolean open) {
+        return decoder.decodeExecution(String.format(EXECUTION, remaining, id, filled, open));
+    }
+
+    private static OrderStatus status(int id, String symbol, String account, boolean open) {
+        try (JsonParser parser = Json.createParser(new StringReader(StubExchange.order(id, VENUE, symbol, account, open)))) {
+            return new OrderStatus(parser);
+        }
+    }
+
+    @Test
+    public void test_seed() throws Exception {
+        OrderCache cache = seeded();
+
+        // The stand-in exchange lists three closed and three open orders
+        assertEquals(cache.size(), 6);
+        assertEquals(cache.getOpenCount(), 3);
+        assertTrue(cache.isOpen(2));
+        assertFalse(cache.isOpen(1));
+        assertTrue(cache.contains(1));
+        assertFalse(cache.contains(7));
+        assertEquals(cache.getRemainingQuantity(4), 20);
+        assertEquals(cache.getRemainingQuantity(3), 0);
+        assertEquals(cache.getFilledQuantity(3), 80);
+
+        assertEquals(cache.getWorkingQuantity(SYMBOL, true, 5100), 60);
+        assertEquals(cache.getWorkingOrderCount(SYMBOL, true, 5100), 3);
+        assertEquals(cache.getWorkingQuantity(SYMBOL, true, 5000), 0);
+        assertEquals(cache.getWorkingQuantity(SYMBOL, false, 5100), 0);
+        assertEquals(cache.getWorkingQuantity(SYMBOL, true), 60);
+
+        int[] open = new int[10];
+        assertEquals(cache.getOpenIds(SYMBOL, open), 3);
+        assertEquals(open[0] + open[1] + open[2], 12);
+        assertEquals(cache.getOpenIds("OTHER", open), 0);
+    }
+
+    @Test
+    public void test_executions() throws Exception {
+        OrderCache cache = seeded();
+
+        cache.onExecute(execution(2, 10, 90, true));
+        assertEquals(cache.getRemainingQuantity(2), 10);
+        assertEquals(cache.getWorkingQuantity(SYMBOL, true, 5100), 50);
+
+        // Older news is ignored
+        cache.onExecute(execution(2, 20, 80, true));
+        assertEquals(cache.getRemainingQuantity(2), 10);
+        assertEquals(cache.getStaleCount(), 1);
+
+        cache.onExecute(execution(2, 0, 100, false));
+        assertFalse(cache.isOpen(2));
+        assertEquals(cache.getWorkingQuantity(SYMBOL, true, 5100), 40);
+        assertEquals(cache.getWorkingOrderCount(SYMBOL, true, 5100), 2);
+
+        // A closed order doesn't come back
+        cache.onExecute(execution(2, 10, 100, true));
+        assertFalse(cache.isOpen(2));
+
+        // New orders are picked up from the feed
+        cache.onExecute(execution(50, 90, 10, true));
+        assertEquals(cache.getWorkingQuantity(SYMBOL, true), 130);
+    }
+
+    @Test
+    public void test_otherAccountsIgnored() throws Exception {
+        OrderCache cache = new OrderCache(trader, VENUE, ACCOUNT);
+        cache.update(status(1, SYMBOL, "EXB999999", true));
+        cache.update(status(2, SYMBOL, ACCOUNT, true));
+        assertEquals(cache.size(), 1);
+        assertTrue(cache.isOpen(2));
+    }
+
+    @Test
+    public void test_postAndCancel() throws Exception {
+        OrderCache cache = new OrderCache(trader, VENUE, ACCOUNT);
+        AsyncTrader at = new AsyncTrader(trader, null, VENUE, SYMBOL);
+        at.addListener(cache);
+        at.start();
+        try {
+            int id = at.post(AsyncTraderNGTest.order()).get(5, TimeUnit.SECONDS).getId();
+            awaitOpen(cache, id, true);
+            assertEquals(cache.getRemainingQuantity(id), 20);
+
+            at.cancel(id).get(5, TimeUnit.SECONDS);
+            awaitOpen(cache, id, false);
+            assertEquals(cache.getWorkingOrderCount(SYMBOL, true), 0);
+        } finally {
+            at.stop();
+        }
+    }
+
+    @Test
+    public void test_growAndPrune() throws Exception {
+        OrderCache cache = new OrderCache(trader, VENUE, ACCOUNT);
+        for (int id = 1; id <= 5000; id += 1) {
+            cache.update(status(id, id % 2 == 0 ? SYMBOL : "BARFOO", ACCOUNT, id % 3 != 0));
+        }
+        assertEquals(cache.size(), 5000);
+        assertEquals(cache.getOpenCount(), 3334);
+        assertEquals(cache.getWorkingOrderCount("BARFOO", true), 1667);
+
+        assertEquals(cache.prune(), 1666);
+        assertEquals(cache.size(), 3334);
+        for (int id = 1; id <= 5000; id += 1) {
+            assertEquals(cache.contains(id), id % 3 != 0, "Order " + id);
+        }
+
+        // Freed rows get reused
+        cache.update(status(6000, SYMBOL, ACCOUNT, true));
+        assertTrue(cache.isOpen(6000));
+        assertEquals(cache.getWorkingOrderCount(SYMBOL, true), 1668);
+    }
+
+    @Test
+    public void test_fast() throws Exception {
+        OrderCache cache = new OrderCache(trader, VENUE, ACCOUNT);
+        for (int id = 1; id <= 1000; id += 1) {
+            cache.update(status(id, SYMBOL, ACCOUNT, true));
+        }
+        int rounds = 1000000;
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i += 1) {
+            found += cache.getRemainingQuantity(1 + i % 1000);
+            found += cache.getWorkingQuantity(SYMBOL, true, 5100);
+        }
+        long each = (System.nanoTime() - start) / (rounds * 2L);
+        assertEquals(found, rounds * (20L + 20000L));
+        assertTrue(each < 1000, "Took " + each + "ns per query");
+    }
+
+    private static void awaitOpen(OrderCache cache, int id, boolean open) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (cache.isOpen(id) != open && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(cache.isOpen(id), open);
+    }
+}
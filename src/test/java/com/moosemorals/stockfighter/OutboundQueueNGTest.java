@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.json.Json;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OutboundQueueNGTest {
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void test_reject() throws Exception {
+        OutboundQueue q = new OutboundQueue(2, OutboundQueue.Overflow.REJECT);
+        assertEquals(q.offer(OutboundQueue.POST, new Order(), 0), OutboundQueue.Result.QUEUED);
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 7), OutboundQueue.Result.QUEUED);
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 8), OutboundQueue.Result.REJECTED);
+        assertEquals(q.getDepth(), 2);
+        assertEquals(q.getRejectedCount(), 1);
+
+        // Cancels go first
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        q.take(e);
+        assertEquals(e.type, OutboundQueue.CANCEL);
+        assertEquals(e.id, 7);
+        q.take(e);
+        assertEquals(e.type, OutboundQueue.POST);
+        assertEquals(q.getDepth(), 0);
+        assertEquals(q.getMaxDepth(), 2);
+        assertEquals(q.getQueuedCount(), 2);
+    }
+
+    @Test
+    public void test_dropOldestKeepsCancels() throws Exception {
+        OutboundQueue q = new OutboundQueue(3, OutboundQueue.Overflow.DROP_OLDEST);
+        Order first = new Order();
+        Order second = new Order();
+        Order third = new Order();
+        q.offer(OutboundQueue.CANCEL, null, 1);
+        q.offer(OutboundQueue.POST, first, 0);
+        q.offer(OutboundQueue.POST, second, 0);
+        assertEquals(q.offer(OutboundQueue.POST, third, 0), OutboundQueue.Result.QUEUED_DROPPED_OLDEST);
+        assertEquals(q.getDroppedCount(), 1);
+
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        q.take(e);
+        assertEquals(e.id, 1);
+        q.take(e);
+        assertSame(e.order, second);
+        q.take(e);
+        assertSame(e.order, third);
+
+        // Nothing to drop
+        for (int i = 0; i < 3; i += 1) {
+            q.offer(OutboundQueue.CANCEL, null, i);
+        }
+        assertEquals(q.offer(OutboundQueue.POST, first, 0), OutboundQueue.Result.REJECTED);
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 9), OutboundQueue.Result.REJECTED);
+    }
+
+    @Test
+    public void test_dropOldestWrapsRound() throws Exception {
+        OutboundQueue q = new OutboundQueue(3, OutboundQueue.Overflow.DROP_OLDEST);
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        // Move head along so the entries wrap
+        q.offer(OutboundQueue.CANCEL, null, 10);
+        q.offer(OutboundQueue.CANCEL, null, 11);
+        q.take(e);
+        q.take(e);
+        q.offer(OutboundQueue.CANCEL, null, 1);
+        q.offer(OutboundQueue.CANCEL, null, 2);
+        q.offer(OutboundQueue.POST, new Order(), 3);
+        q.offer(OutboundQueue.CANCEL, null, 4);
+        int[] expected = {1, 2, 4};
+        for (int id : expected) {
+            q.take(e);
+            assertEquals(e.id, id);
+        }
+    }
+
+    @Test
+    public void test_cancelsGoFirst() throws Exception {
+        OutboundQueue q = new OutboundQueue(8, OutboundQueue.Overflow.REJECT);
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        Order first = new Order();
+        Order second = new Order();
+        q.offer(OutboundQueue.POST, first, 0);
+        q.offer(OutboundQueue.POST, second, 0);
+        q.offer(OutboundQueue.CANCEL, null, 5);
+        q.offer(OutboundQueue.CANCEL, null, 6);
+        assertEquals(q.getCancelDepth(), 2);
+        assertEquals(q.getDepth(), 4);
+
+        int[] expected = {5, 6};
+        for (int id : expected) {
+            q.take(e);
+            assertEquals(e.type, OutboundQueue.CANCEL);
+            assertEquals(e.id, id);
+        }
+        q.take(e);
+        assertSame(e.order, first);
+        q.take(e);
+        assertSame(e.order, second);
+    }
+
+    @Test
+    public void test_coalesce() throws Exception {
+        OutboundQueue q = new OutboundQueue(8, OutboundQueue.Overflow.REJECT);
+        CompletableFuture<OrderStatus> leader = new CompletableFuture<>();
+        CompletableFuture<OrderStatus> follower = new CompletableFuture<>();
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 5, leader), OutboundQueue.Result.QUEUED);
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 5, follower), OutboundQueue.Result.COALESCED);
+        assertEquals(q.getDepth(), 1);
+        assertEquals(q.getCoalescedCount(), 1);
+
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        q.take(e);
+        assertSame(e.result, leader);
+        OrderStatus status = new OrderStatus(Json.createParser(new StringReader("{\"ok\":true,\"id\":5}")));
+        leader.complete(status);
+        assertSame(follower.getNow(null), status);
+
+        // Once it's been taken, the next cancel is queued again
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 5), OutboundQueue.Result.QUEUED);
+    }
+
+    @Test
+    public void test_coalesceNoLeaderResult() throws Exception {
+        OutboundQueue q = new OutboundQueue(8, OutboundQueue.Overflow.REJECT);
+        CompletableFuture<OrderStatus> follower = new CompletableFuture<>();
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 5), OutboundQueue.Result.QUEUED);
+        assertEquals(q.offer(OutboundQueue.CANCEL, null, 5, follower), OutboundQueue.Result.COALESCED);
+
+        // The follower's result goes out with the queued cancel
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        q.take(e);
+        assertSame(e.result, follower);
+    }
+
+    @Test
+    public void test_withdraw() throws Exception {
+        OutboundQueue q = new OutboundQueue(8, OutboundQueue.Overflow.REJECT);
+        Order first = new Order();
+        Order second = new Order();
+        CompletableFuture<OrderStatus> a = new CompletableFuture<>();
+        CompletableFuture<OrderStatus> b = new CompletableFuture<>();
+        q.offer(OutboundQueue.POST, first, 0, a);
+        q.offer(OutboundQueue.POST, second, 0, b);
+
+        assertSame(q.withdraw(b), second);
+        assertEquals(q.withdraw(b), null);
+        assertEquals(q.getDepth(), 1);
+        assertEquals(q.getWithdrawnCount(), 1);
+        assertEquals(q.getSavedCount(), 2);
+
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        q.take(e);
+        assertSame(e.order, first);
+        assertEquals(q.withdraw(a), null);
+    }
+
+    @Test
+    public void test_block() throws Exception {
+        final OutboundQueue q = new OutboundQueue(1, OutboundQueue.Overflow.BLOCK);
+        q.offer(OutboundQueue.CANCEL, null, 1);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<OutboundQueue.Result> result = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            started.countDown();
+            result.set(q.offer(OutboundQueue.CANCEL, null, 2));
+        });
+        t.start();
+        started.await();
+        Thread.sleep(50);
+        assertEquals(result.get(), null);
+
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        q.take(e);
+        t.join(5000);
+        assertEquals(result.get(), OutboundQueue.Result.QUEUED);
+        assertEquals(q.getBlockedCount(), 1);
+        q.take(e);
+        assertEquals(e.id, 2);
+        assertTrue(e.waitNanos >= 0);
+        assertTrue(q.getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void test_dontAllocate() throws Exception {
+        OutboundQueue q = new OutboundQueue(16, OutboundQueue.Overflow.REJECT);
+        OutboundQueue.Entry e = new OutboundQueue.Entry();
+        Order order = new Order();
+        int count = 100000;
+        for (int i = 0; i < count; i += 1) {
+            q.offer(OutboundQueue.POST, order, i);
+            q.take(e);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < count; i += 1) {
+            q.offer(OutboundQueue.POST, order, i);
+            q.take(e);
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        assertTrue((after - before) / (double) count < 1.0);
+    }
+}
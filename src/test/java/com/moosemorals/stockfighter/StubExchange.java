@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal local stand-in for the Stockfighter REST API, for tests and
+ * benchmarks. Answers every request with canned JSON, optionally after a
+ * fixed delay to simulate a round trip to the real exchange.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class StubExchange implements AutoCloseable {
+
+    /**
+     * Posts from this account are turned down.
+     */
+    public static final String BROKE = "EXB000000";
+
+    public static final String TS = "2015-12-04T09:02:16.680986205Z";
+
+    static {
+        // Otherwise the JDK server's separate header and body writes hit
+        // Nagle plus delayed ack, and every call takes ~40ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger nextId = new AtomicInteger(1000);
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long delay;
+    private volatile boolean chunked;
+    private volatile int openOrders = 3;
+    private volatile int fills = 2;
+
+    public StubExchange() throws IOException {
+        this(16);
+    }
+
+    public StubExchange(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+        // Start the threads now, so they don't turn up in client thread counts
+        pool.prestartAllCoreThreads();
+        executor = pool;
+        server.setExecutor(executor);
+        server.createContext("/ob/api/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubExchange.this.handle(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/ob/api";
+    }
+
+    /**
+     * @param delay long milliseconds to wait before answering each request
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * @param chunked true to send responses with chunked transfer encoding
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * @param openOrders number of open orders reported in account listings
+     */
+    public void setOpenOrders(int openOrders) {
+        this.openOrders = openOrders;
+    }
+
+    /**
+     * @param fills number of fills on each order in account listings
+     */
+    public void setFills(int fills) {
+        this.fills = fills;
+    }
+
+    /**
+     * @param failures number of requests from now on to answer with a 500
+     */
+    public void setFailures(int failures) {
+        this.failures.set(failures);
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        byte[] body = readAll(exchange.getRequestBody());
+        String[] path = exchange.getRequestURI().getPath().substring("/ob/api/".length()).split("/");
+        String method = exchange.getRequestMethod();
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int status = 200;
+        String response;
+        if (failures.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+            status = 500;
+            response = "{\"ok\":false,\"error\":\"Internal server error\"}";
+        } else if (path.length == 1 && path[0].equals("heartbeat")) {
+            response = "{\"ok\":true,\"error\":\"\"}";
+        } else if (path.length == 3 && path[2].equals("heartbeat")) {
+            response = "{\"ok\":true,\"venue\":\"" + path[1] + "\"}";
+        } else if (path.length == 3 && path[2].equals("stocks")) {
+            response = "{\"ok\":true,\"symbols\":[{\"name\":\"Foreign Owned Occluded Bridge Architecture Resources\",\"symbol\":\"FOOBAR\"}]}";
+        } else if (path.length == 4 && path[2].equals("stocks")) {
+            response = orderbook(path[1], path[3]);
+        } else if (path.length == 5 && path[4].equals("quote")) {
+            response = quote(path[1], path[3]);
+        } else if (path.length == 5 && path[4].equals("orders") && method.equals("POST")) {
+            response = posted(path[1], path[3], new String(body, StandardCharsets.UTF_8));
+        } else if (path.length == 6 && path[4].equals("orders")) {
+            response = order(Integer.parseInt(path[5]), path[1], path[3], "EXB123456", !method.equals("DELETE"));
+        } else if (path.length >= 5 && path[2].equals("accounts")) {
+            response = orders(path[1], path[3], path.length == 7 ? path[5] : "FOOBAR");
+        } else {
+            status = 404;
+            response = "{\"ok\":false,\"error\":\"Not found\"}";
+        }
+
+        byte[] raw = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, chunked ? 0 : raw.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(raw);
+        }
+    }
+
+    private String posted(String venue, String symbol, String request) {
+        String account = field(request, "account");
+        if (account.equals(BROKE)) {
+            return "{\"ok\":false,\"error\":\"Not enough cash\"}";
+        }
+        return order(nextId.getAndIncrement(), venue, symbol, account, true);
+    }
+
+    public static String quote(String venue, String symbol) {
+        return "{\"ok\":true,\"symbol\":\"" + symbol + "\",\"venue\":\"" + venue + "\","
+                + "\"bid\":5100,\"ask\":5125,\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,"
+                + "\"last\":5125,\"lastSize\":52,\"lastTrade\":\"" + TS + "\",\"quoteTime\":\"" + TS + "\"}";
+    }
+
+    public static String orderbook(String venue, String symbol) {
+        return "{\"ok\":true,\"venue\":\"" + venue + "\",\"symbol\":\"" + symbol + "\","
+                + "\"bids\":[{\"price\":5200,\"qty\":1,\"isBuy\":true},{\"price\":5100,\"qty\":200,\"isBuy\":true},{\"price\":5000,\"qty\":300,\"isBuy\":true}],"
+                + "\"asks\":[{\"price\":5300,\"qty\":100,\"isBuy\":false},{\"price\":5400,\"qty\":50,\"isBuy\":false}],"
+                + "\"ts\":\"" + TS + "\"}";
+    }
+
+    public static String order(int id, String venue, String symbol, String account, boolean open) {
+        return order(id, venue, symbol, account, open, 2);
+    }
+
+    /**
+     * @param index which fill of an order
+     * @return when it happened, a second after the one before
+     */
+    public static String fillTs(int index) {
+        return String.format("2015-12-04T09:02:%02d.680986205Z", 16 + index);
+    }
+
+    public static String order(int id, String venue, String symbol, String account, boolean open, int fills) {
+        StringBuilder f = new StringBuilder();
+        int total = 0;
+        for (int i = 0; i < fills; i += 1) {
+            int price = i == 0 ? 5050 : 5100;
+            int qty = i == 0 ? 50 : i == 1 ? 30 : 1;
+            if (i > 0) {
+                f.append(',');
+            }
+            f.append("{\"price\":").append(price).append(",\"qty\":").append(qty).append(",\"ts\":\"").append(fillTs(i)).append("\"}");
+            total += qty;
+        }
+        return "{\"ok\":true,\"symbol\":\"" + symbol + "\",\"venue\":\"" + venue + "\",\"direction\":\"buy\","
+                + "\"originalQty\":100,\"qty\":" + (open ? 20 : 0) + ",\"price\":5100,\"orderType\":\"limit\",\"id\":" + id + ","
+                + "\"account\":\"" + account + "\",\"ts\":\"" + TS + "\","
+                + "\"fills\":[" + f + "],"
+                + "\"totalFilled\":" + total + ",\"open\":" + open + "}";
+    }
+
+    private String orders(String venue, String account, String symbol) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"ok\":true,\"venue\":\"").append(venue).append("\",\"orders\":[");
+        int count = openOrders * 2;
+        for (int i = 0; i < count; i += 1) {
+            if (i > 0) {
+                result.append(',');
+            }
+            // Alternate closed and open orders
+            result.append(order(i + 1, venue, symbol, account, i % 2 == 1, fills));
+        }
+        result.append("]}");
+        return result.toString();
+    }
+
+    private static String field(String json, String name) {
+        String marker = "\"" + name + "\":\"";
+        int start = json.indexOf(marker);
+        if (start < 0) {
+            return "";
+        }
+        start += marker.length();
+        return json.substring(start, json.indexOf('"', start));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            result.write(buffer, 0, n);
+        }
+        return result.toByteArray();
+    }
+}
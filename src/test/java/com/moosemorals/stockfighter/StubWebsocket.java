@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Just enough of a websocket server (RFC 6455) to stand in for the ticker
+ * feeds: it takes connections on any path, and sends text frames to the
+ * clients on a given path.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class StubWebsocket implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(StubWebsocket.class);
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final ServerSocket server;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final Thread acceptor;
+    private volatile boolean refuse = false;
+
+    public StubWebsocket() throws IOException {
+        server = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "StubWebsocket-Accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return base url for the tickers, e.g. ws://127.0.0.1:1234/ob/api/ws
+     */
+    public String getBaseUrl() {
+        return "ws://127.0.0.1:" + server.getLocalPort() + "/ob/api/ws";
+    }
+
+    /**
+     * @return number of handshakes completed, ever
+     */
+    public int getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return paths of the clients connected now
+     */
+    public List<String> getPaths() {
+        List<String> result = new ArrayList<>();
+        for (Connection c : connections) {
+            result.add(c.path);
+        }
+        return result;
+    }
+
+    /**
+     * Wait until there are count clients connected.
+     *
+     * @param count
+     * @param millis
+     * @return true if there were
+     * @throws InterruptedException
+     */
+    public boolean awaitConnections(int count, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (connections.size() != count) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Send a text message to every client connected on a path.
+     *
+     * @param path path, starting /ob/api/ws/
+     * @param text message
+     * @return number of clients it went to
+     */
+    public int send(String path, String text) {
+        return send(path, 0x1, text.getBytes(StandardCharsets.UTF_8), 1);
+    }
+
+    /**
+     * Send a binary message to every client connected on a path.
+     *
+     * @param path path, starting /ob/api/ws/
+     * @param payload message
+     * @return number of clients it went to
+     */
+    public int sendBinary(String path, byte[] payload) {
+        return send(path, 0x2, payload, 1);
+    }
+
+    /**
+     * Send a text message split over several frames.
+     *
+     * @param path path, starting /ob/api/ws/
+     * @param text message
+     * @param pieces number of frames
+     * @return number of clients it went to
+     */
+    public int sendFragmented(String path, String text, int pieces) {
+        return send(path, 0x1, text.getBytes(StandardCharsets.UTF_8), pieces);
+    }
+
+    private int send(String path, int opcode, byte[] payload, int pieces) {
+        int sent = 0;
+        for (Connection c : connections) {
+            if (c.path.equals(path)) {
+                try {
+                    c.send(opcode, payload, pieces);
+                    sent += 1;
+                } catch (IOException ex) {
+                    c.close();
+                }
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Drop every connection without a close handshake, like a network
+     * failure.
+     */
+    public void dropAll() {
+        for (Connection c : connections) {
+            c.close();
+        }
+    }
+
+    /**
+     * @param refuse if true, new connections are turned away with a 503
+     */
+    public void setRefuse(boolean refuse) {
+        this.refuse = refuse;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        dropAll();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                if (refuse) {
+                    try (Socket s = socket) {
+                        s.getOutputStream().write("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    } catch (IOException ex) {
+                        // Don't care
+                    }
+                    continue;
+                }
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "StubWebsocket-Connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection c = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            BufferedReader headers = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
+            String request = headers.readLine();
+            if (request == null) {
+                socket.close();
+                return;
+            }
+            String path = request.split(" ")[1];
+            String key = null;
+            String line;
+            while ((line = headers.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    key = line.substring(colon + 1).trim();
+                }
+            }
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            c = new Connection(socket, out, path);
+            connections.add(c);
+            accepted.incrementAndGet();
+
+            // The client doesn't send anything but control frames before the
+            // handshake is answered, so the reader hasn't buffered any.
+            while (true) {
+                int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                int opcode = first & 0x0f;
+                int second = in.readUnsignedByte();
+                long length = second & 0x7f;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                byte[] mask = new byte[4];
+                if ((second & 0x80) != 0) {
+                    in.readFully(mask);
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i += 1) {
+                    payload[i] ^= mask[i % 4];
+                }
+                if (opcode == 0x8) {
+                    c.send(0x8, payload);
+                    break;
+                } else if (opcode == 0x9) {
+                    c.send(0xA, payload);
+                }
+            }
+        } catch (IOException ex) {
+            log.debug("Stub websocket connection ended: {}", ex.getMessage());
+        } finally {
+            if (c != null) {
+                c.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private final class Connection {
+
+        final Socket socket;
+        final OutputStream out;
+        final String path;
+
+        Connection(Socket socket, OutputStream out, String path) {
+            this.socket = socket;
+            this.out = out;
+            this.path = path;
+        }
+
+        synchronized void send(int opcode, byte[] payload) throws IOException {
+            send(opcode, payload, 1);
+        }
+
+        /**
+         * Send a message as pieces frames: the first with the opcode, the
+         * rest as continuations.
+         */
+        synchronized void send(int opcode, byte[] payload, int pieces) throws IOException {
+            int size = (payload.length + pieces - 1) / pieces;
+            int offset = 0;
+            for (int i = 0; i < pieces; i += 1) {
+                int length = Math.max(0, Math.min(size, payload.length - offset));
+                boolean last = i == pieces - 1;
+                frame(last, i == 0 ? opcode : 0x0, payload, offset, last ? payload.length - offset : length);
+                offset += length;
+            }
+            out.flush();
+        }
+
+        private void frame(boolean fin, int opcode, byte[] payload, int offset, int length) throws IOException {
+            out.write((fin ? 0x80 : 0) | opcode);
+            if (length < 126) {
+                out.write(length);
+            } else if (length < 65536) {
+                out.write(126);
+                out.write(length >> 8);
+                out.write(length);
+            } else {
+                out.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) ((long) length >> shift));
+                }
+            }
+            out.write(payload, offset, length);
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignored
+            }
+        }
+    }
+}
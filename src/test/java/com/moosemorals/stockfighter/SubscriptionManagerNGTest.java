@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.Quote;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Subscriptions against a local stand-in websocket.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class SubscriptionManagerNGTest {
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"%s\",\"venue\":\"TESTEX\",\"bid\":%d,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    private static final String TAPE = "/ob/api/ws/EXB123456/venues/TESTEX/tickertape";
+
+    private StubWebsocket stub;
+    private TickerHub hub;
+    private SubscriptionManager manager;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stub = new StubWebsocket();
+        hub = new TickerHub("key", stub.getBaseUrl(), 3);
+        manager = new SubscriptionManager(hub);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        manager.close();
+        hub.close();
+        stub.close();
+    }
+
+    @Test
+    public void test_perStock() throws Exception {
+        BlockingQueue<Quote> foo = new LinkedBlockingQueue<>();
+        BlockingQueue<Quote> foo2 = new LinkedBlockingQueue<>();
+        BlockingQueue<Quote> bar = new LinkedBlockingQueue<>();
+
+        SubscriptionManager.Subscription a = manager.subscribeQuotes("EXB123456", "TESTEX", "FOOBAR", foo::add);
+        SubscriptionManager.Subscription b = manager.subscribeQuotes("EXB123456", "TESTEX", "FOOBAR", foo2::add);
+        SubscriptionManager.Subscription c = manager.subscribeQuotes("EXB123456", "TESTEX", "BARFOO", bar::add);
+        assertTrue(stub.awaitConnections(2, 5000));
+        assertEquals(manager.getSessionCount(), 2);
+        assertEquals(sorted(stub.getPaths()), Arrays.asList(TAPE + "/stocks/BARFOO", TAPE + "/stocks/FOOBAR"));
+
+        assertEquals(stub.send(TAPE + "/stocks/FOOBAR", String.format(QUOTE, "FOOBAR", 100)), 1);
+        assertEquals(foo.poll(5, TimeUnit.SECONDS).getBid(), 100);
+        assertEquals(foo2.poll(5, TimeUnit.SECONDS).getBid(), 100);
+        assertNull(bar.poll(100, TimeUnit.MILLISECONDS));
+
+        // Still one listener on FOOBAR
+        a.close();
+        assertEquals(manager.getSessionCount(), 2);
+        b.close();
+        assertTrue(stub.awaitConnections(1, 5000));
+        assertEquals(stub.getPaths(), Arrays.asList(TAPE + "/stocks/BARFOO"));
+        c.close();
+        assertTrue(stub.awaitConnections(0, 5000));
+        assertEquals(manager.getSessionCount(), 0);
+    }
+
+    @Test
+    public void test_venueCoversStocks() throws Exception {
+        BlockingQueue<Quote> foo = new LinkedBlockingQueue<>();
+        BlockingQueue<Quote> all = new LinkedBlockingQueue<>();
+
+        manager.subscribeQuotes("EXB123456", "TESTEX", "FOOBAR", foo::add);
+        assertTrue(stub.awaitConnections(1, 5000));
+
+        SubscriptionManager.Subscription wide = manager.subscribeQuotes("EXB123456", "TESTEX", null, all::add);
+        assertTrue(stub.awaitConnections(1, 5000));
+        assertEquals(stub.getPaths(), Arrays.asList(TAPE));
+        assertEquals(manager.getEndpoints().get(0).getPath(), TAPE);
+
+        stub.send(TAPE, String.format(QUOTE, "FOOBAR", 100));
+        stub.send(TAPE, String.format(QUOTE, "BARFOO", 200));
+        assertEquals(all.poll(5, TimeUnit.SECONDS).getBid(), 100);
+        assertEquals(all.poll(5, TimeUnit.SECONDS).getBid(), 200);
+        // Only the stock it asked for, and only once
+        assertEquals(foo.poll(5, TimeUnit.SECONDS).getBid(), 100);
+        assertNull(foo.poll(100, TimeUnit.MILLISECONDS));
+
+        // Back to just the one stock
+        wide.close();
+        assertTrue(stub.awaitConnections(1, 5000));
+        assertEquals(stub.getPaths(), Arrays.asList(TAPE + "/stocks/FOOBAR"));
+        stub.send(TAPE + "/stocks/FOOBAR", String.format(QUOTE, "FOOBAR", 300));
+        assertEquals(foo.poll(5, TimeUnit.SECONDS).getBid(), 300);
+        assertNull(all.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void test_executionEndpoints() throws Exception {
+        manager.subscribeExecutions("EXB123456", "TESTEX", "FOOBAR", ex -> {
+        });
+        manager.subscribeExecutions("EXB654321", "TESTEX", null, ex -> {
+        });
+        assertTrue(stub.awaitConnections(2, 5000));
+        assertEquals(sorted(stub.getPaths()), Arrays.asList(
+                "/ob/api/ws/EXB123456/venues/TESTEX/executions/stocks/FOOBAR",
+                "/ob/api/ws/EXB654321/venues/TESTEX/executions"));
+    }
+
+    @Test
+    public void test_perStockBackfill() throws Exception {
+        try (StubExchange exchange = new StubExchange()) {
+            Trader trader = new Trader("key", exchange.getBaseUrl());
+            try {
+                hub.setBackfill(trader);
+                exchange.setOpenOrders(1);
+                exchange.setFills(2);
+                BlockingQueue<Execution> foo = new LinkedBlockingQueue<>();
+                BlockingQueue<Execution> bar = new LinkedBlockingQueue<>();
+                manager.subscribeExecutions("EXB123456", "TESTEX", "FOOBAR", foo::add);
+                manager.subscribeExecutions("EXB123456", "TESTEX", "BARFOO", bar::add);
+                assertTrue(stub.awaitConnections(2, 5000));
+
+                exchange.setFills(3);
+                stub.dropAll();
+
+                // Each stock's websocket catches up on its own stock only,
+                // one missed fill for each of the listed orders
+                for (int i = 0; i < 2; i += 1) {
+                    Execution ex = foo.poll(5, TimeUnit.SECONDS);
+                    assertNotNull(ex);
+                    assertTrue(ex.isSynthetic());
+                    assertEquals(ex.getSymbol(), "FOOBAR");
+                    ex = bar.poll(5, TimeUnit.SECONDS);
+                    assertNotNull(ex);
+                    assertEquals(ex.getSymbol(), "BARFOO");
+                }
+                assertNull(foo.poll(300, TimeUnit.MILLISECONDS));
+                assertNull(bar.poll(100, TimeUnit.MILLISECONDS));
+            } finally {
+                trader.close();
+            }
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        Collections.sort(list);
+        return list;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Quote;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Text, fragmented and binary frames over a local stand-in websocket.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TickerFramesNGTest {
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"bid\":%d,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    private static final String TAPE = "/ob/api/ws/EXB123456/venues/TESTEX/tickertape";
+
+    private StubWebsocket stub;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stub = new StubWebsocket();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        stub.close();
+    }
+
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        return new Object[][]{{false, false}, {false, true}, {true, false}, {true, true}};
+    }
+
+    @Test(dataProvider = "modes")
+    public void test_frames(boolean partial, boolean reuse) throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/tickertape"));
+        ticker.setPartialFrames(partial);
+        ticker.setReuseQuotes(reuse);
+        BlockingQueue<Integer> bids = new LinkedBlockingQueue<>();
+        ticker.addListener((Quote q) -> bids.add(q.getBid()));
+
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            stub.send(TAPE, String.format(QUOTE, 100));
+            stub.sendFragmented(TAPE, String.format(QUOTE, 200), 5);
+            stub.sendBinary(TAPE, String.format(QUOTE, 300).getBytes(StandardCharsets.UTF_8));
+            stub.send(TAPE, String.format(QUOTE, 400));
+
+            assertEquals(bids.poll(5, TimeUnit.SECONDS), Integer.valueOf(100));
+            assertEquals(bids.poll(5, TimeUnit.SECONDS), Integer.valueOf(200));
+            assertEquals(bids.poll(5, TimeUnit.SECONDS), Integer.valueOf(300));
+            assertEquals(bids.poll(5, TimeUnit.SECONDS), Integer.valueOf(400));
+        } finally {
+            ticker.disconnect();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Quote;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tickers from a hub, against a local stand-in websocket.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TickerHubNGTest {
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"FOOBAR\",\"venue\":\"%s\",\"bid\":%d,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    private StubWebsocket stub;
+    private TickerHub hub;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stub = new StubWebsocket();
+        hub = new TickerHub("key", stub.getBaseUrl(), 2);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        hub.close();
+        stub.close();
+    }
+
+    @Test
+    public void test_routing() throws Exception {
+        QuoteTicker a = hub.quotes("EXB123456", "TESTEX");
+        QuoteTicker b = hub.quotes("EXB123456", "OTHEREX");
+        assertSame(hub.quotes("EXB123456", "TESTEX"), a);
+        assertTrue(stub.awaitConnections(2, 5000));
+        assertEquals(a.getEndpoint().getPath(), "/ob/api/ws/EXB123456/venues/TESTEX/tickertape");
+        assertEquals(hub.executions("EXB123456", "TESTEX").getEndpoint().getPath(), "/ob/api/ws/EXB123456/venues/TESTEX/executions");
+
+        final BlockingQueue<Quote> seenA = new LinkedBlockingQueue<>();
+        final BlockingQueue<Quote> seenB = new LinkedBlockingQueue<>();
+        a.addListener(seenA::add);
+        b.addListener(seenB::add);
+
+        stub.send("/ob/api/ws/EXB123456/venues/TESTEX/tickertape", String.format(QUOTE, "TESTEX", 100));
+        stub.send("/ob/api/ws/EXB123456/venues/OTHEREX/tickertape", String.format(QUOTE, "OTHEREX", 200));
+
+        assertEquals(seenA.poll(5, TimeUnit.SECONDS).getBid(), 100);
+        assertEquals(seenB.poll(5, TimeUnit.SECONDS).getBid(), 200);
+        assertNull(seenA.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void test_threadsStayFlat() throws Exception {
+        hub.quotes("EXB000000", "TESTEX");
+        assertTrue(stub.awaitConnections(1, 5000));
+        int before = clientThreads();
+
+        for (int i = 1; i <= 20; i += 1) {
+            hub.quotes("EXB" + (100000 + i), "TESTEX");
+        }
+        assertTrue(stub.awaitConnections(21, 5000));
+        assertEquals(hub.getTickerCount(), 21);
+
+        int after = clientThreads();
+        assertTrue(after <= before + 2, "Threads went from " + before + " to " + after);
+    }
+
+    @Test
+    public void test_handshakesOverlap() throws Exception {
+        // Accepts connections and never answers, so handshakes hang
+        final List<Socket> accepted = new CopyOnWriteArrayList<>();
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "StubWebsocket-Silent");
+            t.setDaemon(true);
+            return t;
+        });
+        try (ServerSocket silent = new ServerSocket(0)) {
+            pool.execute(() -> {
+                try {
+                    while (true) {
+                        accepted.add(silent.accept());
+                    }
+                } catch (Exception ex) {
+                    // Closed
+                }
+            });
+            TickerHub slow = new TickerHub("key", "ws://127.0.0.1:" + silent.getLocalPort() + "/ob/api/ws", 2);
+            try {
+                Future<QuoteTicker> a = pool.submit(() -> slow.quotes("EXB123456", "TESTEX"));
+                Future<QuoteTicker> b = pool.submit(() -> slow.quotes("EXB123456", "OTHEREX"));
+
+                long end = System.currentTimeMillis() + 5000;
+                while (accepted.size() < 2 && System.currentTimeMillis() < end) {
+                    Thread.sleep(10);
+                }
+                assertEquals(accepted.size(), 2);
+                assertFalse(a.isDone());
+                assertFalse(b.isDone());
+
+                // The hub isn't held while they wait
+                Future<Integer> count = pool.submit(slow::getTickerCount);
+                assertEquals((int) count.get(1, TimeUnit.SECONDS), 2);
+            } finally {
+                slow.close();
+            }
+        } finally {
+            for (Socket s : accepted) {
+                s.close();
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Live threads, not counting the stand-in server's.
+     */
+    private static int clientThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && !t.getName().startsWith("StubWebsocket")) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.pipeline.Frame;
+import com.moosemorals.stockfighter.pipeline.Pipeline;
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.Quote;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ * Feeds messages straight to the tickers, without a websocket.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TickerNGTest {
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"bid\":%d,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    private static final String EXECUTION = "{\"ok\":true,\"account\":\"EXB123456\",\"venue\":\"TESTEX\",\"symbol\":\"FOOBAR\","
+            + "\"order\":{\"ok\":true,\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"direction\":\"buy\",\"originalQty\":85,"
+            + "\"qty\":0,\"price\":993,\"orderType\":\"limit\",\"type\":\"limit\",\"id\":%d,\"account\":\"EXB123456\","
+            + "\"ts\":\"2015-08-10T16:10:32.987288+09:00\",\"fills\":[%s],\"totalFilled\":85,\"open\":false},"
+            + "\"standingId\":20,\"incomingId\":27,\"price\":5960,\"filled\":50,\"filledAt\":\"2015-08-10T16:10:32.987292Z\","
+            + "\"standingComplete\":false,\"incomingComplete\":true}";
+
+    private static final String FILL = "{\"price\":5960,\"qty\":50,\"ts\":\"2015-08-10T16:10:32.987292Z\"}";
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void test_reuseQuotes() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final List<Quote> seen = new ArrayList<>();
+        final List<Quote> kept = new ArrayList<>();
+        ticker.addListener(new QuoteTicker.Listener() {
+            @Override
+            public void onQuote(Quote q) {
+                seen.add(q);
+                kept.add(q.copy());
+            }
+        });
+        ticker.setReuseQuotes(true);
+
+        ticker.onMessage(String.format(QUOTE, 100));
+        ticker.onMessage(String.format(QUOTE, 200));
+
+        assertSame(seen.get(0), seen.get(1));
+        assertEquals(kept.get(0).getBid(), 100);
+        assertEquals(kept.get(1).getBid(), 200);
+        assertEquals(kept.get(1).getQuoteTimeNanos(), seen.get(1).getQuoteTimeNanos());
+
+        ticker.setReuseQuotes(false);
+        ticker.onMessage(String.format(QUOTE, 300));
+        assertNotSame(seen.get(2), seen.get(1));
+    }
+
+    @Test
+    public void test_reuseExecutions() throws Exception {
+        ExecutionTicker ticker = new ExecutionTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final List<Execution> kept = new ArrayList<>();
+        ticker.addListener(new ExecutionTicker.Listener() {
+            @Override
+            public void onExecute(Execution ex) {
+                kept.add(ex.copy());
+            }
+        });
+        ticker.setReuseExecutions(true);
+
+        ticker.onMessage(String.format(EXECUTION, 1, FILL + "," + FILL));
+        ticker.onMessage(String.format(EXECUTION, 2, ""));
+
+        assertEquals(kept.get(0).getOrder().getId(), 1);
+        assertEquals(kept.get(0).getOrder().getFills().length, 2);
+        assertEquals(kept.get(0).getOrder().getFills()[1].getPrice(), 5960);
+        assertEquals(kept.get(1).getOrder().getId(), 2);
+        assertEquals(kept.get(1).getOrder().getFills().length, 0);
+    }
+
+    @Test
+    public void test_pipeline() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final List<Integer> bids = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        ticker.addListener(new QuoteTicker.Listener() {
+            @Override
+            public void onQuote(Quote q) {
+                bids.add(q.getBid());
+                threads.add(Thread.currentThread());
+            }
+        });
+        ticker.setReuseQuotes(true);
+
+        final List<Integer> later = new ArrayList<>();
+        Pipeline<Frame> pipeline = Pipeline.builder(Frame::new, 8)
+                .then(ticker.frameHandler())
+                .then((frame, seq, end) -> later.add(((Quote) frame.getEvent()).getBid()))
+                .build();
+        ticker.setPipeline(pipeline);
+        pipeline.start();
+
+        for (int i = 0; i < 20; i += 1) {
+            ticker.receive(String.format(QUOTE, i));
+        }
+        assertTrue(pipeline.drain(5, TimeUnit.SECONDS));
+        pipeline.halt();
+
+        assertEquals(bids.size(), 20);
+        assertEquals((int) bids.get(19), 19);
+        assertEquals(later, bids);
+        assertNotSame(threads.get(0), Thread.currentThread());
+    }
+
+    @Test
+    public void test_quotesDontAllocate() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final long[] total = new long[1];
+        ticker.addListener(new QuoteTicker.Listener() {
+            @Override
+            public void onQuote(Quote q) {
+                total[0] += q.getBid();
+            }
+        });
+        ticker.setReuseQuotes(true);
+
+        String[] messages = new String[]{String.format(QUOTE, 100), String.format(QUOTE, 200)};
+        assertTrue(allocatedPerMessage(ticker, messages) < 1.0);
+    }
+
+    @Test
+    public void test_executionsDontAllocate() throws Exception {
+        ExecutionTicker ticker = new ExecutionTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final long[] total = new long[1];
+        ticker.addListener(new ExecutionTicker.Listener() {
+            @Override
+            public void onExecute(Execution ex) {
+                total[0] += ex.getOrder().getFillCount();
+            }
+        });
+        ticker.setReuseExecutions(true);
+
+        String[] messages = new String[]{
+            String.format(EXECUTION, 1, ""),
+            String.format(EXECUTION, 2, FILL),
+            String.format(EXECUTION, 3, FILL + "," + FILL + "," + FILL)
+        };
+        assertTrue(allocatedPerMessage(ticker, messages) < 1.0);
+    }
+
+    @Test
+    public void test_binaryMessages() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final List<Integer> bids = new ArrayList<>();
+        ticker.addListener(q -> bids.add(q.getBid()));
+
+        ticker.onMessage(ByteBuffer.wrap(String.format(QUOTE, 100).getBytes(StandardCharsets.UTF_8)));
+        ticker.setReuseQuotes(true);
+        ticker.onMessage(direct(String.format(QUOTE, 200)));
+
+        // And through a pipeline, which copies the bytes so the buffer can be reused
+        Pipeline<Frame> pipeline = Pipeline.builder(Frame::new, 8)
+                .then(ticker.frameHandler())
+                .build();
+        ticker.setPipeline(pipeline);
+        pipeline.start();
+        ByteBuffer reused = ByteBuffer.allocateDirect(1024);
+        for (int i = 0; i < 3; i += 1) {
+            reused.clear();
+            reused.put(String.format(QUOTE, 300 + i).getBytes(StandardCharsets.UTF_8)).flip();
+            ticker.receive(reused);
+        }
+        ticker.receive(String.format(QUOTE, 400));
+        assertTrue(pipeline.drain(5, TimeUnit.SECONDS));
+        pipeline.halt();
+
+        assertEquals(bids, Arrays.asList(100, 200, 300, 301, 302, 400));
+    }
+
+    @Test
+    public void test_byteBuffersDontAllocate() throws Exception {
+        ExecutionTicker ticker = new ExecutionTicker("key", URI.create(AbstractTicker.BASE_URL));
+        final long[] total = new long[1];
+        ticker.addListener(ex -> total[0] += ex.getOrder().getFillCount());
+        ticker.setReuseExecutions(true);
+
+        ByteBuffer[] messages = new ByteBuffer[]{
+            direct(String.format(EXECUTION, 1, FILL)),
+            direct(String.format(EXECUTION, 2, FILL + "," + FILL))
+        };
+        int count = 100000;
+        for (int i = 0; i < count; i += 1) {
+            ticker.onMessage(messages[i % messages.length]);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < count; i += 1) {
+            ticker.onMessage(messages[i % messages.length]);
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        assertTrue((after - before) / (double) count < 1.0);
+    }
+
+    private static ByteBuffer direct(String message) {
+        byte[] raw = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer result = ByteBuffer.allocateDirect(raw.length);
+        result.put(raw).flip();
+        return result;
+    }
+
+    private static double allocatedPerMessage(AbstractTicker ticker, String[] messages) {
+        int count = 100000;
+        for (int i = 0; i < count; i += 1) {
+            ticker.onMessage(messages[i % messages.length]);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < count; i += 1) {
+            ticker.onMessage(messages[i % messages.length]);
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        return (after - before) / (double) count;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.types.Execution;
+import com.moosemorals.stockfighter.types.Quote;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Drops the websocket under a ticker and checks it comes back and catches up.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TickerReconnectNGTest {
+
+    private static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"bid\":%d,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    private static final String EXECUTION = "{\"ok\":true,\"account\":\"EXB123456\",\"venue\":\"TESTEX\",\"symbol\":\"FOOBAR\","
+            + "\"order\":%s,\"standingId\":%d,\"incomingId\":99,\"price\":5100,\"filled\":1,\"filledAt\":\"%s\","
+            + "\"standingComplete\":true,\"incomingComplete\":false}";
+
+    private static final String TAPE = "/ob/api/ws/EXB123456/venues/TESTEX/tickertape";
+    private static final String EXECUTIONS = "/ob/api/ws/EXB123456/venues/TESTEX/executions";
+
+    private StubWebsocket stub;
+    private StubExchange exchange;
+    private Trader trader;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stub = new StubWebsocket();
+        exchange = new StubExchange();
+        trader = new Trader("key", exchange.getBaseUrl());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        trader.close();
+        exchange.close();
+        stub.close();
+    }
+
+    @Test
+    public void test_quotesReconnect() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/tickertape"));
+        ticker.setBackoff(new Backoff(10, 100, 2.0, 0.5));
+        ticker.setBackfill(trader);
+        States states = new States();
+        ticker.addConnectionListener(states);
+        BlockingQueue<Quote> seen = new LinkedBlockingQueue<>();
+        ticker.addListener(seen::add);
+
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            assertEquals(ticker.getState(), ConnectionState.LIVE);
+            stub.send(TAPE, String.format(QUOTE, 100));
+            assertEquals(seen.poll(5, TimeUnit.SECONDS).getBid(), 100);
+
+            stub.dropAll();
+            assertTrue(states.await(ConnectionState.LIVE, 2, 5000));
+
+            // Caught up from the REST quote
+            Quote q = seen.poll(5, TimeUnit.SECONDS);
+            assertNotNull(q);
+            assertEquals(q.getBid(), 5100);
+
+            stub.send(TAPE, String.format(QUOTE, 200));
+            assertEquals(seen.poll(5, TimeUnit.SECONDS).getBid(), 200);
+
+            assertEquals(states.get(), Arrays.asList(ConnectionState.CONNECTING, ConnectionState.LIVE,
+                    ConnectionState.DISCONNECTED, ConnectionState.RECONNECTING, ConnectionState.BACKFILLING,
+                    ConnectionState.LIVE));
+            assertEquals(ticker.getBackoff().getAttempts(), 0);
+        } finally {
+            ticker.disconnect();
+        }
+        assertEquals(ticker.getState(), ConnectionState.CLOSED);
+    }
+
+    @Test
+    public void test_executionsBackfill() throws Exception {
+        ExecutionTicker ticker = new ExecutionTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/executions"));
+        ticker.setBackoff(new Backoff(10, 100, 2.0, 0.5));
+        ticker.setBackfill(trader);
+        States states = new States();
+        ticker.addConnectionListener(states);
+        BlockingQueue<Execution> seen = new LinkedBlockingQueue<>();
+        ticker.addListener(seen::add);
+
+        exchange.setOpenOrders(1);
+        exchange.setFills(2);
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            // Fills from before we connected aren't news
+            assertNull(seen.poll(100, TimeUnit.MILLISECONDS));
+
+            // Both orders fill again while we're away
+            exchange.setFills(3);
+            stub.dropAll();
+            assertTrue(states.await(ConnectionState.LIVE, 2, 5000));
+
+            List<Execution> got = new ArrayList<>();
+            seen.drainTo(got);
+            assertEquals(got.size(), 2);
+            for (Execution ex : got) {
+                assertTrue(ex.isSynthetic());
+                assertEquals(ex.getFilled(), 1);
+                assertEquals(ex.getPrice(), 5100);
+                assertEquals(ex.getSymbol(), "FOOBAR");
+            }
+
+            // The same fill turning up live late is old news, but the next
+            // one isn't
+            String order = StubExchange.order(2, "TESTEX", "FOOBAR", "EXB123456", true, 4);
+            stub.send(EXECUTIONS, String.format(EXECUTION, order, 2, StubExchange.fillTs(2)));
+            stub.send(EXECUTIONS, String.format(EXECUTION, order, 3, StubExchange.fillTs(3)));
+            Execution ex = seen.poll(5, TimeUnit.SECONDS);
+            assertFalse(ex.isSynthetic());
+            assertEquals(ex.getStandingId(), 3);
+            assertNull(seen.poll(100, TimeUnit.MILLISECONDS));
+            assertFalse(ticker.getListenerStats().isEmpty());
+        } finally {
+            ticker.disconnect();
+        }
+    }
+
+    @Test
+    public void test_oneMatchManyFills() throws Exception {
+        ExecutionTicker ticker = new ExecutionTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/executions"));
+        ticker.setBackfill(trader);
+        BlockingQueue<Execution> seen = new LinkedBlockingQueue<>();
+        ticker.addListener(seen::add);
+
+        exchange.setOpenOrders(1);
+        exchange.setFills(2);
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            // One order crossing three others at once: three executions,
+            // each carrying the order with all three new fills
+            String order = StubExchange.order(2, "TESTEX", "FOOBAR", "EXB123456", false, 5);
+            for (int standing = 10; standing < 13; standing += 1) {
+                stub.send(EXECUTIONS, String.format(EXECUTION, order, standing, StubExchange.fillTs(4)));
+            }
+            for (int standing = 10; standing < 13; standing += 1) {
+                Execution ex = seen.poll(5, TimeUnit.SECONDS);
+                assertNotNull(ex);
+                assertEquals(ex.getStandingId(), standing);
+            }
+            assertNull(seen.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            ticker.disconnect();
+        }
+    }
+
+    @Test
+    public void test_backfillFails() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/tickertape"));
+        ticker.setBackoff(new Backoff(10, 100, 2.0, 0.5));
+        ticker.setBackfill(trader);
+        States states = new States();
+        ticker.addConnectionListener(states);
+        BlockingQueue<Quote> seen = new LinkedBlockingQueue<>();
+        ticker.addListener(seen::add);
+
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            assertEquals(ticker.getState(), ConnectionState.LIVE);
+            stub.send(TAPE, String.format(QUOTE, 100));
+            assertEquals(seen.poll(5, TimeUnit.SECONDS).getBid(), 100);
+
+            exchange.setFailures(2);
+            stub.dropAll();
+            assertTrue(states.await(ConnectionState.LIVE, 2, 5000));
+
+            // Nothing live gets through until the backfill has worked
+            List<ConnectionState> got = states.get();
+            assertEquals(got.subList(0, 5), Arrays.asList(ConnectionState.CONNECTING, ConnectionState.LIVE,
+                    ConnectionState.DISCONNECTED, ConnectionState.RECONNECTING, ConnectionState.BACKFILLING));
+            assertEquals(got.subList(5, 9), Arrays.asList(ConnectionState.BACKFILL_FAILED, ConnectionState.BACKFILLING,
+                    ConnectionState.BACKFILL_FAILED, ConnectionState.BACKFILLING));
+            assertEquals(got.get(got.size() - 1), ConnectionState.LIVE);
+            assertEquals(seen.poll(5, TimeUnit.SECONDS).getBid(), 5100);
+            assertEquals(ticker.getBackoff().getAttempts(), 0);
+        } finally {
+            ticker.disconnect();
+        }
+    }
+
+    @Test
+    public void test_dropsStaleHeld() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/tickertape"));
+        ticker.setBackoff(new Backoff(10, 100, 2.0, 0.5));
+        ticker.setBackfill(trader);
+        States states = new States();
+        ticker.addConnectionListener(states);
+        BlockingQueue<Quote> seen = new LinkedBlockingQueue<>();
+        ticker.addListener(seen::add);
+
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            stub.send(TAPE, String.format(QUOTE, 100));
+            assertEquals(seen.poll(5, TimeUnit.SECONDS).getBid(), 100);
+
+            // Held while the backfill keeps failing
+            exchange.setFailures(Integer.MAX_VALUE);
+            stub.dropAll();
+            assertTrue(states.await(ConnectionState.BACKFILL_FAILED, 1, 5000));
+            stub.send(TAPE, String.format(QUOTE, 200));
+            Thread.sleep(200);
+
+            // Then the websocket drops again before it catches up
+            stub.dropAll();
+            assertTrue(states.await(ConnectionState.RECONNECTING, 2, 5000));
+            exchange.setFailures(0);
+            assertTrue(states.await(ConnectionState.LIVE, 2, 5000));
+
+            // The new websocket's backfill covers it, so the old one's held
+            // quote mustn't turn up after
+            assertEquals(seen.poll(5, TimeUnit.SECONDS).getBid(), 5100);
+            assertNull(seen.poll(300, TimeUnit.MILLISECONDS));
+        } finally {
+            ticker.disconnect();
+        }
+    }
+
+    @Test
+    public void test_backsOff() throws Exception {
+        QuoteTicker ticker = new QuoteTicker("key", URI.create(stub.getBaseUrl() + "/EXB123456/venues/TESTEX/tickertape"));
+        ticker.setBackoff(new Backoff(10, 50, 2.0, 0.0));
+        States states = new States();
+        ticker.addConnectionListener(states);
+
+        ticker.connect("EXB123456", "TESTEX");
+        try {
+            assertTrue(stub.awaitConnections(1, 5000));
+            stub.setRefuse(true);
+            stub.dropAll();
+            long end = System.currentTimeMillis() + 5000;
+            while (ticker.getBackoff().getAttempts() < 3 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue(ticker.getBackoff().getAttempts() >= 3);
+            assertEquals(ticker.getState(), ConnectionState.RECONNECTING);
+
+            stub.setRefuse(false);
+            assertTrue(states.await(ConnectionState.LIVE, 2, 5000));
+            assertEquals(ticker.getBackoff().getAttempts(), 0);
+        } finally {
+            ticker.disconnect();
+        }
+    }
+
+    private static class States implements AbstractTicker.ConnectionListener {
+
+        private final List<ConnectionState> states = new ArrayList<>();
+
+        @Override
+        public synchronized void onConnectionState(AbstractTicker ticker, ConnectionState state) {
+            states.add(state);
+            notifyAll();
+        }
+
+        synchronized List<ConnectionState> get() {
+            return new ArrayList<>(states);
+        }
+
+        /**
+         * Wait until state has come round count times.
+         */
+        synchronized boolean await(ConnectionState state, int count, long millis) throws InterruptedException {
+            long end = System.currentTimeMillis() + millis;
+            while (true) {
+                int seen = 0;
+                for (ConnectionState s : states) {
+                    if (s == state) {
+                        seen += 1;
+                    }
+                }
+                if (seen >= count) {
+                    return true;
+                }
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Cancelling everything on an account against the local stand-in exchange.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TraderCancelAllNGTest {
+
+    private static final String ACCOUNT = "EXB123456";
+    private static final String VENUE = "TESTEX";
+
+    private StubExchange exchange;
+    private PooledTransport transport;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        exchange = new StubExchange(16);
+        exchange.setOpenOrders(100);
+        transport = new PooledTransport(exchange.getBaseUrl(), "key", 9);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        transport.close();
+        exchange.close();
+    }
+
+    @Test
+    public void test_cancelAll() throws Exception {
+        exchange.setDelay(20);
+        Trader trader = new Trader(transport);
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        CancelAllResult result = trader.cancelAll(VENUE, ACCOUNT, "FOOBAR", 8, (id, status, error) -> {
+            assertEquals(error, null);
+            assertFalse(status.isOpen());
+            seen.add(id);
+        });
+
+        assertEquals(result.getListedCount(), 100);
+        assertEquals(result.getCancelledCount(), 100);
+        assertTrue(result.isComplete());
+        assertEquals(seen.size(), 100);
+        // Only the open (even numbered) orders were cancelled
+        for (int id : seen) {
+            assertEquals(id % 2, 0);
+        }
+        // One at a time would take more than two seconds
+        long millis = TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos());
+        assertTrue(millis < 1000, "Took " + millis + "ms");
+        assertTrue(result.getMaxCancelNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void test_failuresCarryOn() throws Exception {
+        Trader trader = new Trader(transport) {
+            @Override
+            public OrderStatus cancelOrder(String venue, String symbol, int id) throws IOException {
+                if (id % 20 == 0) {
+                    throw new IOException("Connection reset");
+                }
+                return super.cancelOrder(venue, symbol, id);
+            }
+        };
+        CancelAllResult result = trader.cancelAll(VENUE, ACCOUNT);
+
+        assertEquals(result.getListedCount(), 100);
+        assertEquals(result.getCancelledCount(), 90);
+        assertEquals(result.getFailedCount(), 10);
+        assertFalse(result.isComplete());
+        for (int id : result.getFailedIds()) {
+            assertEquals(id % 20, 0);
+        }
+    }
+
+    @Test
+    public void test_timeout() throws Exception {
+        Trader trader = new Trader(transport) {
+            @Override
+            public OrderStatus cancelOrder(String venue, String symbol, int id) throws IOException {
+                if (id % 50 == 0) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException("Interrupted");
+                    }
+                }
+                return super.cancelOrder(venue, symbol, id);
+            }
+        };
+        trader.setCancelAllTimeout(500);
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        CancelAllResult result = trader.cancelAll(VENUE, ACCOUNT, null, 8, (id, status, error) -> seen.add(id));
+
+        // Gives up on the stuck ones, and says which they were
+        assertTrue(result.getElapsedNanos() < TimeUnit.SECONDS.toNanos(4));
+        assertEquals(result.getCancelledCount(), 96);
+        assertEquals(result.getUnfinishedCount(), 4);
+        assertFalse(result.isComplete());
+        for (int id : result.getUnfinishedIds()) {
+            assertEquals(id % 50, 0);
+            assertFalse(seen.contains(id));
+        }
+        assertEquals(seen.size(), 96);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_needsConcurrency() throws Exception {
+        new Trader(transport).cancelAll(VENUE, ACCOUNT, null, 0, null);
+    }
+}
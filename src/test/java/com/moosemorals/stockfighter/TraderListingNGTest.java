@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter;
+
+import com.moosemorals.stockfighter.transport.PooledTransport;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.OrderStatusReader;
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Account order listings against the local stand-in exchange.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TraderListingNGTest {
+
+    private static final String ACCOUNT = "EXB123456";
+    private static final String VENUE = "TESTEX";
+    private static final String SYMBOL = "FOOBAR";
+
+    private StubExchange exchange;
+    private Trader trader;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        exchange = new StubExchange();
+        exchange.setOpenOrders(100);
+        trader = new Trader(new PooledTransport(exchange.getBaseUrl(), "key", 1));
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        trader.close();
+        exchange.close();
+    }
+
+    @Test
+    public void test_list() throws Exception {
+        List<OrderStatus> orders = trader.getOrderStatus(VENUE, ACCOUNT);
+        assertEquals(orders.size(), 200);
+        assertEquals(orders.get(199).getId(), 200);
+        assertEquals(trader.getOrderStatus(VENUE, ACCOUNT, SYMBOL).size(), 200);
+    }
+
+    @Test
+    public void test_streamOpenOnly() throws Exception {
+        final List<OrderStatus> orders = new ArrayList<>();
+        trader.getOrderStatus(VENUE, ACCOUNT, SYMBOL, true, new Trader.OrderHandler() {
+            @Override
+            public boolean onOrder(OrderStatus order) {
+                orders.add(order);
+                return true;
+            }
+        });
+        assertEquals(orders.size(), 100);
+        for (OrderStatus o : orders) {
+            assertTrue(o.isOpen());
+        }
+    }
+
+    @Test
+    public void test_stopEarly() throws Exception {
+        final List<OrderStatus> orders = new ArrayList<>();
+        trader.getOrderStatus(VENUE, ACCOUNT, true, new Trader.OrderHandler() {
+            @Override
+            public boolean onOrder(OrderStatus order) {
+                orders.add(order);
+                return false;
+            }
+        });
+        assertEquals(orders.size(), 1);
+        assertEquals(orders.get(0).getId(), 2);
+
+        // Connection is still good for the next call
+        assertTrue(trader.heartBeat());
+    }
+
+    @Test
+    public void test_reader() throws Exception {
+        int count = 0;
+        try (OrderStatusReader reader = trader.openOrderStatus(VENUE, ACCOUNT, null, false)) {
+            while (reader.hasNext()) {
+                assertEquals(reader.next().isOpen(), count % 2 == 1);
+                count += 1;
+            }
+            assertFalse(reader.hasNext());
+        }
+        assertEquals(count, 200);
+    }
+}
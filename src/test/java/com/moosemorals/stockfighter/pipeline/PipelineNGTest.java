@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class PipelineNGTest {
+
+    private static final int COUNT = 100000;
+
+    private static final class Event {
+
+        long value;
+        long doubled;
+    }
+
+    private static final EventTranslator<Event, Long> VALUE = new EventTranslator<Event, Long>() {
+        @Override
+        public void translate(Event event, long sequence, Long value) {
+            event.value = value;
+            event.doubled = 0;
+        }
+    };
+
+    @DataProvider
+    public Object[][] strategies() {
+        return new Object[][]{
+            {new BlockingWaitStrategy()},
+            {new YieldingWaitStrategy()},
+            {new BusySpinWaitStrategy()}
+        };
+    }
+
+    @Test(dataProvider = "strategies")
+    public void test_chain(WaitStrategy strategy) throws Exception {
+        final AtomicLong sumA = new AtomicLong();
+        final AtomicLong sumB = new AtomicLong();
+        final AtomicLong bad = new AtomicLong();
+        final long[] last = {-1};
+
+        Pipeline<Event> p = Pipeline.builder(Event::new, 64)
+                .waitStrategy(strategy)
+                .then((e, seq, end) -> e.doubled = e.value * 2)
+                // Two handlers in parallel, both after the first stage
+                .then((e, seq, end) -> {
+                    if (e.doubled != e.value * 2) {
+                        bad.incrementAndGet();
+                    }
+                    sumA.addAndGet(e.doubled);
+                }, (e, seq, end) -> sumB.addAndGet(e.value))
+                .then((e, seq, end) -> {
+                    if (e.value != last[0] + 1) {
+                        bad.incrementAndGet();
+                    }
+                    last[0] = e.value;
+                })
+                .build();
+        p.start();
+        try {
+            for (long i = 0; i < COUNT; i += 1) {
+                p.publish(VALUE, i);
+            }
+            assertTrue(p.drain(10, TimeUnit.SECONDS));
+        } finally {
+            p.halt();
+        }
+
+        long expected = (long) COUNT * (COUNT - 1) / 2;
+        assertEquals(bad.get(), 0);
+        assertEquals(sumB.get(), expected);
+        assertEquals(sumA.get(), expected * 2);
+        assertEquals(last[0], COUNT - 1);
+        assertEquals(p.getProcessed(), COUNT - 1);
+    }
+
+    @Test
+    public void test_handlerErrors() throws Exception {
+        final AtomicLong seen = new AtomicLong();
+        Pipeline<Event> p = Pipeline.builder(Event::new, 8)
+                .then((e, seq, end) -> {
+                    if (e.value % 2 == 0) {
+                        throw new IllegalStateException("Even");
+                    }
+                })
+                .then((e, seq, end) -> seen.incrementAndGet())
+                .build();
+        p.start();
+        for (long i = 0; i < 10; i += 1) {
+            p.publish(VALUE, i);
+        }
+        p.close();
+        assertEquals(seen.get(), 10);
+        assertEquals(p.getErrorCount(), 5);
+    }
+
+    @Test
+    public void test_producerWaitsForConsumers() throws Exception {
+        final AtomicLong seen = new AtomicLong();
+        Pipeline<Event> p = Pipeline.builder(Event::new, 4)
+                .then((e, seq, end) -> seen.incrementAndGet())
+                .build();
+        for (long i = 0; i < 4; i += 1) {
+            p.publish(VALUE, i);
+        }
+        assertEquals(p.getRingBuffer().remainingCapacity(), 0);
+        p.start();
+        // Would wait forever if the ring didn't come round
+        for (long i = 4; i < 100; i += 1) {
+            p.publish(VALUE, i);
+        }
+        p.close();
+        assertEquals(seen.get(), 100);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_badSize() {
+        new RingBuffer<>(Event::new, 10, new BusySpinWaitStrategy());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A server that answers the first request on each connection and keeps it
+ * alive, then reads the second request and hangs up without answering, the
+ * way a server that's timed out an idle connection does.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+class DroppingServer implements AutoCloseable {
+
+    private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+            + "Content-Length: 11\r\n\r\n{\"ok\":true}").getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocket server;
+    private final List<String> methods = new CopyOnWriteArrayList<>();
+
+    DroppingServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    Thread c = new Thread(() -> serve(s), "DroppingServer-Connection");
+                    c.setDaemon(true);
+                    c.start();
+                } catch (IOException ex) {
+                    return;
+                }
+            }
+        }, "DroppingServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getLocalPort() + "/ob/api";
+    }
+
+    /**
+     * @return methods of every request received, in order
+     */
+    List<String> getMethods() {
+        return methods;
+    }
+
+    private void serve(Socket s) {
+        try (Socket socket = s) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            readRequest(in);
+            out.write(RESPONSE);
+            out.flush();
+            readRequest(in);
+        } catch (IOException ex) {
+            // Client went away
+        }
+    }
+
+    private void readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Closed");
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        String text = head.toString("US-ASCII");
+        methods.add(text.substring(0, text.indexOf(' ')));
+        int length = 0;
+        for (String line : text.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        for (int i = 0; i < length; i += 1) {
+            in.read();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
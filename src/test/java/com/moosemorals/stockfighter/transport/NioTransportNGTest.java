@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import com.moosemorals.stockfighter.AsyncTrader;
+import com.moosemorals.stockfighter.StubExchange;
+import com.moosemorals.stockfighter.Trader;
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.Orderbook;
+import com.moosemorals.stockfighter.types.Quote;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Runs NioTransport (and the async AsyncTrader calls on top of it) against a
+ * local stand-in exchange.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class NioTransportNGTest {
+
+    private StubExchange exchange;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        exchange = new StubExchange(64);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        exchange.close();
+    }
+
+    @Test
+    public void test_blocking() throws Exception {
+        NioTransport transport = new NioTransport(exchange.getBaseUrl(), "key");
+        Trader t = new Trader(transport);
+
+        for (int i = 0; i < 10; i += 1) {
+            assertTrue(t.heartBeat());
+        }
+        assertEquals(t.getQuote("TESTEX", "FOOBAR").getBid(), 5100);
+        assertEquals(transport.getConnectionsOpened(), 1);
+        t.close();
+    }
+
+    @Test
+    public void test_manyInFlight() throws Exception {
+        exchange.setDelay(50);
+        NioTransport transport = new NioTransport(exchange.getBaseUrl(), "key", 2, 64);
+        AsyncTrader at = new AsyncTrader(new Trader(transport), "TESTEX", "FOOBAR");
+
+        int threadsBefore = Thread.activeCount();
+        long start = System.nanoTime();
+        List<CompletableFuture<Quote>> quotes = new ArrayList<>();
+        for (int i = 0; i < 300; i += 1) {
+            quotes.add(at.getQuoteAsync());
+        }
+        // Nothing blocks, and no thread per request
+        assertTrue(Thread.activeCount() <= threadsBefore + 1, "Threads: " + Thread.activeCount());
+
+        CompletableFuture.allOf(quotes.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (CompletableFuture<Quote> q : quotes) {
+            assertEquals(q.get().getSymbol(), "FOOBAR");
+        }
+        // 300 requests at 50ms each, 64 at a time, is about 5 rounds.
+        // Serially it would be 15 seconds.
+        assertTrue(elapsed < 5000, "Took " + elapsed + "ms");
+        assertTrue(transport.getConnectionsOpened() <= 64);
+        transport.close();
+    }
+
+    @Test
+    public void test_asyncTrader() throws Exception {
+        exchange.setChunked(true);
+        NioTransport transport = new NioTransport(exchange.getBaseUrl(), "key");
+        AsyncTrader at = new AsyncTrader(new Trader(transport), "TESTEX", "FOOBAR");
+
+        Order o = new Order();
+        o.setAccount("EXB123456");
+        o.setVenue("TESTEX");
+        o.setSymbol("FOOBAR");
+        o.setPrice(5100);
+        o.setQuantity(100);
+        o.setBuy(true);
+        o.setType(Order.OrderType.Limit);
+
+        OrderStatus posted = at.postOrderAsync(o).get(5, TimeUnit.SECONDS);
+        assertEquals(posted.getAccount(), "EXB123456");
+
+        OrderStatus status = at.getOrderStatusAsync(posted.getId()).get(5, TimeUnit.SECONDS);
+        assertEquals(status.getId(), posted.getId());
+        assertTrue(status.isOpen());
+
+        OrderStatus cancelled = at.cancelOrderAsync(posted.getId()).get(5, TimeUnit.SECONDS);
+        assertEquals(cancelled.getId(), posted.getId());
+        assertTrue(!cancelled.isOpen());
+
+        Orderbook book = at.getOrderbookAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(book.getBids().length, 3);
+        transport.close();
+    }
+
+    @Test
+    public void test_callbacksOffSelector() throws Exception {
+        exchange.setDelay(50);
+        try (NioTransport transport = new NioTransport(exchange.getBaseUrl(), "key")) {
+            String thread = transport.getAsync("/heartbeat")
+                    .thenApply(raw -> Thread.currentThread().getName())
+                    .get(5, TimeUnit.SECONDS);
+            assertFalse(thread.startsWith("NioTransport-Selector"), thread);
+        }
+    }
+
+    @Test
+    public void test_unknownHost() throws Exception {
+        try (NioTransport transport = new NioTransport("http://no-such-host.invalid/ob/api", "key")) {
+            transport.getAsync("/heartbeat").get(5, TimeUnit.SECONDS);
+            fail("Should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof UnknownHostException, ex.getCause().toString());
+        }
+    }
+
+    @Test
+    public void test_staleRetry() throws Exception {
+        try (DroppingServer server = new DroppingServer();
+                NioTransport transport = new NioTransport(server.getBaseUrl(), "key", 1, 1)) {
+            transport.getAsync("/heartbeat").get(5, TimeUnit.SECONDS);
+            // Dropped, and sent again on a fresh connection
+            transport.getAsync("/heartbeat").get(5, TimeUnit.SECONDS);
+            assertEquals(server.getMethods().size(), 3);
+
+            // A post might have been taken, so it isn't sent again
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            try {
+                transport.postAsync("/venues/TESTEX/stocks/FOOBAR/orders", body, 0, body.length).get(5, TimeUnit.SECONDS);
+                fail("Should have failed");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+            assertEquals(server.getMethods().size(), 4);
+            assertEquals(server.getMethods().get(3), "POST");
+        }
+    }
+
+    @Test
+    public void test_error() throws Exception {
+        NioTransport transport = new NioTransport(exchange.getBaseUrl(), "key");
+        try {
+            transport.getAsync("/nothing/here").get(5, TimeUnit.SECONDS);
+            fail("Expected an error");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause().getMessage().contains("404"), ex.getCause().getMessage());
+        }
+        transport.getAsync("/heartbeat").get(5, TimeUnit.SECONDS);
+        assertEquals(transport.getConnectionsOpened(), 1);
+        transport.close();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import com.moosemorals.stockfighter.StubExchange;
+import com.moosemorals.stockfighter.Trader;
+import com.moosemorals.stockfighter.types.Order;
+import com.moosemorals.stockfighter.types.OrderStatus;
+import com.moosemorals.stockfighter.types.Quote;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Runs PooledTransport against a local stand-in exchange.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class PooledTransportNGTest {
+
+    private StubExchange exchange;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        exchange = new StubExchange();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        exchange.close();
+    }
+
+    @Test
+    public void test_reusesConnection() throws Exception {
+        PooledTransport transport = new PooledTransport(exchange.getBaseUrl(), "key");
+        Trader t = new Trader(transport);
+
+        for (int i = 0; i < 20; i += 1) {
+            assertTrue(t.heartBeat());
+            assertTrue(t.heartBeat("TESTEX"));
+        }
+
+        assertEquals(transport.getConnectionsOpened(), 1);
+        assertEquals(transport.getRequestCount(), 40);
+        t.close();
+    }
+
+    @Test
+    public void test_chunked() throws Exception {
+        exchange.setChunked(true);
+        PooledTransport transport = new PooledTransport(exchange.getBaseUrl(), "key");
+        Trader t = new Trader(transport);
+
+        for (int i = 0; i < 5; i += 1) {
+            Quote q = t.getQuote("TESTEX", "FOOBAR");
+            assertEquals(q.getSymbol(), "FOOBAR");
+            assertEquals(q.getBid(), 5100);
+        }
+
+        assertEquals(transport.getConnectionsOpened(), 1);
+        t.close();
+    }
+
+    @Test
+    public void test_postOrder() throws Exception {
+        Trader t = new Trader("key", exchange.getBaseUrl());
+
+        Order o = new Order();
+        o.setAccount("EXB123456");
+        o.setVenue("TESTEX");
+        o.setSymbol("FOOBAR");
+        o.setPrice(5100);
+        o.setQuantity(100);
+        o.setBuy(true);
+        o.setType(Order.OrderType.Limit);
+
+        OrderStatus status = t.postOrder(o);
+        assertTrue(status.isOk());
+        assertEquals(status.getAccount(), "EXB123456");
+        assertEquals(status.getFills().length, 2);
+
+        OrderStatus cancelled = t.cancelOrder("TESTEX", "FOOBAR", status.getId());
+        assertEquals(cancelled.getId(), status.getId());
+        t.close();
+    }
+
+    @Test
+    public void test_errorKeepsConnection() throws Exception {
+        PooledTransport transport = new PooledTransport(exchange.getBaseUrl(), "key");
+
+        try {
+            transport.get("/nothing/here").close();
+            fail("Expected an error");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("404"), ex.getMessage());
+        }
+
+        transport.get("/heartbeat").close();
+        assertEquals(transport.getConnectionsOpened(), 1);
+        transport.close();
+    }
+
+    @Test
+    public void test_staleRetry() throws Exception {
+        try (DroppingServer server = new DroppingServer();
+                PooledTransport transport = new PooledTransport(server.getBaseUrl(), "key", 1)) {
+            transport.get("/heartbeat").close();
+            // Dropped, and sent again on a fresh connection
+            transport.get("/heartbeat").close();
+            assertEquals(server.getMethods().size(), 3);
+
+            // A post might have been taken, so it isn't sent again
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            try {
+                transport.post("/venues/TESTEX/stocks/FOOBAR/orders", body, 0, body.length).close();
+                fail("Should have failed");
+            } catch (IOException ex) {
+                // expected
+            }
+            assertEquals(server.getMethods().size(), 4);
+            assertEquals(server.getMethods().get(3), "POST");
+        }
+    }
+
+    @Test
+    public void test_boundedPool() throws Exception {
+        exchange.setDelay(5);
+        final PooledTransport transport = new PooledTransport(exchange.getBaseUrl(), "key", 2);
+        final Trader t = new Trader(transport);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Quote>> results = new ArrayList<>();
+        for (int i = 0; i < 40; i += 1) {
+            results.add(pool.submit(new Callable<Quote>() {
+                @Override
+                public Quote call() throws Exception {
+                    return t.getQuote("TESTEX", "FOOBAR");
+                }
+            }));
+        }
+        for (Future<Quote> f : results) {
+            assertEquals(f.get().getVenue(), "TESTEX");
+        }
+        pool.shutdown();
+
+        assertTrue(transport.getConnectionsOpened() <= 2, "Opened " + transport.getConnectionsOpened());
+        assertEquals(transport.getIdleCount(), (int) transport.getConnectionsOpened());
+        t.close();
+    }
+}
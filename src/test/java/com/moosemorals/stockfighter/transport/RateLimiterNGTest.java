@@ -0,0 +1,312 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import com.moosemorals.stockfighter.StubExchange;
+import com.moosemorals.stockfighter.Trader;
+import com.moosemorals.stockfighter.transport.RateLimiter.Endpoint;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class RateLimiterNGTest {
+
+    @Test
+    public void test_endpoints() {
+        assertEquals(Endpoint.of("/venues/TESTEX/stocks/FOOBAR/orders"), Endpoint.ORDERS);
+        assertEquals(Endpoint.of("/venues/TESTEX/stocks/FOOBAR/orders/12"), Endpoint.ORDERS);
+        assertEquals(Endpoint.of("/venues/TESTEX/accounts/EXB123456/orders/"), Endpoint.ORDERS);
+        assertEquals(Endpoint.of("/venues/TESTEX/stocks/FOOBAR/quote"), Endpoint.QUOTES);
+        assertEquals(Endpoint.of("/venues/TESTEX/stocks/FOOBAR"), Endpoint.BOOK);
+        assertEquals(Endpoint.of("/venues/TESTEX/stocks"), Endpoint.OTHER);
+        assertEquals(Endpoint.of("/heartbeat"), Endpoint.OTHER);
+    }
+
+    @Test
+    public void test_rate() throws Exception {
+        RateLimiter limiter = RateLimiter.builder().rate(Endpoint.QUOTES, 100, 5).build();
+        long start = System.nanoTime();
+        for (int i = 0; i < 25; i += 1) {
+            limiter.release(Endpoint.QUOTES, limiter.acquire(Endpoint.QUOTES), null);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // Five straight away, then twenty at 10ms each
+        assertTrue(millis >= 180, "Took " + millis + "ms");
+
+        RateLimiter.Lane lane = limiter.getLane(Endpoint.QUOTES);
+        assertEquals(lane.getAcquiredCount(), 25);
+        assertEquals(lane.getRateWaitCount(), 20);
+        assertTrue(lane.getRateWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(180));
+
+        // Other endpoints aren't held up
+        assertEquals(limiter.getLane(Endpoint.ORDERS).getRate(), 0.0);
+        limiter.acquire(Endpoint.ORDERS);
+        assertEquals(limiter.getLane(Endpoint.ORDERS).getRateWaitCount(), 0);
+    }
+
+    @Test
+    public void test_concurrency() throws Exception {
+        final RateLimiter limiter = RateLimiter.builder().concurrency(Endpoint.ORDERS, 2, 1, 2).build();
+        long first = limiter.acquire(Endpoint.ORDERS);
+        limiter.acquire(Endpoint.ORDERS);
+
+        final CountDownLatch third = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire(Endpoint.ORDERS);
+                third.countDown();
+            } catch (InterruptedException ex) {
+                // test fails
+            }
+        });
+        t.start();
+        assertFalse(third.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(Endpoint.ORDERS, first, null);
+        assertTrue(third.await(5, TimeUnit.SECONDS));
+        assertEquals(limiter.getLane(Endpoint.ORDERS).getConcurrencyWaitCount(), 1);
+        assertEquals(limiter.getLane(Endpoint.ORDERS).getInFlight(), 2);
+    }
+
+    @Test
+    public void test_acquireAsync() throws Exception {
+        RateLimiter limiter = RateLimiter.builder()
+                .rate(Endpoint.QUOTES, 20, 1)
+                .concurrency(Endpoint.ORDERS, 1, 1, 1)
+                .build();
+
+        // Waiting for a token
+        CompletableFuture<Long> first = limiter.acquireAsync(Endpoint.QUOTES);
+        CompletableFuture<Long> second = limiter.acquireAsync(Endpoint.QUOTES);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        limiter.release(Endpoint.QUOTES, first.get(), null);
+        limiter.release(Endpoint.QUOTES, second.get(5, TimeUnit.SECONDS), null);
+        RateLimiter.Lane quotes = limiter.getLane(Endpoint.QUOTES);
+        assertEquals(quotes.getRateWaitCount(), 1);
+        assertTrue(quotes.getRateWaitNanos() > 0);
+
+        // Waiting for a slot, and giving up
+        long held = limiter.acquire(Endpoint.ORDERS);
+        CompletableFuture<Long> quitter = limiter.acquireAsync(Endpoint.ORDERS);
+        CompletableFuture<Long> waiter = limiter.acquireAsync(Endpoint.ORDERS);
+        RateLimiter.Lane orders = limiter.getLane(Endpoint.ORDERS);
+        assertEquals(orders.getWaitingCount(), 2);
+        quitter.cancel(false);
+        limiter.release(Endpoint.ORDERS, held, null);
+        assertTrue(waiter.isDone());
+        assertEquals(orders.getWaitingCount(), 0);
+        assertEquals(orders.getInFlight(), 1);
+        assertEquals(orders.getAcquiredCount(), 2);
+    }
+
+    @Test
+    public void test_asyncDoesntBlock() throws Exception {
+        RateLimiter limiter = RateLimiter.builder().concurrency(Endpoint.QUOTES, 1, 1, 1).build();
+        try (StubExchange exchange = new StubExchange();
+                NioTransport nio = new NioTransport(exchange.getBaseUrl(), "key")) {
+            exchange.setDelay(100);
+            AsyncTransport limited = (AsyncTransport) RateLimitedTransport.wrap(nio, limiter);
+            RateLimiter.Lane lane = limiter.getLane(Endpoint.QUOTES);
+
+            long start = System.nanoTime();
+            List<CompletableFuture<byte[]>> sent = new ArrayList<>();
+            for (int i = 0; i < 3; i += 1) {
+                sent.add(limited.getAsync("/venues/TESTEX/stocks/FOOBAR/quote"));
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis < 50, "Took " + millis + "ms");
+            assertEquals(lane.getWaitingCount(), 2);
+
+            for (CompletableFuture<byte[]> f : sent) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+            // One at a time
+            millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis >= 300, "Took " + millis + "ms");
+            assertEquals(lane.getInFlight(), 0);
+            assertEquals(lane.getConcurrencyWaitCount(), 2);
+            assertEquals(lane.getAcquiredCount(), 3);
+        }
+    }
+
+    @Test
+    public void test_blockingWaitsInTurn() throws Exception {
+        final RateLimiter limiter = RateLimiter.builder().concurrency(Endpoint.ORDERS, 1, 1, 1).build();
+        RateLimiter.Lane lane = limiter.getLane(Endpoint.ORDERS);
+        long held = limiter.acquire(Endpoint.ORDERS);
+        CompletableFuture<Long> first = limiter.acquireAsync(Endpoint.ORDERS);
+
+        final CountDownLatch second = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire(Endpoint.ORDERS);
+                second.countDown();
+            } catch (InterruptedException ex) {
+                // test fails
+            }
+        });
+        t.start();
+        long end = System.currentTimeMillis() + 5000;
+        while (lane.getWaitingCount() < 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(lane.getWaitingCount(), 2);
+
+        // The async waiter was first, so it goes first
+        limiter.release(Endpoint.ORDERS, held, null);
+        assertTrue(first.isDone());
+        assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(Endpoint.ORDERS, first.get(), null);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_interruptKeepsToken() throws Exception {
+        // One token a second, so a lost one would be noticed
+        final RateLimiter limiter = RateLimiter.builder()
+                .rate(Endpoint.ORDERS, 1, 2)
+                .concurrency(Endpoint.ORDERS, 1, 1, 1)
+                .build();
+        RateLimiter.Lane lane = limiter.getLane(Endpoint.ORDERS);
+        long first = limiter.acquire(Endpoint.ORDERS);
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                limiter.acquire(Endpoint.ORDERS);
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+            }
+        });
+        t.start();
+        long end = System.currentTimeMillis() + 5000;
+        while (lane.getConcurrencyWaitCount() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        t.interrupt();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        limiter.release(Endpoint.ORDERS, first, null);
+        limiter.acquire(Endpoint.ORDERS);
+        assertEquals(lane.getRateWaitCount(), 0);
+        assertEquals(lane.getAcquiredCount(), 2);
+    }
+
+    @Test
+    public void test_aimd() throws Exception {
+        RateLimiter limiter = RateLimiter.builder()
+                .concurrency(Endpoint.ORDERS, 8, 2, 10)
+                .latencyTarget(Endpoint.ORDERS, 50, TimeUnit.MILLISECONDS)
+                .build();
+        RateLimiter.Lane lane = limiter.getLane(Endpoint.ORDERS);
+        long slowStart = limiter.acquire(Endpoint.ORDERS) - TimeUnit.MILLISECONDS.toNanos(100);
+        long alsoSlow = limiter.acquire(Endpoint.ORDERS) - TimeUnit.MILLISECONDS.toNanos(100);
+
+        limiter.release(Endpoint.ORDERS, slowStart, null);
+        assertEquals(lane.getLimit(), 4);
+        // Already in flight when the limit was cut, so it doesn't cut again
+        limiter.release(Endpoint.ORDERS, alsoSlow, null);
+        assertEquals(lane.getLimit(), 4);
+        assertEquals(lane.getSlowCount(), 2);
+        assertEquals(lane.getDecreaseCount(), 1);
+
+        // Quick answers with room to spare don't need a higher limit
+        for (int i = 0; i < 10; i += 1) {
+            limiter.release(Endpoint.ORDERS, limiter.acquire(Endpoint.ORDERS), null);
+        }
+        assertEquals(lane.getLimit(), 4);
+
+        // With the limit full they creep back up, one per round of four
+        long[] held = new long[3];
+        for (int i = 0; i < held.length; i += 1) {
+            held[i] = limiter.acquire(Endpoint.ORDERS);
+        }
+        for (int i = 0; i < 4; i += 1) {
+            limiter.release(Endpoint.ORDERS, limiter.acquire(Endpoint.ORDERS), null);
+        }
+        assertEquals(lane.getLimit(), 4);
+        limiter.release(Endpoint.ORDERS, limiter.acquire(Endpoint.ORDERS), null);
+        assertEquals(lane.getLimit(), 5);
+        for (long h : held) {
+            limiter.release(Endpoint.ORDERS, h, null);
+        }
+        assertEquals(lane.getLimit(), 5);
+
+        // Overloaded or broken servers cut it, bad requests don't
+        limiter.release(Endpoint.ORDERS, limiter.acquire(Endpoint.ORDERS), new HttpStatusException(404, "Not found"));
+        assertEquals(lane.getLimit(), 5);
+        limiter.release(Endpoint.ORDERS, limiter.acquire(Endpoint.ORDERS), new HttpStatusException(503, "Busy"));
+        assertEquals(lane.getLimit(), 2);
+        limiter.release(Endpoint.ORDERS, limiter.acquire(Endpoint.ORDERS), new IOException("Connection reset"));
+        assertEquals(lane.getLimit(), 2);
+        assertEquals(lane.getErrorCount(), 2);
+    }
+
+    @Test
+    public void test_transport() throws Exception {
+        RateLimiter limiter = RateLimiter.builder().rate(Endpoint.QUOTES, 50, 1).build();
+        try (StubExchange exchange = new StubExchange();
+                Trader trader = new Trader(RateLimitedTransport.wrap(new PooledTransport(exchange.getBaseUrl(), "key"), limiter))) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 6; i += 1) {
+                trader.getQuote("TESTEX", "FOOBAR");
+            }
+            trader.getOrderbook("TESTEX", "FOOBAR");
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis >= 90, "Took " + millis + "ms");
+            assertEquals(limiter.getLane(Endpoint.QUOTES).getAcquiredCount(), 6);
+            assertEquals(limiter.getLane(Endpoint.BOOK).getAcquiredCount(), 1);
+            assertEquals(limiter.getLane(Endpoint.QUOTES).getInFlight(), 0);
+            assertFalse(trader.getTransport() instanceof AsyncTransport);
+        }
+    }
+
+    @Test
+    public void test_keepsAsync() throws Exception {
+        RateLimiter limiter = RateLimiter.builder().build();
+        try (StubExchange exchange = new StubExchange();
+                NioTransport nio = new NioTransport(exchange.getBaseUrl(), "key")) {
+            RateLimitedTransport limited = RateLimitedTransport.wrap(nio, limiter);
+            assertTrue(limited instanceof AsyncTransport);
+            ((AsyncTransport) limited).getAsync("/venues/TESTEX/stocks/FOOBAR/quote").get(5, TimeUnit.SECONDS);
+            ((AsyncTransport) limited).getAsync("/nothing/here").handle((raw, ex) -> ex).get(5, TimeUnit.SECONDS);
+            RateLimiter.Lane other = limiter.getLane(Endpoint.OTHER);
+            assertEquals(other.getInFlight(), 0);
+            // A 404 is our mistake, not the server being busy
+            assertEquals(other.getErrorCount(), 0);
+            assertEquals(limiter.getLane(Endpoint.QUOTES).getAcquiredCount(), 1);
+        }
+    }
+}
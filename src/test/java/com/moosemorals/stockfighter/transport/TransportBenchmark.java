@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.transport;
+
+import com.moosemorals.stockfighter.StubExchange;
+import com.moosemorals.stockfighter.Trader;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares per-call latency and throughput of {@link PooledTransport} with
+ * the old one-HttpURLConnection-per-call path, against a local stand-in
+ * exchange.
+ *
+ * Run with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:java -Dbenchmark.main=com.moosemorals.stockfighter.transport.TransportBenchmark
+ * </pre>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TransportBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int CALLS = 10000;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        try (StubExchange exchange = new StubExchange()) {
+            String url = exchange.getBaseUrl();
+
+            System.out.printf("%-24s %8s %10s %10s %10s %12s%n", "transport", "threads", "mean(us)", "p50(us)", "p99(us)", "calls/sec");
+            for (int threads : new int[]{1, THREADS}) {
+                run("HttpURLConnection", new UrlConnectionTransport(url, "key"), threads);
+                run("PooledTransport", new PooledTransport(url, "key", THREADS), threads);
+            }
+        }
+    }
+
+    private static void run(String name, Transport transport, final int threads) throws Exception {
+        final Trader trader = new Trader(transport);
+
+        for (int i = 0; i < WARMUP; i += 1) {
+            trader.getQuote("TESTEX", "FOOBAR");
+        }
+
+        final long[] latencies = new long[CALLS];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t += 1) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < CALLS) {
+                            long before = System.nanoTime();
+                            trader.getQuote("TESTEX", "FOOBAR");
+                            latencies[i] = System.nanoTime() - before;
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Benchmark-" + t).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        trader.close();
+
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long l : latencies) {
+            total += l;
+        }
+
+        System.out.printf("%-24s %8d %10.1f %10.1f %10.1f %12.0f%n", name, threads,
+                total / (double) CALLS / 1000.0,
+                latencies[CALLS / 2] / 1000.0,
+                latencies[CALLS * 99 / 100] / 1000.0,
+                CALLS / (elapsed / 1e9));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares {@link MessageDecoder} with the JsonParser constructors on typical
+ * quote and execution ticker messages, reporting time and bytes allocated per
+ * message.
+ *
+ * Run with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:java -Dbenchmark.main=com.moosemorals.stockfighter.types.DecoderBenchmark
+ * </pre>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class DecoderBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int MESSAGES = 1000000;
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Stops the JIT throwing the work away
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        final MessageDecoder decoder = new MessageDecoder();
+
+        System.out.printf("%-24s %10s %12s %12s%n", "decoder", "ns/msg", "bytes/msg", "msgs/sec");
+
+        run("Quote JsonParser", new Runnable() {
+            @Override
+            public void run() {
+                sink += MessageDecoderNGTest.parseQuote(MessageDecoderNGTest.QUOTE).getBid();
+            }
+        });
+        run("Quote MessageDecoder", new Runnable() {
+            @Override
+            public void run() {
+                sink += decoder.decodeQuote(MessageDecoderNGTest.QUOTE).getBid();
+            }
+        });
+        final Quote quote = new Quote();
+        run("Quote reused", new Runnable() {
+            @Override
+            public void run() {
+                decoder.decodeQuote(MessageDecoderNGTest.QUOTE, quote);
+                sink += quote.getBid();
+            }
+        });
+        run("Execution JsonParser", new Runnable() {
+            @Override
+            public void run() {
+                sink += MessageDecoderNGTest.parseExecution(MessageDecoderNGTest.EXECUTION).getPrice();
+            }
+        });
+        run("Execution MessageDecoder", new Runnable() {
+            @Override
+            public void run() {
+                sink += decoder.decodeExecution(MessageDecoderNGTest.EXECUTION).getPrice();
+            }
+        });
+        final Execution execution = new Execution();
+        run("Execution reused", new Runnable() {
+            @Override
+            public void run() {
+                decoder.decodeExecution(MessageDecoderNGTest.EXECUTION, execution);
+                sink += execution.getPrice();
+            }
+        });
+    }
+
+    private static void run(String name, Runnable task) {
+        for (int i = 0; i < WARMUP; i += 1) {
+            task.run();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i += 1) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+
+        System.out.printf("%-24s %10.1f %12.1f %12.0f%n", name,
+                elapsed / (double) MESSAGES,
+                bytes / (double) MESSAGES,
+                MESSAGES / (elapsed / 1e9));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class DictionaryNGTest {
+
+    @Test
+    public void test_ids() {
+        Dictionary d = new Dictionary();
+        assertEquals(d.id("FOOBAR"), 0);
+        assertEquals(d.id("TESTEX"), 1);
+        assertEquals(d.id("FOOBAR"), 0);
+        assertEquals(d.size(), 2);
+
+        byte[] raw = "xTESTEXx".getBytes(StandardCharsets.UTF_8);
+        assertEquals(d.id(raw, 1, 6), 1);
+        assertSame(d.name(0), d.name(d.id(new String("FOOBAR"))));
+        assertEquals(d.id(null), Dictionary.NONE);
+        assertNull(d.name(Dictionary.NONE));
+    }
+
+    @Test
+    public void test_unicode() {
+        Dictionary d = new Dictionary();
+        int id = d.id("TÉSTEX☃");
+        byte[] raw = "TÉSTEX☃".getBytes(StandardCharsets.UTF_8);
+        assertEquals(d.id(raw, 0, raw.length), id);
+        assertEquals(d.name(id), "TÉSTEX☃");
+    }
+
+    @Test
+    public void test_grows() {
+        Dictionary d = new Dictionary();
+        for (int i = 0; i < 1000; i += 1) {
+            assertEquals(d.id("SYM" + i), i);
+        }
+        for (int i = 0; i < 1000; i += 1) {
+            assertEquals(d.id("SYM" + i), i);
+            assertEquals(d.name(i), "SYM" + i);
+        }
+    }
+
+    @Test
+    public void test_concurrent() throws Exception {
+        final Dictionary d = new Dictionary();
+        final ConcurrentMap<String, Integer> seen = new ConcurrentHashMap<>();
+        final int threads = 8;
+        final int names = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Throwable[] failure = new Throwable[1];
+
+        for (int t = 0; t < threads; t += 1) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < names; i += 1) {
+                            String name = "N" + i;
+                            int id = d.id(name);
+                            Integer previous = seen.putIfAbsent(name, id);
+                            assertEquals(previous == null ? id : previous.intValue(), id);
+                            assertEquals(d.name(id), name);
+                        }
+                    } catch (Throwable ex) {
+                        failure[0] = ex;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertNull(failure[0]);
+        assertEquals(d.size(), names);
+        assertEquals(seen.size(), names);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Compares {@link OrderEncoder} with writing orders through a JsonGenerator,
+ * reporting time and bytes allocated per order.
+ *
+ * Run with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:java -Dbenchmark.main=com.moosemorals.stockfighter.types.EncoderBenchmark
+ * </pre>
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class EncoderBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int ORDERS = 1000000;
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Stops the JIT throwing the work away
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        final Order order = OrderEncoderNGTest.order("EXB123456", "TESTEX", "FOOBAR", 100, 5100, true, Order.OrderType.Limit);
+        final OrderEncoder encoder = new OrderEncoder();
+
+        System.out.printf("%-24s %10s %12s %12s%n", "encoder", "ns/order", "bytes/order", "orders/sec");
+
+        run("JsonGenerator", new Runnable() {
+            @Override
+            public void run() {
+                order.setPrice(order.getPrice() ^ 1);
+                ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+                try (JsonGenerator gen = Json.createGenerator(body)) {
+                    order.toJson(gen);
+                }
+                sink += body.toByteArray().length;
+            }
+        });
+        run("OrderEncoder", new Runnable() {
+            @Override
+            public void run() {
+                order.setPrice(order.getPrice() ^ 1);
+                sink += encoder.encode(order).getLength();
+            }
+        });
+    }
+
+    private static void run(String name, Runnable task) {
+        for (int i = 0; i < WARMUP; i += 1) {
+            task.run();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ORDERS; i += 1) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+
+        System.out.printf("%-24s %10.1f %12.1f %12.0f%n", name,
+                elapsed / (double) ORDERS,
+                bytes / (double) ORDERS,
+                ORDERS / (elapsed / 1e9));
+    }
+}
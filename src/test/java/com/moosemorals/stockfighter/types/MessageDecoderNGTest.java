@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.StringReader;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import org.testng.annotations.Test;
+
+/**
+ * Check that MessageDecoder builds the same objects as the JsonParser
+ * constructors.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class MessageDecoderNGTest {
+
+    static final String QUOTE = "{\"ok\":true,\"quote\":{\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"bid\":5100,\"ask\":5125,"
+            + "\"bidSize\":392,\"askSize\":711,\"bidDepth\":2748,\"askDepth\":2237,\"last\":5125,\"lastSize\":52,"
+            + "\"lastTrade\":\"2015-07-13T05:38:17.33640392Z\",\"quoteTime\":\"2015-07-13T05:38:17.33640392Z\"}}";
+
+    static final String EXECUTION = "{\"ok\":true,\"account\":\"EXB123456\",\"venue\":\"TESTEX\",\"symbol\":\"FOOBAR\","
+            + "\"order\":{\"ok\":true,\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"direction\":\"buy\",\"originalQty\":85,"
+            + "\"qty\":0,\"price\":993,\"orderType\":\"limit\",\"type\":\"limit\",\"id\":20,\"account\":\"EXB123456\","
+            + "\"ts\":\"2015-08-10T16:10:32.987288+09:00\",\"fills\":[{\"price\":5960,\"qty\":50,\"ts\":\"2015-08-10T16:10:32.987292Z\"},"
+            + "{\"price\":5950,\"qty\":35,\"ts\":\"2015-08-10T16:10:32.987293Z\"}],\"totalFilled\":85,\"open\":false},"
+            + "\"standingId\":20,\"incomingId\":27,\"price\":5960,\"filled\":50,\"filledAt\":\"2015-08-10T16:10:32.987292Z\","
+            + "\"standingComplete\":false,\"incomingComplete\":true}";
+
+    @Test
+    public void test_quote() throws Exception {
+        assertSameFields(new MessageDecoder().decodeQuote(QUOTE), parseQuote(QUOTE));
+    }
+
+    @Test
+    public void test_quoteMissingFields() throws Exception {
+        String message = "{ \"ok\" : true ,\n \"quote\" : { \"symbol\" : \"FOOBAR\", \"venue\":\"TESTEX\", \"bid\":-12, "
+                + "\"extra\": {\"nested\": [1, 2, {\"a\": \"b\"}]}, \"bidSize\": 3.7, \"askDepth\": 1e3,"
+                + " \"quoteTime\":\"2015-07-13T05:38:17.33640392Z\" } }";
+        assertSameFields(new MessageDecoder().decodeQuote(message), parseQuote(message));
+    }
+
+    @Test
+    public void test_quoteNotOk() throws Exception {
+        MessageDecoder decoder = new MessageDecoder();
+        assertNull(decoder.decodeQuote("{\"ok\":false,\"error\":\"nope\"}"));
+        assertNull(decoder.decodeQuote("{\"ok\":true,\"quote\":[]}"));
+    }
+
+    @Test
+    public void test_escapedStrings() throws Exception {
+        String message = "{\"ok\":true,\"quote\":{\"symbol\":\"F\\\"O\\u00e9\\nB\",\"venue\":\"TÉSTEX☃\",\"bid\":1}}";
+        Quote q = new MessageDecoder().decodeQuote(message);
+        assertSameFields(q, parseQuote(message));
+        assertEquals(q.getSymbol(), "F\"Oé\nB");
+        assertEquals(q.getVenue(), "TÉSTEX☃");
+    }
+
+    @Test
+    public void test_execution() throws Exception {
+        MessageDecoder decoder = new MessageDecoder();
+        Execution e = decoder.decodeExecution(EXECUTION);
+        assertSameFields(e, parseExecution(EXECUTION));
+        assertEquals(e.getOrder().getFillCount(), 2);
+        assertSameFields(e.getOrder().getFills(), parseExecution(EXECUTION).getOrder().getFills());
+    }
+
+    @Test
+    public void test_executionNoFills() throws Exception {
+        String message = "{\"ok\":true,\"account\":\"EXB123456\",\"order\":{\"direction\":\"sell\",\"type\":\"immediate-or-cancel\","
+                + "\"fills\":[],\"open\":true},\"standingComplete\":true}";
+        assertSameFields(new MessageDecoder().decodeExecution(message), parseExecution(message));
+    }
+
+    @Test
+    public void test_bytes() throws Exception {
+        byte[] raw = ("xx" + EXECUTION + "yy").getBytes(StandardCharsets.UTF_8);
+        Execution e = new MessageDecoder().decodeExecution(raw, 2, raw.length - 4);
+        assertSameFields(e, parseExecution(EXECUTION));
+    }
+
+    @Test
+    public void test_byteBuffers() throws Exception {
+        byte[] raw = ("xx" + EXECUTION + "yy").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer heap = ByteBuffer.wrap(raw, 2, raw.length - 4).slice();
+        assertSameFields(new MessageDecoder().decodeExecution(heap), parseExecution(EXECUTION));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(raw.length);
+        direct.put(raw).flip();
+        direct.position(2).limit(raw.length - 2);
+        Execution e = new Execution();
+        new MessageDecoder().decodeExecution(direct, e);
+        assertSameFields(e, parseExecution(EXECUTION));
+        assertEquals(direct.position(), 2);
+
+        ByteBuffer quote = ByteBuffer.wrap(QUOTE.getBytes(StandardCharsets.UTF_8));
+        assertEquals(new MessageDecoder().decodeQuote(quote).getBid(), parseQuote(QUOTE).getBid());
+        assertEquals(quote.position(), 0);
+    }
+
+    @Test
+    public void test_namesAreShared() throws Exception {
+        MessageDecoder decoder = new MessageDecoder();
+        Quote first = decoder.decodeQuote(QUOTE);
+        Quote second = decoder.decodeQuote(QUOTE);
+        assertSame(first.getSymbol(), second.getSymbol());
+        assertSame(first.getVenue(), second.getVenue());
+    }
+
+    static Quote parseQuote(String message) {
+        try (JsonParser parser = Json.createParser(new StringReader(message))) {
+            while (parser.hasNext()) {
+                if (parser.next() == JsonParser.Event.KEY_NAME && parser.getString().equals("quote")) {
+                    parser.next();
+                    return new Quote(parser);
+                }
+            }
+        }
+        return null;
+    }
+
+    static Execution parseExecution(String message) {
+        try (JsonParser parser = Json.createParser(new StringReader(message))) {
+            return new Execution(parser);
+        }
+    }
+
+    static void assertSameFields(Object actual, Object expected) throws IllegalAccessException {
+        if (expected == null || actual == null) {
+            assertEquals(actual, expected);
+            return;
+        }
+        assertEquals(actual.getClass(), expected.getClass());
+        if (expected.getClass().isArray()) {
+            assertEquals(Array.getLength(actual), Array.getLength(expected));
+            for (int i = 0; i < Array.getLength(expected); i += 1) {
+                assertSameFields(Array.get(actual, i), Array.get(expected, i));
+            }
+            return;
+        }
+        if (!expected.getClass().getPackage().equals(MessageDecoder.class.getPackage())) {
+            assertEquals(actual, expected);
+            return;
+        }
+        assertNotNull(actual);
+        for (Field f : expected.getClass().getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers()) || f.getName().equals("log")) {
+                continue;
+            }
+            f.setAccessible(true);
+            Object e = f.get(expected);
+            Object a = f.get(actual);
+            if (e instanceof Enum || a instanceof Enum) {
+                assertEquals(a, e, f.getName());
+            } else {
+                assertSameFields(a, e);
+            }
+        }
+    }
+}
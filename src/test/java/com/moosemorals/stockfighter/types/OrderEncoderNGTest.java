@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderEncoderNGTest {
+
+    static Order order(String account, String venue, String symbol, int qty, int price, boolean buy, Order.OrderType type) {
+        Order o = new Order();
+        o.setAccount(account);
+        o.setVenue(venue);
+        o.setSymbol(symbol);
+        o.setQuantity(qty);
+        o.setPrice(price);
+        o.setBuy(buy);
+        o.setType(type);
+        return o;
+    }
+
+    static String generated(Order order) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (JsonGenerator gen = Json.createGenerator(body)) {
+            order.toJson(gen);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @DataProvider
+    public Object[][] orders() {
+        return new Object[][]{
+            {order("EXB123456", "TESTEX", "FOOBAR", 100, 5100, true, Order.OrderType.Limit)},
+            {order("EXB123456", "TESTEX", "FOOBAR", 1, 0, false, Order.OrderType.Market)},
+            {order("EXB123456", "TESTEX", "FOOBAR", Integer.MAX_VALUE, -42, true, Order.OrderType.FOK)},
+            {order("EXB123456", "TESTEX", "FOOBAR", Integer.MIN_VALUE, 9, false, Order.OrderType.IOC)},
+            {order("A\"B\\C", "T\tE\u0001X", "FÖÖ☃", 10, 10, true, Order.OrderType.Limit)},};
+    }
+
+    @Test(dataProvider = "orders")
+    public void test_sameAsGenerator(Order order) {
+        OrderEncoder.Encoded encoded = new OrderEncoder().encode(order);
+        assertEquals(encoded.toString(), generated(order));
+        assertEquals(encoded.getPath(), "/venues/" + order.getVenue() + "/stocks/" + order.getSymbol() + "/orders");
+    }
+
+    @Test
+    public void test_templates() {
+        OrderEncoder encoder = new OrderEncoder();
+        Order a = order("EXB123456", "TESTEX", "FOOBAR", 100, 5100, true, Order.OrderType.Limit);
+        Order b = order("EXB123456", "TESTEX", "BARFOO", 100, 5100, false, Order.OrderType.Limit);
+
+        OrderEncoder.Encoded first = encoder.encode(a);
+        byte[] data = first.getData();
+        for (int i = 0; i < 10; i += 1) {
+            a.setPrice(5000 + i);
+            assertSame(encoder.encode(a), first);
+            assertEquals(first.toString(), generated(a));
+        }
+        assertEquals(encoder.encode(b).toString(), generated(b));
+        assertEquals(encoder.encode(a).toString(), generated(a));
+        assertSame(first.getData(), data);
+        assertEquals(encoder.getTemplateCount(), 2);
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void test_incomplete() {
+        Order o = order("EXB123456", "TESTEX", "FOOBAR", 100, 5100, true, null);
+        new OrderEncoder().encode(o);
+    }
+}
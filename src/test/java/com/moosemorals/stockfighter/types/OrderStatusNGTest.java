@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.StringReader;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderStatusNGTest {
+
+    private static final String ORDER = "{\"ok\":true,\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"direction\":\"sell\","
+            + "\"originalQty\":100,\"qty\":0,\"price\":5000,\"type\":\"limit\",\"id\":7,\"account\":\"EXB123456\","
+            + "\"ts\":\"2015-08-10T16:10:32.987288Z\",\"fills\":[%s],\"totalFilled\":100,\"open\":false}";
+
+    private static OrderStatus parse(int fills) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < fills; i += 1) {
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append("{\"price\":").append(5000 + i).append(",\"qty\":").append(i + 1)
+                    .append(",\"ts\":\"2015-08-10T16:10:32.98729").append(i % 10).append("Z\"}");
+        }
+        try (JsonParser parser = Json.createParser(new StringReader(String.format(ORDER, b)))) {
+            parser.next();
+            return new OrderStatus(parser);
+        }
+    }
+
+    @Test
+    public void test_columns() {
+        OrderStatus o = parse(300);
+        assertEquals(o.getFillCount(), 300);
+        assertEquals(o.getFillPrice(299), 5299);
+        assertEquals(o.getFillQuantity(0), 1);
+        assertEquals(o.getFillTsNanos(3), TimestampCodec.parse("2015-08-10T16:10:32.987293Z"));
+        assertEquals(o.getTotalFilled(), 100);
+        assertEquals(o.getId(), 7);
+    }
+
+    @Test
+    public void test_fillsBuiltOnce() {
+        OrderStatus o = parse(3);
+        Fill[] fills = o.getFills();
+        assertEquals(fills.length, 3);
+        assertSame(o.getFills(), fills);
+        for (int i = 0; i < fills.length; i += 1) {
+            assertEquals(fills[i].getPrice(), o.getFillPrice(i));
+            assertEquals(fills[i].getQuantity(), o.getFillQuantity(i));
+            assertEquals(fills[i].getTsNanos(), o.getFillTsNanos(i));
+        }
+    }
+
+    @Test
+    public void test_noFills() {
+        OrderStatus o = parse(0);
+        assertEquals(o.getFillCount(), 0);
+        assertEquals(o.getFills().length, 0);
+    }
+
+    @Test
+    public void test_copy() {
+        OrderStatus o = parse(2);
+        OrderStatus c = o.copy();
+        assertEquals(c.getFillCount(), 2);
+        assertEquals(c.getFillPrice(1), 5001);
+        assertNotSame(c.getFills(), o.getFills());
+        assertEquals(c.toString(), o.toString());
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void test_outOfRange() {
+        parse(2).getFillPrice(2);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderStatusReaderNGTest {
+
+    private static String order(int id, boolean open) {
+        return "{\"ok\":true,\"symbol\":\"FOOBAR\",\"venue\":\"TESTEX\",\"direction\":\"buy\",\"originalQty\":100,"
+                + "\"qty\":" + (open ? 20 : 0) + ",\"price\":5100,\"orderType\":\"limit\",\"type\":\"limit\",\"id\":" + id + ","
+                + "\"account\":\"EXB123456\",\"ts\":\"2015-12-04T09:02:16.680986205Z\","
+                + "\"fills\":[{\"price\":5050,\"qty\":50,\"ts\":\"2015-12-04T09:02:16.680986205Z\"}],"
+                + "\"totalFilled\":80,\"open\":" + open + "}";
+    }
+
+    private static String listing(int count) {
+        StringBuilder b = new StringBuilder("{ \"ok\": true, \"venue\": \"TESTEX\", \"orders\": [\n");
+        for (int i = 0; i < count; i += 1) {
+            if (i > 0) {
+                b.append(",\n");
+            }
+            b.append(order(i + 1, i % 3 == 0));
+        }
+        return b.append("\n], \"extra\": {\"a\": [1, \"]\"]} }").toString();
+    }
+
+    /**
+     * Hands out a few bytes at a time, like a slow socket.
+     */
+    private static InputStream trickle(String text) {
+        final byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        return new InputStream() {
+            private int pos = 0;
+
+            @Override
+            public int read() {
+                return pos < raw.length ? raw[pos++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (pos >= raw.length) {
+                    return -1;
+                }
+                int n = Math.min(Math.min(len, raw.length - pos), 1 + pos % 7);
+                System.arraycopy(raw, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    private static List<OrderStatus> parseAll(String text) {
+        List<OrderStatus> result = new ArrayList<>();
+        try (JsonParser parser = Json.createParser(new StringReader(text))) {
+            while (parser.hasNext()) {
+                if (parser.next() == JsonParser.Event.KEY_NAME && parser.getString().equals("orders")) {
+                    while (parser.next() != JsonParser.Event.END_ARRAY) {
+                        result.add(new OrderStatus(parser));
+                    }
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void test_allOrders() throws Exception {
+        String text = listing(50);
+        List<OrderStatus> expected = parseAll(text);
+        List<OrderStatus> actual = new ArrayList<>();
+        try (OrderStatusReader reader = new OrderStatusReader(trickle(text), false)) {
+            OrderStatus o;
+            while ((o = reader.read()) != null) {
+                actual.add(o);
+            }
+            assertNull(reader.read());
+        }
+        assertEquals(actual.size(), 50);
+        for (int i = 0; i < expected.size(); i += 1) {
+            MessageDecoderNGTest.assertSameFields(actual.get(i), expected.get(i));
+        }
+    }
+
+    @Test
+    public void test_openOnly() throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        try (OrderStatusReader reader = new OrderStatusReader(trickle(listing(10)), true)) {
+            while (reader.hasNext()) {
+                OrderStatus o = reader.next();
+                assertTrue(o.isOpen());
+                ids.add(o.getId());
+            }
+        }
+        assertEquals(ids.toString(), "[1, 4, 7, 10]");
+    }
+
+    @Test
+    public void test_bigOrder() throws Exception {
+        StringBuilder fills = new StringBuilder();
+        for (int i = 0; i < 2000; i += 1) {
+            fills.append(i == 0 ? "" : ",").append("{\"price\":").append(i).append(",\"qty\":1,\"ts\":\"2015-12-04T09:02:16Z\"}");
+        }
+        String text = "{\"ok\":true,\"orders\":[" + order(1, true).replace("{\"price\":5050,\"qty\":50,\"ts\":\"2015-12-04T09:02:16.680986205Z\"}", fills) + "]}";
+        try (OrderStatusReader reader = new OrderStatusReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), false)) {
+            assertEquals(reader.read().getFillCount(), 2000);
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void test_empty() throws Exception {
+        try (OrderStatusReader reader = new OrderStatusReader(trickle("{\"ok\":true,\"venue\":\"TESTEX\",\"orders\":[]}"), false)) {
+            assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Can't get list of orders: No \"such\" account")
+    public void test_error() throws Exception {
+        try (OrderStatusReader reader = new OrderStatusReader(trickle("{\"ok\":false,\"error\":\"No \\\"such\\\" account\"}"), false)) {
+            reader.read();
+        }
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void test_truncated() throws Exception {
+        String text = listing(3);
+        try (OrderStatusReader reader = new OrderStatusReader(trickle(text.substring(0, text.length() / 2)), false)) {
+            while (reader.read() != null) {
+                // keep going
+            }
+        }
+    }
+}
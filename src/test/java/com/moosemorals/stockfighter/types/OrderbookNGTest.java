@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.io.StringReader;
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class OrderbookNGTest {
+
+    private static final String BOOK = "{\"ok\":true,\"venue\":\"TESTEX\",\"symbol\":\"FOOBAR\","
+            + "\"bids\":[{\"price\":5200,\"qty\":1,\"isBuy\":true},{\"price\":5100,\"qty\":200,\"isBuy\":true},"
+            + "{\"price\":5100,\"qty\":50,\"isBuy\":true},{\"price\":5000,\"qty\":300,\"isBuy\":true}],"
+            + "\"asks\":%s,\"ts\":\"2015-12-04T09:02:16.680986205Z\"}";
+
+    private static final String ASKS = "[{\"price\":5300,\"qty\":100,\"isBuy\":false},{\"price\":5400,\"qty\":50,\"isBuy\":false}]";
+
+    private static Orderbook parse(String asks) {
+        try (JsonParser parser = Json.createParser(new StringReader(String.format(BOOK, asks)))) {
+            return new Orderbook(parser);
+        }
+    }
+
+    @Test
+    public void test_columns() {
+        Orderbook book = parse(ASKS);
+        assertTrue(book.isIsOk());
+        assertEquals(book.getSymbol(), "FOOBAR");
+        assertEquals(book.getTsNanos(), TimestampCodec.parse("2015-12-04T09:02:16.680986205Z"));
+        assertEquals(book.getLevelCount(true), 4);
+        assertEquals(book.getPrice(true, 0), 5200);
+        assertEquals(book.getQuantity(true, 3), 300);
+        assertEquals(book.getTotalQuantity(true), 551);
+        assertEquals(book.getTotalQuantity(false), 150);
+    }
+
+    @Test
+    public void test_entriesBuiltOnce() {
+        Orderbook book = parse(ASKS);
+        Orderbook.Entry[] asks = book.getAsks();
+        assertSame(book.getAsks(), asks);
+        assertEquals(asks.length, 2);
+        assertEquals(asks[1].getPrice(), 5400);
+        assertEquals(asks[1].getQuantity(), 50);
+        assertEquals(asks[1].isIsBuy(), false);
+        assertEquals(book.getBids()[0].isIsBuy(), true);
+    }
+
+    @Test
+    public void test_nullSide() {
+        Orderbook book = parse("null");
+        assertEquals(book.getLevelCount(false), 0);
+        assertEquals(book.getAsks().length, 0);
+        assertEquals(book.getPriceToFill(false, 1), Orderbook.NO_PRICE);
+        // Parsing carried on past the null
+        assertEquals(book.getTsNanos(), TimestampCodec.parse("2015-12-04T09:02:16.680986205Z"));
+    }
+
+    @Test
+    public void test_quantityAtOrBetter() {
+        Orderbook book = parse(ASKS);
+        assertEquals(book.getQuantityAtOrBetter(true, 5300), 0);
+        assertEquals(book.getQuantityAtOrBetter(true, 5200), 1);
+        assertEquals(book.getQuantityAtOrBetter(true, 5150), 1);
+        assertEquals(book.getQuantityAtOrBetter(true, 5100), 251);
+        assertEquals(book.getQuantityAtOrBetter(true, 1), 551);
+        assertEquals(book.getQuantityAtOrBetter(false, 5299), 0);
+        assertEquals(book.getQuantityAtOrBetter(false, 5300), 100);
+        assertEquals(book.getQuantityAtOrBetter(false, 9999), 150);
+    }
+
+    @Test
+    public void test_priceToFill() {
+        Orderbook book = parse(ASKS);
+        assertEquals(book.getPriceToFill(false, 100), 5300);
+        assertEquals(book.getPriceToFill(false, 101), 5400);
+        assertEquals(book.getPriceToFill(false, 150), 5400);
+        assertEquals(book.getPriceToFill(false, 151), Orderbook.NO_PRICE);
+        assertEquals(book.getPriceToFill(true, 1), 5200);
+        assertEquals(book.getPriceToFill(true, 251), 5100);
+        assertEquals(book.getPriceToFill(true, 252), 5000);
+    }
+
+    @Test
+    public void test_sweep() {
+        Orderbook book = parse(ASKS);
+        assertEquals(book.getSweepCost(false, 50), 50 * 5300);
+        assertEquals(book.getSweepCost(false, 120), 100 * 5300 + 20 * 5400);
+        assertEquals(book.getSweepCost(false, 151), -1);
+        assertEquals(book.getAveragePrice(false, 150), (100 * 5300 + 50 * 5400) / 150.0, 1e-9);
+        assertEquals(book.getAveragePrice(true, 251), (5200 + 250 * 5100) / 251.0, 1e-9);
+        assertTrue(Double.isNaN(book.getAveragePrice(false, 1000)));
+    }
+
+    @Test
+    public void test_outOfOrder() {
+        Orderbook book = parse("[{\"price\":5400,\"qty\":50},{\"price\":5300,\"qty\":100}]");
+        assertEquals(book.getPrice(false, 0), 5300);
+        assertEquals(book.getPriceToFill(false, 100), 5300);
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void test_badIndex() {
+        parse(ASKS).getPrice(false, 2);
+    }
+}
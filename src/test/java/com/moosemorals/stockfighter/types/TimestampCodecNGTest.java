@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.stockfighter.types;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public class TimestampCodecNGTest {
+
+    private static final DateTimeFormatter joda = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+    @DataProvider
+    public Object[][] apiTimestamps() {
+        return new Object[][]{
+            {"2015-07-13T05:38:17.33640392Z"},
+            {"2015-12-04T09:02:16.680986205Z"},
+            {"2015-08-10T16:10:32.987288+09:00"},
+            {"2015-08-10T16:10:32.9-05:30"},
+            {"2016-02-29T23:59:59Z"},
+            {"1970-01-01T00:00:00.000000001Z"},
+            {"1969-12-31T23:59:59.999999999Z"},
+            {"2000-03-01T00:00:00+0100"},};
+    }
+
+    @Test(dataProvider = "apiTimestamps")
+    public void test_nanos(String raw) {
+        Instant expected = OffsetDateTime.parse(raw.replaceFirst("([+-]\\d\\d)(\\d\\d)$", "$1:$2")).toInstant();
+        long nanos = TimestampCodec.parse(raw);
+        assertEquals(TimestampCodec.toInstant(nanos), expected);
+
+        byte[] bytes = ("\"" + raw + "\"").getBytes(StandardCharsets.UTF_8);
+        assertEquals(TimestampCodec.parse(bytes, 1, bytes.length - 2), nanos);
+    }
+
+    @Test(dataProvider = "apiTimestamps")
+    public void test_matchesJoda(String raw) {
+        assertEquals(TimestampCodec.toDateTime(TimestampCodec.parse(raw)), joda.parseDateTime(raw));
+    }
+
+    @Test
+    public void test_fallback() {
+        // Not the API format, so Joda gets it
+        assertEquals(TimestampCodec.toDateTime(TimestampCodec.parse("2015-07-13")), joda.parseDateTime("2015-07-13"));
+        assertEquals(TimestampCodec.toDateTime(TimestampCodec.parse("2015-07-13T05:38Z")), joda.parseDateTime("2015-07-13T05:38Z"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_badDate() {
+        TimestampCodec.parse("2015-02-30T05:38:17.33640392Z");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_tooPrecise() {
+        TimestampCodec.parse("2015-01-01T00:00:00.1234567891Z");
+    }
+
+    @Test
+    public void test_none() {
+        assertNull(TimestampCodec.toDateTime(TimestampCodec.NONE));
+        assertNull(TimestampCodec.toInstant(TimestampCodec.NONE));
+    }
+}